@@ -0,0 +1,20 @@
+package com.example.konstantin.btterminal;
+
+import android.app.Application;
+import android.util.Log;
+
+// Process wide setup, before any Activity or Service is created
+public class BTApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // BTLog runs without Android as well, in the app it prints to logcat
+        BTLog.setPrinter(new BTLog.Printer() {
+            public void println(int level, String tag, String msg) {
+                Log.println(level, tag, msg);
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.konstantin.btterminal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Recyclable receive chunks, handed from the reader thread to the UI and back.
+// An empty pool falls back to allocation and counts a miss.
+public class BTBufferPool {
+
+    private final int mChunkSize;
+    private final ArrayBlockingQueue<byte[]> mFreeChunks;
+
+    private final AtomicLong mMissCount = new AtomicLong();
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTBufferPool(int chunkCount, int chunkSize) {
+        mChunkSize = chunkSize;
+        mFreeChunks = new ArrayBlockingQueue<byte[]>(chunkCount);
+
+        for (int i = 0; i < chunkCount; i++) {
+            mFreeChunks.offer(new byte[chunkSize]);
+        }
+    }
+
+    public byte[] acquire() {
+        byte[] chunk = mFreeChunks.poll();
+
+        if (chunk == null) {
+            // Pool exhausted, consumer is behind
+            mMissCount.incrementAndGet();
+            chunk = new byte[mChunkSize];
+        }
+
+        return chunk;
+    }
+
+    public void release(byte[] chunk) {
+        // Foreign buffers are silently dropped, surplus ones when the pool is full as well
+        if (chunk != null && chunk.length == mChunkSize) {
+            mFreeChunks.offer(chunk);
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getAvailable() {
+        return mFreeChunks.size();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+}
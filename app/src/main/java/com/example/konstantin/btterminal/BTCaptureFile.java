@@ -0,0 +1,107 @@
+package com.example.konstantin.btterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Session capture written through a memory mapped window that is remapped in large segments.
+//
+// File layout, big endian:
+//   header:  int magic, short version, short header size, long start time (ms since epoch)
+//   records: long time (ns since start, monotonic), int length | direction << 31, data
+//
+// A record length of 0 marks the end of an unfinished file, close() truncates it to the last record.
+public class BTCaptureFile {
+
+    // Record Directions
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    // File Format
+    public static final int MAGIC = 0x42544350;
+    public static final short VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int DIRECTION_BIT = 0x80000000;
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    // Member Variables
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+
+    private MappedByteBuffer mSegment;
+    private long mSegmentStart;
+
+    private final long mStartNanos;
+    private long mRecordCount;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTCaptureFile(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+
+        mStartNanos = System.nanoTime();
+
+        map(0, SEGMENT_SIZE);
+
+        mSegment.putInt(MAGIC);
+        mSegment.putShort(VERSION);
+        mSegment.putShort((short) FILE_HEADER_SIZE);
+        mSegment.putLong(System.currentTimeMillis());
+    }
+
+    // Called from the reader and writer threads. Ignored once closed, as those threads may
+    // still hold the capture when it is stopped.
+    public synchronized void append(int direction, byte[] data, int offset, int count) throws IOException {
+        if (count <= 0 || mSegment == null) return;
+
+        int size = RECORD_HEADER_SIZE + count;
+        if (mSegment.remaining() < size) {
+            map(mSegmentStart + mSegment.position(), Math.max(SEGMENT_SIZE, size));
+        }
+
+        mSegment.putLong(System.nanoTime() - mStartNanos);
+        mSegment.putInt(count | (direction == DIRECTION_OUT ? DIRECTION_BIT : 0));
+        mSegment.put(data, offset, count);
+
+        mRecordCount++;
+    }
+
+    public synchronized void close() throws IOException {
+        if (mSegment == null) return;
+
+        long end = mSegmentStart + mSegment.position();
+        mSegment.force();
+        mSegment = null;
+
+        // Cut off the unused rest of the last segment
+        mChannel.truncate(end);
+        mRandomAccessFile.close();
+    }
+
+    private void map(long position, int size) throws IOException {
+        mSegment = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        mSegment.order(ByteOrder.BIG_ENDIAN);
+        mSegmentStart = position;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    public synchronized long getSize() {
+        return (mSegment != null) ? mSegmentStart + mSegment.position() : mFile.length();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.konstantin.btterminal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Streams the records of a BTCaptureFile one at a time.
+// The record data array is reused and only valid until the next call to next().
+public class BTCaptureReader implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Member Variables
+    private final DataInputStream mInStream;
+    private final long mStartTime;
+
+    private long mTimestamp;
+    private int mDirection;
+    private int mLength;
+    private byte[] mData = new byte[4096];
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTCaptureReader(File file) throws IOException {
+        mInStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+
+        try {
+            if (mInStream.readInt() != BTCaptureFile.MAGIC) throw new IOException("Not a capture file");
+            if (mInStream.readShort() != BTCaptureFile.VERSION) throw new IOException("Unsupported capture version");
+
+            int headerSize = mInStream.readShort();
+            mStartTime = mInStream.readLong();
+
+            mInStream.skipBytes(headerSize - BTCaptureFile.FILE_HEADER_SIZE);
+        } catch (IOException e) {
+            mInStream.close();
+            throw e;
+        }
+    }
+
+    // Returns false at the end of the capture
+    public boolean next() throws IOException {
+        int header;
+
+        try {
+            mTimestamp = mInStream.readLong();
+            header = mInStream.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+
+        mDirection = ((header & BTCaptureFile.DIRECTION_BIT) != 0) ? BTCaptureFile.DIRECTION_OUT : BTCaptureFile.DIRECTION_IN;
+        mLength = header & ~BTCaptureFile.DIRECTION_BIT;
+
+        // Zero filled tail of a capture that was not closed
+        if (mLength == 0) return false;
+
+        if (mData.length < mLength) mData = new byte[mLength];
+        mInStream.readFully(mData, 0, mLength);
+
+        return true;
+    }
+
+    public void close() throws IOException {
+        mInStream.close();
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Wall clock time the capture was started, ms since epoch
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    // Time of the current record, ns since capture start
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getDirection() {
+        return mDirection;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.konstantin.btterminal;
+
+// COBS frames terminated by a zero byte, decoded in place.
+// Each block starts with a code byte: code - 1 data bytes follow, and a zero unless code is 0xFF
+// or the block is the last one of the frame.
+public class BTCobsFrameDecoder extends BTFrameDecoder {
+
+    // Member Variables
+    private int mCode;
+    private int mRemaining;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTCobsFrameDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public BTCobsFrameDecoder(int maxFrameSize) {
+        super(maxFrameSize);
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int count, Listener listener) {
+        int end = offset + count;
+        int start = offset;
+
+        // Decoded output is never longer than the input read so far
+        int write = offset;
+
+        for (int i = offset; i < end; i++) {
+            int value = data[i] & 0xFF;
+
+            if (value == 0) {
+                if (mRemaining > 0) {
+                    // Frame ended inside a block
+                    dropFrame();
+                } else if (isAssembling()) {
+                    emitAssembly(listener, 0);
+                } else if (mCode != 0) {
+                    emit(listener, data, start, write - start);
+                }
+
+                mCode = 0;
+                mRemaining = 0;
+                start = i + 1;
+                write = i + 1;
+                continue;
+            }
+
+            if (mRemaining == 0) {
+                // Code byte, emits the zero implied by the previous block
+                if (mCode != 0 && mCode != 0xFF) write = put(data, write, (byte) 0);
+
+                mCode = value;
+                mRemaining = value - 1;
+            } else {
+                write = put(data, write, (byte) value);
+                mRemaining--;
+            }
+        }
+
+        if (write > start) assemble(data, start, write - start);
+    }
+
+    // Returns the next write position
+    private int put(byte[] data, int write, byte value) {
+        if (isAssembling()) {
+            assemble(value);
+            return write;
+        }
+
+        data[write] = value;
+        return write + 1;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mCode = 0;
+        mRemaining = 0;
+    }
+}
@@ -1,479 +1,1053 @@
 package com.example.konstantin.btterminal;
 
-import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.content.Intent;
-import android.os.Bundle;
-import android.util.Log;
-import android.os.Handler;
-import android.os.Message;
-
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.UUID;
-
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Transitions between connection states are serialized on the connection's monitor, the state
+// itself is an atomic read without locking. State queries, write() and all getters never block,
+// so they are safe from the UI thread while a connect or accept is being handled.
+//
+// Free of Android, everything platform specific comes in through the Host and the transport.
+// The app runs connections with BTHandlerHost over RFCOMM, tests and benchmarks run the same
+// engine on a plain JVM, e.g. over BTTcpTransport against a scripted peer.
 public class BTConnection {
     // Debug
     private static final String TAG = "BTConnection";
-    private static final boolean DBG = true;
-
-    // Name for SDP record for Server Socket
-    private static final String NAME = "BTConnection";
-
-    // Standard Serial Port UUID
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+    private static final boolean DBG = BTLog.DEBUG;
+    private static final boolean VDBG = BTLog.VERBOSE;
 
-    // Key Names
-    public static final String DEVICE_NAME = "device_name";
-    public static final String TOAST = "toast";
-
-    // Intent Request Codes
-    public static final int REQ_DEVICE_LIST = 1;
-    public static final int REQ_ENABLE_BT = 2;
-
-    // Messages from Data Transfer Handler
+    // Messages to the Host, arg2 is the session id. MSG_DEVICE_NAME carries the name in obj,
+    // MSG_TOAST one of the TOAST_ codes in arg1 and its format arguments as Object[] in obj.
     public static final int MSG_STATE_CHANGE = 1;
     public static final int MSG_DEVICE_NAME = 2;
     public static final int MSG_DATA_READ = 3;
     public static final int MSG_DATA_WRITTEN = 4;
     public static final int MSG_TOAST = 5;
+    public static final int MSG_FRAME_READ = 6;
+    public static final int MSG_SEND_PROGRESS = 7;
+    public static final int MSG_TRANSFER_PROGRESS = 8;
 
     // Connection States
     public static final int STATE_NONE = 0;
     public static final int STATE_LISTEN = 1;
     public static final int STATE_CONNECTING = 2;
     public static final int STATE_CONNECTED = 3;
+    public static final int STATE_RECONNECTING = 4;
+
+    // Toasts, format arguments in brackets
+    public static final int TOAST_DISCONNECTED = 1;
+    public static final int TOAST_UNABLE_TO_CONNECT = 2;
+    public static final int TOAST_LOST_CONNECTION = 3;
+    public static final int TOAST_RECONNECTING = 4;
+    public static final int TOAST_CAPTURE_FAILED = 5;
+    public static final int TOAST_REPLAY_FINISHED = 6;
+    public static final int TOAST_REPLAY_FAILED = 7;
+    public static final int TOAST_SEND_FINISHED = 8;        // [name, KiB/s]
+    public static final int TOAST_SEND_FAILED = 9;          // [name]
+    public static final int TOAST_TRANSFER_FINISHED = 10;   // [files, KiB/s]
+    public static final int TOAST_TRANSFER_FAILED = 11;     // [error]
+
+    // Everything a connection needs from its environment. Several connections may share one.
+    public interface Host {
+        // Delivers a message to the receiving thread after delayMs, see the MSG_ constants
+        void sendMessage(int what, int arg1, int arg2, Object obj, long delayMs);
+
+        // Runs task on the receiving thread after delayMs, until removed
+        void postDelayed(Runnable task, long delayMs);
+
+        void removeCallbacks(Runnable task);
+
+        // Blocking reads, writes and accepts, every task runs for a whole connection or listen
+        ExecutorService getIoExecutor();
+
+        // Connect attempts
+        ExecutorService getConnectExecutor();
+    }
 
-    // Member Variables
-    private Context mContext;
-    private Handler mHandler;
-    private BluetoothAdapter mBluetoothAdapter;
+    // Notified of every state transition, see addStateListener()
+    public interface StateListener {
+        void onStateChanged(BTConnection connection, int oldState, int newState);
+    }
+
+    // Receive Buffer Pool
+    private static final int POOL_CHUNK_COUNT = 32;
+    private static final int POOL_CHUNK_SIZE = 1024;
 
-    private AcceptThread mAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    // Receive Ring Buffer
+    public static final int DEFAULT_RX_CAPACITY = 64 * 1024;
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    // File Transfer
+    private static final int TRANSFER_RX_CAPACITY = 16 * 1024;
+    private static final int TRANSFER_CHUNK_COUNT = 8;
+    private static final int TRANSFER_CHUNK_SIZE = 1024;
+    private static final long TRANSFER_RETRY_DELAY_MS = 10;
+    private static final long TRANSFER_STALL_TIMEOUT_MS = 10000;
+
+    // Member Variables
+    private final Host mHost;
+    private final int mSessionId;
+    private final BTTransport mTransport;
+    private final BTBufferPool mBufferPool;
+    private final BTWriteQueue mWriteQueue;
+    private volatile BTRingBuffer mRxBuffer;
+    private int mRxCapacity;
+    private int mRxPolicy;
+    private boolean mRxChanged;
+    private volatile BTFrameDecoder mFrameDecoder;
+
+    private volatile BTCaptureFile mCapture;
+    private volatile boolean mCaptureSent;
+
+    private final AtomicBoolean mReadPending = new AtomicBoolean();
+    private volatile long mLastReadTime;
+    private volatile long mReadPendingSince;
+
+    private final BTMetrics mMetrics = new BTMetrics();
+
+    private AcceptTask mAcceptTask;
+    private ConnectTask mConnectTask;
+    private ConnectedTask mConnectedTask;
+    private volatile ReplayTask mReplayTask;
+    private volatile SendTask mSendTask;
+    private volatile TransferTask mTransferTask;
+    private final AtomicInteger mState = new AtomicInteger(STATE_NONE);
+    private final CopyOnWriteArrayList<StateListener> mStateListeners = new CopyOnWriteArrayList<StateListener>();
+    private final ConcurrentLinkedQueue<int[]> mStateChanges = new ConcurrentLinkedQueue<int[]>();
+    private final AtomicBoolean mNotifying = new AtomicBoolean();
+    private volatile String mAddress;
+    private volatile String mDeviceName;
+    private boolean mOutgoing;
+
+    private BTReconnectPolicy mReconnectPolicy;
+    private volatile int mReconnectAttempt;
 
     private boolean mBTListening;
-    private boolean mBTAvailable;
-    private boolean mBTEnabled;
 
 //-- Service Functions -----------------------------------------------------------------------------
-    public BTConnection(Context context, Handler handler) {
-        if (DBG) Log.d(TAG, "BTConnection()");
+    // All messages carry sessionId in arg2, so several connections can share one Host
+    public BTConnection(Host host, BTTransport transport, int sessionId) {
+        if (DBG) BTLog.d(TAG, "BTConnection()");
 
-        mState = STATE_NONE;
         mBTListening = false;
-        mBTAvailable = false;
-        mBTEnabled = false;
 
-        mContext = context;
-        mHandler = handler;
+        mHost = host;
+        mTransport = transport;
+        mSessionId = sessionId;
 
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mBufferPool = new BTBufferPool(POOL_CHUNK_COUNT, POOL_CHUNK_SIZE);
+        mWriteQueue = new BTWriteQueue(BTWriteQueue.DEFAULT_CAPACITY, BTWriteQueue.DEFAULT_MAX_WRITE_SIZE,
+                host.getIoExecutor());
 
-        if (mBluetoothAdapter != null) {
-            mBTAvailable = true;
-            mBTEnabled = mBluetoothAdapter.isEnabled();
-        }
+        mRxCapacity = DEFAULT_RX_CAPACITY;
+        mRxPolicy = BTRingBuffer.POLICY_DROP_OLDEST;
+        mRxBuffer = new BTRingBuffer(mRxCapacity, mRxPolicy);
     }
 
     public void onDestroy() {
-        if (DBG) Log.d(TAG, "onDestroy()");
+        if (DBG) BTLog.d(TAG, "onDestroy()");
         stop();
     }
 
 //-- Setter/Getter Functions -----------------------------------------------------------------------------
 
-    private synchronized void setState(int state) {
-        if (DBG) Log.d(TAG, "setState(" + mState + " -> " + state + ")");
+    // Called with the monitor held, which serializes all transitions. mState is atomic so that
+    // readers do not need the monitor. Listeners hear of the transition from notifyStateListeners().
+    private void setState(int state) {
+        int oldState = mState.getAndSet(state);
+
+        if (BTLog.INFO) BTLog.i(TAG, "setState(%d -> %d) session %d", oldState, state, mSessionId);
 
-        mState = state;
         // Send StateChange MSG to UI Activity for updating
+        mHost.sendMessage(MSG_STATE_CHANGE, state, mSessionId, null, 0);
 
-        mHandler.obtainMessage(MSG_STATE_CHANGE, state, -1).sendToTarget();
+        mStateChanges.add(new int[] { oldState, state });
     }
 
-    public synchronized int getState() {
-        if (DBG) Log.d(TAG, "getState() = " + mState);
-        return mState;
+    // Called by every method that may transition, once it released the monitor. Does nothing while
+    // the monitor is still held, the outermost caller delivers. Transitions are delivered in order
+    // by one thread at a time, a thread finding another one delivering leaves its own to it.
+    private void notifyStateListeners() {
+        if (Thread.holdsLock(this)) return;
+
+        while (!mStateChanges.isEmpty() && mNotifying.compareAndSet(false, true)) {
+            try {
+                int[] change;
+                while ((change = mStateChanges.poll()) != null) {
+                    for (StateListener listener : mStateListeners) {
+                        listener.onStateChanged(this, change[0], change[1]);
+                    }
+                }
+            } finally {
+                mNotifying.set(false);
+            }
+        }
     }
 
-    public boolean isAvailable() {
-        if (DBG) Log.d(TAG, "isAvailable() = " + mBTAvailable);
+    // Never blocks
+    public int getState() {
+        return mState.get();
+    }
 
-        return mBTAvailable;
+    // Listening, connecting or connected in any way
+    public static boolean isActive(int state) {
+        return state != STATE_NONE;
     }
 
-    public boolean isEnabled() {
-        if (DBG) Log.d(TAG, "isEnabled()");
+    // Listeners are called in transition order once the connection's monitor was released, on the
+    // thread making the transition or on one delivering concurrent transitions. They may call into
+    // the connection, but should return quickly.
+    public void addStateListener(StateListener listener) {
+        mStateListeners.addIfAbsent(listener);
+    }
 
-        if (mBTAvailable) {
-            mBTEnabled = mBluetoothAdapter.isEnabled();
-            return mBTEnabled;
-        } else {
-            return false;
-        }
+    public void removeStateListener(StateListener listener) {
+        mStateListeners.remove(listener);
     }
 
-    public void setEnabled(boolean enable) {
-        if (DBG) Log.d(TAG, "setEnabled(" + enable + ")");
+    // Takes effect with the next connection
+    public synchronized void setReceiveBuffer(int capacity, int policy) {
+        if (DBG) BTLog.d(TAG, "setReceiveBuffer(%d, %d)", capacity, policy);
 
-        if (mBTAvailable && !mBTEnabled && enable) {
-            Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            ((Activity) mContext).startActivityForResult(enableIntent, REQ_ENABLE_BT);
-        } else if (mBTAvailable && mBTEnabled && !enable) {
-            mBluetoothAdapter.disable();
-        }
+        mRxCapacity = capacity;
+        mRxPolicy = policy;
+        mRxChanged = true;
     }
 
-    public void showDeviceList() {
-        Intent scanIntent = new Intent(mContext, BTDeviceList.class);
-        ((Activity) mContext).startActivityForResult(scanIntent, REQ_DEVICE_LIST);
+    // Lost outgoing connections are reconnected according to policy, null disables reconnecting.
+    // Writes queued meanwhile are sent once reconnected.
+    public synchronized void setReconnectPolicy(BTReconnectPolicy policy) {
+        if (DBG) BTLog.d(TAG, "setReconnectPolicy(%s)", policy);
+
+        mReconnectPolicy = policy;
     }
 
-    public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (DBG) Log.d(TAG, "onActivityResult(" + resultCode + ")");
+    // Attempt currently running or waiting, 0 if not reconnecting
+    public int getReconnectAttempt() {
+        return (mState.get() == STATE_RECONNECTING) ? mReconnectAttempt : 0;
+    }
 
-        switch (requestCode) {
-            case REQ_DEVICE_LIST:
-                if (resultCode == Activity.RESULT_OK) {
-                    String address = data.getExtras().getString(BTDeviceList.EXTRA_DEVICE_ADDRESS);
-                    BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-                    connect(device);
-                }
-                break;
+    // Received data is delivered as MSG_FRAME_READ per frame instead of MSG_DATA_READ,
+    // null switches back to unframed data
+    public synchronized void setFrameDecoder(BTFrameDecoder frameDecoder) {
+        if (DBG) BTLog.d(TAG, "setFrameDecoder(%s)", frameDecoder);
 
-            case REQ_ENABLE_BT:
-                if (resultCode == Activity.RESULT_OK) {
-                    mBTEnabled = true;
-                } else {
-                    mBTEnabled = false;
-                }
-        }
+        if (frameDecoder != null) frameDecoder.reset();
+        mFrameDecoder = frameDecoder;
+    }
+
+    public BTFrameDecoder getFrameDecoder() {
+        return mFrameDecoder;
     }
 
-    public synchronized void listen(boolean enable) {
-        if (DBG) Log.d(TAG, "listen(" + enable + ")");
+    public int getSessionId() {
+        return mSessionId;
+    }
+
+    // Address of the current or last peer, null before the first connection
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public long getDroppedBytes() {
+        return mRxBuffer.getDroppedBytes();
+    }
+
+    public boolean isReplaying() {
+        return mReplayTask != null;
+    }
+
+    public boolean isSending() {
+        return mSendTask != null;
+    }
+
+    // Sender of the running file send, null if none
+    public BTFileSender getFileSender() {
+        SendTask sendTask = mSendTask;
+        return (sendTask != null) ? sendTask.mmSender : null;
+    }
+
+    public boolean isTransferring() {
+        return mTransferTask != null;
+    }
 
+    // Modem of the running file transfer, null if none
+    public BTModem getTransfer() {
+        TransferTask transferTask = mTransferTask;
+        return (transferTask != null) ? transferTask.mmModem : null;
+    }
+
+    public boolean isCapturing() {
+        return mCapture != null;
+    }
+
+    public File getCaptureFile() {
+        BTCaptureFile capture = mCapture;
+        return (capture != null) ? capture.getFile() : null;
+    }
+
+    public BTWriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    public BTMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public BTMetrics.Snapshot getMetricsSnapshot() {
+        return mMetrics.snapshot(mWriteQueue.getQueuedBytes());
+    }
+
+    public long getPoolMissCount() {
+        return mBufferPool.getMissCount();
+    }
+
+    public void listen(boolean enable) {
+        listenLocked(enable);
+        notifyStateListeners();
+    }
+
+    private synchronized void listenLocked(boolean enable) {
+        if (DBG) BTLog.d(TAG, "listen(%s)", enable);
+
+        cancelReconnect();
         setState(STATE_NONE);
 
         mBTListening = enable;
 
         if (enable) {
 
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+            if (mConnectTask != null) {
+                mConnectTask.cancel();
+                mConnectTask = null;
             }
 
-            if (mConnectedThread != null) {
-                mConnectedThread.cancel();
-                mConnectedThread = null;
+            if (mConnectedTask != null) {
+                mConnectedTask.cancel();
+                mConnectedTask = null;
             }
 
-            if (mAcceptThread == null) {
-                mAcceptThread = new AcceptThread();
-                mAcceptThread.start();
+            if (mAcceptTask == null) {
+                mAcceptTask = new AcceptTask();
+                if (!mAcceptTask.start(mHost.getIoExecutor())) mAcceptTask = null;
             }
 
             setState(STATE_LISTEN);
         } else {
-            if (mAcceptThread != null) {
-                mAcceptThread.cancel();
-                mAcceptThread = null;
+            if (mAcceptTask != null) {
+                mAcceptTask.cancel();
+                mAcceptTask = null;
             }
         }
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        if (DBG) Log.d(TAG, "connect(" + device + ")");
+    public void connect(String address) {
+        connectLocked(address);
+        notifyStateListeners();
+    }
 
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null)
-            {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+    private synchronized void connectLocked(String address) {
+        if (BTLog.INFO) BTLog.i(TAG, "connect(%s)", address);
+
+        cancelReconnect();
+
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        if (mConnectedThread != null)
-        {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
+        mAddress = address;
+        mOutgoing = true;
 
         setState(STATE_CONNECTING);
+        startConnect();
     }
 
-    public synchronized void disconnect() {
-        if (DBG) Log.d(TAG, "disconnect()");
+    private void startConnect() {
+        mConnectTask = new ConnectTask(mAddress);
 
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null)
-            {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+        if (!mConnectTask.start(mHost.getConnectExecutor())) {
+            connectionFailed(mConnectTask);
         }
+    }
+
+    public void disconnect() {
+        disconnectLocked();
+        notifyStateListeners();
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.close();
-            mConnectedThread = null;
+    private synchronized void disconnectLocked() {
+        if (DBG) BTLog.d(TAG, "disconnect()");
+
+        cancelReconnect();
+
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
+        }
+
+        if (mConnectedTask != null) {
+            mConnectedTask.close();
+            mConnectedTask = null;
         }
 
-        makeToast(mContext.getString(R.string.toast_disconnected));
+        stopSend();
+        stopTransfer();
+
+        // Including writes kept while reconnecting
+        mWriteQueue.clear();
+
+        makeToast(TOAST_DISCONNECTED);
 
         listen(mBTListening);
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        if (DBG) Log.d(TAG, "connected()");
+    public void connected(BTTransport.Endpoint endpoint) {
+        connectedLocked(endpoint);
+        notifyStateListeners();
+    }
+
+    private synchronized void connectedLocked(BTTransport.Endpoint endpoint) {
+        if (DBG) BTLog.d(TAG, "connected()");
+
+        // Resumed connections keep their unread data and queued writes
+        boolean resumed = (mState.get() == STATE_RECONNECTING);
+        cancelReconnect();
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
+        if (mAcceptTask != null) {
+            mAcceptTask.cancel();
+            mAcceptTask = null;
+        }
+
+        stopReplay();
+
+        if (mRxChanged) {
+            mRxBuffer = new BTRingBuffer(mRxCapacity, mRxPolicy);
+            mRxChanged = false;
+        } else if (!resumed) {
+            mRxBuffer.clear();
         }
 
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+        if (!resumed) mMetrics.reset();
+
+        BTFrameDecoder frameDecoder = mFrameDecoder;
+        if (frameDecoder != null) frameDecoder.reset();
+
+        mAddress = endpoint.getAddress();
+        mDeviceName = endpoint.getName();
+
+        mConnectedTask = new ConnectedTask(endpoint);
+
+        if (!mConnectedTask.start(mHost.getIoExecutor())) {
+            mConnectedTask.cancel();
+            connectionLost(mConnectedTask);
+            return;
+        }
 
         // Send name of connected device back to UI Activity
-        Message msg = mHandler.obtainMessage(MSG_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mHost.sendMessage(MSG_DEVICE_NAME, -1, mSessionId, mDeviceName, 0);
 
         setState(STATE_CONNECTED);
     }
 
-    public synchronized void stop() {
-        if (DBG) Log.d(TAG, "stop()");
+    public void stop() {
+        stopLocked();
+        notifyStateListeners();
+    }
+
+    private synchronized void stopLocked() {
+        if (DBG) BTLog.d(TAG, "stop()");
+
+        cancelReconnect();
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
+        if (mAcceptTask != null) {
+            mAcceptTask.cancel();
+            mAcceptTask = null;
         }
 
+        stopSend();
+        stopTransfer();
+        mWriteQueue.shutdown();
+        stopCapture();
+        stopReplay();
+
         setState(STATE_NONE);
     }
 
-    public void write(byte[] data) {
-        if (DBG) Log.d(TAG, "write()");
-        ConnectedThread ct;
+    // Drains received data, to be called from the Host's receiving thread after MSG_DATA_READ
+    public int read(byte[] buffer, int offset, int count) {
+        // First read after a notification, cleared before re-arming so a new one keeps its time.
+        // Unframed data counts one frame per notification, as the receiver draws it at once.
+        long since = mReadPendingSince;
+        if (since != 0) {
+            mReadPendingSince = 0;
+            mMetrics.recordDispatchLatency((System.nanoTime() - since) / 1000);
+            mMetrics.recordFrameIn();
+        }
+
+        // Re-arm notification before draining so no data is left unannounced
+        mReadPending.set(false);
+        mLastReadTime = uptimeMillis();
+
+        return mRxBuffer.read(buffer, offset, count);
+    }
+
+    // Returns the frame of a MSG_FRAME_READ once the receiver is done with it
+    public void releaseBuffer(byte[] buffer) {
+        mBufferPool.release(buffer);
+    }
+
+    // Queues data for sending, MSG_DATA_WRITTEN follows once it was written.
+    // Returns false if not connected or reconnecting, or if the write queue is full.
+    // data is queued, not copied: once accepted it must not be modified until MSG_DATA_WRITTEN,
+    // or until the connection stops if it is never written.
+    public boolean write(byte[] data) {
+        return write(data, 0, data.length, mWrittenCallback);
+    }
+
+    // Same ownership as above, data belongs to the queue until callback was called
+    public boolean write(byte[] data, int offset, int count, BTWriteQueue.Callback callback) {
+        if (VDBG) BTLog.v(TAG, "write(%d)", count);
+
+        int state = mState.get();
+        if (state != STATE_CONNECTED && state != STATE_RECONNECTING) return false;
+
+        if (!mWriteQueue.write(data, offset, count, callback)) return false;
+
+        mMetrics.recordFrameOut(mWriteQueue.getQueuedBytes());
+        return true;
+    }
+
+    private final BTWriteQueue.Callback mWrittenCallback = new BTWriteQueue.Callback() {
+        public void onWriteComplete(byte[] data, int offset, int count, boolean success) {
+            if (success) {
+                mHost.sendMessage(MSG_DATA_WRITTEN, count, mSessionId, data, 0);
+            }
+        }
+    };
+
+    // Called from the reader and replay threads, buffer may be modified by the frame decoder
+    private void received(BTRingBuffer rxBuffer, byte[] buffer, int bytes) {
+        BTFrameDecoder frameDecoder = mFrameDecoder;
+        TransferTask transferTask = mTransferTask;
+
+        if (transferTask != null) {
+            // The modem has the link to itself, blocks the reader while it falls behind
+            transferTask.mmInBuffer.write(buffer, 0, bytes);
+        } else if (frameDecoder != null) {
+            frameDecoder.decode(buffer, 0, bytes, mFrameListener);
+        } else {
+            dataReceived(rxBuffer, buffer, bytes);
+        }
+    }
+
+    // One message per complete frame, in a pooled chunk unless the frame is larger
+    private final BTFrameDecoder.Listener mFrameListener = new BTFrameDecoder.Listener() {
+        public void onFrame(byte[] frame, int offset, int count) {
+            byte[] chunk = (count <= mBufferPool.getChunkSize()) ? mBufferPool.acquire() : new byte[count];
+            System.arraycopy(frame, offset, chunk, 0, count);
+
+            mMetrics.recordFrameIn();
+
+            mHost.sendMessage(MSG_FRAME_READ, count, mSessionId, chunk, 0);
+        }
+    };
+
+    private void dataReceived(BTRingBuffer rxBuffer, byte[] buffer, int bytes) {
+        rxBuffer.write(buffer, 0, bytes);
+
+        // Only one MSG_DATA_READ in flight, and at most one per frame
+        if (mReadPending.compareAndSet(false, true)) {
+            mReadPendingSince = System.nanoTime();
+            long delay = mLastReadTime + FRAME_INTERVAL_MS - uptimeMillis();
+
+            mHost.sendMessage(MSG_DATA_READ, rxBuffer.available(), mSessionId, null, Math.max(0, delay));
+        }
+    }
+
+    // Records all received, and optionally all sent, data into a capture file
+    public synchronized void startCapture(File file, boolean includeSent) throws IOException {
+        if (DBG) BTLog.d(TAG, "startCapture(%s, %b)", file, includeSent);
+
+        stopCapture();
+
+        mCaptureSent = includeSent;
+        mCapture = new BTCaptureFile(file);
+    }
 
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            ct = mConnectedThread;
+    public synchronized void stopCapture() {
+        if (DBG) BTLog.d(TAG, "stopCapture()");
+
+        BTCaptureFile capture = mCapture;
+        mCapture = null;
+
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                if (DBG) BTLog.d(TAG, "stopCapture() Capture close() failed", e);
+            }
         }
+    }
+
+    // Feeds the received data of a capture file through MSG_DATA_READ as if it came from a device.
+    // speed scales the original timing, 0 replays as fast as the receive buffer is drained.
+    public synchronized boolean startReplay(File file, float speed) {
+        if (DBG) BTLog.d(TAG, "startReplay(%s, %f)", file, speed);
+
+        if (mState.get() == STATE_CONNECTED) return false;
+
+        stopReplay();
 
-        ct.write(data);
+        BTFrameDecoder frameDecoder = mFrameDecoder;
+        if (frameDecoder != null) frameDecoder.reset();
+
+        mReplayTask = new ReplayTask(file, speed);
+
+        if (!mReplayTask.start(mHost.getIoExecutor())) {
+            mReplayTask = null;
+            return false;
+        }
+
+        return true;
     }
 
-    private void makeToast(String text) {
-        Message msg = mHandler.obtainMessage(MSG_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(TOAST, text);
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    public synchronized void stopReplay() {
+        if (DBG) BTLog.d(TAG, "stopReplay()");
+
+        if (mReplayTask != null) {
+            mReplayTask.cancel();
+            mReplayTask = null;
+        }
     }
 
-    private void connectionFailed() {
-        if (DBG) Log.d(TAG, "connectionFailed()");
+    // Streams in to the peer, paced by sender. Progress is posted as MSG_SEND_PROGRESS with the
+    // sender as obj, the last one once the sender finished. in is closed when done.
+    public synchronized boolean startSend(InputStream in, BTFileSender sender) {
+        if (DBG) BTLog.d(TAG, "startSend(%s, %d)", sender.getName(), sender.getTotalBytes());
+
+        if (mState.get() != STATE_CONNECTED || mTransferTask != null) return false;
+
+        stopSend();
+
+        mSendTask = new SendTask(in, sender);
+
+        if (!mSendTask.start(mHost.getIoExecutor())) {
+            mSendTask = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    public synchronized void stopSend() {
+        if (DBG) BTLog.d(TAG, "stopSend()");
+
+        if (mSendTask != null) {
+            mSendTask.cancel();
+            mSendTask = null;
+        }
+    }
+
+    // Sends files with a file transfer protocol, see BTModem. Progress is posted as
+    // MSG_TRANSFER_PROGRESS with the modem as obj, the last one once the modem finished.
+    public synchronized boolean startTransfer(int protocol, List<BTModem.Source> files) {
+        if (DBG) BTLog.d(TAG, "startTransfer(%d, %d files)", protocol, files.size());
+
+        return startTransfer(protocol, files, null);
+    }
+
+    // Receives files with a file transfer protocol into sink
+    public synchronized boolean startTransfer(int protocol, BTModem.Sink sink) {
+        if (DBG) BTLog.d(TAG, "startTransfer(%d)", protocol);
+
+        return startTransfer(protocol, null, sink);
+    }
+
+    private boolean startTransfer(int protocol, List<BTModem.Source> files, BTModem.Sink sink) {
+        if (mState.get() != STATE_CONNECTED || mSendTask != null) return false;
+
+        stopTransfer();
+
+        mTransferTask = new TransferTask(protocol, files, sink);
+
+        if (!mTransferTask.start(mHost.getIoExecutor())) {
+            mTransferTask = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    public synchronized void stopTransfer() {
+        if (DBG) BTLog.d(TAG, "stopTransfer()");
+
+        if (mTransferTask != null) {
+            mTransferTask.cancel();
+            mTransferTask = null;
+        }
+    }
+
+    private void capture(int direction, byte[] buffer, int offset, int count) {
+        BTCaptureFile capture = mCapture;
+        if (capture == null) return;
+
+        try {
+            capture.append(direction, buffer, offset, count);
+        } catch (IOException e) {
+            if (DBG) BTLog.d(TAG, "capture() Capture append() failed", e);
+
+            synchronized (this) {
+                // Replaced meanwhile, the new capture is not affected
+                if (mCapture != capture) return;
+                stopCapture();
+            }
+            makeToast(TOAST_CAPTURE_FAILED);
+        }
+    }
+
+    private void makeToast(int toast, Object... args) {
+        mHost.sendMessage(MSG_TOAST, toast, mSessionId, args, 0);
+    }
+
+    // Monotonic, unlike System.currentTimeMillis()
+    private static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void connectionFailed(ConnectTask task) {
+        connectionFailedLocked(task);
+        notifyStateListeners();
+    }
+
+    private synchronized void connectionFailedLocked(ConnectTask task) {
+        if (BTLog.INFO) BTLog.i(TAG, "connectionFailed(%s)", mAddress);
+
+        // Superseded attempt
+        if (task != mConnectTask) return;
+        mConnectTask = null;
+
+        if (mState.get() == STATE_RECONNECTING) {
+            scheduleReconnect();
+            return;
+        }
 
         listen(mBTListening);
 
-        makeToast(mContext.getString(R.string.toast_unable_to_connect));
+        makeToast(TOAST_UNABLE_TO_CONNECT);
+    }
+
+    private void connectionLost(ConnectedTask task) {
+        connectionLostLocked(task);
+        notifyStateListeners();
     }
 
-    private void connectionLost() {
-        if (DBG) Log.d(TAG, "connectionLost()");
+    private synchronized void connectionLostLocked(ConnectedTask task) {
+        if (BTLog.INFO) BTLog.i(TAG, "connectionLost(%s)", mAddress);
+
+        // Superseded connection
+        if (task != mConnectedTask) return;
+
+        if (mReconnectPolicy != null && mOutgoing) {
+            // Queued writes wait for the resumed connection
+            mConnectedTask.release();
+            mConnectedTask = null;
+
+            mReconnectAttempt = 0;
+            setState(STATE_RECONNECTING);
+            scheduleReconnect();
+
+            makeToast(TOAST_RECONNECTING);
+            return;
+        }
 
         listen(mBTListening);
 
-        makeToast(mContext.getString(R.string.toast_lost_connection));
+        makeToast(TOAST_LOST_CONNECTION);
+    }
+
+    private void scheduleReconnect() {
+        long delay = (mReconnectPolicy != null) ? mReconnectPolicy.getDelay(++mReconnectAttempt) : -1;
+
+        if (delay < 0) {
+            BTLog.w(TAG, "scheduleReconnect() giving up on %s", mAddress);
+
+            mWriteQueue.clear();
+            listen(mBTListening);
+
+            makeToast(TOAST_LOST_CONNECTION);
+            return;
+        }
+
+        if (BTLog.INFO) BTLog.i(TAG, "scheduleReconnect() attempt %d in %d ms", mReconnectAttempt, delay);
+
+        // Republished so the UI can show the attempt count
+        setState(STATE_RECONNECTING);
+        mHost.postDelayed(mReconnectRunnable, delay);
+    }
+
+    private void cancelReconnect() {
+        mHost.removeCallbacks(mReconnectRunnable);
+        mReconnectAttempt = 0;
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        public void run() {
+            synchronized (BTConnection.this) {
+                if (mState.get() == STATE_RECONNECTING) startConnect();
+            }
+            notifyStateListeners();
+        }
+    };
+
+//##################################################################################################
+
+    // Connection work running on one of the Host's executors
+    private abstract class Task implements Runnable {
+        private volatile Future<?> mmFuture;
+
+        // Returns false if the pool has no room left
+        public boolean start(ExecutorService executor) {
+            try {
+                mmFuture = executor.submit(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                if (DBG) BTLog.d(TAG, "Task start() rejected", e);
+                return false;
+            }
+        }
+
+        // Interrupts the task if running, a queued task will not run anymore
+        public void interrupt() {
+            Future<?> future = mmFuture;
+            if (future != null) future.cancel(true);
+        }
     }
 
 //##################################################################################################
 
-    private class AcceptThread extends Thread {
+    private class AcceptTask extends Task {
 
-        private final BluetoothServerSocket mmServerSocket;
+        private final BTTransport.Acceptor mmAcceptor;
 
-        public AcceptThread() {
-            if (DBG) Log.d(TAG, "AcceptThread()");
-            BluetoothServerSocket tmp = null;
+        public AcceptTask() {
+            if (DBG) BTLog.d(TAG, "AcceptTask()");
+            BTTransport.Acceptor tmp = null;
 
             try {
-                tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, SPP_UUID);
+                tmp = mTransport.listen();
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "AcceptThread() ServerSocket listen() failed", e);
+                if (DBG) BTLog.d(TAG, "AcceptTask() Acceptor listen() failed", e);
             }
-            mmServerSocket = tmp;
+            mmAcceptor = tmp;
         }
 
         public void run() {
-            if (DBG) Log.d(TAG, "BEGIN AcceptThread");
-            setName("AcceptThread");
+            if (DBG) BTLog.d(TAG, "BEGIN AcceptTask");
+
+            BTTransport.Endpoint endpoint;
 
-            BluetoothSocket socket;
+            if (mmAcceptor == null) return;
 
-            while (mState != STATE_CONNECTED) {
+            while (mState.get() != STATE_CONNECTED) {
                 try {
-                    socket = mmServerSocket.accept();
+                    endpoint = mmAcceptor.accept();
                 } catch (IOException e) {
-                    if (DBG) Log.d(TAG, "AcceptThread run() ServerSocket accept() failed", e);
+                    if (DBG) BTLog.d(TAG, "AcceptTask run() Acceptor accept() failed", e);
                     break;
                 }
 
-                if (socket != null) {
-                    synchronized (BTConnection.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Connecting successfull. Start Connected Thread
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Not ready or already connected
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    if (DBG) Log.d(TAG, "AcceptThread run() Socket close() failed", e);
-                                }
-                                break;
+                if (endpoint != null) {
+                    boolean accepted = false;
+
+                    // Checked again under the monitor, a transition may come in between
+                    if (isAccepting(mState.get())) {
+                        synchronized (BTConnection.this) {
+                            if (isAccepting(mState.get())) {
+                                // Connecting successfull. Start ConnectedTask
+                                mOutgoing = false;
+                                connected(endpoint);
+                                accepted = true;
+                            }
+                        }
+                        notifyStateListeners();
+                    }
+
+                    if (!accepted) {
+                        // Not ready or already connected
+                        try {
+                            endpoint.close();
+                        } catch (IOException e) {
+                            if (DBG) BTLog.d(TAG, "AcceptTask run() Endpoint close() failed", e);
                         }
                     }
                 }
             }
 
-            if (DBG) Log.d(TAG, "END AcceptThread");
+            if (DBG) BTLog.d(TAG, "END AcceptTask");
+        }
+
+        private boolean isAccepting(int state) {
+            return state == STATE_LISTEN || state == STATE_CONNECTING;
         }
 
         public void cancel() {
-            if (DBG) Log.d(TAG, "AcceptThread cancel()");
+            if (DBG) BTLog.d(TAG, "AcceptTask cancel()");
+
+            interrupt();
+
+            if (mmAcceptor == null) return;
 
             try {
-                mmServerSocket.close();
+                mmAcceptor.close();
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "AcceptThread cancel() ServerSocket close() failed", e);
+                if (DBG) BTLog.d(TAG, "AcceptTask cancel() Acceptor close() failed", e);
             }
         }
     }
 
 //##################################################################################################
 
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectTask extends Task {
+        private final BTTransport.Endpoint mmEndpoint;
 
-        public ConnectThread(BluetoothDevice device) {
-            if (DBG) Log.d(TAG, "ConnectThread()");
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(String address) {
+            if (DBG) BTLog.d(TAG, "ConnectTask()");
+            BTTransport.Endpoint tmp = null;
 
             try {
-                tmp = device.createRfcommSocketToServiceRecord(SPP_UUID);
+                tmp = mTransport.createEndpoint(address);
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectThread() Socket create() failed", e);
+                if (DBG) BTLog.d(TAG, "ConnectTask() Endpoint create() failed", e);
             }
 
-            mmSocket = tmp;
+            mmEndpoint = tmp;
         }
 
         public void run() {
-            if (DBG) Log.d(TAG, "BEGIN ConnectThread");
-            setName("ConnectThread");
+            if (DBG) BTLog.d(TAG, "BEGIN ConnectTask");
 
-            mBluetoothAdapter.cancelDiscovery();
+            if (mmEndpoint == null) {
+                connectionFailed(this);
+                return;
+            }
 
             try {
-                mmSocket.connect();
+                mmEndpoint.connect();
             } catch (IOException e) {
 
                 try {
-                    mmSocket.close();
+                    mmEndpoint.close();
                 } catch (IOException e1) {
-                    if (DBG) Log.d (TAG, "ConnectThread run() Socket close() failed", e1);
+                    if (DBG) BTLog.d(TAG, "ConnectTask run() Endpoint close() failed", e1);
                 }
 
-                connectionFailed();
+                connectionFailed(this);
 
                 return;
             }
 
-            // Reset ConnectThread
             synchronized (BTConnection.this) {
-                mConnectThread = null;
-            }
+                if (mConnectTask != this) {
+                    // Superseded while connecting
+                    try {
+                        mmEndpoint.close();
+                    } catch (IOException e) {
+                        if (DBG) BTLog.d(TAG, "ConnectTask run() Endpoint close() failed", e);
+                    }
+                    return;
+                }
 
-            // Start ConnectedThread
-            connected(mmSocket, mmDevice);
+                // Reset ConnectTask
+                mConnectTask = null;
 
-            if (DBG) Log.d(TAG, "END ConnectThread");
+                // Start ConnectedTask
+                connected(mmEndpoint);
+            }
+            notifyStateListeners();
+
+            if (DBG) BTLog.d(TAG, "END ConnectTask");
         }
 
         public void cancel() {
-            if (DBG) Log.d(TAG, "ConnectThread cancel()");
+            if (DBG) BTLog.d(TAG, "ConnectTask cancel()");
+
+            interrupt();
+
+            if (mmEndpoint == null) return;
+
             try {
-                mmSocket.close();
+                mmEndpoint.close();
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectThread cancel() Socket close() failed", e);
+                if (DBG) BTLog.d(TAG, "ConnectTask cancel() Endpoint close() failed", e);
             }
         }
     }
 
 //##################################################################################################
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedTask extends Task {
+        private final BTTransport.Endpoint mmEndpoint;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
 
         private boolean mmConnected = false;
 
-        public ConnectedThread(BluetoothSocket socket) {
-            if (DBG) Log.d(TAG, "ConnectedThread()");
+        public ConnectedTask(BTTransport.Endpoint endpoint) {
+            if (DBG) BTLog.d(TAG, "ConnectedTask()");
 
-            mmSocket = socket;
+            mmEndpoint = endpoint;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = endpoint.getInputStream();
+                tmpOut = endpoint.getOutputStream();
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "Connected Thread() Socket getStream() failed", e);
+                if (DBG) BTLog.d(TAG, "ConnectedTask() Endpoint getStream() failed", e);
             }
 
             mmConnected = true;
@@ -482,60 +1056,413 @@ public class BTConnection {
             mmOutStream = tmpOut;
         }
 
+        // The writer needs an IO thread as well
+        @Override
+        public boolean start(ExecutorService executor) {
+            try {
+                mWriteQueue.attach((mmOutStream != null) ? new CaptureOutputStream(mmOutStream) : null);
+            } catch (RejectedExecutionException e) {
+                if (DBG) BTLog.d(TAG, "ConnectedTask start() Writer rejected", e);
+                return false;
+            }
+
+            return super.start(executor);
+        }
+
         public void run() {
-            if (DBG) Log.d(TAG, "BEGIN ConnectedThread");
-            setName("ConnectedThread");
+            if (DBG) BTLog.d(TAG, "BEGIN ConnectedTask");
 
-            byte[] buffer;
+            BTRingBuffer rxBuffer = mRxBuffer;
+            byte[] buffer = mBufferPool.acquire();
             int bytes;
 
             while (mmConnected) {
                 try {
-                    buffer = new byte[1024];
                     bytes = mmInStream.read(buffer);
 
-                    mHandler.obtainMessage(MSG_DATA_READ, bytes, -1, buffer).sendToTarget();
+                    if (bytes < 0) {
+                        throw new IOException("End of stream");
+                    } else if (bytes > 0) {
+                        mMetrics.recordRead(bytes);
+                        capture(BTCaptureFile.DIRECTION_IN, buffer, 0, bytes);
+                        received(rxBuffer, buffer, bytes);
+                    }
                 } catch (IOException e) {
-                    if (DBG) Log.d(TAG, "ConnectedThread run() inStream read() failed", e);
+                    if (DBG) BTLog.d(TAG, "ConnectedTask run() inStream read() failed", e);
                     if (mmConnected) {
                         // Only report connection loss if unintentional disconnect
-                        connectionLost();
+                        connectionLost(this);
                     }
                     break;
                 }
             }
 
-            if (DBG) Log.d(TAG, "END ConnectedThread");
+            mBufferPool.release(buffer);
+
+            if (DBG) BTLog.d(TAG, "END ConnectedTask");
         }
 
-        public void write(byte[] buffer) {
-            if (DBG) Log.d(TAG, "ConnectedThread write()");
+        public void close() {
+            if (DBG) BTLog.d(TAG, "ConnectedTask close()");
+
+            mmConnected = false;
+
+            // Wake up reader if blocked on a full receive buffer
+            interrupt();
+
+            cancel();
+        }
+
+        public void cancel() {
+            if (DBG) BTLog.d(TAG, "ConnectedTask cancel()");
+
+            release();
+
+            // Pending writes belong to this connection
+            mWriteQueue.clear();
+        }
+
+        // Closes the endpoint, queued writes are kept for the next connection
+        public void release() {
+            if (DBG) BTLog.d(TAG, "ConnectedTask release()");
+
+            mWriteQueue.detach();
+
             try {
-                mmOutStream.write(buffer);
+                mmEndpoint.close();
+            } catch (IOException e) {
+                if (DBG) BTLog.d(TAG, "ConnectedTask release() Endpoint close() failed", e);
+            }
+        }
+    }
+
+//##################################################################################################
+
+    // Records sent data as actually written, after coalescing
+    private class CaptureOutputStream extends FilterOutputStream {
+
+        public CaptureOutputStream(OutputStream outStream) {
+            super(outStream);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            mMetrics.recordWrite(count);
 
-                mHandler.obtainMessage(MSG_DATA_WRITTEN, -1, -1, buffer).sendToTarget();
+            if (mCaptureSent) capture(BTCaptureFile.DIRECTION_OUT, buffer, offset, count);
+        }
+    }
+
+//##################################################################################################
+
+    private class ReplayTask extends Task {
+        private final File mmFile;
+        private final float mmSpeed;
+
+        private volatile boolean mmRunning = true;
+
+        public ReplayTask(File file, float speed) {
+            if (DBG) BTLog.d(TAG, "ReplayTask()");
+
+            mmFile = file;
+            mmSpeed = speed;
+        }
+
+        public void run() {
+            if (DBG) BTLog.d(TAG, "BEGIN ReplayTask");
+
+            BTRingBuffer rxBuffer = mRxBuffer;
+            BTCaptureReader reader = null;
+            boolean failed = false;
+
+            try {
+                reader = new BTCaptureReader(mmFile);
+                long startNanos = System.nanoTime();
+
+                while (mmRunning && reader.next()) {
+                    if (reader.getDirection() != BTCaptureFile.DIRECTION_IN) continue;
+
+                    int length = reader.getLength();
+
+                    if (mmSpeed > 0) {
+                        // Original timing, scaled
+                        long delay = startNanos + (long) (reader.getTimestamp() / mmSpeed) - System.nanoTime();
+                        if (delay > 0) Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    } else {
+                        // Max. speed without overrunning the receive buffer
+                        while (mmRunning && rxBuffer.getCapacity() - rxBuffer.available() < length &&
+                               rxBuffer.available() > 0) {
+                            Thread.sleep(1);
+                        }
+                    }
+
+                    if (mmRunning) received(rxBuffer, reader.getData(), length);
+                }
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectedThread write() outStream write() failed", e);
+                if (DBG) BTLog.d(TAG, "ReplayTask run() Capture read failed", e);
+                failed = true;
+            } catch (InterruptedException e) {
+                if (DBG) BTLog.d(TAG, "ReplayTask run() interrupted");
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        if (DBG) BTLog.d(TAG, "ReplayTask run() Capture close() failed", e);
+                    }
+                }
+            }
+
+            synchronized (BTConnection.this) {
+                if (mReplayTask == this) mReplayTask = null;
+            }
+
+            if (mmRunning) {
+                makeToast(failed ? TOAST_REPLAY_FAILED : TOAST_REPLAY_FINISHED);
             }
+
+            if (DBG) BTLog.d(TAG, "END ReplayTask");
         }
 
-        public void close() {
-            if (DBG) Log.d(TAG, "ConnectedThread close()");
+        public void cancel() {
+            if (DBG) BTLog.d(TAG, "ReplayTask cancel()");
 
-            mmConnected = false;
+            mmRunning = false;
+            interrupt();
+        }
+    }
 
-            cancel();
+//##################################################################################################
+
+    private class SendTask extends Task implements BTFileSender.Target, BTFileSender.Listener {
+        private final InputStream mmIn;
+        private final BTFileSender mmSender;
+
+        public SendTask(InputStream in, BTFileSender sender) {
+            if (DBG) BTLog.d(TAG, "SendTask()");
+
+            mmIn = in;
+            mmSender = sender;
+            mmSender.setListener(this);
+        }
+
+        public void run() {
+            if (DBG) BTLog.d(TAG, "BEGIN SendTask");
+
+            boolean failed = false;
+
+            try {
+                mmSender.send(mmIn, this);
+            } catch (IOException e) {
+                if (DBG) BTLog.d(TAG, "SendTask run() send failed", e);
+                failed = true;
+            } catch (InterruptedException e) {
+                if (DBG) BTLog.d(TAG, "SendTask run() interrupted");
+            } finally {
+                try {
+                    mmIn.close();
+                } catch (IOException e) {
+                    if (DBG) BTLog.d(TAG, "SendTask run() InputStream close() failed", e);
+                }
+            }
+
+            synchronized (BTConnection.this) {
+                if (mSendTask == this) mSendTask = null;
+            }
+
+            if (!mmSender.isCancelled()) {
+                if (failed) {
+                    makeToast(TOAST_SEND_FAILED, mmSender.getName());
+                } else {
+                    makeToast(TOAST_SEND_FINISHED, mmSender.getName(), mmSender.getBytesPerSecond() / 1024);
+                }
+            }
+
+            if (DBG) BTLog.d(TAG, "END SendTask");
+        }
+
+        // Chunks bypass mWrittenCallback, a file is not echoed
+        public boolean write(byte[] data, int offset, int count, BTWriteQueue.Callback callback) {
+            return BTConnection.this.write(data, offset, count, callback);
+        }
+
+        // The last one arrives with the sender finished
+        public void onProgress(BTFileSender sender) {
+            mHost.sendMessage(MSG_SEND_PROGRESS, -1, mSessionId, sender, 0);
         }
 
         public void cancel() {
-            if (DBG) Log.d(TAG, "ConnectedThread cancel()");
+            if (DBG) BTLog.d(TAG, "SendTask cancel()");
+
+            mmSender.cancel();
+            interrupt();
+        }
+    }
+
+//##################################################################################################
+
+    private class TransferTask extends Task implements BTModem.Listener {
+        private final List<BTModem.Source> mmFiles;
+        private final BTModem.Sink mmSink;
+        private final BTRingBuffer mmInBuffer;
+        private final TransferOutputStream mmOut;
+        private final BTModem mmModem;
+
+        public TransferTask(int protocol, List<BTModem.Source> files, BTModem.Sink sink) {
+            if (DBG) BTLog.d(TAG, "TransferTask()");
+
+            mmFiles = files;
+            mmSink = sink;
+            mmInBuffer = new BTRingBuffer(TRANSFER_RX_CAPACITY, BTRingBuffer.POLICY_BLOCK);
+            mmOut = new TransferOutputStream();
+            mmModem = BTModem.create(protocol, mmInBuffer, mmOut);
+            mmModem.setListener(this);
+        }
+
+        public void run() {
+            if (DBG) BTLog.d(TAG, "BEGIN TransferTask");
+
+            String error = null;
 
             try {
-                mmSocket.close();
+                if (mmFiles != null) {
+                    mmModem.send(mmFiles);
+                } else {
+                    mmModem.receive(mmSink);
+                }
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectedThread cancel() Socket close() failed", e);
+                if (DBG) BTLog.d(TAG, "TransferTask run() transfer failed", e);
+                error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            } finally {
+                // Unblocks the reader if it waits for the modem to catch up
+                mmInBuffer.close();
+                mmOut.close();
+            }
+
+            synchronized (BTConnection.this) {
+                if (mTransferTask == this) mTransferTask = null;
             }
+
+            if (!mmModem.isCancelled()) {
+                if (error != null) {
+                    makeToast(TOAST_TRANSFER_FAILED, error);
+                } else {
+                    makeToast(TOAST_TRANSFER_FINISHED, mmModem.getFileCount(), mmModem.getBytesPerSecond() / 1024);
+                }
+            }
+
+            if (DBG) BTLog.d(TAG, "END TransferTask");
+        }
+
+        // The last one arrives with the modem finished
+        public void onProgress(BTModem modem) {
+            mHost.sendMessage(MSG_TRANSFER_PROGRESS, -1, mSessionId, modem, 0);
+        }
+
+        public void cancel() {
+            if (DBG) BTLog.d(TAG, "TransferTask cancel()");
+
+            // The modem still tells the peer, so the output stays open until it returned
+            mmModem.cancel();
         }
     }
-}
 
+//##################################################################################################
+
+    // Modem output, collected into chunks that circulate between the modem and the write queue the
+    // same way BTFileSender does it. A slow link blocks the modem, a failed write fails the transfer.
+    private class TransferOutputStream extends OutputStream implements BTWriteQueue.Callback {
+        private final ArrayBlockingQueue<byte[]> mmFreeChunks =
+                new ArrayBlockingQueue<byte[]>(TRANSFER_CHUNK_COUNT);
+
+        private byte[] mmChunk;
+        private int mmCount;
+        private volatile boolean mmFailed;
+        private volatile boolean mmClosed;
+
+        public TransferOutputStream() {
+            for (int i = 0; i < TRANSFER_CHUNK_COUNT; i++) {
+                mmFreeChunks.offer(new byte[TRANSFER_CHUNK_SIZE]);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mmChunk == null) mmChunk = takeChunk();
+
+            mmChunk[mmCount++] = (byte) b;
+            if (mmCount == mmChunk.length) flush();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (mmChunk == null) mmChunk = takeChunk();
+
+                int chunk = Math.min(count, mmChunk.length - mmCount);
+                System.arraycopy(buffer, offset, mmChunk, mmCount, chunk);
+                mmCount += chunk;
+                offset += chunk;
+                count -= chunk;
+
+                if (mmCount == mmChunk.length) flush();
+            }
+        }
+
+        // Queues the current chunk, a full write queue is retried until it stalls
+        @Override
+        public void flush() throws IOException {
+            if (mmCount == 0) return;
+
+            byte[] chunk = mmChunk;
+            int count = mmCount;
+            mmChunk = null;
+            mmCount = 0;
+
+            long deadline = System.nanoTime() + TRANSFER_STALL_TIMEOUT_MS * 1000000L;
+
+            while (!BTConnection.this.write(chunk, 0, count, this)) {
+                int state = mState.get();
+                boolean linked = (state == STATE_CONNECTED || state == STATE_RECONNECTING);
+
+                if (mmFailed || mmClosed || !linked || System.nanoTime() > deadline) {
+                    mmFreeChunks.offer(chunk);
+                    throw new IOException(linked ? "Write queue stalled" : "Not connected");
+                }
+
+                try {
+                    Thread.sleep(TRANSFER_RETRY_DELAY_MS);
+                } catch (InterruptedException e) {
+                    mmFreeChunks.offer(chunk);
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        private byte[] takeChunk() throws IOException {
+            if (mmFailed) throw new IOException("Write failed");
+            if (mmClosed) throw new IOException("Closed");
+
+            try {
+                byte[] chunk = mmFreeChunks.poll(TRANSFER_STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (chunk == null) throw new IOException("Write queue stalled");
+                return chunk;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        // Written chunks come back here, failed ones as well
+        public void onWriteComplete(byte[] data, int offset, int count, boolean success) {
+            if (!success) mmFailed = true;
+            mmFreeChunks.offer(data);
+        }
+
+        // Queued chunks are still written, only further writes fail
+        @Override
+        public void close() {
+            mmClosed = true;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.konstantin.btterminal;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+// Keeps any number of concurrent sessions, outgoing ones keyed by device address.
+// Every session runs its own reader into its own receive buffer, and all of them report to
+// the same Handler with the session id in arg2.
+// Incoming connections are taken by a single listen session, which always exists.
+// Established outgoing connections are remembered in a BTDeviceStore, together with the RFCOMM
+// channel of the shared default transport, so they can be reconnected without the device list.
+// Also serves the adapter wide functions, enabling Bluetooth and picking a device.
+// Owned by BTService, to be used from the Handler thread only.
+public class BTConnectionManager {
+    // Debug
+    private static final String TAG = "BTConnectionManager";
+    private static final boolean DBG = BTLog.DEBUG;
+
+    public static final int LISTEN_SESSION_ID = 0;
+
+    // Name for SDP record for Server Socket
+    private static final String NAME = "BTConnection";
+
+    // Standard Serial Port UUID
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    // Intent Request Codes
+    public static final int REQ_DEVICE_LIST = 1;
+    public static final int REQ_ENABLE_BT = 2;
+
+    // Result of connectFirst(), on the Handler thread
+    public interface RaceListener {
+        // winner is null if no device connected
+        void onRaceFinished(BTSession winner);
+    }
+
+    // Member Variables
+    private final Handler mHandler;
+    private final BTConnection.Host mHost;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final BTTransport mTransport;
+    private final BTDeviceStore mDeviceStore;
+
+    private final BTSession mListenSession;
+    private final LinkedHashMap<String, BTSession> mSessions = new LinkedHashMap<String, BTSession>();
+    private int mNextSessionId = LISTEN_SESSION_ID + 1;
+    private BTReconnectPolicy mReconnectPolicy;
+    private List<BTTriggerRule> mTriggerRules;
+    private BTSession.TriggerListener mTriggerListener;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTConnectionManager(Context context, Handler handler) {
+        this(context, handler, null);
+    }
+
+    public BTConnectionManager(Context context, Handler handler, BTTransport transport) {
+        if (DBG) BTLog.d(TAG, "BTConnectionManager()");
+
+        mHandler = handler;
+        mHost = new BTHandlerHost(handler);
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDeviceStore = new BTDeviceStore(context);
+
+        // Shared by all sessions, so they share its channel cache
+        if (transport == null) {
+            BTRfcommTransport rfcommTransport = new BTRfcommTransport(mBluetoothAdapter, NAME, SPP_UUID);
+            rfcommTransport.setChannelStore(mDeviceStore);
+            transport = rfcommTransport;
+        }
+        mTransport = transport;
+
+        mListenSession = new BTSession(new BTConnection(mHost, transport, LISTEN_SESSION_ID));
+    }
+
+    // Returns the session for address, a new one unless the device already has a session
+    public BTSession connect(String address) {
+        if (DBG) BTLog.d(TAG, "connect(%s)", address);
+
+        BTSession session = getSession(address);
+
+        if (session == null) {
+            session = new BTSession(new BTConnection(mHost, mTransport, mNextSessionId++));
+            session.getConnection().setReconnectPolicy(mReconnectPolicy);
+            session.setTriggers(mTriggerRules);
+            session.setTriggerListener(mTriggerListener);
+            session.getConnection().addStateListener(mKnownDeviceListener);
+            mSessions.put(address, session);
+        }
+
+        BTConnection connection = session.getConnection();
+        int state = connection.getState();
+
+        if (state != BTConnection.STATE_CONNECTED && state != BTConnection.STATE_CONNECTING &&
+            state != BTConnection.STATE_RECONNECTING) {
+            connection.connect(address);
+        }
+
+        return session;
+    }
+
+    // Connects to all of addresses at once and keeps the first one that connects, sessions opened
+    // for the others are closed. Devices that already have a session take part without being closed.
+    public void connectFirst(List<String> addresses, RaceListener listener) {
+        if (DBG) BTLog.d(TAG, "connectFirst(%d)", addresses.size());
+
+        for (String address : addresses) {
+            BTSession session = getSession(address);
+
+            if (session != null && session.getConnection().getState() == BTConnection.STATE_CONNECTED) {
+                listener.onRaceFinished(session);
+                return;
+            }
+        }
+
+        // Accepting runs on the IO pool, one connect thread per candidate races all of them at once
+        BTExecutors.ensureConnectThreads(addresses.size());
+        new Race(listener).start(addresses);
+    }
+
+    // Remembers every established outgoing connection, called on the connecting thread outside the
+    // connection's monitor, so the store is read and written without blocking other transitions
+    private final BTConnection.StateListener mKnownDeviceListener = new BTConnection.StateListener() {
+        public void onStateChanged(BTConnection connection, int oldState, int newState) {
+            if (newState == BTConnection.STATE_CONNECTED && oldState != BTConnection.STATE_RECONNECTING) {
+                mDeviceStore.putConnected(connection.getAddress(), connection.getDeviceName());
+            }
+        }
+    };
+
+    public void listen(boolean enable) {
+        mListenSession.getConnection().listen(enable);
+    }
+
+    // Stops and removes a session, the listen session is only stopped
+    public void close(BTSession session) {
+        if (DBG) BTLog.d(TAG, "close(%s)", session.getId());
+
+        session.getConnection().stop();
+
+        Iterator<BTSession> iterator = mSessions.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == session) iterator.remove();
+        }
+    }
+
+    public void stop() {
+        if (DBG) BTLog.d(TAG, "stop()");
+
+        mListenSession.getConnection().stop();
+
+        for (BTSession session : mSessions.values()) {
+            session.getConnection().stop();
+        }
+    }
+
+    // Connections live in BTService, so dialogs are started from the Activity asking for them.
+    // The result is expected back through onActivityResult().
+    public void setEnabled(Activity activity, boolean enable) {
+        if (DBG) BTLog.d(TAG, "setEnabled(%s)", enable);
+
+        if (mBluetoothAdapter == null) return;
+
+        boolean enabled = mBluetoothAdapter.isEnabled();
+
+        if (!enabled && enable) {
+            Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            activity.startActivityForResult(enableIntent, REQ_ENABLE_BT);
+        } else if (enabled && !enable) {
+            mBluetoothAdapter.disable();
+        }
+    }
+
+    public void showDeviceList(Activity activity) {
+        Intent scanIntent = new Intent(activity, BTDeviceList.class);
+        activity.startActivityForResult(scanIntent, REQ_DEVICE_LIST);
+    }
+
+    // Returns the session opened from the device list, if any
+    public BTSession onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQ_DEVICE_LIST && resultCode == Activity.RESULT_OK) {
+            return connect(data.getExtras().getString(BTDeviceList.EXTRA_DEVICE_ADDRESS));
+        }
+        return null;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Applies to all outgoing sessions, present and future. Null disables reconnecting.
+    public void setReconnectPolicy(BTReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+
+        for (BTSession session : mSessions.values()) {
+            session.getConnection().setReconnectPolicy(policy);
+        }
+    }
+
+    public BTReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
+
+    // Applies to all sessions, present and future. Null or empty turns triggers off.
+    public void setTriggers(List<BTTriggerRule> rules, BTSession.TriggerListener listener) {
+        mTriggerRules = rules;
+        mTriggerListener = listener;
+
+        for (BTSession session : getSessions()) {
+            session.setTriggers(rules);
+            session.setTriggerListener(listener);
+        }
+    }
+
+    public List<BTTriggerRule> getTriggers() {
+        return mTriggerRules;
+    }
+
+    public BTDeviceStore getDeviceStore() {
+        return mDeviceStore;
+    }
+
+    public boolean isAvailable() {
+        if (DBG) BTLog.d(TAG, "isAvailable() = %b", mBluetoothAdapter != null);
+
+        return mBluetoothAdapter != null;
+    }
+
+    public boolean isEnabled() {
+        return mBluetoothAdapter != null && mBluetoothAdapter.isEnabled();
+    }
+
+    // Sessions that are not STATE_NONE, stopped ones count as soon as close() or stop() returned
+    public int getActiveCount() {
+        int active = 0;
+
+        for (BTSession session : getSessions()) {
+            if (BTConnection.isActive(session.getConnection().getState())) active++;
+        }
+        return active;
+    }
+
+    public BTSession getListenSession() {
+        return mListenSession;
+    }
+
+    public BTSession getSession(int sessionId) {
+        if (sessionId == LISTEN_SESSION_ID) return mListenSession;
+
+        for (BTSession session : mSessions.values()) {
+            if (session.getId() == sessionId) return session;
+        }
+        return null;
+    }
+
+    // Session connected to address, either outgoing or accepted by the listen session
+    public BTSession getSession(String address) {
+        BTSession session = mSessions.get(address);
+        if (session != null) return session;
+
+        BTConnection listenConnection = mListenSession.getConnection();
+        if (listenConnection.getState() == BTConnection.STATE_CONNECTED &&
+            address.equals(listenConnection.getAddress())) {
+            return mListenSession;
+        }
+        return null;
+    }
+
+    // Listen session first, then outgoing sessions in the order they were opened
+    public List<BTSession> getSessions() {
+        List<BTSession> sessions = new ArrayList<BTSession>(mSessions.size() + 1);
+        sessions.add(mListenSession);
+        sessions.addAll(mSessions.values());
+        return sessions;
+    }
+
+//##################################################################################################
+
+    // State changes arrive on connecting threads and are handled on the Handler thread
+    private class Race implements BTConnection.StateListener {
+        private final RaceListener mmListener;
+        private final ArrayList<BTSession> mmSessions = new ArrayList<BTSession>();
+        private final ArrayList<BTSession> mmOpened = new ArrayList<BTSession>();
+        private final HashSet<BTConnection> mmFailed = new HashSet<BTConnection>();
+        private boolean mmFinished;
+
+        public Race(RaceListener listener) {
+            mmListener = listener;
+        }
+
+        public void start(List<String> addresses) {
+            for (String address : addresses) {
+                boolean opened = (getSession(address) == null);
+
+                BTSession session = connect(address);
+                BTConnection connection = session.getConnection();
+                connection.addStateListener(this);
+
+                mmSessions.add(session);
+                if (opened) mmOpened.add(session);
+
+                // Done before the listener was added, the transition may still reach it. Failures
+                // are counted once per connection.
+                int state = connection.getState();
+                if (state != BTConnection.STATE_CONNECTING && state != BTConnection.STATE_RECONNECTING) {
+                    onStateChanged(connection, BTConnection.STATE_CONNECTING, state);
+                }
+            }
+
+            if (mmSessions.isEmpty()) finish(null);
+        }
+
+        public void onStateChanged(final BTConnection connection, final int oldState, final int newState) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    stateChanged(connection, oldState, newState);
+                }
+            });
+        }
+
+        private void stateChanged(BTConnection connection, int oldState, int newState) {
+            if (mmFinished) return;
+
+            if (newState == BTConnection.STATE_CONNECTED) {
+                for (BTSession session : mmSessions) {
+                    if (session.getConnection() == connection) {
+                        finish(session);
+                        return;
+                    }
+                }
+            } else if (oldState == BTConnection.STATE_CONNECTING &&
+                       (newState == BTConnection.STATE_NONE || newState == BTConnection.STATE_LISTEN)) {
+                if (mmFailed.add(connection) && mmFailed.size() == mmSessions.size()) finish(null);
+            }
+        }
+
+        private void finish(BTSession winner) {
+            if (DBG) BTLog.d(TAG, "Race finish(%s)", (winner != null) ? winner.getId() : null);
+
+            mmFinished = true;
+
+            for (BTSession session : mmSessions) {
+                session.getConnection().removeStateListener(this);
+                if (session != winner && mmOpened.contains(session)) close(session);
+            }
+
+            mmListener.onRaceFinished(winner);
+        }
+    }
+}
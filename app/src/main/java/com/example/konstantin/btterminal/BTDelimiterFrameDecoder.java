@@ -0,0 +1,64 @@
+package com.example.konstantin.btterminal;
+
+// Frames terminated by a delimiter sequence, which is not part of the frame.
+// The first delimiter byte must not occur again inside the delimiter, as for LF and CR LF.
+public class BTDelimiterFrameDecoder extends BTFrameDecoder {
+
+    public static final byte[] DELIMITER_LF = { '\n' };
+    public static final byte[] DELIMITER_CRLF = { '\r', '\n' };
+
+    // Member Variables
+    private final byte[] mDelimiter;
+    private int mMatched;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTDelimiterFrameDecoder(byte[] delimiter) {
+        this(delimiter, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public BTDelimiterFrameDecoder(byte[] delimiter, int maxFrameSize) {
+        super(maxFrameSize);
+
+        if (delimiter.length == 0) throw new IllegalArgumentException("empty delimiter");
+        mDelimiter = delimiter.clone();
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int count, Listener listener) {
+        byte[] delimiter = mDelimiter;
+        int end = offset + count;
+        int start = offset;
+
+        for (int i = offset; i < end; i++) {
+            byte value = data[i];
+
+            if (value == delimiter[mMatched]) {
+                mMatched++;
+            } else {
+                mMatched = (value == delimiter[0]) ? 1 : 0;
+            }
+
+            if (mMatched == delimiter.length) {
+                mMatched = 0;
+
+                if (isAssembling()) {
+                    // Frame or delimiter started in an earlier chunk
+                    assemble(data, start, i + 1 - start);
+                    emitAssembly(listener, delimiter.length);
+                } else {
+                    emit(listener, data, start, i + 1 - delimiter.length - start);
+                }
+
+                start = i + 1;
+            }
+        }
+
+        if (start < end) assemble(data, start, end - start);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mMatched = 0;
+    }
+}
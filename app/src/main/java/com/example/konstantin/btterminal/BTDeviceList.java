@@ -9,32 +9,54 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
-import android.util.Log;
+import android.os.Handler;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 
 public class BTDeviceList extends Activity {
     // Debug
     private static final String TAG = "DeviceListDialog";
-    private static final boolean DBG = true;
+    private static final boolean DBG = BTLog.DEBUG;
 
     // Return Intent Extra
     public static final String EXTRA_DEVICE_ADDRESS = "device_address";
 
+    // Hidden API, resolved once
+    private static Method sCreateBond;
+    private static Method sRemoveBond;
+    private static boolean sReflectionResolved;
+
+    // Outcome of a bond request, on the main thread. started is false if the stack refused the
+    // request, otherwise ACTION_BOND_STATE_CHANGED follows once bonding finished.
+    private interface BondCallback {
+        void onBondRequested(BTDeviceRecord record, boolean create, boolean started);
+    }
+
     // Member Variables
+    private final Handler mHandler = new Handler();
     private BluetoothAdapter mBluetoothAdapter;
-    private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private BTDeviceStore mDeviceStore;
+    private DeviceAdapter mPairedDevicesAdapter;
+    private DeviceAdapter mNewDevicesAdapter;
+
+    // Devices from broadcasts and the bonded set, so a click does not have to look them up
+    private final HashMap<String, BluetoothDevice> mDevices = new HashMap<String, BluetoothDevice>();
+    private final HashSet<String> mBondRequests = new HashSet<String>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,17 +77,17 @@ public class BTDeviceList extends Activity {
             }
         });
 
-        // Init ArrayAdapters & ListViews
-        mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.arrayadapter_devicename);
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.arrayadapter_devicename);
-
+        // Init Adapters & ListViews
         ListView listPairedDevices = (ListView) findViewById(R.id.list_paired_devices);
-        listPairedDevices.setAdapter(mPairedDevicesArrayAdapter);
+        mPairedDevicesAdapter = new DeviceAdapter(listPairedDevices);
+        mPairedDevicesAdapter.setEmptyText(getResources().getText(R.string.text_no_paired_devices).toString());
+        listPairedDevices.setAdapter(mPairedDevicesAdapter);
         listPairedDevices.setOnItemClickListener(mDeviceClickListener);
         listPairedDevices.setOnItemLongClickListener(mDeviceLongClickListener);
 
         ListView listNewDevices = (ListView) findViewById(R.id.list_new_devices);
-        listNewDevices.setAdapter(mNewDevicesArrayAdapter);
+        mNewDevicesAdapter = new DeviceAdapter(listNewDevices);
+        listNewDevices.setAdapter(mNewDevicesAdapter);
         listNewDevices.setOnItemClickListener(mDeviceClickListener);
         listNewDevices.setOnItemLongClickListener(mDeviceLongClickListener);
 
@@ -75,11 +97,15 @@ public class BTDeviceList extends Activity {
         filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
         filter.addAction(BluetoothDevice.ACTION_UUID);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_CLASS_CHANGED);
         this.registerReceiver(mReceiver, filter);
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDeviceStore = new BTDeviceStore(this);
 
         getPairedDevices();
+        getRecentDevices();
     }
 
     @Override
@@ -91,18 +117,22 @@ public class BTDeviceList extends Activity {
         }
 
         this.unregisterReceiver(mReceiver);
+
+        // Unpaired devices stay recent as well
+        ArrayList<BTDeviceRecord> records = new ArrayList<BTDeviceRecord>(mNewDevicesAdapter.getModel().getRecords());
+        records.addAll(mPairedDevicesAdapter.getModel().getRecords());
+        mDeviceStore.saveRecent(records);
     }
 
     private final AdapterView.OnItemClickListener mDeviceClickListener = new AdapterView.OnItemClickListener() {
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            mBluetoothAdapter.cancelDiscovery();
+            BTDeviceRecord record = (BTDeviceRecord) parent.getItemAtPosition(position);
+            if (record == null) return;
 
-            // Get MAC-Address
-            String info = ((TextView) view).getText().toString();
-            String address = info.substring(info.length() - 17);
+            mBluetoothAdapter.cancelDiscovery();
 
             Intent intent = new Intent();
-            intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, record.getAddress());
 
             setResult(Activity.RESULT_OK, intent);
             finish();
@@ -111,44 +141,95 @@ public class BTDeviceList extends Activity {
 
     private final AdapterView.OnItemLongClickListener mDeviceLongClickListener = new AdapterView.OnItemLongClickListener() {
         public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
-            mBluetoothAdapter.cancelDiscovery();
+            BTDeviceRecord record = (BTDeviceRecord) parent.getItemAtPosition(position);
+            if (record == null) return false;
 
-            // Get MAC-Address
-            String info = ((TextView) view).getText().toString();
-            String address = info.substring(info.length() - 17);
-
-            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            mBluetoothAdapter.cancelDiscovery();
 
-            if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-                removeBond(device);
-            } else if (device.getBondState() == BluetoothDevice.BOND_NONE) {
-                createBond(device);
+            // One request per device until the stack answered
+            if (mBondRequests.add(record.getAddress())) {
+                requestBond(record, !record.isBonded(), mBondCallback);
             }
 
             return true;
         }
     };
 
-    private boolean removeBond(BluetoothDevice device){
+    private final BondCallback mBondCallback = new BondCallback() {
+        public void onBondRequested(BTDeviceRecord record, boolean create, boolean started) {
+            if (started) return;
+
+            mBondRequests.remove(record.getAddress());
+
+            String name = (record.getName() != null) ? record.getName() : record.getAddress();
+            Toast.makeText(getApplicationContext(),
+                    getString(create ? R.string.toast_bond_failed : R.string.toast_unbond_failed, name),
+                    Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    private static synchronized void resolveReflection() {
+        if (sReflectionResolved) return;
+        sReflectionResolved = true;
+
         try {
-            Class btClass = Class.forName("android.bluetooth.BluetoothDevice");
-            Method removeBondMethod = btClass.getMethod("removeBond");
-            return (Boolean) removeBondMethod.invoke(device);
+            sCreateBond = BluetoothDevice.class.getMethod("createBond");
+            sRemoveBond = BluetoothDevice.class.getMethod("removeBond");
         } catch (Exception e) {
-            if (DBG) Log.d(TAG, "removeBond() failed", e);
+            if (DBG) BTLog.d(TAG, "resolveReflection() failed, bonding unavailable", e);
+            sCreateBond = null;
+            sRemoveBond = null;
         }
-        return false;
     }
 
-    private boolean createBond(BluetoothDevice device) {
+    // Creates or removes the bond of record on a connect pool thread, the stack may block for a while
+    private void requestBond(final BTDeviceRecord record, final boolean create, final BondCallback callback) {
+        if (DBG) BTLog.d(TAG, "requestBond(%s, %b)", record.getAddress(), create);
+
+        final BluetoothDevice device = getDevice(record.getAddress());
+
         try {
-            Class btClass = Class.forName("android.bluetooth.BluetoothDevice");
-            Method createBondMethod = btClass.getMethod("createBond");
-            return (Boolean) createBondMethod.invoke(device);
+            BTExecutors.getConnectExecutor().execute(new Runnable() {
+                public void run() {
+                    final boolean started = invokeBond(device, create);
+
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            callback.onBondRequested(record, create, started);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (DBG) BTLog.d(TAG, "requestBond() rejected", e);
+            callback.onBondRequested(record, create, false);
+        }
+    }
+
+    private static boolean invokeBond(BluetoothDevice device, boolean create) {
+        resolveReflection();
+
+        Method method = create ? sCreateBond : sRemoveBond;
+        if (method == null) return false;
+
+        try {
+            return (Boolean) method.invoke(device);
         } catch (Exception e) {
-            if (DBG) Log.d(TAG, "createBond() failed", e);
+            if (DBG) BTLog.d(TAG, "invokeBond() failed", e);
+            return false;
         }
-        return false;
+    }
+
+    // Known devices without a call into the stack, others are created once
+    private BluetoothDevice getDevice(String address) {
+        BluetoothDevice device = mDevices.get(address);
+
+        if (device == null) {
+            device = mBluetoothAdapter.getRemoteDevice(address);
+            mDevices.put(address, device);
+        }
+
+        return device;
     }
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
@@ -156,38 +237,34 @@ public class BTDeviceList extends Activity {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
-            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+            if (BluetoothDevice.ACTION_FOUND.equals(action) ||
+                BluetoothDevice.ACTION_NAME_CHANGED.equals(action) ||
+                BluetoothDevice.ACTION_CLASS_CHANGED.equals(action)) {
+                // Name and class come with the broadcast, asking the device would be a call into the stack
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
 
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    String entry = device.getName() +
-                                   " (" + getDeviceMajorClassName(device.getBluetoothClass().getMajorDeviceClass()) + ")" +
-                                   "\n" +
-                                   device.getAddress();
+                mDevices.put(device.getAddress(), device);
+                deviceSeen(device.getAddress(), intent.getStringExtra(BluetoothDevice.EXTRA_NAME),
+                        (btClass != null) ? btClass.getMajorDeviceClass() : BTDeviceRecord.CLASS_UNKNOWN);
 
-                    if (mNewDevicesArrayAdapter.getPosition(entry) == -1)
-                        mNewDevicesArrayAdapter.add(entry);
-                }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.text_select_device);
                 findViewById(R.id.button_scan).setVisibility(View.VISIBLE);
 
-                if (mNewDevicesArrayAdapter.getCount() == 0) {
-                    String noDevices = getResources().getText(R.string.text_no_new_devices).toString();
-                    mNewDevicesArrayAdapter.add(noDevices);
-                }
+                mNewDevicesAdapter.setEmptyText(getResources().getText(R.string.text_no_new_devices).toString());
             } else if (BluetoothDevice.ACTION_PAIRING_REQUEST.equals(action)) {
                 int pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, -1);
 
                 if (pairingVariant == BluetoothDevice.PAIRING_VARIANT_PASSKEY_CONFIRMATION) {
                     String pairingPasskey = intent.getStringExtra(BluetoothDevice.EXTRA_PAIRING_KEY);
 
-                    if (DBG) Log.d(TAG, "Passkey :" + pairingPasskey);
+                    if (DBG) BTLog.d(TAG, "Passkey: %s", pairingPasskey);
 
                 } else if (pairingVariant == BluetoothDevice.PAIRING_VARIANT_PIN) {
 
-                    if (DBG) Log.d(TAG, "Pairing via PIN");
+                    if (DBG) BTLog.d(TAG, "Pairing via PIN");
                 }
             } else if (BluetoothDevice.ACTION_UUID.equals(action))     {
 
@@ -208,46 +285,116 @@ public class BTDeviceList extends Activity {
                            currBondState == BluetoothDevice.BOND_BONDED) {
 
                     Toast.makeText(getApplicationContext(), "Paired with " + device.getName(), Toast.LENGTH_SHORT).show();
+                }
 
-                    String entry = device.getName() +
-                            " (" + getDeviceMajorClassName(device.getBluetoothClass().getMajorDeviceClass()) + ")" +
-                            "\n" + device.getAddress();
+                if (currBondState != BluetoothDevice.BOND_BONDING) mBondRequests.remove(device.getAddress());
 
-                    mNewDevicesArrayAdapter.remove(entry);
+                // Only the device changes lists, the others keep their rows
+                if (currBondState == BluetoothDevice.BOND_BONDED) {
+                    moveDevice(device, mNewDevicesAdapter, mPairedDevicesAdapter, true);
+                } else if (currBondState == BluetoothDevice.BOND_NONE) {
+                    moveDevice(device, mPairedDevicesAdapter, mNewDevicesAdapter, false);
                 }
-
-                getPairedDevices();
             }
         }
     };
 
+    // Once on start, bond changes update single rows afterwards
     private void getPairedDevices() {
-        if (DBG) Log.d(TAG, "getPairedDevices()");
-
-        mPairedDevicesArrayAdapter.clear();
+        if (DBG) BTLog.d(TAG, "getPairedDevices()");
 
         // get a set of currently paired Devices and list them
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
 
-        if (pairedDevices.size() > 0) {
-            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                mPairedDevicesArrayAdapter.add(device.getName() +
-                        " (" + getDeviceMajorClassName(device.getBluetoothClass().getMajorDeviceClass()) + ")" +
-                        "\n" + device.getAddress());
+        for (BluetoothDevice device : pairedDevices) {
+            mDevices.put(device.getAddress(), device);
+            mPairedDevicesAdapter.add(newRecord(device, true));
+        }
+
+        updateTitles();
+    }
+
+    // Devices of earlier scans are listed right away, a scan updates their rows
+    private void getRecentDevices() {
+        if (DBG) BTLog.d(TAG, "getRecentDevices()");
+
+        for (BTDeviceRecord record : mDeviceStore.loadRecent()) {
+            if (mPairedDevicesAdapter.getModel().indexOf(record.getAddress()) < 0) {
+                mNewDevicesAdapter.add(record);
             }
-        } else {
-            String noDevices = getResources().getText(R.string.text_no_paired_devices).toString();
-            mPairedDevicesArrayAdapter.add(noDevices);
         }
+
+        updateTitles();
+    }
+
+    // Found by discovery or its name or class changed, unknown devices are added to the new ones
+    private void deviceSeen(String address, String name, int majorClass) {
+        DeviceAdapter adapter = mPairedDevicesAdapter;
+        BTDeviceRecord record = adapter.getModel().get(address);
+
+        if (record == null) {
+            adapter = mNewDevicesAdapter;
+            record = adapter.getModel().get(address);
+        }
+
+        if (record == null) {
+            mNewDevicesAdapter.add(new BTDeviceRecord(address, name, majorClass, false, System.currentTimeMillis()));
+            updateTitles();
+            return;
+        }
+
+        record.setLastSeen(System.currentTimeMillis());
+        if (record.update(name, majorClass)) adapter.updateRow(address);
+    }
+
+    private void moveDevice(BluetoothDevice device, DeviceAdapter from, DeviceAdapter to, boolean bonded) {
+        mDevices.put(device.getAddress(), device);
+
+        BTDeviceRecord record = from.remove(device.getAddress());
+        if (record == null) record = to.getModel().get(device.getAddress());
+        if (record == null) record = newRecord(device, bonded);
+
+        record.setBonded(bonded);
+        to.add(record);
+
+        updateTitles();
+    }
+
+    // Asks the stack for name and class, only for devices no broadcast told about
+    private static BTDeviceRecord newRecord(BluetoothDevice device, boolean bonded) {
+        BluetoothClass btClass = device.getBluetoothClass();
+        int majorClass = (btClass != null) ? btClass.getMajorDeviceClass() : BTDeviceRecord.CLASS_UNKNOWN;
+
+        return new BTDeviceRecord(device.getAddress(), device.getName(), majorClass, bonded, 0);
+    }
+
+    private void updateTitles() {
+        if (mPairedDevicesAdapter.getModel().size() > 0) {
+            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
+        }
+        if (mNewDevicesAdapter.getModel().size() > 0) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        }
+    }
+
+    private String getLabel(BTDeviceRecord record) {
+        String label = record.getLabel();
+
+        if (label == null) {
+            String name = (record.getName() != null) ? record.getName() : "Unknown";
+            label = name + " (" + getDeviceMajorClassName(record.getMajorClass()) + ")\n" + record.getAddress();
+            record.setLabel(label);
+        }
+
+        return label;
     }
 
     private void scanForDevices() {
-        if (DBG) Log.d(TAG, "scanForDevices()");
+        if (DBG) BTLog.d(TAG, "scanForDevices()");
 
         setProgressBarIndeterminateVisibility(true);
         setTitle(R.string.text_scanning);
-        mNewDevicesArrayAdapter.clear();
+        mNewDevicesAdapter.setEmptyText(null);
 
         findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
 
@@ -309,4 +456,88 @@ public class BTDeviceList extends Activity {
                 return "Unknown";
         }
     }
+
+//##################################################################################################
+
+    // Rows of a BTDeviceModel. Added and removed devices refresh the list, a changed device redraws
+    // its own row if it is visible. While the model is empty a disabled row shows the empty text.
+    private class DeviceAdapter extends BaseAdapter {
+        private final BTDeviceModel mmModel = new BTDeviceModel();
+        private final ListView mmList;
+        private String mmEmptyText;
+
+        public DeviceAdapter(ListView list) {
+            mmList = list;
+        }
+
+        public void add(BTDeviceRecord record) {
+            int count = mmModel.size();
+            mmModel.add(record);
+
+            if (mmModel.size() != count) notifyDataSetChanged();
+        }
+
+        // Returns the removed record, null if it was not listed
+        public BTDeviceRecord remove(String address) {
+            BTDeviceRecord record = mmModel.get(address);
+
+            if (record != null) {
+                mmModel.remove(address);
+                notifyDataSetChanged();
+            }
+
+            return record;
+        }
+
+        public void updateRow(String address) {
+            int position = mmModel.indexOf(address);
+            if (position < 0) return;
+
+            View row = mmList.getChildAt(position - mmList.getFirstVisiblePosition());
+            if (row != null) getView(position, row, mmList);
+        }
+
+        // null shows nothing while empty
+        public void setEmptyText(String emptyText) {
+            mmEmptyText = emptyText;
+            if (mmModel.size() == 0) notifyDataSetChanged();
+        }
+
+        public BTDeviceModel getModel() {
+            return mmModel;
+        }
+
+        public int getCount() {
+            return (mmModel.size() == 0 && mmEmptyText != null) ? 1 : mmModel.size();
+        }
+
+        public Object getItem(int position) {
+            return (mmModel.size() > 0) ? mmModel.get(position) : null;
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public boolean areAllItemsEnabled() {
+            return false;
+        }
+
+        @Override
+        public boolean isEnabled(int position) {
+            return mmModel.size() > 0;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) convertView;
+
+            if (view == null) {
+                view = (TextView) getLayoutInflater().inflate(R.layout.arrayadapter_devicename, parent, false);
+            }
+
+            view.setText((mmModel.size() > 0) ? getLabel(mmModel.get(position)) : mmEmptyText);
+            return view;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package com.example.konstantin.btterminal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Devices of one picker list. Lookups by address are hashed, and the rows keep the order the
+// devices were added in, so a device found again updates its row in place instead of being
+// searched for or moving around while discovery runs.
+public class BTDeviceModel {
+
+    // Member Variables
+    private final ArrayList<BTDeviceRecord> mRecords = new ArrayList<BTDeviceRecord>();
+    private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+
+//-- Service Functions -----------------------------------------------------------------------------
+    // Appends record unless its address is listed already. Returns the position of the row.
+    public int add(BTDeviceRecord record) {
+        Integer position = mPositions.get(record.getAddress());
+        if (position != null) return position;
+
+        mRecords.add(record);
+        mPositions.put(record.getAddress(), mRecords.size() - 1);
+
+        return mRecords.size() - 1;
+    }
+
+    // Returns the former position of the row, -1 if address was not listed
+    public int remove(String address) {
+        Integer position = mPositions.remove(address);
+        if (position == null) return -1;
+
+        mRecords.remove((int) position);
+
+        // Rows below move up
+        for (int i = position; i < mRecords.size(); i++) {
+            mPositions.put(mRecords.get(i).getAddress(), i);
+        }
+
+        return position;
+    }
+
+    public void clear() {
+        mRecords.clear();
+        mPositions.clear();
+    }
+
+    // -1 if address is not listed
+    public int indexOf(String address) {
+        Integer position = mPositions.get(address);
+        return (position != null) ? position : -1;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int size() {
+        return mRecords.size();
+    }
+
+    public BTDeviceRecord get(int position) {
+        return mRecords.get(position);
+    }
+
+    // null if address is not listed
+    public BTDeviceRecord get(String address) {
+        Integer position = mPositions.get(address);
+        return (position != null) ? mRecords.get(position) : null;
+    }
+
+    public List<BTDeviceRecord> getRecords() {
+        return Collections.unmodifiableList(mRecords);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.konstantin.btterminal;
+
+// A remote device as listed by the device picker. Name and class are taken from discovery
+// broadcasts or BTDeviceStore, so showing a row never asks the Bluetooth stack. The row text is
+// built once and kept until the name or class change.
+public class BTDeviceRecord {
+
+    // Major device class if none is known
+    public static final int CLASS_UNKNOWN = -1;
+
+    // Member Variables
+    private final String mAddress;
+    private String mName;
+    private int mMajorClass;
+    private boolean mBonded;
+    private boolean mFavorite;
+    private long mLastSeen;
+
+    private String mLabel;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTDeviceRecord(String address, String name, int majorClass, boolean bonded, long lastSeen) {
+        mAddress = address;
+        mName = name;
+        mMajorClass = majorClass;
+        mBonded = bonded;
+        mLastSeen = lastSeen;
+    }
+
+    // Returns true if the row has to be redrawn. A null name or CLASS_UNKNOWN keep what is known,
+    // discovery often reports a device before its name.
+    public boolean update(String name, int majorClass) {
+        boolean changed = false;
+
+        if (name != null && !name.equals(mName)) {
+            mName = name;
+            changed = true;
+        }
+
+        if (majorClass != CLASS_UNKNOWN && majorClass != mMajorClass) {
+            mMajorClass = majorClass;
+            changed = true;
+        }
+
+        if (changed) mLabel = null;
+        return changed;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public String getAddress() {
+        return mAddress;
+    }
+
+    // null if not known yet
+    public String getName() {
+        return mName;
+    }
+
+    public int getMajorClass() {
+        return mMajorClass;
+    }
+
+    public boolean isBonded() {
+        return mBonded;
+    }
+
+    public void setBonded(boolean bonded) {
+        mBonded = bonded;
+    }
+
+    public boolean isFavorite() {
+        return mFavorite;
+    }
+
+    public void setFavorite(boolean favorite) {
+        mFavorite = favorite;
+    }
+
+    // System.currentTimeMillis() of the last discovery or connection, 0 if never
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        mLastSeen = lastSeen;
+    }
+
+    // Row text, null once the name or class changed
+    public String getLabel() {
+        return mLabel;
+    }
+
+    public void setLabel(String label) {
+        mLabel = label;
+    }
+}
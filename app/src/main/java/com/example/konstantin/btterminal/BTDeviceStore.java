@@ -0,0 +1,232 @@
+package com.example.konstantin.btterminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// Devices kept across launches in SharedPreferences, one entry per address:
+//   recent: seen by the picker, so it lists them before discovery found anything. Holds
+//           "<last seen>,<major class>,<name>", the newest MAX_RECENT devices are kept.
+//   known:  connected to before, for connecting without the picker. Holds
+//           "<last connected>,<favorite>,<channel>,<name>", favorites and the newest MAX_KNOWN
+//           others are kept. The RFCOMM channel lets a connect skip the service lookup.
+// Safe to use from any thread.
+public class BTDeviceStore implements BTRfcommTransport.ChannelStore {
+    // Debug
+    private static final String TAG = "BTDeviceStore";
+    private static final boolean DBG = BTLog.DEBUG;
+
+    private static final String PREFS_RECENT = "recent_devices";
+    private static final String PREFS_KNOWN = "known_devices";
+    private static final String PREFS_SETTINGS = "device_settings";
+    private static final String KEY_AUTO_CONNECT = "auto_connect";
+
+    private static final int MAX_RECENT = 50;
+    private static final int MAX_KNOWN = 10;
+
+    // Favorites first, then newest first
+    private static final Comparator<BTDeviceRecord> NEWEST_FIRST = new Comparator<BTDeviceRecord>() {
+        public int compare(BTDeviceRecord a, BTDeviceRecord b) {
+            if (a.isFavorite() != b.isFavorite()) return a.isFavorite() ? -1 : 1;
+            return (a.getLastSeen() < b.getLastSeen()) ? 1 : (a.getLastSeen() > b.getLastSeen()) ? -1 : 0;
+        }
+    };
+
+    // Member Variables
+    private final SharedPreferences mRecent;
+    private final SharedPreferences mKnown;
+    private final SharedPreferences mSettings;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTDeviceStore(Context context) {
+        mRecent = context.getSharedPreferences(PREFS_RECENT, Context.MODE_PRIVATE);
+        mKnown = context.getSharedPreferences(PREFS_KNOWN, Context.MODE_PRIVATE);
+        mSettings = context.getSharedPreferences(PREFS_SETTINGS, Context.MODE_PRIVATE);
+    }
+
+    // Newest first, none of them bonded
+    public List<BTDeviceRecord> loadRecent() {
+        ArrayList<BTDeviceRecord> records = new ArrayList<BTDeviceRecord>();
+
+        for (Map.Entry<String, ?> entry : mRecent.getAll().entrySet()) {
+            String[] fields = split(entry.getValue(), 3);
+            if (fields == null) continue;
+
+            try {
+                records.add(new BTDeviceRecord(entry.getKey(), nameOf(fields[2]), Integer.parseInt(fields[1]),
+                        false, Long.parseLong(fields[0])));
+            } catch (NumberFormatException e) {
+                if (DBG) BTLog.d(TAG, "loadRecent() %s invalid", entry.getKey());
+            }
+        }
+
+        Collections.sort(records, NEWEST_FIRST);
+
+        if (DBG) BTLog.d(TAG, "loadRecent() = %d", records.size());
+        return records;
+    }
+
+    // Replaces the stored devices with the newest MAX_RECENT of records, written in the background
+    public void saveRecent(Collection<BTDeviceRecord> records) {
+        ArrayList<BTDeviceRecord> newest = new ArrayList<BTDeviceRecord>(records);
+        Collections.sort(newest, NEWEST_FIRST);
+
+        SharedPreferences.Editor editor = mRecent.edit().clear();
+
+        for (int i = 0; i < Math.min(newest.size(), MAX_RECENT); i++) {
+            BTDeviceRecord record = newest.get(i);
+            if (record.getLastSeen() == 0) break;
+
+            editor.putString(record.getAddress(), record.getLastSeen() + "," + record.getMajorClass() + "," +
+                    ((record.getName() != null) ? record.getName() : ""));
+        }
+
+        editor.apply();
+
+        if (DBG) BTLog.d(TAG, "saveRecent() %d of %d", Math.min(newest.size(), MAX_RECENT), records.size());
+    }
+
+    // Favorites first, then the most recently connected. getLastSeen() is the last connection.
+    public synchronized List<BTDeviceRecord> loadKnown() {
+        ArrayList<BTDeviceRecord> records = new ArrayList<BTDeviceRecord>();
+
+        for (String address : mKnown.getAll().keySet()) {
+            BTDeviceRecord record = getKnown(address);
+            if (record != null) records.add(record);
+        }
+
+        Collections.sort(records, NEWEST_FIRST);
+        return records;
+    }
+
+    // Addresses to try without asking, the favorites or else the last connected device
+    public List<String> getAutoConnectAddresses() {
+        List<BTDeviceRecord> known = loadKnown();
+        ArrayList<String> addresses = new ArrayList<String>();
+
+        for (BTDeviceRecord record : known) {
+            if (record.isFavorite()) addresses.add(record.getAddress());
+        }
+
+        if (addresses.isEmpty() && !known.isEmpty()) addresses.add(known.get(0).getAddress());
+        return addresses;
+    }
+
+    // Called once a connection to address was established
+    public synchronized void putConnected(String address, String name) {
+        if (DBG) BTLog.d(TAG, "putConnected(%s)", address);
+
+        String[] fields = split(mKnown.getString(address, null), 4);
+        boolean favorite = (fields != null) && "1".equals(fields[1]);
+        String channel = (fields != null) ? fields[2] : "-1";
+        if (name == null && fields != null) name = nameOf(fields[3]);
+
+        SharedPreferences.Editor editor = mKnown.edit();
+        put(editor, address, System.currentTimeMillis(), favorite, channel, name);
+        trimKnown(editor, address);
+        editor.apply();
+    }
+
+    public synchronized void setFavorite(String address, boolean favorite) {
+        if (DBG) BTLog.d(TAG, "setFavorite(%s, %b)", address, favorite);
+
+        String[] fields = split(mKnown.getString(address, null), 4);
+        if (fields == null) fields = new String[] { "0", "0", "-1", "" };
+
+        SharedPreferences.Editor editor = mKnown.edit();
+        put(editor, address, parseLong(fields[0]), favorite, fields[2], nameOf(fields[3]));
+        editor.apply();
+    }
+
+    public synchronized boolean isFavorite(String address) {
+        String[] fields = split(mKnown.getString(address, null), 4);
+        return (fields != null) && "1".equals(fields[1]);
+    }
+
+    public synchronized int getChannel(String address) {
+        String[] fields = split(mKnown.getString(address, null), 4);
+        if (fields == null) return -1;
+
+        try {
+            return Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // -1 forgets the channel. Found while connecting, so the device becomes known right before
+    // putConnected().
+    public synchronized void putChannel(String address, int channel) {
+        String[] fields = split(mKnown.getString(address, null), 4);
+        if (fields == null) fields = new String[] { "0", "0", "-1", "" };
+        if (fields[2].equals(String.valueOf(channel))) return;
+
+        SharedPreferences.Editor editor = mKnown.edit();
+        put(editor, address, parseLong(fields[0]), "1".equals(fields[1]), String.valueOf(channel), nameOf(fields[3]));
+        editor.apply();
+    }
+
+    private BTDeviceRecord getKnown(String address) {
+        String[] fields = split(mKnown.getString(address, null), 4);
+        if (fields == null) return null;
+
+        BTDeviceRecord record = new BTDeviceRecord(address, nameOf(fields[3]), BTDeviceRecord.CLASS_UNKNOWN, false,
+                parseLong(fields[0]));
+        record.setFavorite("1".equals(fields[1]));
+        return record;
+    }
+
+    private static void put(SharedPreferences.Editor editor, String address, long lastConnected, boolean favorite,
+                            String channel, String name) {
+        editor.putString(address, lastConnected + "," + (favorite ? "1" : "0") + "," + channel + "," +
+                ((name != null) ? name : ""));
+    }
+
+    // Drops the oldest non favorites beyond MAX_KNOWN, keep was just connected
+    private void trimKnown(SharedPreferences.Editor editor, String keep) {
+        List<BTDeviceRecord> records = loadKnown();
+        int others = 0;
+
+        for (BTDeviceRecord record : records) {
+            if (record.isFavorite() || record.getAddress().equals(keep)) continue;
+
+            if (++others >= MAX_KNOWN) editor.remove(record.getAddress());
+        }
+    }
+
+    // null unless value holds count comma separated fields, the last one may contain commas
+    private static String[] split(Object value, int count) {
+        if (!(value instanceof String)) return null;
+
+        String[] fields = ((String) value).split(",", count);
+        return (fields.length == count) ? fields : null;
+    }
+
+    private static String nameOf(String field) {
+        return (field.length() > 0) ? field : null;
+    }
+
+    private static long parseLong(String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Connect to getAutoConnectAddresses() when the app starts
+    public void setAutoConnect(boolean autoConnect) {
+        mSettings.edit().putBoolean(KEY_AUTO_CONNECT, autoConnect).apply();
+    }
+
+    public boolean isAutoConnect() {
+        return mSettings.getBoolean(KEY_AUTO_CONNECT, false);
+    }
+}
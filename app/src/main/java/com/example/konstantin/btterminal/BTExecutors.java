@@ -0,0 +1,130 @@
+package com.example.konstantin.btterminal;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Process wide thread pools for all connections.
+//
+// IO:      blocking reads and writes, replays and accepting. Every task runs for a whole
+//          connection, so tasks are handed directly to a thread instead of being queued.
+//          A connected session takes two threads, its reader and the writer of its BTWriteQueue,
+//          the listen session one while listening; idle and disconnected sessions take none.
+//          Core threads are kept alive between connections, so reconnecting does not create threads.
+// Connect: connect attempts and bond requests, bounded and queued. Grown for connectFirst() races
+//          by ensureConnectThreads(), so all candidates are tried at once.
+public class BTExecutors {
+
+    // IO Pool
+    public static final int IO_CORE_POOL_SIZE = 4;
+    public static final int IO_MAX_POOL_SIZE = 16;
+    private static final long IO_KEEP_ALIVE_SECONDS = 60;
+
+    // Connect Pool
+    public static final int CONNECT_POOL_SIZE = 3;
+    public static final int CONNECT_MAX_POOL_SIZE = 8;
+    public static final int CONNECT_QUEUE_SIZE = 16;
+    private static final long CONNECT_KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sIoExecutor;
+    private static ThreadPoolExecutor sConnectExecutor;
+
+    private BTExecutors() {
+    }
+
+//-- Service Functions -----------------------------------------------------------------------------
+    // Rejects tasks once IO_MAX_POOL_SIZE threads are busy
+    public static ExecutorService getIoExecutor() {
+        return ioPool();
+    }
+
+    // Rejects tasks once CONNECT_QUEUE_SIZE attempts are waiting
+    public static ExecutorService getConnectExecutor() {
+        return connectPool();
+    }
+
+    // Lets count attempts run at once, up to CONNECT_MAX_POOL_SIZE. The pool never shrinks,
+    // its threads time out when idle.
+    public static synchronized void ensureConnectThreads(int count) {
+        ThreadPoolExecutor pool = connectPool();
+        int size = Math.min(count, CONNECT_MAX_POOL_SIZE);
+
+        if (size > pool.getCorePoolSize()) {
+            // Maximum first, the core size may not exceed it
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor ioPool() {
+        if (sIoExecutor == null) {
+            sIoExecutor = new ThreadPoolExecutor(IO_CORE_POOL_SIZE, IO_MAX_POOL_SIZE,
+                    IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new BTThreadFactory("BTIO", Process.THREAD_PRIORITY_MORE_FAVORABLE));
+        }
+        return sIoExecutor;
+    }
+
+    private static synchronized ThreadPoolExecutor connectPool() {
+        if (sConnectExecutor == null) {
+            sConnectExecutor = new ThreadPoolExecutor(CONNECT_POOL_SIZE, CONNECT_POOL_SIZE,
+                    CONNECT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(CONNECT_QUEUE_SIZE),
+                    new BTThreadFactory("BTConnect", Process.THREAD_PRIORITY_BACKGROUND));
+            sConnectExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sConnectExecutor;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public static int getIoPoolSize() {
+        return ioPool().getPoolSize();
+    }
+
+    public static int getIoActiveCount() {
+        return ioPool().getActiveCount();
+    }
+
+    public static int getConnectPoolSize() {
+        return connectPool().getPoolSize();
+    }
+
+    public static int getConnectActiveCount() {
+        return connectPool().getActiveCount();
+    }
+
+    // Connect attempts and bond requests waiting for a thread
+    public static int getConnectQueueDepth() {
+        return connectPool().getQueue().size();
+    }
+
+//##################################################################################################
+
+    private static class BTThreadFactory implements ThreadFactory {
+        private final String mmName;
+        private final int mmPriority;
+        private final AtomicInteger mmCount = new AtomicInteger();
+
+        public BTThreadFactory(String name, int priority) {
+            mmName = name;
+            mmPriority = priority;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    // Linux thread priority, Thread.setPriority() barely matters on Android
+                    Process.setThreadPriority(mmPriority);
+                    runnable.run();
+                }
+            }, mmName + "-" + mmCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Streams a file to a connection in reusable chunks. A fixed set of chunks circulates between the
+// sender and the write queue, so a send of any size allocates nothing once started and never has
+// more than CHUNKS_IN_FLIGHT chunks queued; a slow link blocks the sender instead of failing writes.
+//
+// Pacing, each one optional:
+//   chunk delay: pause after every chunk
+//   rate:        token bucket limit in bytes per second, with bursts of up to one chunk
+//   line delay:  send line by line, pausing after every line feed, for devices without flow
+//                control that process one line at a time
+//
+// send() blocks the calling thread until every byte was written, a write failed or the send was
+// cancelled.
+public class BTFileSender {
+
+    public static final int DEFAULT_CHUNK_SIZE = 512;
+    public static final int CHUNKS_IN_FLIGHT = 4;
+
+    private static final long RETRY_DELAY_MS = 10;
+    private static final long STALL_TIMEOUT_MS = 10000;
+    private static final long PROGRESS_INTERVAL_NS = 250 * 1000000L;
+
+    public interface Target {
+        // Same contract as BTConnection.write(), false if the payload was not queued
+        boolean write(byte[] data, int offset, int count, BTWriteQueue.Callback callback);
+    }
+
+    // Called on the writer thread at most every 250 ms, and once more when the send ended
+    public interface Listener {
+        void onProgress(BTFileSender sender);
+    }
+
+    // Member Variables
+    private final int mChunkSize;
+    private final long mChunkDelay;
+    private final long mRate;
+    private final long mLineDelay;
+    private final ArrayBlockingQueue<byte[]> mFreeChunks = new ArrayBlockingQueue<byte[]>(CHUNKS_IN_FLIGHT);
+
+    private final String mName;
+    private final long mTotalBytes;
+    private volatile Listener mListener;
+
+    private final AtomicLong mSentBytes = new AtomicLong();
+    private final AtomicLong mLastProgress = new AtomicLong();
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+    private volatile boolean mRunning = true;
+    private volatile boolean mWriteFailed;
+    private volatile boolean mFinished;
+
+    // Token bucket
+    private double mTokens;
+    private long mTokenTime;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    // Delays in ms and rate in bytes per second, 0 disables each. totalBytes is -1 if unknown.
+    public BTFileSender(String name, long totalBytes, int chunkSize, long chunkDelay, long rate, long lineDelay) {
+        mName = name;
+        mTotalBytes = totalBytes;
+        mChunkSize = Math.max(1, chunkSize);
+        mChunkDelay = Math.max(0, chunkDelay);
+        mRate = Math.max(0, rate);
+        mLineDelay = Math.max(0, lineDelay);
+
+        for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) {
+            mFreeChunks.offer(new byte[mChunkSize]);
+        }
+    }
+
+    // Returns true once everything was written, false if cancelled. Throws IOException if reading
+    // failed, a write failed or the write queue stopped draining.
+    public boolean send(InputStream in, Target target) throws IOException, InterruptedException {
+        mStartTime = System.nanoTime();
+        mTokenTime = mStartTime;
+        mTokens = mChunkSize;
+
+        // Bytes read past a line feed, moved to the front of the next chunk
+        byte[] carry = null;
+        int carryOffset = 0;
+        int carryCount = 0;
+        boolean eof = false;
+
+        try {
+            while (mRunning) {
+                // Blocks while the link is slow or reconnecting
+                byte[] chunk = mFreeChunks.take();
+                int filled = 0;
+
+                if (mWriteFailed) {
+                    mFreeChunks.offer(chunk);
+                    break;
+                }
+
+                if (carryCount > 0) {
+                    System.arraycopy(carry, carryOffset, chunk, 0, carryCount);
+                    filled = carryCount;
+                    carryCount = 0;
+                }
+
+                // Fill the chunk, in line mode only up to the first line feed
+                int count = lineLength(chunk, filled);
+                while (count == 0 && !eof && filled < mChunkSize) {
+                    int bytes = in.read(chunk, filled, mChunkSize - filled);
+
+                    if (bytes < 0) {
+                        eof = true;
+                    } else {
+                        filled += bytes;
+                        count = lineLength(chunk, filled);
+                    }
+                }
+                if (count == 0) count = filled;
+
+                if (count == 0) {
+                    mFreeChunks.offer(chunk);
+                    break;
+                }
+
+                if (count < filled) {
+                    carry = chunk;
+                    carryOffset = count;
+                    carryCount = filled - count;
+                }
+
+                if (mRate > 0) throttle(count);
+                write(target, chunk, count);
+
+                if (mLineDelay > 0 && chunk[count - 1] == '\n') Thread.sleep(mLineDelay);
+                if (mChunkDelay > 0) Thread.sleep(mChunkDelay);
+            }
+
+            // Done once every chunk came back from the write queue, failed writes come back as well
+            byte[][] chunks = new byte[CHUNKS_IN_FLIGHT][];
+            try {
+                for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) {
+                    chunks[i] = mFreeChunks.take();
+                }
+            } finally {
+                for (byte[] chunk : chunks) {
+                    if (chunk != null) mFreeChunks.offer(chunk);
+                }
+            }
+            if (mWriteFailed && mRunning) throw new IOException("write failed");
+
+            return mRunning;
+        } finally {
+            mEndTime = System.nanoTime();
+            mFinished = true;
+            Listener listener = mListener;
+            if (listener != null) listener.onProgress(this);
+        }
+    }
+
+    public void cancel() {
+        mRunning = false;
+    }
+
+    // Length up to and including the first line feed, 0 if there is none or not in line mode
+    private int lineLength(byte[] chunk, int count) {
+        if (mLineDelay == 0) return 0;
+
+        for (int i = 0; i < count; i++) {
+            if (chunk[i] == '\n') return i + 1;
+        }
+        return 0;
+    }
+
+    // Waits until the bucket holds count tokens, it refills at mRate and holds one chunk at most
+    private void throttle(int count) throws InterruptedException {
+        long now = System.nanoTime();
+        mTokens = Math.min(mChunkSize, mTokens + (now - mTokenTime) * (double) mRate / 1e9);
+        mTokenTime = now;
+
+        if (mTokens < count) {
+            long wait = (long) ((count - mTokens) * 1e9 / mRate);
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+
+            mTokens = count;
+            mTokenTime = System.nanoTime();
+        }
+
+        mTokens -= count;
+    }
+
+    // A full write queue is retried, a queue not draining for STALL_TIMEOUT_MS fails the send
+    private void write(Target target, byte[] chunk, int count) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + STALL_TIMEOUT_MS * 1000000L;
+
+        while (!target.write(chunk, 0, count, mChunkCallback)) {
+            if (mWriteFailed || !mRunning || System.nanoTime() > deadline) {
+                mFreeChunks.offer(chunk);
+                if (!mRunning) return;
+                throw new IOException("write queue stalled");
+            }
+            Thread.sleep(RETRY_DELAY_MS);
+        }
+    }
+
+    private final BTWriteQueue.Callback mChunkCallback = new BTWriteQueue.Callback() {
+        public void onWriteComplete(byte[] data, int offset, int count, boolean success) {
+            if (success) {
+                mSentBytes.addAndGet(count);
+            } else {
+                mWriteFailed = true;
+            }
+
+            // The chunk is free once written, carried bytes were copied out before
+            mFreeChunks.offer(data);
+
+            Listener listener = mListener;
+            long now = System.nanoTime();
+            long last = mLastProgress.get();
+            if (listener != null && now - last >= PROGRESS_INTERVAL_NS && mLastProgress.compareAndSet(last, now)) {
+                listener.onProgress(BTFileSender.this);
+            }
+        }
+    };
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // -1 if unknown
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    // Bytes written to the connection so far
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    // Effective throughput since the start, up to the end once finished
+    public double getBytesPerSecond() {
+        long start = mStartTime;
+        if (start == 0) return 0;
+
+        long end = mFinished ? mEndTime : System.nanoTime();
+        return (end > start) ? mSentBytes.get() * 1e9 / (end - start) : 0;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    public boolean isCancelled() {
+        return !mRunning;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+}
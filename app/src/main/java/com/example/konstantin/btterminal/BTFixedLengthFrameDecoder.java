@@ -0,0 +1,52 @@
+package com.example.konstantin.btterminal;
+
+// Frames of a constant size
+public class BTFixedLengthFrameDecoder extends BTFrameDecoder {
+
+    // Member Variables
+    private final int mFrameLength;
+    private int mFill;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTFixedLengthFrameDecoder(int frameLength) {
+        super(frameLength);
+
+        if (frameLength <= 0) throw new IllegalArgumentException("frameLength <= 0");
+        mFrameLength = frameLength;
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int count, Listener listener) {
+        int end = offset + count;
+
+        // Complete the frame started in an earlier chunk
+        if (mFill > 0) {
+            int bytes = Math.min(mFrameLength - mFill, count);
+
+            assemble(data, offset, bytes);
+            offset += bytes;
+            mFill += bytes;
+
+            if (mFill < mFrameLength) return;
+
+            emitAssembly(listener, 0);
+            mFill = 0;
+        }
+
+        while (end - offset >= mFrameLength) {
+            emit(listener, data, offset, mFrameLength);
+            offset += mFrameLength;
+        }
+
+        if (offset < end) {
+            assemble(data, offset, end - offset);
+            mFill = end - offset;
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mFill = 0;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.konstantin.btterminal;
+
+// Splits the received byte stream into frames.
+// Frames lying completely inside one received chunk are handed out in place, without copying.
+// Only frames spanning several chunks are assembled into an internal buffer of maxFrameSize
+// bytes, larger ones are dropped.
+public abstract class BTFrameDecoder {
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 4096;
+
+    public interface Listener {
+        // Frame data is only valid during the call
+        void onFrame(byte[] frame, int offset, int count);
+    }
+
+    // Member Variables
+    private final byte[] mAssembly;
+    private int mAssemblyLength;
+    private boolean mAssembling;
+    private boolean mOverflow;
+
+    private volatile long mFrameCount;
+    private volatile long mDroppedFrames;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    protected BTFrameDecoder(int maxFrameSize) {
+        mAssembly = new byte[maxFrameSize];
+    }
+
+    // Calls listener for every frame completed by data. Escaped encodings (SLIP, COBS)
+    // are decoded in place, so data may be modified.
+    public abstract void decode(byte[] data, int offset, int count, Listener listener);
+
+    public void reset() {
+        clearAssembly();
+    }
+
+    // True while a frame started in an earlier chunk is incomplete
+    protected boolean isAssembling() {
+        return mAssembling;
+    }
+
+    protected void assemble(byte[] data, int offset, int count) {
+        mAssembling = true;
+
+        if (mOverflow) return;
+
+        if (mAssemblyLength + count > mAssembly.length) {
+            mOverflow = true;
+            return;
+        }
+
+        System.arraycopy(data, offset, mAssembly, mAssemblyLength, count);
+        mAssemblyLength += count;
+    }
+
+    protected void assemble(byte value) {
+        mAssembling = true;
+
+        if (mOverflow) return;
+
+        if (mAssemblyLength == mAssembly.length) {
+            mOverflow = true;
+            return;
+        }
+
+        mAssembly[mAssemblyLength++] = value;
+    }
+
+    // Completes the assembled frame, minus trim bytes at its end
+    protected void emitAssembly(Listener listener, int trim) {
+        if (mOverflow) {
+            mDroppedFrames++;
+        } else {
+            emit(listener, mAssembly, 0, Math.max(0, mAssemblyLength - trim));
+        }
+
+        clearAssembly();
+    }
+
+    protected void emit(Listener listener, byte[] frame, int offset, int count) {
+        if (count > mAssembly.length) {
+            mDroppedFrames++;
+            return;
+        }
+
+        mFrameCount++;
+        listener.onFrame(frame, offset, count);
+    }
+
+    // Discards a malformed frame
+    protected void dropFrame() {
+        mDroppedFrames++;
+        clearAssembly();
+    }
+
+    private void clearAssembly() {
+        mAssemblyLength = 0;
+        mAssembling = false;
+        mOverflow = false;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int getMaxFrameSize() {
+        return mAssembly.length;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.konstantin.btterminal;
+
+import android.os.Handler;
+import android.os.Message;
+
+import java.util.concurrent.ExecutorService;
+
+// Runs connections in the app: messages go to an Android Handler, work to the BTExecutors pools
+public class BTHandlerHost implements BTConnection.Host {
+
+    // Member Variables
+    private final Handler mHandler;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTHandlerHost(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void sendMessage(int what, int arg1, int arg2, Object obj, long delayMs) {
+        Message msg = mHandler.obtainMessage(what, arg1, arg2, obj);
+
+        if (delayMs > 0) {
+            mHandler.sendMessageDelayed(msg, delayMs);
+        } else {
+            mHandler.sendMessage(msg);
+        }
+    }
+
+    public void postDelayed(Runnable task, long delayMs) {
+        mHandler.postDelayed(task, delayMs);
+    }
+
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public ExecutorService getIoExecutor() {
+        return BTExecutors.getIoExecutor();
+    }
+
+    public ExecutorService getConnectExecutor() {
+        return BTExecutors.getConnectExecutor();
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.konstantin.btterminal;
+
+// Streaming xxd style hex dump: offset, 16 bytes in groups of two, ASCII gutter.
+//   00000010: 4865 6c6c 6f2c 2077 6f72 6c64 0d0a 0000  Hello, world....
+// All conversions are table lookups into a reused line array.
+public class BTHexFormatter {
+
+    public static final int BYTES_PER_LINE = 16;
+    public static final int LINE_LENGTH = 8 + 2 + (BYTES_PER_LINE / 2) * 5 + 1 + BYTES_PER_LINE;
+
+    private static final int GUTTER_START = LINE_LENGTH - BYTES_PER_LINE;
+
+    public interface Output {
+        // A complete line is final, an incomplete one is replaced by the next call
+        void onLine(char[] line, int count, boolean complete);
+    }
+
+    // Lookup Tables
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_PAIRS = new char[256 * 2];
+    private static final char[] PRINTABLE = new char[256];
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[i * 2] = HEX_DIGITS[i >> 4];
+            HEX_PAIRS[i * 2 + 1] = HEX_DIGITS[i & 0x0F];
+            PRINTABLE[i] = (i >= 0x20 && i < 0x7F) ? (char) i : '.';
+        }
+
+        for (int i = 0; i < NIBBLES.length; i++) {
+            NIBBLES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            NIBBLES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLES['a' + i] = (byte) (10 + i);
+            NIBBLES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    // Member Variables
+    private final char[] mLine = new char[LINE_LENGTH];
+    private long mOffset;
+    private int mLineFill;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTHexFormatter() {
+        reset();
+    }
+
+    public void reset() {
+        mOffset = 0;
+        mLineFill = 0;
+        startLine();
+    }
+
+    public void format(byte[] data, int offset, int count, Output output) {
+        int end = offset + count;
+
+        while (offset < end) {
+            int bytes = Math.min(BYTES_PER_LINE - mLineFill, end - offset);
+
+            for (int i = 0; i < bytes; i++) {
+                putByte(mLineFill + i, data[offset + i] & 0xFF);
+            }
+
+            offset += bytes;
+            mLineFill += bytes;
+
+            if (mLineFill == BYTES_PER_LINE) {
+                output.onLine(mLine, LINE_LENGTH, true);
+
+                mOffset += BYTES_PER_LINE;
+                mLineFill = 0;
+                startLine();
+            }
+        }
+
+        if (mLineFill > 0) {
+            output.onLine(mLine, GUTTER_START + mLineFill, false);
+        }
+    }
+
+    private void startLine() {
+        long offset = mOffset;
+
+        for (int i = 7; i >= 0; i--) {
+            mLine[i] = HEX_DIGITS[(int) (offset & 0x0F)];
+            offset >>>= 4;
+        }
+        mLine[8] = ':';
+
+        for (int i = 9; i < LINE_LENGTH; i++) {
+            mLine[i] = ' ';
+        }
+    }
+
+    private void putByte(int index, int value) {
+        // Two hex chars per byte plus a separator after every second byte
+        int column = 10 + index * 2 + index / 2;
+
+        mLine[column] = HEX_PAIRS[value * 2];
+        mLine[column + 1] = HEX_PAIRS[value * 2 + 1];
+        mLine[GUTTER_START + index] = PRINTABLE[value];
+    }
+
+    // Parses hex digit pairs, whitespace and "0x" prefixes are ignored.
+    // Returns the number of bytes written to dst or -1 for invalid input.
+    public static int parse(CharSequence text, byte[] dst) {
+        int count = 0;
+        int high = -1;
+        int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == ',') {
+                if (high >= 0) return -1;
+                continue;
+            }
+
+            if (c == '0' && high < 0 && i + 1 < length && (text.charAt(i + 1) | 0x20) == 'x') {
+                i++;
+                continue;
+            }
+
+            int nibble = (c < NIBBLES.length) ? NIBBLES[c] : -1;
+            if (nibble < 0) return -1;
+
+            if (high < 0) {
+                high = nibble;
+            } else {
+                if (count == dst.length) return -1;
+                dst[count++] = (byte) ((high << 4) | nibble);
+                high = -1;
+            }
+        }
+
+        return (high < 0) ? count : -1;
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.konstantin.btterminal;
+
+// Frames preceded by an unsigned 1, 2 or 4 byte payload length, which is not part of the frame
+public class BTLengthPrefixFrameDecoder extends BTFrameDecoder {
+
+    // Member Variables
+    private final int mPrefixSize;
+    private final boolean mBigEndian;
+
+    private int mHeaderFill;
+    private long mLength;
+    private long mRemaining;
+    private boolean mSkipping;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTLengthPrefixFrameDecoder(int prefixSize, boolean bigEndian) {
+        this(prefixSize, bigEndian, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public BTLengthPrefixFrameDecoder(int prefixSize, boolean bigEndian, int maxFrameSize) {
+        super(maxFrameSize);
+
+        if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4) {
+            throw new IllegalArgumentException("prefixSize must be 1, 2 or 4");
+        }
+        mPrefixSize = prefixSize;
+        mBigEndian = bigEndian;
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int count, Listener listener) {
+        int end = offset + count;
+
+        while (offset < end) {
+            if (mHeaderFill < mPrefixSize) {
+                // Length prefix, possibly split across chunks
+                long value = data[offset++] & 0xFF;
+
+                if (mBigEndian) {
+                    mLength = (mLength << 8) | value;
+                } else {
+                    mLength |= value << (8 * mHeaderFill);
+                }
+
+                if (++mHeaderFill < mPrefixSize) continue;
+
+                mRemaining = mLength;
+
+                if (mLength > getMaxFrameSize()) {
+                    // Too large for assembly, skip the payload to stay in sync
+                    dropFrame();
+                    mSkipping = true;
+                } else if (end - offset >= mLength) {
+                    // Complete payload inside this chunk
+                    emit(listener, data, offset, (int) mLength);
+                    offset += (int) mLength;
+                    mRemaining = 0;
+                }
+            } else {
+                int bytes = (int) Math.min(mRemaining, end - offset);
+
+                if (!mSkipping) assemble(data, offset, bytes);
+                offset += bytes;
+                mRemaining -= bytes;
+            }
+
+            if (mHeaderFill == mPrefixSize && mRemaining == 0) {
+                if (isAssembling()) emitAssembly(listener, 0);
+
+                mHeaderFill = 0;
+                mLength = 0;
+                mSkipping = false;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mHeaderFill = 0;
+        mLength = 0;
+        mRemaining = 0;
+        mSkipping = false;
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// Logging facade with levels fixed per build type, see LOG_LEVEL and TRACE_LEVEL in build.gradle.
+//
+// Messages at or above LOG_LEVEL go to the printer, logcat in the app and stderr on a plain JVM.
+// Messages at or above TRACE_LEVEL are kept in an in-memory ring of the last TRACE_SIZE entries,
+// to be dumped after an incident.
+// Format arguments are only formatted once a message is actually printed or dumped, traced
+// arguments are kept by reference until then and should be immutable.
+//
+// Guard calls with the level constants, e.g. "if (BTLog.DEBUG) BTLog.d(...)". They are compile
+// time constants, so disabled calls including their arguments are removed from the build.
+public class BTLog {
+
+    // Levels, same values as android.util.Log
+    public static final int LEVEL_VERBOSE = 2;
+    public static final int LEVEL_DEBUG = 3;
+    public static final int LEVEL_INFO = 4;
+    public static final int LEVEL_WARN = 5;
+    public static final int LEVEL_ERROR = 6;
+
+    public static final int LOG_LEVEL = BuildConfig.LOG_LEVEL;
+    public static final int TRACE_LEVEL = BuildConfig.TRACE_LEVEL;
+    private static final int MIN_LEVEL = (LOG_LEVEL < TRACE_LEVEL) ? LOG_LEVEL : TRACE_LEVEL;
+
+    // Levels printed or traced
+    public static final boolean VERBOSE = MIN_LEVEL <= LEVEL_VERBOSE;
+    public static final boolean DEBUG = MIN_LEVEL <= LEVEL_DEBUG;
+    public static final boolean INFO = MIN_LEVEL <= LEVEL_INFO;
+
+    public static final int TRACE_SIZE = 512;
+
+    private static final String LEVEL_CHARS = "??VDIWEA";
+
+    // Where printed messages go, see setPrinter()
+    public interface Printer {
+        void println(int level, String tag, String msg);
+    }
+
+    private static volatile Printer sPrinter = new Printer() {
+        public void println(int level, String tag, String msg) {
+            System.err.println(LEVEL_CHARS.charAt(level) + "/" + tag + ": " + msg);
+        }
+    };
+
+    // Trace Ring, entries are reused
+    private static final Entry[] sTrace = new Entry[TRACE_SIZE];
+    private static int sTraceNext;
+    private static long sTraceCount;
+
+    private BTLog() {
+    }
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public static void v(String tag, String msg) {
+        log(LEVEL_VERBOSE, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void v(String tag, String format, Object arg0) {
+        log(LEVEL_VERBOSE, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void v(String tag, String format, Object arg0, Object arg1) {
+        log(LEVEL_VERBOSE, tag, format, 2, arg0, arg1, null, null);
+    }
+
+    public static void d(String tag, String msg) {
+        log(LEVEL_DEBUG, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+        log(LEVEL_DEBUG, tag, msg, 0, null, null, null, tr);
+    }
+
+    public static void d(String tag, String format, Object arg0) {
+        log(LEVEL_DEBUG, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void d(String tag, String format, Object arg0, Object arg1) {
+        log(LEVEL_DEBUG, tag, format, 2, arg0, arg1, null, null);
+    }
+
+    public static void d(String tag, String format, Object arg0, Object arg1, Object arg2) {
+        log(LEVEL_DEBUG, tag, format, 3, arg0, arg1, arg2, null);
+    }
+
+    public static void i(String tag, String msg) {
+        log(LEVEL_INFO, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void i(String tag, String format, Object arg0) {
+        log(LEVEL_INFO, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void i(String tag, String format, Object arg0, Object arg1) {
+        log(LEVEL_INFO, tag, format, 2, arg0, arg1, null, null);
+    }
+
+    public static void i(String tag, String format, Object arg0, Object arg1, Object arg2) {
+        log(LEVEL_INFO, tag, format, 3, arg0, arg1, arg2, null);
+    }
+
+    public static void w(String tag, String msg) {
+        log(LEVEL_WARN, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        log(LEVEL_WARN, tag, msg, 0, null, null, null, tr);
+    }
+
+    public static void w(String tag, String format, Object arg0) {
+        log(LEVEL_WARN, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        log(LEVEL_ERROR, tag, msg, 0, null, null, null, tr);
+    }
+
+    private static void log(int level, String tag, String format, int argCount,
+                            Object arg0, Object arg1, Object arg2, Throwable tr) {
+        if (level >= LOG_LEVEL) {
+            String msg = format(format, argCount, arg0, arg1, arg2);
+            if (tr != null) msg = msg + '\n' + getStackTraceString(tr);
+
+            sPrinter.println(level, tag, msg);
+        }
+
+        if (level >= TRACE_LEVEL) {
+            trace(level, tag, format, argCount, arg0, arg1, arg2, tr);
+        }
+    }
+
+    // Never throws, logging must not take the caller down
+    private static String format(String format, int argCount, Object arg0, Object arg1, Object arg2) {
+        try {
+            switch (argCount) {
+                case 0:
+                    return format;
+                case 1:
+                    return String.format(Locale.US, format, arg0);
+                case 2:
+                    return String.format(Locale.US, format, arg0, arg1);
+                default:
+                    return String.format(Locale.US, format, arg0, arg1, arg2);
+            }
+        } catch (RuntimeException e) {
+            return format + " <" + e + ">";
+        }
+    }
+
+    private static void trace(int level, String tag, String format, int argCount,
+                              Object arg0, Object arg1, Object arg2, Throwable tr) {
+        long time = System.currentTimeMillis();
+        String thread = Thread.currentThread().getName();
+
+        synchronized (sTrace) {
+            Entry entry = sTrace[sTraceNext];
+            if (entry == null) {
+                entry = new Entry();
+                sTrace[sTraceNext] = entry;
+            }
+
+            entry.mmTime = time;
+            entry.mmThread = thread;
+            entry.mmLevel = level;
+            entry.mmTag = tag;
+            entry.mmFormat = format;
+            entry.mmArgCount = argCount;
+            entry.mmArg0 = arg0;
+            entry.mmArg1 = arg1;
+            entry.mmArg2 = arg2;
+            entry.mmThrowable = tr;
+
+            sTraceNext = (sTraceNext + 1) % TRACE_SIZE;
+            sTraceCount++;
+        }
+    }
+
+    private static String getStackTraceString(Throwable tr) {
+        StringWriter writer = new StringWriter();
+        tr.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    // Writes the trace oldest first, the trace is kept
+    public static void dumpTrace(Writer writer) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        PrintWriter out = new PrintWriter(writer);
+        Date date = new Date();
+
+        synchronized (sTrace) {
+            int count = (int) Math.min(sTraceCount, TRACE_SIZE);
+            int index = (sTraceNext - count + TRACE_SIZE) % TRACE_SIZE;
+
+            if (sTraceCount > TRACE_SIZE) {
+                out.println("-- " + (sTraceCount - TRACE_SIZE) + " older entries dropped");
+            }
+
+            for (int i = 0; i < count; i++) {
+                Entry entry = sTrace[index];
+                date.setTime(entry.mmTime);
+
+                String msg = format(entry.mmFormat, entry.mmArgCount, entry.mmArg0, entry.mmArg1, entry.mmArg2);
+
+                out.print(dateFormat.format(date));
+                out.print(' ');
+                out.print(LEVEL_CHARS.charAt(entry.mmLevel));
+                out.print('/');
+                out.print(entry.mmTag);
+                out.print(" [");
+                out.print(entry.mmThread);
+                out.print("]: ");
+                out.println(msg);
+
+                if (entry.mmThrowable != null) entry.mmThrowable.printStackTrace(out);
+
+                index = (index + 1) % TRACE_SIZE;
+            }
+        }
+
+        out.flush();
+        if (out.checkError()) throw new IOException("Trace dump failed");
+    }
+
+    public static void clearTrace() {
+        synchronized (sTrace) {
+            for (int i = 0; i < TRACE_SIZE; i++) {
+                sTrace[i] = null;
+            }
+            sTraceNext = 0;
+            sTraceCount = 0;
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Replaces the stderr printer, BTApplication installs logcat
+    public static void setPrinter(Printer printer) {
+        sPrinter = printer;
+    }
+
+    // Entries traced since start or clearTrace(), including dropped ones
+    public static long getTraceCount() {
+        synchronized (sTrace) {
+            return sTraceCount;
+        }
+    }
+
+//##################################################################################################
+
+    private static class Entry {
+        long mmTime;
+        String mmThread;
+        int mmLevel;
+        String mmTag;
+        String mmFormat;
+        int mmArgCount;
+        Object mmArg0;
+        Object mmArg1;
+        Object mmArg2;
+        Throwable mmThrowable;
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.konstantin.btterminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and histograms of one connection, recorded lock free from the reader, writer and
+// Handler threads. snapshot() takes a consistent enough copy for display, tests and benchmarks;
+// rates are the difference of two snapshots.
+//
+// Histograms have power of two buckets: bucket 0 counts zeros, bucket n counts values in
+// [2^(n-1), 2^n). Read sizes and queue depths are in bytes, dispatch latency is in microseconds.
+public class BTMetrics {
+
+    public static final int HISTOGRAM_BUCKETS = 32;
+
+    // Member Variables
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mReadsIn = new AtomicLong();
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mWritesOut = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+
+    private final AtomicLongArray mReadSizes = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLongArray mQueueDepths = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLongArray mDispatchLatency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+//-- Service Functions -----------------------------------------------------------------------------
+    // One chunk returned by the input stream
+    public void recordRead(int bytes) {
+        mBytesIn.addAndGet(bytes);
+        mReadsIn.incrementAndGet();
+        mReadSizes.incrementAndGet(bucket(bytes));
+    }
+
+    // One decoded frame, or without framing one MSG_DATA_READ drained by the receiver
+    public void recordFrameIn() {
+        mFramesIn.incrementAndGet();
+    }
+
+    // One write to the output stream
+    public void recordWrite(int bytes) {
+        mBytesOut.addAndGet(bytes);
+        mWritesOut.incrementAndGet();
+    }
+
+    // One message queued for sending, with the queue depth it left behind
+    public void recordFrameOut(int queuedBytes) {
+        mFramesOut.incrementAndGet();
+        mQueueDepths.incrementAndGet(bucket(queuedBytes));
+    }
+
+    // Time from data being read until the Handler consumed it
+    public void recordDispatchLatency(long micros) {
+        mDispatchLatency.incrementAndGet(bucket(micros));
+    }
+
+    public void reset() {
+        mBytesIn.set(0);
+        mReadsIn.set(0);
+        mFramesIn.set(0);
+        mBytesOut.set(0);
+        mWritesOut.set(0);
+        mFramesOut.set(0);
+
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            mReadSizes.set(i, 0);
+            mQueueDepths.set(i, 0);
+            mDispatchLatency.set(i, 0);
+        }
+    }
+
+    // queuedBytes is the current write queue depth, it is not tracked here
+    public Snapshot snapshot(int queuedBytes) {
+        return new Snapshot(this, System.nanoTime(), queuedBytes);
+    }
+
+    static int bucket(long value) {
+        if (value <= 0) return 0;
+        return Math.min(64 - Long.numberOfLeadingZeros(value), HISTOGRAM_BUCKETS - 1);
+    }
+
+    private static long[] copy(AtomicLongArray histogram) {
+        long[] copy = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            copy[i] = histogram.get(i);
+        }
+        return copy;
+    }
+
+//##################################################################################################
+
+    // Immutable copy of all metrics at one point in time
+    public static class Snapshot {
+        private final long mmTime;
+        private final long mmBytesIn;
+        private final long mmReadsIn;
+        private final long mmFramesIn;
+        private final long mmBytesOut;
+        private final long mmWritesOut;
+        private final long mmFramesOut;
+        private final int mmQueuedBytes;
+
+        private final long[] mmReadSizes;
+        private final long[] mmQueueDepths;
+        private final long[] mmDispatchLatency;
+
+        private Snapshot(BTMetrics metrics, long time, int queuedBytes) {
+            mmTime = time;
+            mmBytesIn = metrics.mBytesIn.get();
+            mmReadsIn = metrics.mReadsIn.get();
+            mmFramesIn = metrics.mFramesIn.get();
+            mmBytesOut = metrics.mBytesOut.get();
+            mmWritesOut = metrics.mWritesOut.get();
+            mmFramesOut = metrics.mFramesOut.get();
+            mmQueuedBytes = queuedBytes;
+
+            mmReadSizes = copy(metrics.mReadSizes);
+            mmQueueDepths = copy(metrics.mQueueDepths);
+            mmDispatchLatency = copy(metrics.mDispatchLatency);
+        }
+
+        // Rates since an earlier snapshot of the same metrics, per second
+        public double getBytesInPerSecond(Snapshot previous) {
+            return rate(mmBytesIn, previous.mmBytesIn, previous);
+        }
+
+        public double getFramesInPerSecond(Snapshot previous) {
+            return rate(mmFramesIn, previous.mmFramesIn, previous);
+        }
+
+        public double getBytesOutPerSecond(Snapshot previous) {
+            return rate(mmBytesOut, previous.mmBytesOut, previous);
+        }
+
+        public double getFramesOutPerSecond(Snapshot previous) {
+            return rate(mmFramesOut, previous.mmFramesOut, previous);
+        }
+
+        private double rate(long current, long previous, Snapshot since) {
+            long elapsed = mmTime - since.mmTime;
+            if (elapsed <= 0 || current < previous) return 0;
+
+            return (current - previous) * 1e9 / elapsed;
+        }
+
+        // Upper bound of the bucket holding the given fraction of samples, 0 without samples
+        public static long percentile(long[] histogram, double fraction) {
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0) return 0;
+
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) return (i == 0) ? 0 : (1L << i) - 1;
+            }
+            return (1L << (histogram.length - 1)) - 1;
+        }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+        // System.nanoTime() of the snapshot
+        public long getTime() {
+            return mmTime;
+        }
+
+        public long getBytesIn() {
+            return mmBytesIn;
+        }
+
+        public long getReadsIn() {
+            return mmReadsIn;
+        }
+
+        public long getFramesIn() {
+            return mmFramesIn;
+        }
+
+        public long getBytesOut() {
+            return mmBytesOut;
+        }
+
+        public long getWritesOut() {
+            return mmWritesOut;
+        }
+
+        public long getFramesOut() {
+            return mmFramesOut;
+        }
+
+        public int getQueuedBytes() {
+            return mmQueuedBytes;
+        }
+
+        public long[] getReadSizes() {
+            return mmReadSizes.clone();
+        }
+
+        public long[] getQueueDepths() {
+            return mmQueueDepths.clone();
+        }
+
+        public long[] getDispatchLatency() {
+            return mmDispatchLatency.clone();
+        }
+    }
+}
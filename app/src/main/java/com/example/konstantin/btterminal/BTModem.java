@@ -0,0 +1,321 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+
+// Base of the serial file transfer protocols. A transfer runs on the calling thread, received
+// bytes are fed into the BTRingBuffer given as input by whoever owns the link, and everything
+// sent goes to out, which is flushed once per block or frame.
+//
+// send() and receive() return true once done and false if cancelled locally. They throw
+// IOException if the peer cancelled, the link failed or retries ran out; the peer is told to
+// cancel unless it was the one cancelling.
+public abstract class BTModem {
+
+    // Protocols
+    public static final int PROTOCOL_XMODEM = 1;      // XMODEM-CRC, 128 byte blocks
+    public static final int PROTOCOL_XMODEM_1K = 2;   // XMODEM-CRC, 1024 byte blocks
+    public static final int PROTOCOL_YMODEM = 3;      // Batch with file name and size
+    public static final int PROTOCOL_YMODEM_G = 4;    // YMODEM streamed without acknowledges
+    public static final int PROTOCOL_ZMODEM = 5;      // Streaming, resumes at the last good position
+
+    // Shared control characters
+    protected static final int CAN = 0x18;
+    private static final int BS = 0x08;
+
+    // readByte() result if nothing arrived in time
+    protected static final int TIMEOUT = -1;
+
+    public interface Source {
+        String getName();
+
+        // -1 if unknown
+        long getLength();
+
+        // Called again to restart at an earlier position
+        InputStream open() throws IOException;
+    }
+
+    public interface Sink {
+        // name is null and length -1 for XMODEM
+        OutputStream create(String name, long length) throws IOException;
+    }
+
+    // Called on the transfer thread at most every 250 ms, and once more when the transfer ended
+    public interface Listener {
+        void onProgress(BTModem modem);
+    }
+
+    private static final long PROGRESS_INTERVAL_NS = 250 * 1000000L;
+
+    // CRC-16/XMODEM, polynomial 0x1021
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    // Member Variables
+    private final int mProtocol;
+    private final BTRingBuffer mIn;
+    protected final OutputStream mOut;
+
+    // Read ahead of mIn
+    private final byte[] mRxBuffer = new byte[1024];
+    private int mRxOffset;
+    private int mRxCount;
+
+    private volatile Listener mListener;
+    private volatile boolean mCancelled;
+    private volatile boolean mFinished;
+    private volatile boolean mSending;
+    private boolean mPeerCancelled;
+
+    // Progress
+    private volatile String mFileName;
+    private volatile long mFileLength = -1;
+    private volatile long mFileBytes;
+    private volatile long mTotalBytes;
+    private volatile int mFileCount;
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+    private long mLastProgress;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    protected BTModem(int protocol, BTRingBuffer in, OutputStream out) {
+        mProtocol = protocol;
+        mIn = in;
+        mOut = out;
+    }
+
+    public static BTModem create(int protocol, BTRingBuffer in, OutputStream out) {
+        switch (protocol) {
+            case PROTOCOL_XMODEM:
+            case PROTOCOL_XMODEM_1K:
+            case PROTOCOL_YMODEM:
+            case PROTOCOL_YMODEM_G:
+                return new BTXModem(protocol, in, out);
+
+            case PROTOCOL_ZMODEM:
+                return new BTZModem(in, out);
+
+            default:
+                throw new IllegalArgumentException("Unknown protocol " + protocol);
+        }
+    }
+
+    // Plain XMODEM sends the first file only
+    public final boolean send(List<Source> files) throws IOException {
+        return run(files, null);
+    }
+
+    public final boolean receive(Sink sink) throws IOException {
+        return run(null, sink);
+    }
+
+    private boolean run(List<Source> files, Sink sink) throws IOException {
+        mStartTime = System.nanoTime();
+        mSending = (files != null);
+
+        try {
+            if (files != null) {
+                doSend(files);
+            } else {
+                doReceive(sink);
+            }
+            return true;
+        } catch (IOException e) {
+            if (!mPeerCancelled) sendCancel();
+            if (mCancelled) return false;
+            throw e;
+        } finally {
+            mEndTime = System.nanoTime();
+            mFinished = true;
+
+            Listener listener = mListener;
+            if (listener != null) listener.onProgress(this);
+        }
+    }
+
+    protected abstract void doSend(List<Source> files) throws IOException;
+
+    protected abstract void doReceive(Sink sink) throws IOException;
+
+    // Aborts a running transfer from any thread, a blocked read returns right away
+    public void cancel() {
+        mCancelled = true;
+        mIn.close();
+    }
+
+    // One byte, or TIMEOUT if none arrived within timeout ms
+    protected int readByte(long timeout) throws IOException {
+        if (mRxOffset == mRxCount && fill(timeout) == 0) return TIMEOUT;
+        return mRxBuffer[mRxOffset++] & 0xFF;
+    }
+
+    // Reads count bytes, false if they did not arrive within timeout ms each
+    protected boolean readFully(byte[] buffer, int offset, int count, long timeout) throws IOException {
+        while (count > 0) {
+            if (mRxOffset == mRxCount && fill(timeout) == 0) return false;
+
+            int chunk = Math.min(count, mRxCount - mRxOffset);
+            System.arraycopy(mRxBuffer, mRxOffset, buffer, offset, chunk);
+            mRxOffset += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+        return true;
+    }
+
+    private int fill(long timeout) throws IOException {
+        if (mCancelled) throw new IOException("Cancelled");
+
+        int bytes = mIn.read(mRxBuffer, 0, mRxBuffer.length, timeout);
+
+        if (bytes < 0) throw new IOException(mCancelled ? "Cancelled" : "Link closed");
+        if (bytes == 0 && Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+
+        mRxOffset = 0;
+        mRxCount = bytes;
+        return bytes;
+    }
+
+    // Bytes that can be read without waiting
+    protected int available() {
+        return (mRxCount - mRxOffset) + mIn.available();
+    }
+
+    // Discards everything received until the line was quiet for timeout ms
+    protected void purge(long timeout) throws IOException {
+        mRxOffset = mRxCount;
+        while (fill(timeout) > 0) {
+            mRxOffset = mRxCount;
+        }
+    }
+
+    protected void flush() throws IOException {
+        mOut.flush();
+    }
+
+    // Understood by XMODEM receivers (two CAN) and ZMODEM (five CAN), the backspaces erase the
+    // CANs on a terminal
+    private void sendCancel() {
+        try {
+            for (int i = 0; i < 8; i++) {
+                mOut.write(CAN);
+            }
+            for (int i = 0; i < 8; i++) {
+                mOut.write(BS);
+            }
+            mOut.flush();
+        } catch (IOException e) {
+            // Link is gone, nobody left to tell
+        }
+    }
+
+    protected IOException peerCancelled() {
+        mPeerCancelled = true;
+        return new IOException("Cancelled by peer");
+    }
+
+    protected static int crc16(int crc, byte[] data, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    protected static int crc16(int crc, int b) {
+        return ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ b) & 0xFF]) & 0xFFFF;
+    }
+
+    // File progress
+    protected void startFile(String name, long length) {
+        mFileName = name;
+        mFileLength = length;
+        mFileBytes = 0;
+        mFileCount++;
+        progress();
+    }
+
+    // position within the current file, data may be repeated after an error
+    protected void fileProgress(long position) {
+        mTotalBytes += Math.max(0, position - mFileBytes);
+        mFileBytes = position;
+        progress();
+    }
+
+    private void progress() {
+        Listener listener = mListener;
+        long now = System.nanoTime();
+
+        if (listener != null && now - mLastProgress >= PROGRESS_INTERVAL_NS) {
+            mLastProgress = now;
+            listener.onProgress(this);
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getProtocol() {
+        return mProtocol;
+    }
+
+    // Name of the current file, null before the first one or if the protocol has no names
+    public String getFileName() {
+        return mFileName;
+    }
+
+    // -1 if unknown
+    public long getFileLength() {
+        return mFileLength;
+    }
+
+    public long getFileBytes() {
+        return mFileBytes;
+    }
+
+    // Files started so far
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    // Payload bytes of all files, without retransmissions
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    // Effective payload throughput since the start, up to the end once finished
+    public double getBytesPerSecond() {
+        long start = mStartTime;
+        if (start == 0) return 0;
+
+        long end = mFinished ? mEndTime : System.nanoTime();
+        return (end > start) ? mTotalBytes * 1e9 / (end - start) : 0;
+    }
+
+    // False while receiving
+    public boolean isSending() {
+        return mSending;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-process transport, both directions are blocking BTRingBuffers.
+// One Acceptor may listen at a time, createEndpoint() connects to it regardless of address.
+public class BTPipeTransport implements BTTransport {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    // Member Variables
+    private final int mCapacity;
+    private PipeAcceptor mAcceptor;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTPipeTransport() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BTPipeTransport(int capacity) {
+        mCapacity = capacity;
+    }
+
+    public Endpoint createEndpoint(String address) throws IOException {
+        return new PipeEndpoint(address);
+    }
+
+    public synchronized Acceptor listen() throws IOException {
+        if (mAcceptor != null && !mAcceptor.mmClosed) {
+            throw new IOException("Pipe already listening");
+        }
+
+        mAcceptor = new PipeAcceptor();
+        return mAcceptor;
+    }
+
+    private synchronized PipeAcceptor getAcceptor() {
+        return mAcceptor;
+    }
+
+//##################################################################################################
+
+    private class PipeAcceptor implements Acceptor {
+        private final LinkedBlockingQueue<PipeEndpoint> mmPending = new LinkedBlockingQueue<PipeEndpoint>();
+        private volatile boolean mmClosed;
+
+        public Endpoint accept() throws IOException {
+            PipeEndpoint endpoint;
+
+            try {
+                endpoint = mmPending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("accept() interrupted");
+            }
+
+            if (mmClosed) throw new IOException("Pipe closed");
+
+            return endpoint;
+        }
+
+        public void close() {
+            mmClosed = true;
+
+            // Wake up a blocked accept()
+            mmPending.offer(new PipeEndpoint("closed"));
+        }
+    }
+
+//##################################################################################################
+
+    private class PipeEndpoint implements Endpoint {
+        private final String mmAddress;
+        private BTRingBuffer mmInBuffer;
+        private BTRingBuffer mmOutBuffer;
+
+        public PipeEndpoint(String address) {
+            mmAddress = address;
+        }
+
+        public void connect() throws IOException {
+            if (mmInBuffer != null) return;
+
+            PipeAcceptor acceptor = getAcceptor();
+            if (acceptor == null || acceptor.mmClosed) {
+                throw new IOException("Connection refused");
+            }
+
+            mmInBuffer = new BTRingBuffer(mCapacity, BTRingBuffer.POLICY_BLOCK);
+            mmOutBuffer = new BTRingBuffer(mCapacity, BTRingBuffer.POLICY_BLOCK);
+
+            // Peer sees both buffers crossed over
+            PipeEndpoint peer = new PipeEndpoint(mmAddress);
+            peer.mmInBuffer = mmOutBuffer;
+            peer.mmOutBuffer = mmInBuffer;
+
+            acceptor.mmPending.offer(peer);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (mmInBuffer == null) throw new IOException("Not connected");
+            return new PipeInputStream(mmInBuffer);
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            if (mmOutBuffer == null) throw new IOException("Not connected");
+            return new PipeOutputStream(mmOutBuffer);
+        }
+
+        public String getName() {
+            return "pipe:" + mmAddress;
+        }
+
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        public void close() {
+            if (mmInBuffer != null) mmInBuffer.close();
+            if (mmOutBuffer != null) mmOutBuffer.close();
+        }
+    }
+
+//##################################################################################################
+
+    private static class PipeInputStream extends InputStream {
+        private final BTRingBuffer mmBuffer;
+        private final byte[] mmSingle = new byte[1];
+
+        public PipeInputStream(BTRingBuffer buffer) {
+            mmBuffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int bytes = read(mmSingle, 0, 1);
+            return (bytes < 0) ? -1 : (mmSingle[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) return 0;
+
+            int bytes = mmBuffer.read(buffer, offset, count, -1);
+            if (bytes == 0) throw new InterruptedIOException("read() interrupted");
+
+            return bytes;
+        }
+
+        @Override
+        public int available() {
+            return mmBuffer.available();
+        }
+
+        @Override
+        public void close() {
+            mmBuffer.close();
+        }
+    }
+
+//##################################################################################################
+
+    private static class PipeOutputStream extends OutputStream {
+        private final BTRingBuffer mmBuffer;
+        private final byte[] mmSingle = new byte[1];
+
+        public PipeOutputStream(BTRingBuffer buffer) {
+            mmBuffer = buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mmSingle[0] = (byte) b;
+            write(mmSingle, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mmBuffer.write(buffer, offset, count) < count) {
+                throw new IOException("Pipe closed");
+            }
+        }
+
+        @Override
+        public void close() {
+            mmBuffer.close();
+        }
+    }
+}
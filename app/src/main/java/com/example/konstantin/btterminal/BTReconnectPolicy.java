@@ -0,0 +1,54 @@
+package com.example.konstantin.btterminal;
+
+import java.util.Random;
+
+// Jittered exponential backoff for reconnecting a lost connection.
+// The delay before attempt n (starting at 1) is initialDelay * 2^(n-1), capped at maxDelay,
+// of which up to the jitter fraction is randomly taken off, so that several sessions lost
+// at the same time do not retry in lockstep.
+public class BTReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final float DEFAULT_JITTER = 0.5f;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    // Member Variables
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final float mJitter;
+    private final int mMaxAttempts;
+    private final Random mRandom = new Random();
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_JITTER, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public BTReconnectPolicy(long initialDelay, long maxDelay, float jitter, int maxAttempts) {
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mJitter = Math.max(0.0f, Math.min(jitter, 1.0f));
+        mMaxAttempts = maxAttempts;
+    }
+
+    // Delay in ms before the given attempt, -1 once all attempts are used up
+    public long getDelay(int attempt) {
+        if (attempt > mMaxAttempts) return -1;
+
+        long delay = mMaxDelay;
+        int shift = attempt - 1;
+
+        // Avoid overflow for large attempt counts
+        if (shift < 31 && (mInitialDelay << shift) < mMaxDelay) {
+            delay = mInitialDelay << shift;
+        }
+
+        return delay - (long) (delay * mJitter * mRandom.nextFloat());
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.konstantin.btterminal;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.UUID;
+
+// Devices and the RFCOMM channels found by service lookup are cached per address, so reconnecting
+// to a device skips the SDP query. A cached channel that fails falls back to a lookup, and is only
+// replaced once that lookup connects: a device that is off or out of range keeps it. With a
+// ChannelStore the channels outlive the transport, so even the first connect after a restart
+// skips the lookup.
+public class BTRfcommTransport implements BTTransport {
+    // Debug
+    private static final String TAG = "BTRfcommTransport";
+    private static final boolean DBG = BTLog.DEBUG;
+
+    // Hidden API, resolved once
+    private static Method sCreateRfcommSocket;
+    private static Field sPortField;
+    private static boolean sReflectionResolved;
+
+    // Keeps channels across transports, called on the connecting thread
+    public interface ChannelStore {
+        // -1 if unknown
+        int getChannel(String address);
+
+        // -1 forgets the channel
+        void putChannel(String address, int channel);
+    }
+
+    // Member Variables
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mServiceName;
+    private final UUID mServiceUuid;
+
+    private final HashMap<String, BluetoothDevice> mDevices = new HashMap<String, BluetoothDevice>();
+    private final HashMap<String, Integer> mChannels = new HashMap<String, Integer>();
+    private volatile ChannelStore mChannelStore;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTRfcommTransport(BluetoothAdapter adapter, String serviceName, UUID serviceUuid) {
+        mBluetoothAdapter = adapter;
+        mServiceName = serviceName;
+        mServiceUuid = serviceUuid;
+    }
+
+    public Endpoint createEndpoint(String address) throws IOException {
+        BluetoothDevice device;
+
+        synchronized (mDevices) {
+            device = mDevices.get(address);
+            if (device == null) {
+                device = mBluetoothAdapter.getRemoteDevice(address);
+                mDevices.put(address, device);
+            }
+        }
+
+        return new RfcommEndpoint(null, device);
+    }
+
+    public void setChannelStore(ChannelStore channelStore) {
+        mChannelStore = channelStore;
+    }
+
+    // Forgets the channel of address, e.g. after the remote service moved
+    public void invalidate(String address) {
+        synchronized (mDevices) {
+            mChannels.remove(address);
+        }
+
+        ChannelStore channelStore = mChannelStore;
+        if (channelStore != null) channelStore.putChannel(address, -1);
+    }
+
+    private Integer getChannel(String address) {
+        synchronized (mDevices) {
+            Integer channel = mChannels.get(address);
+            if (channel != null) return channel;
+        }
+
+        // First connect to address since start
+        ChannelStore channelStore = mChannelStore;
+        int stored = (channelStore != null) ? channelStore.getChannel(address) : -1;
+        if (stored <= 0) return null;
+
+        synchronized (mDevices) {
+            mChannels.put(address, stored);
+        }
+        return stored;
+    }
+
+    private void putChannel(String address, int channel) {
+        synchronized (mDevices) {
+            mChannels.put(address, channel);
+        }
+
+        ChannelStore channelStore = mChannelStore;
+        if (channelStore != null) channelStore.putChannel(address, channel);
+    }
+
+    private static synchronized void resolveReflection() {
+        if (sReflectionResolved) return;
+        sReflectionResolved = true;
+
+        try {
+            sCreateRfcommSocket = BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+            sPortField = BluetoothSocket.class.getDeclaredField("mPort");
+            sPortField.setAccessible(true);
+        } catch (Exception e) {
+            if (DBG) BTLog.d(TAG, "resolveReflection() failed, channels are not cached", e);
+            sCreateRfcommSocket = null;
+            sPortField = null;
+        }
+    }
+
+    // Channel the socket is connected to, -1 if unknown
+    private static int readChannel(BluetoothSocket socket) {
+        resolveReflection();
+        if (sPortField == null) return -1;
+
+        try {
+            return sPortField.getInt(socket);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // Socket on a known channel without service lookup, null if unavailable
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel) {
+        resolveReflection();
+        if (sCreateRfcommSocket == null) return null;
+
+        try {
+            return (BluetoothSocket) sCreateRfcommSocket.invoke(device, channel);
+        } catch (Exception e) {
+            if (DBG) BTLog.d(TAG, "createChannelSocket() failed", e);
+            return null;
+        }
+    }
+
+    public Acceptor listen() throws IOException {
+        final BluetoothServerSocket serverSocket =
+                mBluetoothAdapter.listenUsingRfcommWithServiceRecord(mServiceName, mServiceUuid);
+
+        return new Acceptor() {
+            public Endpoint accept() throws IOException {
+                BluetoothSocket socket = serverSocket.accept();
+                return new RfcommEndpoint(socket, socket.getRemoteDevice());
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+//##################################################################################################
+
+    private class RfcommEndpoint implements Endpoint {
+        private volatile BluetoothSocket mmSocket;
+        private final BluetoothDevice mmDevice;
+        private volatile boolean mmClosed;
+
+        // Outgoing endpoints pass a null socket, it is created by connect()
+        public RfcommEndpoint(BluetoothSocket socket, BluetoothDevice device) {
+            mmSocket = socket;
+            mmDevice = device;
+        }
+
+        public void connect() throws IOException {
+            // Discovery slows down connecting considerably
+            mBluetoothAdapter.cancelDiscovery();
+
+            String address = mmDevice.getAddress();
+            Integer channel = getChannel(address);
+
+            if (channel != null) {
+                BluetoothSocket socket = createChannelSocket(mmDevice, channel);
+
+                if (socket != null && setSocket(socket)) {
+                    try {
+                        socket.connect();
+                        if (DBG) BTLog.d(TAG, "connect() %s on cached channel %d", address, channel);
+                        return;
+                    } catch (IOException e) {
+                        if (DBG) BTLog.d(TAG, "connect() cached channel failed", e);
+                        closeQuietly(socket);
+                    }
+                }
+            }
+
+            BluetoothSocket socket = mmDevice.createRfcommSocketToServiceRecord(mServiceUuid);
+            if (!setSocket(socket)) throw new IOException("Endpoint closed");
+
+            // Fails as well if the device is unreachable, the cached channel is kept then
+            socket.connect();
+
+            int port = readChannel(socket);
+            if (port > 0) {
+                if (channel == null || port != channel) putChannel(address, port);
+            } else if (channel != null) {
+                // The service moved, to a channel that cannot be read
+                invalidate(address);
+            }
+        }
+
+        // False if closed meanwhile, the socket is closed then
+        private synchronized boolean setSocket(BluetoothSocket socket) {
+            if (mmClosed) {
+                closeQuietly(socket);
+                return false;
+            }
+            mmSocket = socket;
+            return true;
+        }
+
+        private void closeQuietly(BluetoothSocket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                if (DBG) BTLog.d(TAG, "close() failed", e);
+            }
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        public String getName() {
+            return mmDevice.getName();
+        }
+
+        public String getAddress() {
+            return mmDevice.getAddress();
+        }
+
+        public void close() throws IOException {
+            BluetoothSocket socket;
+
+            synchronized (this) {
+                mmClosed = true;
+                socket = mmSocket;
+            }
+
+            if (socket != null) socket.close();
+        }
+    }
+}
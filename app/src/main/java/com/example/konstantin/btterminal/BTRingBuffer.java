@@ -0,0 +1,228 @@
+package com.example.konstantin.btterminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Single producer / single consumer byte ring buffer.
+// Only one thread may call write() and only one other thread may call read().
+// A closed buffer rejects further writes, readers drain what is left and then see -1.
+public class BTRingBuffer {
+
+    // Overflow Policies
+    public static final int POLICY_BLOCK = 0;
+    public static final int POLICY_DROP_OLDEST = 1;
+    public static final int POLICY_DROP_NEWEST = 2;
+
+    // Max. time a blocked producer or consumer sleeps before checking again
+    private static final long PARK_NANOS = 1000000L;
+
+    // Member Variables
+    private final byte[] mBuffer;
+    private final int mCapacity;
+    private final int mMask;
+    private final int mPolicy;
+
+    // Absolute positions, buffer index is (position & mMask)
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+    private volatile boolean mClosed;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTRingBuffer(int capacity, int policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+
+        // Round up to power of two for cheap index wrapping
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        mBuffer = new byte[size];
+        mCapacity = size;
+        mMask = size - 1;
+        mPolicy = policy;
+    }
+
+    // Producer side. Returns number of bytes stored, which is less than count only
+    // for POLICY_DROP_NEWEST or if a blocked producer was interrupted.
+    public int write(byte[] src, int offset, int count) {
+        int written = 0;
+
+        if (count > mCapacity && mPolicy == POLICY_DROP_OLDEST) {
+            // Only the newest mCapacity bytes can survive anyway
+            int skip = count - mCapacity;
+            mDroppedBytes.addAndGet(skip);
+            offset += skip;
+            count -= skip;
+            written = skip;
+        }
+
+        while (count > 0 && !mClosed) {
+            long tail = mTail.get();
+            long head = mHead.get();
+            int free = mCapacity - (int) (tail - head);
+            int chunk = count;
+
+            if (free < chunk) {
+                switch (mPolicy) {
+                    case POLICY_DROP_NEWEST:
+                        mDroppedBytes.addAndGet(chunk - free);
+                        chunk = free;
+                        count = free;
+                        break;
+
+                    case POLICY_DROP_OLDEST:
+                        // Consumer detects the moved head and retries its read
+                        if (!mHead.compareAndSet(head, head + (chunk - free))) continue;
+                        mDroppedBytes.addAndGet(chunk - free);
+                        break;
+
+                    case POLICY_BLOCK:
+                    default:
+                        if (free == 0) {
+                            if (!waitForSpace()) return written;
+                            continue;
+                        }
+                        chunk = free;
+                        break;
+                }
+
+                if (chunk == 0) break;
+            }
+
+            int index = (int) (tail & mMask);
+            int first = Math.min(chunk, mCapacity - index);
+
+            System.arraycopy(src, offset, mBuffer, index, first);
+            if (first < chunk) {
+                System.arraycopy(src, offset + first, mBuffer, 0, chunk - first);
+            }
+
+            mTail.lazySet(tail + chunk);
+
+            Thread consumer = mWaitingConsumer;
+            if (consumer != null) LockSupport.unpark(consumer);
+
+            offset += chunk;
+            count -= chunk;
+            written += chunk;
+        }
+
+        return written;
+    }
+
+    // Blocking consumer side. Waits up to timeoutMillis (forever if negative) for data.
+    // Returns 0 on timeout or interrupt and -1 once the buffer is closed and empty.
+    public int read(byte[] dst, int offset, int count, long timeoutMillis) {
+        Thread current = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+        while (true) {
+            int bytes = read(dst, offset, count);
+            if (bytes > 0) return bytes;
+
+            if (mClosed) {
+                // Catch data written right before close()
+                bytes = read(dst, offset, count);
+                return (bytes > 0) ? bytes : -1;
+            }
+
+            long wait = PARK_NANOS;
+            if (timeoutMillis >= 0) {
+                wait = Math.min(wait, deadline - System.nanoTime());
+                if (wait <= 0) return 0;
+            }
+
+            mWaitingConsumer = current;
+            if (available() == 0 && !mClosed) {
+                LockSupport.parkNanos(this, wait);
+            }
+            mWaitingConsumer = null;
+
+            if (current.isInterrupted()) return 0;
+        }
+    }
+
+    // Consumer side. Returns number of bytes copied to dst, 0 if empty.
+    public int read(byte[] dst, int offset, int count) {
+        while (true) {
+            long head = mHead.get();
+            long tail = mTail.get();
+            int chunk = Math.min((int) (tail - head), count);
+
+            if (chunk <= 0) return 0;
+
+            int index = (int) (head & mMask);
+            int first = Math.min(chunk, mCapacity - index);
+
+            System.arraycopy(mBuffer, index, dst, offset, first);
+            if (first < chunk) {
+                System.arraycopy(mBuffer, 0, dst, offset + first, chunk - first);
+            }
+
+            // Fails only if the producer dropped the oldest bytes meanwhile
+            if (mHead.compareAndSet(head, head + chunk)) {
+                Thread producer = mWaitingProducer;
+                if (producer != null) LockSupport.unpark(producer);
+
+                return chunk;
+            }
+        }
+    }
+
+    public void clear() {
+        while (true) {
+            long head = mHead.get();
+            if (mHead.compareAndSet(head, Math.max(head, mTail.get()))) break;
+        }
+
+        Thread producer = mWaitingProducer;
+        if (producer != null) LockSupport.unpark(producer);
+    }
+
+    public void close() {
+        mClosed = true;
+
+        Thread producer = mWaitingProducer;
+        if (producer != null) LockSupport.unpark(producer);
+
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+
+    private boolean waitForSpace() {
+        Thread current = Thread.currentThread();
+
+        mWaitingProducer = current;
+        if (mTail.get() - mHead.get() >= mCapacity && !mClosed) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        mWaitingProducer = null;
+
+        return !current.isInterrupted() && !mClosed;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    public int available() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes.get();
+    }
+}
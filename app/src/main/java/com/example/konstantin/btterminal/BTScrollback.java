@@ -0,0 +1,201 @@
+package com.example.konstantin.btterminal;
+
+import java.util.Arrays;
+
+// Fixed size terminal history, kept as a circular array of line records.
+// The last line is the one currently written to and may be incomplete.
+// Line arrays start short and grow up to the column count, so memory follows the actual line
+// lengths. Evicted line arrays are reused, so a full scrollback rarely allocates.
+public class BTScrollback {
+
+    private static final int INITIAL_LINE_SIZE = 64;
+
+    // Line Attributes, the low 24 bits hold the highlight color
+    public static final int ATTR_COLOR_MASK = 0x00FFFFFF;
+    public static final int ATTR_HIGHLIGHT = 0x01000000;
+    public static final int ATTR_HIDDEN = 0x02000000;
+
+    // Member Variables
+    private final int mCapacity;
+    private final int mColumns;
+
+    private final char[][] mLines;
+    private final int[] mLengths;
+    private final int[] mAttributes;
+
+    // Sequence number of oldest line and of the current (last) line
+    private long mFirstSeq;
+    private long mLastSeq;
+
+    private boolean mPendingCR;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTScrollback(int capacity, int columns) {
+        mCapacity = capacity;
+        mColumns = columns;
+
+        mLines = new char[capacity][];
+        mLengths = new int[capacity];
+        mAttributes = new int[capacity];
+
+        clear();
+    }
+
+    // Sequence numbers keep increasing across clear(), so lines seen before are never confused
+    // with new ones
+    public void clear() {
+        mLastSeq++;
+        mFirstSeq = mLastSeq;
+        mPendingCR = false;
+
+        int slot = (int) (mLastSeq % mCapacity);
+        if (mLines[slot] == null) mLines[slot] = new char[Math.min(INITIAL_LINE_SIZE, mColumns)];
+        mLengths[slot] = 0;
+        mAttributes[slot] = 0;
+    }
+
+    public void append(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            put(text.charAt(i));
+        }
+    }
+
+    public void append(char[] text, int offset, int count) {
+        int end = offset + count;
+
+        for (int i = offset; i < end; i++) {
+            put(text[i]);
+        }
+    }
+
+    // Replaces the content of the current line, for output that is rewritten in place
+    public void setLine(char[] text, int offset, int count) {
+        if (mPendingCR) {
+            mPendingCR = false;
+            newLine();
+        }
+
+        int slot = (int) (mLastSeq % mCapacity);
+        int length = Math.min(count, mColumns);
+
+        if (mLines[slot].length < length) grow(slot, length);
+        System.arraycopy(text, offset, mLines[slot], 0, length);
+        mLengths[slot] = length;
+    }
+
+    // Starts a new line unless the current one is empty
+    public void finishLine() {
+        if (mPendingCR || mLengths[(int) (mLastSeq % mCapacity)] > 0) {
+            mPendingCR = false;
+            newLine();
+        }
+    }
+
+    private void put(char c) {
+        if (mPendingCR) {
+            mPendingCR = false;
+            newLine();
+
+            // CR LF counts as one line break
+            if (c == '\n') return;
+        }
+
+        switch (c) {
+            case '\n':
+                newLine();
+                break;
+
+            case '\r':
+                mPendingCR = true;
+                break;
+
+            default:
+                int slot = (int) (mLastSeq % mCapacity);
+                int length = mLengths[slot];
+
+                if (length == mColumns) {
+                    // Hard wrap
+                    newLine();
+                    slot = (int) (mLastSeq % mCapacity);
+                    length = 0;
+                }
+
+                if (length == mLines[slot].length) grow(slot, length + 1);
+                mLines[slot][length] = c;
+                mLengths[slot] = length + 1;
+                break;
+        }
+    }
+
+    private void newLine() {
+        mLastSeq++;
+
+        if (mLastSeq - mFirstSeq >= mCapacity) {
+            // Evict oldest line, its array is reused below
+            mFirstSeq++;
+        }
+
+        int slot = (int) (mLastSeq % mCapacity);
+        if (mLines[slot] == null) mLines[slot] = new char[Math.min(INITIAL_LINE_SIZE, mColumns)];
+        mLengths[slot] = 0;
+        mAttributes[slot] = 0;
+    }
+
+    // Doubles the line array until it holds size chars, at most mColumns
+    private void grow(int slot, int size) {
+        char[] line = mLines[slot];
+        int newSize = line.length;
+        while (newSize < size) newSize *= 2;
+
+        mLines[slot] = Arrays.copyOf(line, Math.min(newSize, mColumns));
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getLineCount() {
+        return (int) (mLastSeq - mFirstSeq + 1);
+    }
+
+    // Sequence number of line 0, increases as lines are evicted
+    public long getFirstSeq() {
+        return mFirstSeq;
+    }
+
+    public long getLastSeq() {
+        return mLastSeq;
+    }
+
+    // Returned array is owned by the scrollback and only valid up to getLineLength(line)
+    public char[] getLineChars(int line) {
+        return mLines[(int) ((mFirstSeq + line) % mCapacity)];
+    }
+
+    public int getLineLength(int line) {
+        return mLengths[(int) ((mFirstSeq + line) % mCapacity)];
+    }
+
+    // Line by sequence number, which must be between getFirstSeq() and getLastSeq()
+    public char[] getSeqChars(long seq) {
+        return mLines[(int) (seq % mCapacity)];
+    }
+
+    public int getSeqLength(long seq) {
+        return mLengths[(int) (seq % mCapacity)];
+    }
+
+    public int getLineAttributes(int line) {
+        return mAttributes[(int) ((mFirstSeq + line) % mCapacity)];
+    }
+
+    // Ignored for lines already evicted
+    public void setSeqAttributes(long seq, int attributes) {
+        if (seq >= mFirstSeq && seq <= mLastSeq) mAttributes[(int) (seq % mCapacity)] = attributes;
+    }
+}
@@ -0,0 +1,584 @@
+package com.example.konstantin.btterminal;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Case insensitive trigram index over the completed lines of a BTScrollback.
+//
+// Every trigram maps to the ascending sequence numbers of the lines containing it. A search
+// looks up the rarest trigram of its literal and only verifies those lines, instead of scanning
+// the whole history. Indexing is incremental: each search first adds the lines completed since
+// the previous one. Postings of evicted lines are skipped, and dropped once enough piled up.
+//
+// Regex searches use the longest literal the pattern requires. Patterns without one, and
+// literals shorter than three chars, fall back to scanning all lines.
+// To be used from the Handler thread only, like the scrollback.
+public class BTSearchIndex {
+
+    private static final int MIN_LITERAL = 3;
+    private static final long EMPTY = -1;
+    private static final int INITIAL_TABLE_SIZE = 1024;
+    private static final int INITIAL_POSTINGS = 4;
+
+    // Member Variables
+    private final BTScrollback mScrollback;
+
+    // Open addressing, trigram -> postings index
+    private long[] mKeys;
+    private int[] mValues;
+    private int mKeyCount;
+
+    // Postings, line sequence numbers relative to mBaseSeq
+    private int[][] mPostings;
+    private int[] mPostingCounts;
+    private int mPostingListCount;
+
+    private long mBaseSeq;
+    private long mIndexedSeq;
+    private long mPrunedSeq;
+
+    // Position of the last match
+    private int mMatchStart;
+    private int mMatchEnd;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTSearchIndex(BTScrollback scrollback) {
+        mScrollback = scrollback;
+        reset();
+    }
+
+    private void reset() {
+        mKeys = new long[INITIAL_TABLE_SIZE];
+        Arrays.fill(mKeys, EMPTY);
+        mValues = new int[INITIAL_TABLE_SIZE];
+        mKeyCount = 0;
+
+        mPostings = new int[INITIAL_TABLE_SIZE][];
+        mPostingCounts = new int[INITIAL_TABLE_SIZE];
+        mPostingListCount = 0;
+
+        mBaseSeq = mScrollback.getFirstSeq();
+        mIndexedSeq = mBaseSeq;
+        mPrunedSeq = mBaseSeq;
+    }
+
+    // Indexes the lines completed since the last update, the current line stays unindexed
+    public void update() {
+        long firstSeq = mScrollback.getFirstSeq();
+        long lastSeq = mScrollback.getLastSeq();
+
+        // Cleared, or scrolled past everything indexed
+        if (mIndexedSeq < firstSeq || lastSeq < mIndexedSeq) reset();
+
+        for (long seq = mIndexedSeq; seq < lastSeq; seq++) {
+            indexLine(seq);
+        }
+        mIndexedSeq = lastSeq;
+
+        if (firstSeq - mPrunedSeq > mScrollback.getCapacity()) prune(firstSeq);
+    }
+
+    private void indexLine(long seq) {
+        char[] chars = mScrollback.getSeqChars(seq);
+        int length = mScrollback.getSeqLength(seq);
+        int line = (int) (seq - mBaseSeq);
+
+        for (int i = 0; i + MIN_LITERAL <= length; i++) {
+            int list = getOrAddList(trigram(chars, i));
+            int count = mPostingCounts[list];
+            int[] postings = mPostings[list];
+
+            // Trigram seen before in this line
+            if (count > 0 && postings[count - 1] == line) continue;
+
+            if (count == postings.length) {
+                postings = Arrays.copyOf(postings, count * 2);
+                mPostings[list] = postings;
+            }
+            postings[count] = line;
+            mPostingCounts[list] = count + 1;
+        }
+    }
+
+    // Drops postings of evicted lines and trigrams left without any
+    private void prune(long firstSeq) {
+        int firstLine = (int) (firstSeq - mBaseSeq);
+        long[] keys = mKeys;
+        int[] values = mValues;
+        int[][] postings = mPostings;
+        int[] counts = mPostingCounts;
+
+        mKeys = new long[keys.length];
+        Arrays.fill(mKeys, EMPTY);
+        mValues = new int[keys.length];
+        mKeyCount = 0;
+        mPostings = new int[postings.length][];
+        mPostingCounts = new int[postings.length];
+        mPostingListCount = 0;
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == EMPTY) continue;
+
+            int list = values[slot];
+            int count = counts[list];
+            int live = lowerBound(postings[list], count, firstLine);
+
+            if (live == count) continue;
+
+            // Rebased to firstSeq
+            int[] kept = Arrays.copyOfRange(postings[list], live, Math.max(count, live + INITIAL_POSTINGS));
+            for (int i = 0; i < count - live; i++) {
+                kept[i] -= firstLine;
+            }
+
+            int newList = getOrAddList(keys[slot]);
+            mPostings[newList] = kept;
+            mPostingCounts[newList] = count - live;
+        }
+
+        mBaseSeq = firstSeq;
+        mPrunedSeq = firstSeq;
+    }
+
+    // First line at or after fromSeq containing text, -1 if none
+    public long findNext(String text, long fromSeq) {
+        return find(new LiteralQuery(text), fromSeq, true);
+    }
+
+    // Last line at or before fromSeq containing text, -1 if none
+    public long findPrevious(String text, long fromSeq) {
+        return find(new LiteralQuery(text), fromSeq, false);
+    }
+
+    public long findNext(Pattern pattern, long fromSeq) {
+        return find(new PatternQuery(pattern), fromSeq, true);
+    }
+
+    public long findPrevious(Pattern pattern, long fromSeq) {
+        return find(new PatternQuery(pattern), fromSeq, false);
+    }
+
+    private long find(Query query, long fromSeq, boolean forward) {
+        update();
+
+        long firstSeq = mScrollback.getFirstSeq();
+        long lastSeq = mScrollback.getLastSeq();
+
+        if (forward) {
+            fromSeq = Math.max(fromSeq, firstSeq);
+            if (fromSeq > lastSeq) return -1;
+        } else {
+            fromSeq = Math.min(fromSeq, lastSeq);
+            if (fromSeq < firstSeq) return -1;
+        }
+
+        // The current line is not indexed
+        if (!forward && fromSeq == lastSeq && matches(query, lastSeq)) return lastSeq;
+
+        long seq;
+        int list = (query.mmLiteral != null) ? rarestList(query.mmLiteral) : -2;
+
+        if (list == -1) {
+            // Some trigram occurs nowhere
+            seq = -1;
+        } else if (list >= 0) {
+            seq = findIndexed(query, list, fromSeq, firstSeq, lastSeq, forward);
+        } else {
+            seq = findScan(query, fromSeq, firstSeq, lastSeq, forward);
+        }
+
+        if (seq < 0 && forward && matches(query, lastSeq)) return lastSeq;
+        return seq;
+    }
+
+    private long findIndexed(Query query, int list, long fromSeq, long firstSeq, long lastSeq, boolean forward) {
+        int[] postings = mPostings[list];
+        int count = mPostingCounts[list];
+        int from = (int) (fromSeq - mBaseSeq);
+
+        if (forward) {
+            for (int i = lowerBound(postings, count, from); i < count; i++) {
+                long seq = mBaseSeq + postings[i];
+                if (seq >= lastSeq) break;
+                if (matches(query, seq)) return seq;
+            }
+        } else {
+            int first = (int) (firstSeq - mBaseSeq);
+
+            for (int i = lowerBound(postings, count, from + 1) - 1; i >= 0 && postings[i] >= first; i--) {
+                long seq = mBaseSeq + postings[i];
+                if (seq < lastSeq && matches(query, seq)) return seq;
+            }
+        }
+        return -1;
+    }
+
+    private long findScan(Query query, long fromSeq, long firstSeq, long lastSeq, boolean forward) {
+        if (forward) {
+            for (long seq = fromSeq; seq < lastSeq; seq++) {
+                if (matches(query, seq)) return seq;
+            }
+        } else {
+            for (long seq = Math.min(fromSeq, lastSeq - 1); seq >= firstSeq; seq--) {
+                if (matches(query, seq)) return seq;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(Query query, long seq) {
+        if (!query.find(mScrollback.getSeqChars(seq), mScrollback.getSeqLength(seq))) return false;
+
+        mMatchStart = query.mmStart;
+        mMatchEnd = query.mmEnd;
+        return true;
+    }
+
+    // Postings list of the least frequent trigram in literal, -1 if one is missing
+    private int rarestList(String literal) {
+        char[] chars = literal.toCharArray();
+        int rarest = -1;
+
+        for (int i = 0; i + MIN_LITERAL <= chars.length; i++) {
+            int list = getList(trigram(chars, i));
+            if (list < 0) return -1;
+
+            if (rarest < 0 || mPostingCounts[list] < mPostingCounts[rarest]) rarest = list;
+        }
+        return rarest;
+    }
+
+    private static long trigram(char[] chars, int offset) {
+        return ((long) Character.toLowerCase(chars[offset]) << 32) |
+               ((long) Character.toLowerCase(chars[offset + 1]) << 16) |
+               Character.toLowerCase(chars[offset + 2]);
+    }
+
+    private int slot(long key) {
+        int mask = mKeys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+
+        while (mKeys[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int getList(long key) {
+        int slot = slot(key);
+        return (mKeys[slot] == EMPTY) ? -1 : mValues[slot];
+    }
+
+    private int getOrAddList(long key) {
+        int slot = slot(key);
+        if (mKeys[slot] != EMPTY) return mValues[slot];
+
+        if (mPostingListCount == mPostings.length) {
+            mPostings = Arrays.copyOf(mPostings, mPostings.length * 2);
+            mPostingCounts = Arrays.copyOf(mPostingCounts, mPostingCounts.length * 2);
+        }
+
+        int list = mPostingListCount++;
+        mPostings[list] = new int[INITIAL_POSTINGS];
+        mKeys[slot] = key;
+        mValues[slot] = list;
+
+        // Keep the table at most half full
+        if (++mKeyCount * 2 > mKeys.length) grow();
+        return list;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+
+        mKeys = new long[keys.length * 2];
+        Arrays.fill(mKeys, EMPTY);
+        mValues = new int[keys.length * 2];
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY) continue;
+
+            int slot = slot(keys[i]);
+            mKeys[slot] = keys[i];
+            mValues[slot] = values[i];
+        }
+    }
+
+    // First index with array[index] >= value
+    private static int lowerBound(int[] array, int count, int value) {
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Longest run of literal chars every match of regex contains, null if there is none.
+    // Conservative: alternation disables the index, anything inside groups or classes, wildcards,
+    // anchors and escapes of letters or digits end a run, and chars made optional by a quantifier
+    // are dropped. Constructs that cannot be skipped reliably return null.
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') >= 0 || hasCommentsFlag(regex)) return null;
+
+        StringBuilder longest = new StringBuilder();
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(i + 1);
+
+                if (next == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) end = regex.length();
+                    if (depth == 0) run.append(regex, i + 2, end);
+                    i = end + 2;
+                } else if (!Character.isLetterOrDigit(next)) {
+                    // Escaped punctuation is literal
+                    if (depth == 0) {
+                        run.append(next);
+                    } else {
+                        keepLongest(longest, run);
+                    }
+                    i += 2;
+                } else {
+                    // Classes, references and escaped chars like \x41, skipped with their argument
+                    int length = escapeLength(regex, i);
+                    if (length < 0) return null;
+
+                    keepLongest(longest, run);
+                    i += length;
+                }
+            } else if (c == '[') {
+                int end = classEnd(regex, i);
+                if (end < 0) return null;
+
+                keepLongest(longest, run);
+                i = end + 1;
+            } else if (c == '(' || c == ')') {
+                depth += (c == '(') ? 1 : -1;
+                keepLongest(longest, run);
+                i++;
+            } else if (c == '*' || c == '?' || c == '{') {
+                // Previous char is optional
+                if (run.length() > 0) run.setLength(run.length() - 1);
+                keepLongest(longest, run);
+
+                if (c == '{') {
+                    int end = regex.indexOf('}', i);
+                    i = (end < 0) ? regex.length() : end + 1;
+                } else {
+                    i++;
+                }
+            } else if (c == '.' || c == '^' || c == '$' || c == '+') {
+                keepLongest(longest, run);
+                i++;
+            } else {
+                if (depth == 0) {
+                    run.append(c);
+                } else {
+                    keepLongest(longest, run);
+                }
+                i++;
+            }
+        }
+
+        keepLongest(longest, run);
+        return (longest.length() >= MIN_LITERAL) ? longest.toString() : null;
+    }
+
+    // Length of the escape at i, a backslash followed by a letter or digit, -1 if unsure
+    private static int escapeLength(String regex, int i) {
+        int length = regex.length();
+        char kind = regex.charAt(i + 1);
+
+        switch (kind) {
+            case 'x':
+                // \xhh or \x{h...h}
+                if (i + 2 < length && regex.charAt(i + 2) == '{') return braceLength(regex, i);
+                return 4;
+
+            case 'u':
+                return 6;
+
+            case 'c':
+                return 3;
+
+            case '0': {
+                // \0n, \0nn or \0mnn with m <= 3
+                int max = (i + 2 < length && regex.charAt(i + 2) <= '3') ? 3 : 2;
+                int digits = 0;
+                while (digits < max && i + 2 + digits < length && isOctal(regex.charAt(i + 2 + digits))) digits++;
+                return 2 + digits;
+            }
+
+            case 'k': {
+                int end = regex.indexOf('>', i + 2);
+                return (end < 0) ? -1 : end + 1 - i;
+            }
+
+            case 'p':
+            case 'P':
+                // \pL or \p{Name}
+                if (i + 2 < length && regex.charAt(i + 2) == '{') return braceLength(regex, i);
+                return 3;
+
+            case 'N':
+                return (i + 2 < length && regex.charAt(i + 2) == '{') ? braceLength(regex, i) : -1;
+
+            default:
+                if (kind >= '1' && kind <= '9') {
+                    // Back reference, as many digits as form a group number
+                    int end = i + 2;
+                    while (end < length && Character.isDigit(regex.charAt(end))) end++;
+                    return end - i;
+                }
+
+                // Predefined classes, boundaries and control chars like \d, \b, \t
+                return 2;
+        }
+    }
+
+    // Length of an escape at i with a {...} argument, -1 if unterminated
+    private static int braceLength(String regex, int i) {
+        int end = regex.indexOf('}', i + 3);
+        return (end < 0) ? -1 : end + 1 - i;
+    }
+
+    private static boolean isOctal(char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    // Index of the ] closing the class at start, -1 for nested or quoted classes whose end is
+    // not found reliably
+    private static int classEnd(String regex, int start) {
+        int end = start + 1;
+
+        // A leading ] is part of the class
+        if (end < regex.length() && regex.charAt(end) == '^') end++;
+        if (end < regex.length() && regex.charAt(end) == ']') end++;
+
+        while (end < regex.length() && regex.charAt(end) != ']') {
+            char c = regex.charAt(end);
+
+            if (c == '[') return -1;
+            if (c == '\\') {
+                if (end + 1 < regex.length() && regex.charAt(end + 1) == 'Q') return -1;
+                end++;
+            }
+            end++;
+        }
+
+        return (end < regex.length()) ? end : -1;
+    }
+
+    // Inline (?x) makes whitespace insignificant
+    private static boolean hasCommentsFlag(String regex) {
+        int i = regex.indexOf("(?");
+
+        while (i >= 0) {
+            for (int j = i + 2; j < regex.length() && (Character.isLetter(regex.charAt(j)) || regex.charAt(j) == '-'); j++) {
+                if (regex.charAt(j) == 'x') return true;
+            }
+            i = regex.indexOf("(?", i + 2);
+        }
+        return false;
+    }
+
+    private static void keepLongest(StringBuilder longest, StringBuilder run) {
+        if (run.length() > longest.length()) {
+            longest.setLength(0);
+            longest.append(run);
+        }
+        run.setLength(0);
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Chars of the last found line that matched
+    public int getMatchStart() {
+        return mMatchStart;
+    }
+
+    public int getMatchEnd() {
+        return mMatchEnd;
+    }
+
+    // Distinct trigrams currently indexed
+    public int getTrigramCount() {
+        return mKeyCount;
+    }
+
+//##################################################################################################
+
+    private abstract static class Query {
+        // Required literal for the index, null to scan
+        String mmLiteral;
+        int mmStart;
+        int mmEnd;
+
+        abstract boolean find(char[] chars, int length);
+    }
+
+    private static class LiteralQuery extends Query {
+        private final char[] mmText;
+
+        LiteralQuery(String text) {
+            mmText = text.toCharArray();
+            if (mmText.length >= MIN_LITERAL) mmLiteral = text;
+        }
+
+        boolean find(char[] chars, int length) {
+            int last = length - mmText.length;
+
+            for (int start = 0; start <= last; start++) {
+                int i = 0;
+                while (i < mmText.length && equalsIgnoreCase(chars[start + i], mmText[i])) i++;
+
+                if (i == mmText.length) {
+                    mmStart = start;
+                    mmEnd = start + mmText.length;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean equalsIgnoreCase(char a, char b) {
+            return a == b || Character.toLowerCase(a) == Character.toLowerCase(b);
+        }
+    }
+
+    private static class PatternQuery extends Query {
+        private final Matcher mmMatcher;
+
+        PatternQuery(Pattern pattern) {
+            mmMatcher = pattern.matcher("");
+            mmLiteral = requiredLiteral(pattern.pattern());
+
+            // Flags may change what a literal matches
+            if ((pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS)) != 0) mmLiteral = null;
+        }
+
+        boolean find(char[] chars, int length) {
+            mmMatcher.reset(CharBuffer.wrap(chars, 0, length));
+            if (!mmMatcher.find()) return false;
+
+            mmStart = mmMatcher.start();
+            mmEnd = mmMatcher.end();
+            return true;
+        }
+    }
+}
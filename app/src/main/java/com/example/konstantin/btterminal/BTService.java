@@ -0,0 +1,336 @@
+package com.example.konstantin.btterminal;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.widget.Toast;
+
+import java.util.List;
+
+// Hosts all sessions, so that connections keep streaming while no Activity is shown and survive
+// Activity restarts. Received data is drained into the session scrollbacks here; an attached
+// Activity only redraws, and one binding again catches up from the scrollbacks.
+//
+// Bound by BTTerminal. While any session is connecting, connected or reconnecting the service
+// also starts itself and runs in the foreground, once idle it stops as soon as it is unbound.
+public class BTService extends Service {
+
+    // Debug
+    private static final String TAG = "BTService";
+    private static final boolean DBG = BTLog.DEBUG;
+    private static final boolean VDBG = BTLog.VERBOSE;
+
+    // Notification Ids
+    private static final int NOTIFICATION_CONNECTED = 1;
+    private static final int NOTIFICATION_TRIGGER = 100;
+
+    // Session events for the attached Activity, on the main thread
+    public interface Callback {
+        // established is false for sessions that resumed after reconnecting
+        void onStateChanged(BTSession session, boolean established);
+
+        // New content in the scrollback of session
+        void onSessionChanged(BTSession session);
+
+        // File send of session progressed or, if sender.isFinished(), ended
+        void onSendProgress(BTSession session, BTFileSender sender);
+
+        // File transfer of session progressed or, if modem.isFinished(), ended
+        void onTransferProgress(BTSession session, BTModem modem);
+    }
+
+    // Member Variables
+    private final IBinder mBinder = new LocalBinder();
+    private final byte[] mReadBuffer = new byte[4096];
+    private BTConnectionManager mConnectionManager;
+    private Callback mCallback;
+    private boolean mForeground;
+
+    // Settings outliving the Activity
+    private boolean mLocalEcho;
+    private boolean mListen;
+    private int mActiveSessionId = BTConnectionManager.LISTEN_SESSION_ID;
+    private boolean mAutoConnectDone;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (DBG) BTLog.d(TAG, "onCreate()");
+
+        mConnectionManager = new BTConnectionManager(this, mHandler);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (DBG) BTLog.d(TAG, "onBind()");
+
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (DBG) BTLog.d(TAG, "onUnbind()");
+
+        mCallback = null;
+        return false;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Connections do not survive the process, there is nothing to restart
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (DBG) BTLog.d(TAG, "onDestroy()");
+
+        mHandler.removeCallbacksAndMessages(null);
+        mConnectionManager.stop();
+        stopForeground(true);
+
+        super.onDestroy();
+    }
+
+    // Connects to the auto connect devices of the device store, once per service start and only if
+    // enabled there. Several devices race for the first one to answer. False if nothing was started.
+    public boolean autoConnect(BTConnectionManager.RaceListener listener) {
+        if (mAutoConnectDone) return false;
+        mAutoConnectDone = true;
+
+        BTDeviceStore deviceStore = mConnectionManager.getDeviceStore();
+        if (!deviceStore.isAutoConnect()) return false;
+
+        List<String> addresses = deviceStore.getAutoConnectAddresses();
+        if (addresses.isEmpty()) return false;
+
+        if (DBG) BTLog.d(TAG, "autoConnect() %d devices", addresses.size());
+
+        mConnectionManager.connectFirst(addresses, listener);
+        return true;
+    }
+
+    // Closed sessions no longer report their state, so the foreground is updated right away
+    public void close(BTSession session) {
+        mConnectionManager.close(session);
+        updateForeground();
+    }
+
+    // Foreground while streaming or listening, stops once idle and unbound. Listening counts as
+    // active, so that an incoming connection is still accepted without an attached UI.
+    private void updateForeground() {
+        int active = mConnectionManager.getActiveCount();
+
+        if (active > 0) {
+            if (!mForeground) {
+                if (DBG) BTLog.d(TAG, "updateForeground() start");
+
+                // Started, so that unbinding does not destroy the service
+                startService(new Intent(this, BTService.class));
+                mForeground = true;
+            }
+
+            startForeground(NOTIFICATION_CONNECTED, buildNotification(
+                    getResources().getQuantityString(R.plurals.notification_sessions, active, active)));
+        } else if (mForeground) {
+            if (DBG) BTLog.d(TAG, "updateForeground() stop");
+
+            stopForeground(true);
+            stopSelf();
+            mForeground = false;
+        }
+    }
+
+    private Notification buildNotification(String text) {
+        Intent intent = new Intent(this, BTTerminal.class)
+                .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        return new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+                .getNotification();
+    }
+
+    // One notification per rule, a rule firing again replaces its previous one
+    private final BTSession.TriggerListener mTriggerListener = new BTSession.TriggerListener() {
+        public void onNotify(BTSession session, BTTriggerRule rule, String line) {
+            if (VDBG) BTLog.v(TAG, "onNotify(%s, %s)", session.getId(), rule.getSource());
+
+            Notification notification = new Notification.Builder(BTService.this)
+                    .setSmallIcon(R.drawable.ic_launcher)
+                    .setContentTitle(getString(R.string.notification_trigger, session.getName()))
+                    .setContentText(line)
+                    .setContentIntent(PendingIntent.getActivity(BTService.this, 0,
+                            new Intent(BTService.this, BTTerminal.class).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0))
+                    .setAutoCancel(true)
+                    .getNotification();
+
+            int id = NOTIFICATION_TRIGGER + mConnectionManager.getTriggers().indexOf(rule);
+            ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(id, notification);
+        }
+    };
+
+    // Sessions are drained here whether an Activity is attached or not
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (VDBG) BTLog.v(TAG, "handleMessage(%d, %d)", msg.what, msg.arg2);
+
+            BTSession session = mConnectionManager.getSession(msg.arg2);
+
+            // Late message of a closed session, whose stop may have ended the last active one
+            if (session == null) {
+                if (msg.what == BTConnection.MSG_STATE_CHANGE) updateForeground();
+                return;
+            }
+
+            switch (msg.what) {
+                case BTConnection.MSG_STATE_CHANGE:
+                    if (DBG) BTLog.d(TAG, "MSG_STATE_CHANGE: %d", msg.arg1);
+
+                    // Resumed sessions continue where they were lost
+                    boolean established = session.stateChanged(msg.arg1);
+                    if (established) session.clear();
+
+                    updateForeground();
+                    if (mCallback != null) mCallback.onStateChanged(session, established);
+                    break;
+
+                case BTConnection.MSG_DATA_WRITTEN:
+                    if (VDBG) BTLog.v(TAG, "MSG_DATA_WRITTEN");
+
+                    if (mLocalEcho) {
+                        session.appendEcho((byte[]) msg.obj, msg.arg1);
+                        if (mCallback != null) mCallback.onSessionChanged(session);
+                    }
+                    break;
+
+                case BTConnection.MSG_DATA_READ:
+                    if (VDBG) BTLog.v(TAG, "MSG_DATA_READ");
+
+                    // Drain everything received since the last frame, shown or not
+                    session.drain(mReadBuffer);
+                    if (mCallback != null) mCallback.onSessionChanged(session);
+                    break;
+
+                case BTConnection.MSG_FRAME_READ:
+                    if (VDBG) BTLog.v(TAG, "MSG_FRAME_READ");
+
+                    byte[] frame = (byte[]) msg.obj;
+                    session.appendFrame(frame, msg.arg1);
+                    session.getConnection().releaseBuffer(frame);
+                    if (mCallback != null) mCallback.onSessionChanged(session);
+                    break;
+
+                case BTConnection.MSG_SEND_PROGRESS:
+                    if (VDBG) BTLog.v(TAG, "MSG_SEND_PROGRESS");
+
+                    if (mCallback != null) mCallback.onSendProgress(session, (BTFileSender) msg.obj);
+                    break;
+
+                case BTConnection.MSG_TRANSFER_PROGRESS:
+                    if (VDBG) BTLog.v(TAG, "MSG_TRANSFER_PROGRESS");
+
+                    if (mCallback != null) mCallback.onTransferProgress(session, (BTModem) msg.obj);
+                    break;
+
+                case BTConnection.MSG_DEVICE_NAME:
+                    Toast.makeText(getApplicationContext(), "Connected to " + msg.obj, Toast.LENGTH_SHORT).show();
+                    break;
+
+                case BTConnection.MSG_TOAST:
+                    Toast.makeText(getApplicationContext(), getToastText(msg.arg1, (Object[]) msg.obj),
+                            Toast.LENGTH_SHORT).show();
+                    break;
+            }
+        }
+    };
+
+    private String getToastText(int toast, Object[] args) {
+        switch (toast) {
+            case BTConnection.TOAST_DISCONNECTED:
+                return getString(R.string.toast_disconnected);
+            case BTConnection.TOAST_UNABLE_TO_CONNECT:
+                return getString(R.string.toast_unable_to_connect);
+            case BTConnection.TOAST_LOST_CONNECTION:
+                return getString(R.string.toast_lost_connection);
+            case BTConnection.TOAST_RECONNECTING:
+                return getString(R.string.toast_reconnecting);
+            case BTConnection.TOAST_CAPTURE_FAILED:
+                return getString(R.string.toast_capture_failed);
+            case BTConnection.TOAST_REPLAY_FINISHED:
+                return getString(R.string.toast_replay_finished);
+            case BTConnection.TOAST_REPLAY_FAILED:
+                return getString(R.string.toast_replay_failed);
+            case BTConnection.TOAST_SEND_FINISHED:
+                return getString(R.string.toast_send_finished, args);
+            case BTConnection.TOAST_SEND_FAILED:
+                return getString(R.string.toast_send_failed, args);
+            case BTConnection.TOAST_TRANSFER_FINISHED:
+                return getString(R.string.toast_transfer_finished, args);
+            case BTConnection.TOAST_TRANSFER_FAILED:
+                return getString(R.string.toast_transfer_failed, args);
+            default:
+                return null;
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public BTConnectionManager getConnectionManager() {
+        return mConnectionManager;
+    }
+
+    // Null detaches the Activity, sessions keep being drained
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public void setLocalEcho(boolean localEcho) {
+        mLocalEcho = localEcho;
+    }
+
+    public boolean isLocalEcho() {
+        return mLocalEcho;
+    }
+
+    public void setListen(boolean listen) {
+        mListen = listen;
+        mConnectionManager.listen(listen);
+    }
+
+    public boolean isListen() {
+        return mListen;
+    }
+
+    public void setTriggers(List<BTTriggerRule> rules) {
+        mConnectionManager.setTriggers(rules, mTriggerListener);
+    }
+
+    // Session shown when an Activity attaches
+    public void setActiveSession(BTSession session) {
+        mActiveSessionId = session.getId();
+    }
+
+    public BTSession getActiveSession() {
+        BTSession session = mConnectionManager.getSession(mActiveSessionId);
+        return (session != null) ? session : mConnectionManager.getListenSession();
+    }
+
+//##################################################################################################
+
+    public class LocalBinder extends Binder {
+        public BTService getService() {
+            return BTService.this;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.example.konstantin.btterminal;
+
+import java.nio.CharBuffer;
+import java.util.List;
+
+// One connection together with its received history and display settings.
+// Sessions are drained into their scrollback whether they are shown or not.
+// To be used from the Handler thread only.
+public class BTSession {
+
+    // Framing Modes
+    public static final int FRAMING_NONE = 0;
+    public static final int FRAMING_LF = 1;
+    public static final int FRAMING_CRLF = 2;
+    public static final int FRAMING_LENGTH_PREFIX = 3;
+    public static final int FRAMING_SLIP = 4;
+    public static final int FRAMING_COBS = 5;
+    public static final int FRAMING_FIXED_LENGTH = 6;
+
+    public static final int DEFAULT_FRAME_LENGTH = 16;
+
+    private static final int DECODER_BUFFER_SIZE = 4096;
+
+    // Rules with ACTION_NOTIFY, replies are sent by the session itself
+    public interface TriggerListener {
+        void onNotify(BTSession session, BTTriggerRule rule, String line);
+    }
+
+    // Member Variables
+    private final BTConnection mConnection;
+    private final BTScrollback mScrollback;
+    private final BTHexFormatter mHexFormatter = new BTHexFormatter();
+    private BTSearchIndex mSearchIndex;
+
+    private List<BTTriggerRule> mTriggerRules;
+    private BTTriggerEngine mTriggers;
+    private TriggerListener mTriggerListener;
+    private long mLineStartSeq;
+
+    private BTStreamDecoder mRxDecoder;
+    private BTStreamDecoder mEchoDecoder;
+    private boolean mHexView;
+    private int mFraming;
+    private int mFrameLength = DEFAULT_FRAME_LENGTH;
+    private int mState = BTConnection.STATE_NONE;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTSession(BTConnection connection) {
+        mConnection = connection;
+        mScrollback = new BTScrollback(BTTerminalView.SCROLLBACK_LINES, BTTerminalView.SCROLLBACK_COLUMNS);
+        mFraming = FRAMING_NONE;
+        mLineStartSeq = mScrollback.getLastSeq();
+
+        setCharset(BTStreamDecoder.CHARSET_UTF_8);
+    }
+
+    // Returns true if the connection was newly established, false if it resumed after reconnecting
+    public boolean stateChanged(int state) {
+        boolean established = (state == BTConnection.STATE_CONNECTED && mState != BTConnection.STATE_RECONNECTING);
+        mState = state;
+        return established;
+    }
+
+    public void clear() {
+        mScrollback.clear();
+        mRxDecoder.reset();
+        mEchoDecoder.reset();
+        mHexFormatter.reset();
+        resetTriggers();
+    }
+
+    // Appends everything received since the last MSG_DATA_READ
+    public void drain(byte[] buffer) {
+        int bytes;
+
+        while ((bytes = mConnection.read(buffer, 0, buffer.length)) > 0) {
+            if (mTriggers != null) {
+                appendTriggered(buffer, bytes);
+            } else {
+                appendReceived(buffer, 0, bytes);
+            }
+        }
+
+        updateSearchIndex();
+    }
+
+    // One line, or one hex dump, per frame
+    public void appendFrame(byte[] frame, int count) {
+        if (mHexView) {
+            mHexFormatter.reset();
+        } else {
+            mRxDecoder.reset();
+        }
+
+        if (mTriggers != null) mTriggers.feed(frame, 0, count);
+        appendReceived(frame, 0, count);
+        mScrollback.finishLine();
+
+        if (mTriggers != null) endTriggerLine();
+        updateSearchIndex();
+    }
+
+    public void appendEcho(byte[] data, int count) {
+        // The hex dump shows received bytes only, echo would break its offsets
+        if (!mHexView) {
+            appendDecoded(mEchoDecoder, data, 0, count);
+            updateSearchIndex();
+        }
+    }
+
+    private void appendReceived(byte[] data, int offset, int count) {
+        if (mHexView) {
+            mHexFormatter.format(data, offset, count, mHexOutput);
+        } else {
+            appendDecoded(mRxDecoder, data, offset, count);
+        }
+    }
+
+    // Split at line feeds, so that the rules of a line fire once it is in the scrollback
+    private void appendTriggered(byte[] data, int count) {
+        int start = 0;
+
+        while (start < count) {
+            int end = start;
+            while (end < count && data[end] != '\n') {
+                end++;
+            }
+            if (end < count) end++;
+
+            mTriggers.feed(data, start, end - start);
+            appendReceived(data, start, end - start);
+
+            if (data[end - 1] == '\n') endTriggerLine();
+            start = end;
+        }
+    }
+
+    // Applies highlight and suppress to all scrollback lines the received line ended up in
+    private void endTriggerLine() {
+        int actions = mTriggers.endLine(mEngineListener);
+        long lastSeq = mScrollback.getLastSeq();
+
+        if (!mHexView && (actions & (BTTriggerRule.ACTION_HIGHLIGHT | BTTriggerRule.ACTION_SUPPRESS)) != 0) {
+            int attributes = 0;
+
+            if ((actions & BTTriggerRule.ACTION_SUPPRESS) != 0) {
+                attributes |= BTScrollback.ATTR_HIDDEN;
+            }
+            if ((actions & BTTriggerRule.ACTION_HIGHLIGHT) != 0) {
+                attributes |= BTScrollback.ATTR_HIGHLIGHT | mTriggers.getColor();
+            }
+
+            for (long seq = mLineStartSeq; seq < lastSeq; seq++) {
+                mScrollback.setSeqAttributes(seq, attributes);
+            }
+        }
+
+        mLineStartSeq = lastSeq;
+    }
+
+    // Drops a partly received line, for when line boundaries change
+    private void resetTriggers() {
+        if (mTriggers != null) mTriggers.reset();
+        mLineStartSeq = mScrollback.getLastSeq();
+    }
+
+    private final BTTriggerEngine.Listener mEngineListener = new BTTriggerEngine.Listener() {
+        public void onTrigger(BTTriggerRule rule, byte[] line, int length) {
+            if (rule.hasAction(BTTriggerRule.ACTION_REPLY)) {
+                mConnection.write(rule.getReply());
+            }
+
+            if (rule.hasAction(BTTriggerRule.ACTION_NOTIFY) && mTriggerListener != null) {
+                String text = new String(line, 0, length, mTriggers.getCharset()).trim();
+                mTriggerListener.onNotify(BTSession.this, rule, text);
+            }
+        }
+    };
+
+    // Once searched, the index follows new lines as they come in
+    private void updateSearchIndex() {
+        if (mSearchIndex != null) mSearchIndex.update();
+    }
+
+    private void appendDecoded(BTStreamDecoder decoder, byte[] data, int offset, int count) {
+        CharBuffer chars = decoder.decode(data, offset, count);
+        mScrollback.append(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+    }
+
+    private final BTHexFormatter.Output mHexOutput = new BTHexFormatter.Output() {
+        public void onLine(char[] line, int count, boolean complete) {
+            mScrollback.setLine(line, 0, count);
+            if (complete) mScrollback.finishLine();
+        }
+    };
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public int getId() {
+        return mConnection.getSessionId();
+    }
+
+    public BTConnection getConnection() {
+        return mConnection;
+    }
+
+    public BTScrollback getScrollback() {
+        return mScrollback;
+    }
+
+    // Created on first use, sessions never searched pay nothing
+    public BTSearchIndex getSearchIndex() {
+        if (mSearchIndex == null) mSearchIndex = new BTSearchIndex(mScrollback);
+        return mSearchIndex;
+    }
+
+    // Device name if known, else its address
+    public String getName() {
+        String name = mConnection.getDeviceName();
+        return (name != null) ? name : mConnection.getAddress();
+    }
+
+    public void setCharset(String charsetName) {
+        mRxDecoder = new BTStreamDecoder(charsetName, DECODER_BUFFER_SIZE);
+        mEchoDecoder = new BTStreamDecoder(charsetName, DECODER_BUFFER_SIZE);
+
+        // Text patterns are compiled to bytes of the charset
+        if (mTriggerRules != null) setTriggers(mTriggerRules);
+    }
+
+    public String getCharset() {
+        return mRxDecoder.getCharset().name();
+    }
+
+    public void setHexView(boolean hexView) {
+        if (hexView == mHexView) return;
+
+        // Neither mode continues a line started by the other
+        mScrollback.finishLine();
+        mHexFormatter.reset();
+        mRxDecoder.reset();
+        resetTriggers();
+
+        mHexView = hexView;
+    }
+
+    public boolean isHexView() {
+        return mHexView;
+    }
+
+    public void setFraming(int framing) {
+        BTFrameDecoder frameDecoder;
+
+        switch (framing) {
+            case FRAMING_LF:
+                frameDecoder = new BTDelimiterFrameDecoder(BTDelimiterFrameDecoder.DELIMITER_LF);
+                break;
+
+            case FRAMING_CRLF:
+                frameDecoder = new BTDelimiterFrameDecoder(BTDelimiterFrameDecoder.DELIMITER_CRLF);
+                break;
+
+            case FRAMING_LENGTH_PREFIX:
+                frameDecoder = new BTLengthPrefixFrameDecoder(2, true);
+                break;
+
+            case FRAMING_SLIP:
+                frameDecoder = new BTSlipFrameDecoder();
+                break;
+
+            case FRAMING_COBS:
+                frameDecoder = new BTCobsFrameDecoder();
+                break;
+
+            case FRAMING_FIXED_LENGTH:
+                frameDecoder = new BTFixedLengthFrameDecoder(mFrameLength);
+                break;
+
+            case FRAMING_NONE:
+            default:
+                frameDecoder = null;
+                break;
+        }
+
+        mConnection.setFrameDecoder(frameDecoder);
+        mScrollback.finishLine();
+        resetTriggers();
+        mFraming = framing;
+    }
+
+    public int getFraming() {
+        return mFraming;
+    }
+
+    // Bytes per frame of FRAMING_FIXED_LENGTH, used from the next setFraming()
+    public void setFrameLength(int frameLength) {
+        if (frameLength <= 0) throw new IllegalArgumentException("frameLength <= 0");
+        mFrameLength = frameLength;
+    }
+
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    // Rules evaluated on every received line, or on every frame with framing. Null or empty
+    // turns triggers off, which costs nothing on the receive path.
+    public void setTriggers(List<BTTriggerRule> rules) {
+        mTriggerRules = (rules != null && !rules.isEmpty()) ? rules : null;
+        mTriggers = (mTriggerRules != null) ? new BTTriggerEngine(mTriggerRules, mRxDecoder.getCharset()) : null;
+        resetTriggers();
+    }
+
+    public BTTriggerEngine getTriggers() {
+        return mTriggers;
+    }
+
+    public void setTriggerListener(TriggerListener listener) {
+        mTriggerListener = listener;
+    }
+}
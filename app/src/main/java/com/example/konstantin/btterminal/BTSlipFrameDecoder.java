@@ -0,0 +1,79 @@
+package com.example.konstantin.btterminal;
+
+// SLIP frames (RFC 1055), unescaped in place. Empty frames from leading END bytes are skipped.
+public class BTSlipFrameDecoder extends BTFrameDecoder {
+
+    // Special Characters
+    public static final byte END = (byte) 0xC0;
+    public static final byte ESC = (byte) 0xDB;
+    public static final byte ESC_END = (byte) 0xDC;
+    public static final byte ESC_ESC = (byte) 0xDD;
+
+    // Member Variables
+    private boolean mEscape;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTSlipFrameDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public BTSlipFrameDecoder(int maxFrameSize) {
+        super(maxFrameSize);
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int count, Listener listener) {
+        int end = offset + count;
+        int start = offset;
+
+        // Write position of unescaped bytes, never ahead of the read position
+        int write = offset;
+
+        for (int i = offset; i < end; i++) {
+            byte value = data[i];
+
+            if (value == END) {
+                if (mEscape) {
+                    // Aborted escape sequence
+                    mEscape = false;
+                    dropFrame();
+                } else if (isAssembling()) {
+                    emitAssembly(listener, 0);
+                } else if (write > start) {
+                    emit(listener, data, start, write - start);
+                }
+
+                start = i + 1;
+                write = i + 1;
+                continue;
+            }
+
+            if (mEscape) {
+                mEscape = false;
+
+                if (value == ESC_END) {
+                    value = END;
+                } else if (value == ESC_ESC) {
+                    value = ESC;
+                }
+            } else if (value == ESC) {
+                mEscape = true;
+                continue;
+            }
+
+            if (isAssembling()) {
+                assemble(value);
+            } else {
+                data[write++] = value;
+            }
+        }
+
+        if (write > start) assemble(data, start, write - start);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mEscape = false;
+    }
+}
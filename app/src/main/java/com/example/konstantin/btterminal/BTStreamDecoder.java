@@ -0,0 +1,80 @@
+package com.example.konstantin.btterminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+// Incremental byte to char decoder for chunked input.
+// Multi-byte sequences split across two chunks are kept until the next call,
+// input and output buffers are reused between calls.
+public class BTStreamDecoder {
+
+    // Supported Charsets
+    public static final String CHARSET_ASCII = "US-ASCII";
+    public static final String CHARSET_ISO_8859_1 = "ISO-8859-1";
+    public static final String CHARSET_UTF_8 = "UTF-8";
+
+    // Member Variables
+    private final Charset mCharset;
+    private final CharsetDecoder mDecoder;
+
+    private ByteBuffer mInput;
+    private CharBuffer mOutput;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTStreamDecoder(String charsetName, int bufferSize) {
+        mCharset = Charset.forName(charsetName);
+        mDecoder = mCharset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        allocate(bufferSize);
+    }
+
+    // Returned buffer is reused and only valid until the next call
+    public CharBuffer decode(byte[] src, int offset, int count) {
+        if (mInput.remaining() < count) {
+            grow(mInput.position() + count);
+        }
+
+        mInput.put(src, offset, count);
+        mInput.flip();
+
+        mOutput.clear();
+        // Output holds at least one char per input byte for all supported charsets
+        mDecoder.decode(mInput, mOutput, false);
+
+        // Keep an incomplete trailing sequence for the next chunk
+        mInput.compact();
+        mOutput.flip();
+
+        return mOutput;
+    }
+
+    public void reset() {
+        mDecoder.reset();
+        mInput.clear();
+        mOutput.clear();
+    }
+
+    private void grow(int size) {
+        ByteBuffer input = mInput;
+
+        allocate(size);
+
+        input.flip();
+        mInput.put(input);
+    }
+
+    private void allocate(int size) {
+        mInput = ByteBuffer.allocate(size);
+        mOutput = CharBuffer.allocate(size);
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public Charset getCharset() {
+        return mCharset;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// TCP stand-in for RFCOMM, addresses are "host:port" or "host" for the default port.
+// Listens on the loopback interface only. Endpoints report the address they were created for,
+// accepted ones "ip:port" of the peer, so they key sessions and stores like device addresses.
+public class BTTcpTransport implements BTTransport {
+
+    private static final int BACKLOG = 1;
+
+    // Member Variables
+    private final int mPort;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTTcpTransport(int port) {
+        mPort = port;
+    }
+
+    public Endpoint createEndpoint(String address) throws IOException {
+        String host = address;
+        int port = mPort;
+
+        int colon = address.lastIndexOf(':');
+        if (colon >= 0) {
+            host = address.substring(0, colon);
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid address " + address);
+            }
+        }
+
+        // Resolved by connect(), this may run on the UI thread
+        return new TcpEndpoint(new Socket(), InetSocketAddress.createUnresolved(host, port), address);
+    }
+
+    public Acceptor listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(mPort, BACKLOG, InetAddress.getByName(null));
+
+        return new Acceptor() {
+            public Endpoint accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                return new TcpEndpoint(socket, null,
+                        socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+//##################################################################################################
+
+    private static class TcpEndpoint implements Endpoint {
+        private final Socket mmSocket;
+        private final InetSocketAddress mmRemote;
+        private final String mmAddress;
+
+        // remote is null for accepted sockets
+        public TcpEndpoint(Socket socket, InetSocketAddress remote, String address) {
+            mmSocket = socket;
+            mmRemote = remote;
+            mmAddress = address;
+        }
+
+        public void connect() throws IOException {
+            if (!mmSocket.isConnected()) {
+                mmSocket.connect(new InetSocketAddress(mmRemote.getHostString(), mmRemote.getPort()));
+                mmSocket.setTcpNoDelay(true);
+            }
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        public String getName() {
+            return mmAddress;
+        }
+
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
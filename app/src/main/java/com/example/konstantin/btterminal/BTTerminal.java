@@ -1,112 +1,240 @@
 package com.example.konstantin.btterminal;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
-import android.util.Log;
+import android.os.IBinder;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 public class BTTerminal extends Activity {
 
     // Debug
     private static final String TAG = "BTTerminal";
-    private static final boolean DBG = true;
+    private static final boolean DBG = BTLog.DEBUG;
+    private static final boolean VDBG = BTLog.VERBOSE;
 
     // Layout Views
-    private TextView mDataTextView;
+    private LinearLayout mTerminalContainer;
+    private TextView mStatsOverlay;
+    private SparseArray<BTTerminalView> mTerminalViews = new SparseArray<BTTerminalView>();
     private EditText mDataOutEdit;
     private Button mSendButton;
+    private LinearLayout mSearchBar;
+    private EditText mSearchEdit;
+    private CheckBox mSearchRegex;
+
+    // Class Member Variables, the connections are owned by BTService and null until it is bound
+    private BTService mService;
+    private BTConnectionManager mConnectionManager;
+    private BTSession mActiveSession;
+    private final Handler mHandler = new Handler();
+
+    // Activity result that arrived before the service was bound
+    private int mPendingRequestCode = -1;
+    private int mPendingResultCode;
+    private Intent mPendingData;
+
+    // Replay speeds matching R.array.replay_speeds
+    private static final float[] REPLAY_SPEEDS = { 1.0f, 10.0f, 0.0f };
+    private boolean mHexInput;
+    private boolean mTiled;
+
+    // Statistics Overlay
+    private static final long STATS_INTERVAL_MS = 1000;
+    private boolean mShowStats;
+    private BTSession mStatsSession;
+    private BTMetrics.Snapshot mStatsSnapshot;
+
+    // Triggers
+    private static final String TRIGGERS_FILE = "triggers.txt";
+
+    // Send File, request code next to the ones of BTConnection
+    private static final int REQ_SEND_FILE = 3;
+    private int mSendChunkSize = BTFileSender.DEFAULT_CHUNK_SIZE;
+    private long mSendChunkDelay;
+    private long mSendRate;
+    private long mSendLineDelay;
 
-    // Class Member Variables
-    private BTConnection mBTConnection;
+    // File Transfer, protocols matching the first half of R.array.transfer_modes
+    private static final int REQ_TRANSFER_FILE = 4;
+    private static final String RECEIVED_DIR = "received";
+    private static final int[] TRANSFER_PROTOCOLS = { BTModem.PROTOCOL_XMODEM, BTModem.PROTOCOL_XMODEM_1K,
+            BTModem.PROTOCOL_YMODEM, BTModem.PROTOCOL_YMODEM_G, BTModem.PROTOCOL_ZMODEM };
+    private int mTransferProtocol = BTModem.PROTOCOL_XMODEM;
 
-    private String mConnectedDeviceName;
-    private boolean mLocalEcho;
-    private boolean mListen;
+    // Current search match
+    private BTSession mSearchSession;
+    private long mSearchSeq = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        if (DBG) Log.d(TAG, "onCreate()");
+        if (DBG) BTLog.d(TAG, "onCreate()");
 
         setContentView(R.layout.activity_btterminal);
+        setupTerminal();
 
-        mBTConnection = new BTConnection(this, mBTHandler);
-
-        if (!mBTConnection.isAvailable()) {
-            if (DBG) Log.d(TAG, "No Bluetooth");
-            Toast.makeText(this, R.string.toast_no_bt, Toast.LENGTH_LONG).show();
-            finish();
-        } else {
-            setupTerminal();
-        }
+        // Sessions live in the service, so they outlive this Activity
+        bindService(new Intent(this, BTService.class), mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        if (DBG) Log.d(TAG, "onStart()");
+        if (DBG) BTLog.d(TAG, "onStart()");
 
-        if (!mBTConnection.isEnabled()) {
-            mBTConnection.setEnabled(true);
+        if (mConnectionManager != null && !mConnectionManager.isEnabled()) {
+            mConnectionManager.setEnabled(this, true);
         }
     }
 
     @Override
     public synchronized void onResume() {
         super.onResume();
-        if (DBG) Log.d(TAG, "onResume()");
+        if (DBG) BTLog.d(TAG, "onResume()");
 
-        if (mBTConnection != null) {
-            if (mBTConnection.getState() == BTConnection.STATE_NONE) {
-                mBTConnection.listen(mListen);
+        if (mConnectionManager != null) {
+            if (mConnectionManager.getListenSession().getConnection().getState() == BTConnection.STATE_NONE) {
+                mService.setListen(mService.isListen());
             }
         }
+
+        if (mShowStats) mStatsUpdater.run();
     }
 
     @Override
     public synchronized void onPause() {
-        if (DBG) Log.d(TAG, "onPause()");
+        if (DBG) BTLog.d(TAG, "onPause()");
+
+        mHandler.removeCallbacks(mStatsUpdater);
 
         super.onPause();
     }
 
     @Override
     public void onStop() {
-        if (DBG) Log.d(TAG, "onStop()");
+        if (DBG) BTLog.d(TAG, "onStop()");
 
         super.onStop();
     }
 
     @Override
     public void onDestroy() {
-        if (DBG) Log.d(TAG, "onDestroy()");
+        if (DBG) BTLog.d(TAG, "onDestroy()");
 
-        if (mBTConnection != null) {
-            mBTConnection.setEnabled(false);
-            mBTConnection.stop();
-        }
+        // Connections keep running in the service
+        if (mService != null) mService.setCallback(null);
+        unbindService(mServiceConnection);
 
         super.onDestroy();
     }
 
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            if (DBG) BTLog.d(TAG, "onServiceConnected()");
+
+            BTService service = ((BTService.LocalBinder) binder).getService();
+
+            if (!service.getConnectionManager().isAvailable()) {
+                if (DBG) BTLog.d(TAG, "No Bluetooth");
+                Toast.makeText(BTTerminal.this, R.string.toast_no_bt, Toast.LENGTH_LONG).show();
+                finish();
+                return;
+            }
+
+            mService = service;
+            mConnectionManager = service.getConnectionManager();
+            mService.setCallback(mServiceCallback);
+
+            attachSessions();
+
+            if (mPendingRequestCode >= 0) {
+                onActivityResult(mPendingRequestCode, mPendingResultCode, mPendingData);
+                mPendingRequestCode = -1;
+                mPendingData = null;
+            } else if (!mConnectionManager.isEnabled()) {
+                mConnectionManager.setEnabled(BTTerminal.this, true);
+            }
+        }
+
+        // Only if the service process died
+        public void onServiceDisconnected(ComponentName name) {
+            if (DBG) BTLog.d(TAG, "onServiceDisconnected()");
+
+            mService = null;
+            mConnectionManager = null;
+        }
+    };
+
+    // Shows the sessions of the service, including everything received while no Activity was
+    // attached
+    private void attachSessions() {
+        if (mConnectionManager.getListenSession().getConnection().getState() == BTConnection.STATE_NONE) {
+            mService.setListen(mService.isListen());
+        }
+
+        setActiveSession(mService.getActiveSession());
+
+        // Last or favorite devices, once per start of the service
+        if (mConnectionManager.isEnabled()) mService.autoConnect(mRaceListener);
+
+        // Triggers saved by an earlier run
+        if (mConnectionManager.getTriggers() == null && getTriggersFile().exists()) loadTriggers();
+
+        invalidateOptionsMenu();
+    }
+
     private void setupTerminal() {
-        if (DBG) Log.d(TAG, "setupTerminal()");
+        if (DBG) BTLog.d(TAG, "setupTerminal()");
 
-        mDataTextView = (TextView) findViewById(R.id.text_data);
+        mTerminalContainer = (LinearLayout) findViewById(R.id.terminal_container);
+        mStatsOverlay = (TextView) findViewById(R.id.stats_overlay);
 
-        mLocalEcho = false;
-        mListen = false;
+        mHexInput = false;
+        mTiled = false;
 
         // Init Input Textfield
         mDataOutEdit = (EditText) findViewById(R.id.edit_data_out);
@@ -116,7 +244,7 @@ public class BTTerminal extends Activity {
                     String data = view.getText().toString();
                     sendData(data);
                 }
-                if (DBG) Log.d(TAG, "onEditorAction()");
+                if (DBG) BTLog.d(TAG, "onEditorAction()");
                 return true;
             }
         });
@@ -126,108 +254,803 @@ public class BTTerminal extends Activity {
         mSendButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (DBG) Log.d(TAG, "onClick()");
+                if (DBG) BTLog.d(TAG, "onClick()");
                 TextView textview = (TextView) findViewById(R.id.edit_data_out);
                 String data = textview.getText().toString();
                 sendData(data);
             }
         });
+
+        // Init Search Bar
+        mSearchBar = (LinearLayout) findViewById(R.id.search_bar);
+        mSearchRegex = (CheckBox) findViewById(R.id.check_search_regex);
+        mSearchEdit = (EditText) findViewById(R.id.edit_search);
+        mSearchEdit.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
+                // Most recent match first
+                if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                    find(false);
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        findViewById(R.id.button_search_previous).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                find(false);
+            }
+        });
+
+        findViewById(R.id.button_search_next).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                find(true);
+            }
+        });
     }
 
     private void sendData(String data) {
-        if (DBG) Log.d(TAG, "sendData(" + data + ")");
+        if (DBG) BTLog.d(TAG, "sendData(%s)", data);
 
-        if (mBTConnection.getState() != BTConnection.STATE_CONNECTED) {
+        // Not bound yet
+        if (mActiveSession == null) return;
+
+        BTConnection connection = mActiveSession.getConnection();
+
+        int state = connection.getState();
+
+        // Sent once reconnected
+        if (state != BTConnection.STATE_CONNECTED && state != BTConnection.STATE_RECONNECTING) {
             Toast.makeText(this, R.string.toast_not_connected, Toast.LENGTH_SHORT).show();
             return;
         }
 
         if (data.length() > 0) {
-            byte[] send = data.getBytes();
-            mBTConnection.write(send);
+            byte[] send;
+
+            if (mHexInput) {
+                byte[] parsed = new byte[data.length() / 2];
+                int count = BTHexFormatter.parse(data, parsed);
+
+                if (count <= 0) {
+                    Toast.makeText(this, R.string.toast_invalid_hex, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                send = Arrays.copyOf(parsed, count);
+            } else {
+                send = data.getBytes(Charset.forName(mActiveSession.getCharset()));
+            }
 
-            mDataOutEdit.setText("");
+            if (connection.write(send)) {
+                mDataOutEdit.setText("");
+            } else {
+                Toast.makeText(this, R.string.toast_send_queue_full, Toast.LENGTH_SHORT).show();
+            }
         }
     }
 
-    public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (DBG) Log.d(TAG, "onActivityResult(" + resultCode + ")");
+    private void toggleCapture() {
+        BTConnection connection = mActiveSession.getConnection();
 
-        mBTConnection.onActivityResult(requestCode, resultCode, data);
+        if (connection.isCapturing()) {
+            File file = connection.getCaptureFile();
+            connection.stopCapture();
+            Toast.makeText(this, getString(R.string.toast_capture_stopped, file.getName()), Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-        if (!mBTConnection.isEnabled()) {
-            if (DBG) Log.d(TAG, "BlueTooth not enabled!");
-            Toast.makeText(this, R.string.toast_bt_not_enabled, Toast.LENGTH_SHORT).show();
-            finish();
+        File dir = getCaptureDir();
+        String name = "capture_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".btcap";
+
+        try {
+            connection.startCapture(new File(dir, name), true);
+            Toast.makeText(this, getString(R.string.toast_capture_started, name), Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            if (DBG) BTLog.d(TAG, "toggleCapture() startCapture() failed", e);
+            Toast.makeText(this, R.string.toast_capture_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void selectSendFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT)
+                .setType("*/*")
+                .addCategory(Intent.CATEGORY_OPENABLE);
+
+        startActivityForResult(intent, REQ_SEND_FILE);
+    }
+
+    // Pacing of the send, the last one used is kept
+    private void showSendOptions(final Uri uri) {
+        final View view = getLayoutInflater().inflate(R.layout.dialog_send_file, null);
+        final EditText chunkSize = (EditText) view.findViewById(R.id.edit_chunk_size);
+        final EditText chunkDelay = (EditText) view.findViewById(R.id.edit_chunk_delay);
+        final EditText rate = (EditText) view.findViewById(R.id.edit_send_rate);
+        final EditText lineDelay = (EditText) view.findViewById(R.id.edit_line_delay);
+
+        chunkSize.setText(String.valueOf(mSendChunkSize));
+        chunkDelay.setText(String.valueOf(mSendChunkDelay));
+        rate.setText(String.valueOf(mSendRate));
+        lineDelay.setText(String.valueOf(mSendLineDelay));
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.title_send_file, uri.getLastPathSegment()))
+                .setView(view)
+                .setPositiveButton(R.string.button_send_file, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        mSendChunkSize = (int) parseLong(chunkSize, BTFileSender.DEFAULT_CHUNK_SIZE);
+                        mSendChunkDelay = parseLong(chunkDelay, 0);
+                        mSendRate = parseLong(rate, 0);
+                        mSendLineDelay = parseLong(lineDelay, 0);
+
+                        sendFile(uri);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private static long parseLong(EditText edit, long defaultValue) {
+        try {
+            return Long.parseLong(edit.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 
-    private final Handler mBTHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            if (DBG) Log.d(TAG, "handleMessage(" + msg.what + ", " + msg.arg1 + ", " + msg.arg2 + ")");
+    private void sendFile(Uri uri) {
+        if (DBG) BTLog.d(TAG, "sendFile(%s)", uri);
+
+        BTConnection connection = mActiveSession.getConnection();
+        String name = uri.getLastPathSegment();
+        InputStream in;
+
+        try {
+            in = getContentResolver().openInputStream(uri);
+        } catch (FileNotFoundException e) {
+            if (DBG) BTLog.d(TAG, "sendFile() openInputStream() failed", e);
+            Toast.makeText(this, getString(R.string.toast_cannot_open, name), Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        BTFileSender sender = new BTFileSender(name, getContentLength(uri), mSendChunkSize, mSendChunkDelay,
+                mSendRate, mSendLineDelay);
+
+        if (!connection.startSend(in, sender)) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                if (DBG) BTLog.d(TAG, "sendFile() close() failed", e);
+            }
+            Toast.makeText(this, R.string.toast_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-            switch (msg.what) {
-                case BTConnection.MSG_STATE_CHANGE:
-                    if (DBG) Log.d(TAG, "MSG_STATE_CHANGE: " + msg.arg1);
+        updateSubtitle();
+    }
 
-                    String subtitle;
+    // -1 if the provider does not know
+    private long getContentLength(Uri uri) {
+        AssetFileDescriptor descriptor = null;
 
-                    switch (msg.arg1) {
-                        case BTConnection.STATE_CONNECTED:
-                            subtitle = getResources().getText(R.string.title_connected_to) + " " + mConnectedDeviceName;
-                            mDataTextView.setText("");
-                            break;
+        try {
+            descriptor = getContentResolver().openAssetFileDescriptor(uri, "r");
+            return (descriptor != null) ? descriptor.getLength() : -1;
+        } catch (FileNotFoundException e) {
+            if (DBG) BTLog.d(TAG, "getContentLength() failed", e);
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    if (DBG) BTLog.d(TAG, "getContentLength() close() failed", e);
+                }
+            }
+        }
+    }
 
-                        case BTConnection.STATE_CONNECTING:
-                            subtitle = getResources().getText(R.string.title_connecting).toString();
-                            break;
+    private void selectTransfer() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_transfer)
+                .setItems(getResources().getStringArray(R.array.transfer_modes), new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        mTransferProtocol = TRANSFER_PROTOCOLS[which % TRANSFER_PROTOCOLS.length];
 
-                        case BTConnection.STATE_LISTEN:
-                            subtitle = getResources().getText(R.string.title_listening).toString();
-                            break;
+                        if (which < TRANSFER_PROTOCOLS.length) {
+                            Intent intent = new Intent(Intent.ACTION_GET_CONTENT)
+                                    .setType("*/*")
+                                    .addCategory(Intent.CATEGORY_OPENABLE);
 
-                        default:
-                        case BTConnection.STATE_NONE:
-                            subtitle = getResources().getText(R.string.title_not_connected).toString();
-                            break;
+                            startActivityForResult(intent, REQ_TRANSFER_FILE);
+                        } else {
+                            receiveFiles();
+                        }
                     }
+                })
+                .show();
+    }
 
-                    getActionBar().setSubtitle(subtitle);
-                    break;
+    private void transferFile(final Uri uri) {
+        if (DBG) BTLog.d(TAG, "transferFile(%s)", uri);
+
+        final long length = getContentLength(uri);
+
+        BTModem.Source source = new BTModem.Source() {
+            public String getName() {
+                return uri.getLastPathSegment();
+            }
 
-                case BTConnection.MSG_DATA_WRITTEN:
-                    if (DBG) Log.d(TAG, "MSG_DATA_WRITTEN");
+            public long getLength() {
+                return length;
+            }
 
-                    byte[] outBuf = (byte[]) msg.obj;
-                    String outMsg = new String(outBuf);
+            public InputStream open() throws IOException {
+                InputStream in = getContentResolver().openInputStream(uri);
+                if (in == null) throw new FileNotFoundException(uri.toString());
+                return in;
+            }
+        };
 
-                    if (mLocalEcho) {
-                        mDataTextView.append(outMsg);
+        if (!mActiveSession.getConnection().startTransfer(mTransferProtocol, Collections.singletonList(source))) {
+            Toast.makeText(this, R.string.toast_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        updateSubtitle();
+    }
+
+    // Received files go to RECEIVED_DIR next to the captures, called on the transfer thread
+    private void receiveFiles() {
+        if (DBG) BTLog.d(TAG, "receiveFiles()");
+
+        final File dir = new File(getCaptureDir(), RECEIVED_DIR);
+
+        BTModem.Sink sink = new BTModem.Sink() {
+            public OutputStream create(String name, long length) throws IOException {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+                return new FileOutputStream(getReceivedFile(dir, name));
+            }
+        };
+
+        if (!mActiveSession.getConnection().startTransfer(mTransferProtocol, sink)) {
+            Toast.makeText(this, R.string.toast_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        updateSubtitle();
+    }
+
+    // Names from the peer lose any path and characters that do not belong into a file name, files
+    // already there are kept
+    private static File getReceivedFile(File dir, String name) {
+        if (name != null) {
+            name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+            name = name.replaceAll("[^A-Za-z0-9._-]", "_").replaceAll("^\\.+", "");
+        }
+
+        if (name == null || name.length() == 0) {
+            name = "xmodem_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".bin";
+        }
+
+        File file = new File(dir, name);
+
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, i + "_" + name);
+        }
+
+        return file;
+    }
+
+    private void setSearchVisible(boolean visible) {
+        mSearchBar.setVisibility(visible ? View.VISIBLE : View.GONE);
+
+        if (visible) {
+            mSearchEdit.requestFocus();
+        } else {
+            clearSearch();
+        }
+    }
+
+    private void clearSearch() {
+        if (mSearchSession != null) {
+            BTTerminalView view = mTerminalViews.get(mSearchSession.getId());
+            if (view != null) {
+                view.setHighlight(null);
+                view.setMatch(-1, 0, 0);
+            }
+        }
+
+        mSearchSession = null;
+        mSearchSeq = -1;
+    }
+
+    // Continues from the current match, or starts at the newest line going back and at the
+    // oldest line going forward
+    private void find(boolean forward) {
+        String text = mSearchEdit.getText().toString();
+        if (text.length() == 0) return;
+
+        boolean regex = mSearchRegex.isChecked();
+        Pattern pattern;
+
+        try {
+            pattern = regex ? Pattern.compile(text) :
+                    Pattern.compile(Pattern.quote(text), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        } catch (PatternSyntaxException e) {
+            Toast.makeText(this, R.string.toast_invalid_pattern, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (mSearchSession != mActiveSession) clearSearch();
+
+        BTScrollback scrollback = mActiveSession.getScrollback();
+        BTSearchIndex index = mActiveSession.getSearchIndex();
+        long from;
+
+        if (mSearchSeq >= 0) {
+            from = forward ? mSearchSeq + 1 : mSearchSeq - 1;
+        } else {
+            from = forward ? scrollback.getFirstSeq() : scrollback.getLastSeq();
+        }
+
+        long seq;
+        if (regex) {
+            seq = forward ? index.findNext(pattern, from) : index.findPrevious(pattern, from);
+        } else {
+            seq = forward ? index.findNext(text, from) : index.findPrevious(text, from);
+        }
+
+        if (seq < 0) {
+            Toast.makeText(this, R.string.toast_no_match, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        mSearchSession = mActiveSession;
+        mSearchSeq = seq;
+
+        BTTerminalView view = mTerminalViews.get(mActiveSession.getId());
+        if (view != null) {
+            view.setHighlight(pattern);
+            view.setMatch(seq, index.getMatchStart(), index.getMatchEnd());
+        }
+    }
+
+    private void setShowStats(boolean show) {
+        mShowStats = show;
+        mStatsSnapshot = null;
+
+        mHandler.removeCallbacks(mStatsUpdater);
+        mStatsOverlay.setVisibility(show ? View.VISIBLE : View.GONE);
+
+        if (show) mStatsUpdater.run();
+    }
+
+    private final Runnable mStatsUpdater = new Runnable() {
+        public void run() {
+            updateStats();
+            mHandler.postDelayed(this, STATS_INTERVAL_MS);
+        }
+    };
+
+    // Rates since the last update, cumulative distributions since connecting
+    private void updateStats() {
+        BTMetrics.Snapshot snapshot = mActiveSession.getConnection().getMetricsSnapshot();
+        BTMetrics.Snapshot previous = (mStatsSession == mActiveSession && mStatsSnapshot != null) ? mStatsSnapshot : snapshot;
+
+        long[] latency = snapshot.getDispatchLatency();
+        long[] readSizes = snapshot.getReadSizes();
+
+        mStatsOverlay.setText(getString(R.string.text_stats,
+                snapshot.getBytesInPerSecond(previous) / 1000, snapshot.getFramesInPerSecond(previous),
+                snapshot.getBytesOutPerSecond(previous) / 1000, snapshot.getFramesOutPerSecond(previous),
+                snapshot.getQueuedBytes(), BTMetrics.Snapshot.percentile(snapshot.getQueueDepths(), 0.99),
+                BTMetrics.Snapshot.percentile(readSizes, 0.5), BTMetrics.Snapshot.percentile(readSizes, 0.99),
+                BTMetrics.Snapshot.percentile(latency, 0.5) / 1000.0, BTMetrics.Snapshot.percentile(latency, 0.99) / 1000.0));
+
+        mStatsSession = mActiveSession;
+        mStatsSnapshot = snapshot;
+    }
+
+    private void dumpTrace() {
+        String name = "trace_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".txt";
+        Writer writer = null;
+
+        try {
+            writer = new FileWriter(new File(getCaptureDir(), name));
+            BTLog.dumpTrace(writer);
+            Toast.makeText(this, getString(R.string.toast_trace_saved, name), Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            BTLog.w(TAG, "dumpTrace() failed", e);
+            Toast.makeText(this, R.string.toast_trace_failed, Toast.LENGTH_SHORT).show();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    if (DBG) BTLog.d(TAG, "dumpTrace() close() failed", e);
+                }
+            }
+        }
+    }
+
+    private File getTriggersFile() {
+        return new File(getCaptureDir(), TRIGGERS_FILE);
+    }
+
+    // One rule per line, see BTTriggerRule. A malformed rule rejects the whole file.
+    private void loadTriggers() {
+        File file = getTriggersFile();
+        List<BTTriggerRule> rules = new ArrayList<BTTriggerRule>();
+        BufferedReader reader = null;
+        int lineNumber = 0;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                rules.add(BTTriggerRule.parse(line));
+            }
+        } catch (IOException e) {
+            if (DBG) BTLog.d(TAG, "loadTriggers() failed", e);
+            Toast.makeText(this, getString(R.string.toast_no_triggers, file.getPath()), Toast.LENGTH_LONG).show();
+            return;
+        } catch (IllegalArgumentException e) {
+            String message = e.getMessage().split("\n")[0];
+            Toast.makeText(this, getString(R.string.toast_invalid_trigger, lineNumber, message), Toast.LENGTH_LONG).show();
+            return;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    if (DBG) BTLog.d(TAG, "loadTriggers() close() failed", e);
+                }
+            }
+        }
+
+        if (DBG) BTLog.d(TAG, "loadTriggers() %d rules", rules.size());
+
+        mService.setTriggers(rules);
+        Toast.makeText(this, getString(R.string.toast_triggers_loaded, rules.size()), Toast.LENGTH_SHORT).show();
+    }
+
+    // Rules with their hit counts
+    private void showTriggers() {
+        List<BTTriggerRule> rules = mConnectionManager.getTriggers();
+        StringBuilder text = new StringBuilder();
+
+        if (rules == null || rules.isEmpty()) {
+            text.append(getString(R.string.text_no_triggers, getTriggersFile().getPath()));
+        } else {
+            for (BTTriggerRule rule : rules) {
+                text.append(String.format(Locale.US, "%6d  %s\n", rule.getHits(), rule.getSource()));
+            }
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_triggers)
+                .setMessage(text)
+                .setPositiveButton(R.string.button_reload_triggers, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        loadTriggers();
                     }
-                    break;
+                })
+                .setNeutralButton(R.string.button_reset_counts, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        List<BTTriggerRule> rules = mConnectionManager.getTriggers();
+                        if (rules == null) return;
 
-                case BTConnection.MSG_DATA_READ:
-                    if (DBG) Log.d(TAG, "MSG_DATA_READ");
+                        for (BTTriggerRule rule : rules) {
+                            rule.resetHits();
+                        }
+                    }
+                })
+                .show();
+    }
 
-                    byte[] inBuf = (byte[]) msg.obj;
-                    String inMsg = new String(inBuf);
-                    mDataTextView.append(inMsg);
-                    break;
+    private File getCaptureDir() {
+        File dir = getExternalFilesDir(null);
+        return (dir != null) ? dir : getFilesDir();
+    }
 
-                case BTConnection.MSG_DEVICE_NAME:
-                    mConnectedDeviceName = msg.getData().getString(BTConnection.DEVICE_NAME);
-                    Toast.makeText(getApplicationContext(),
-                            "Connected to " + mConnectedDeviceName,
-                            Toast.LENGTH_SHORT).show();
-                    break;
+    // Known devices in one tap, the device list is the last resort
+    private void selectQuickConnect() {
+        final BTDeviceStore deviceStore = mConnectionManager.getDeviceStore();
+        final List<BTDeviceRecord> known = deviceStore.loadKnown();
+        final List<String> favorites = deviceStore.getAutoConnectAddresses();
+        final boolean race = (favorites.size() > 1);
 
-                case BTConnection.MSG_TOAST:
-                    Toast.makeText(getApplicationContext(),
-                            msg.getData().getString(BTConnection.TOAST),
-                            Toast.LENGTH_SHORT).show();
-                    break;
+        if (known.isEmpty()) {
+            mConnectionManager.showDeviceList(this);
+            return;
+        }
+
+        ArrayList<String> items = new ArrayList<String>();
+        if (race) items.add(getString(R.string.text_connect_first, favorites.size()));
+
+        for (BTDeviceRecord record : known) {
+            String name = (record.getName() != null) ? record.getName() + " (" + record.getAddress() + ")" :
+                    record.getAddress();
+            items.add(record.isFavorite() ? getString(R.string.text_favorite_device, name) : name);
+        }
+        items.add(getString(R.string.text_other_device));
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_quick_connect)
+                .setItems(items.toArray(new String[items.size()]), new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (race && which == 0) {
+                            mConnectionManager.connectFirst(favorites, mRaceListener);
+                            return;
+                        }
+
+                        int index = race ? which - 1 : which;
+
+                        if (index < known.size()) {
+                            setActiveSession(mConnectionManager.connect(known.get(index).getAddress()));
+                        } else {
+                            mConnectionManager.showDeviceList(BTTerminal.this);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private final BTConnectionManager.RaceListener mRaceListener = new BTConnectionManager.RaceListener() {
+        public void onRaceFinished(BTSession winner) {
+            if (mService == null) return;
+
+            if (winner != null) {
+                setActiveSession(winner);
+            } else {
+                Toast.makeText(BTTerminal.this, R.string.toast_no_device_answered, Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    private void selectReplay() {
+        final File[] captures = getCaptureDir().listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(".btcap");
+            }
+        });
+
+        if (captures == null || captures.length == 0) {
+            Toast.makeText(this, R.string.toast_no_captures, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String[] names = new String[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            names[i] = captures[i].getName();
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_select_capture)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        selectReplaySpeed(captures[which]);
+                    }
+                })
+                .show();
+    }
+
+    private void selectReplaySpeed(final File capture) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_replay_speed)
+                .setItems(getResources().getStringArray(R.array.replay_speeds), new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mActiveSession.getConnection().startReplay(capture, REPLAY_SPEEDS[which])) {
+                            clearSession(mActiveSession);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void setActiveSession(BTSession session) {
+        if (DBG) BTLog.d(TAG, "setActiveSession(%s)", session.getId());
+
+        mActiveSession = session;
+        mService.setActiveSession(session);
+
+        updateTerminalViews();
+        updateSubtitle();
+    }
+
+    private void selectSession() {
+        final List<BTSession> sessions = mConnectionManager.getSessions();
+
+        String[] names = new String[sessions.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = getSessionName(sessions.get(i));
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_select_session)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        setActiveSession(sessions.get(which));
+                    }
+                })
+                .show();
+    }
+
+    private String getSessionName(BTSession session) {
+        String name = session.getName();
+
+        if (session == mConnectionManager.getListenSession()) {
+            return (name != null) ? getString(R.string.text_incoming_session, name) : getString(R.string.text_listen_session);
+        }
+        return name;
+    }
+
+    // One view per session, only the active one unless tiled
+    private void updateTerminalViews() {
+        SparseArray<BTTerminalView> views = new SparseArray<BTTerminalView>();
+        List<BTSession> sessions = mConnectionManager.getSessions();
+
+        mTerminalContainer.removeAllViews();
+
+        for (final BTSession session : sessions) {
+            BTTerminalView view = mTerminalViews.get(session.getId());
+
+            if (view == null) {
+                view = new BTTerminalView(this, session.getScrollback());
+                view.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        if (session != mActiveSession) setActiveSession(session);
+                    }
+                });
+            }
+
+            boolean visible = (session == mActiveSession) ||
+                    (mTiled && session.getConnection().getState() != BTConnection.STATE_NONE);
+
+            view.setVisibility(visible ? View.VISIBLE : View.GONE);
+            view.setSelected(session == mActiveSession);
+
+            views.put(session.getId(), view);
+            mTerminalContainer.addView(view, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1.0f));
+        }
+
+        mTerminalViews = views;
+    }
+
+    private void updateSubtitle() {
+        String subtitle;
+        BTFileSender sender = mActiveSession.getConnection().getFileSender();
+        BTModem modem = mActiveSession.getConnection().getTransfer();
+
+        switch (mActiveSession.getConnection().getState()) {
+            case BTConnection.STATE_CONNECTED:
+                if (sender != null && !sender.isFinished()) {
+                    subtitle = getProgress(true, sender.getName(), sender.getSentBytes(), sender.getTotalBytes(),
+                            sender.getBytesPerSecond());
+                } else if (modem != null && !modem.isFinished()) {
+                    String name = modem.getFileName();
+                    subtitle = getProgress(modem.isSending(),
+                            (name != null) ? name : getString(R.string.text_unnamed_file), modem.getFileBytes(),
+                            modem.getFileLength(), modem.getBytesPerSecond());
+                } else {
+                    subtitle = getResources().getText(R.string.title_connected_to) + " " + mActiveSession.getName();
+                }
+                break;
+
+            case BTConnection.STATE_CONNECTING:
+                subtitle = getResources().getText(R.string.title_connecting).toString();
+                break;
+
+            case BTConnection.STATE_RECONNECTING:
+                subtitle = getString(R.string.title_reconnecting, mActiveSession.getName(),
+                        mActiveSession.getConnection().getReconnectAttempt());
+                break;
+
+            case BTConnection.STATE_LISTEN:
+                subtitle = getResources().getText(R.string.title_listening).toString();
+                break;
+
+            default:
+            case BTConnection.STATE_NONE:
+                subtitle = getResources().getText(R.string.title_not_connected).toString();
+                break;
+        }
+
+        getActionBar().setSubtitle(subtitle);
+    }
+
+    // File send or transfer progress, total is -1 if unknown
+    private String getProgress(boolean sending, String name, long bytes, long total, double bytesPerSecond) {
+        double kBps = bytesPerSecond / 1024;
+
+        if (total > 0) {
+            int percent = (int) (bytes * 100 / total);
+            return getString(sending ? R.string.title_sending : R.string.title_receiving, name, percent, kBps);
+        }
+        return getString(sending ? R.string.title_sending_unknown_size : R.string.title_receiving_unknown_size,
+                name, bytes / 1024, kBps);
+    }
+
+    private void clearSession(BTSession session) {
+        if (session == mSearchSession) clearSearch();
+        session.clear();
+
+        BTTerminalView view = mTerminalViews.get(session.getId());
+        if (view != null) view.clear();
+    }
+
+    private void sessionChanged(BTSession session) {
+        BTTerminalView view = mTerminalViews.get(session.getId());
+        if (view != null) view.contentChanged();
+    }
+
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (DBG) BTLog.d(TAG, "onActivityResult(%s)", resultCode);
+
+        // Recreated Activity, handled once bound
+        if (mConnectionManager == null) {
+            mPendingRequestCode = requestCode;
+            mPendingResultCode = resultCode;
+            mPendingData = data;
+            return;
+        }
+
+        if (requestCode == REQ_SEND_FILE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) showSendOptions(data.getData());
+            return;
+        }
+
+        if (requestCode == REQ_TRANSFER_FILE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) transferFile(data.getData());
+            return;
+        }
+
+        BTSession session = mConnectionManager.onActivityResult(requestCode, resultCode, data);
+        if (session != null) setActiveSession(session);
+
+        if (!mConnectionManager.isEnabled()) {
+            if (DBG) BTLog.d(TAG, "BlueTooth not enabled!");
+            Toast.makeText(this, R.string.toast_bt_not_enabled, Toast.LENGTH_SHORT).show();
+            finish();
+        }
+    }
+
+    private final BTService.Callback mServiceCallback = new BTService.Callback() {
+        public void onStateChanged(BTSession session, boolean established) {
+            // The service cleared the session, the view starts over
+            if (established) {
+                if (session == mSearchSession) clearSearch();
+
+                BTTerminalView view = mTerminalViews.get(session.getId());
+                if (view != null) view.setScrollback(session.getScrollback());
             }
+
+            updateTerminalViews();
+            if (session == mActiveSession) updateSubtitle();
+        }
+
+        public void onSessionChanged(BTSession session) {
+            sessionChanged(session);
+        }
+
+        public void onSendProgress(BTSession session, BTFileSender sender) {
+            if (session == mActiveSession) updateSubtitle();
+            if (sender.isFinished()) invalidateOptionsMenu();
+        }
+
+        public void onTransferProgress(BTSession session, BTModem modem) {
+            if (session == mActiveSession) updateSubtitle();
+            if (modem.isFinished()) invalidateOptionsMenu();
         }
     };
 
@@ -239,26 +1062,159 @@ public class BTTerminal extends Activity {
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if (mActiveSession == null) return super.onOptionsItemSelected(item);
+
+        BTConnection connection = mActiveSession.getConnection();
+
         switch (item.getItemId()) {
             case R.id.action_connect:
-                mBTConnection.showDeviceList();
+                mConnectionManager.showDeviceList(this);
+                return true;
+
+            case R.id.action_quick_connect:
+                selectQuickConnect();
+                return true;
+
+            case R.id.action_favorite:
+                if (connection.getAddress() != null) {
+                    BTDeviceStore deviceStore = mConnectionManager.getDeviceStore();
+                    deviceStore.setFavorite(connection.getAddress(), !deviceStore.isFavorite(connection.getAddress()));
+                }
+                return true;
+
+            case R.id.action_auto_connect:
+                mConnectionManager.getDeviceStore().setAutoConnect(!mConnectionManager.getDeviceStore().isAutoConnect());
                 return true;
 
             case R.id.action_disconnect:
-                mBTConnection.disconnect();
+                connection.disconnect();
+                return true;
+
+            case R.id.action_sessions:
+                selectSession();
+                return true;
+
+            case R.id.action_tile:
+                mTiled = !mTiled;
+                updateTerminalViews();
+                return true;
+
+            case R.id.action_close_session:
+                if (mSearchSession == mActiveSession) clearSearch();
+                mService.close(mActiveSession);
+                setActiveSession(mConnectionManager.getListenSession());
+                return true;
+
+            case R.id.action_reconnect:
+                mConnectionManager.setReconnectPolicy(
+                        (mConnectionManager.getReconnectPolicy() == null) ? new BTReconnectPolicy() : null);
                 return true;
 
             case R.id.action_clear:
-                mDataTextView.setText("");
+                clearSession(mActiveSession);
+                return true;
+
+            case R.id.action_search:
+                setSearchVisible(mSearchBar.getVisibility() != View.VISIBLE);
                 return true;
 
             case R.id.action_echo:
-                mLocalEcho = !mLocalEcho;
+                mService.setLocalEcho(!mService.isLocalEcho());
                 return true;
 
             case R.id.action_listen:
-                mListen = !mListen;
-                mBTConnection.listen(mListen);
+                mService.setListen(!mService.isListen());
+                return true;
+
+            case R.id.action_hex_view:
+                mActiveSession.setHexView(!mActiveSession.isHexView());
+                sessionChanged(mActiveSession);
+                return true;
+
+            case R.id.action_hex_input:
+                mHexInput = !mHexInput;
+                return true;
+
+            case R.id.action_capture:
+                toggleCapture();
+                return true;
+
+            case R.id.action_send_file:
+                if (connection.isSending()) {
+                    connection.stopSend();
+                    updateSubtitle();
+                } else {
+                    selectSendFile();
+                }
+                return true;
+
+            case R.id.action_transfer:
+                if (connection.isTransferring()) {
+                    connection.stopTransfer();
+                    updateSubtitle();
+                } else {
+                    selectTransfer();
+                }
+                return true;
+
+            case R.id.action_replay:
+                if (connection.isReplaying()) {
+                    connection.stopReplay();
+                } else {
+                    selectReplay();
+                }
+                return true;
+
+            case R.id.action_charset_ascii:
+                mActiveSession.setCharset(BTStreamDecoder.CHARSET_ASCII);
+                return true;
+
+            case R.id.action_charset_iso_8859_1:
+                mActiveSession.setCharset(BTStreamDecoder.CHARSET_ISO_8859_1);
+                return true;
+
+            case R.id.action_charset_utf_8:
+                mActiveSession.setCharset(BTStreamDecoder.CHARSET_UTF_8);
+                return true;
+
+            case R.id.action_framing_none:
+                setFraming(BTSession.FRAMING_NONE);
+                return true;
+
+            case R.id.action_framing_lf:
+                setFraming(BTSession.FRAMING_LF);
+                return true;
+
+            case R.id.action_framing_crlf:
+                setFraming(BTSession.FRAMING_CRLF);
+                return true;
+
+            case R.id.action_framing_length_prefix:
+                setFraming(BTSession.FRAMING_LENGTH_PREFIX);
+                return true;
+
+            case R.id.action_framing_slip:
+                setFraming(BTSession.FRAMING_SLIP);
+                return true;
+
+            case R.id.action_framing_cobs:
+                setFraming(BTSession.FRAMING_COBS);
+                return true;
+
+            case R.id.action_framing_fixed_length:
+                showFrameLength();
+                return true;
+
+            case R.id.action_stats:
+                setShowStats(!mShowStats);
+                return true;
+
+            case R.id.action_triggers:
+                showTriggers();
+                return true;
+
+            case R.id.action_dump_trace:
+                dumpTrace();
                 return true;
 
             default:
@@ -266,32 +1222,127 @@ public class BTTerminal extends Activity {
         }
     }
 
+    private void setFraming(int framing) {
+        mActiveSession.setFraming(framing);
+        sessionChanged(mActiveSession);
+    }
+
+    // Fixed length framing starts once the length was confirmed
+    private void showFrameLength() {
+        final BTSession session = mActiveSession;
+        final View view = getLayoutInflater().inflate(R.layout.dialog_frame_length, null);
+        final EditText frameLength = (EditText) view.findViewById(R.id.edit_frame_length);
+
+        frameLength.setText(String.valueOf(session.getFrameLength()));
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_frame_length)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        long length = parseLong(frameLength, session.getFrameLength());
+                        if (length <= 0 || length > Integer.MAX_VALUE) length = session.getFrameLength();
+
+                        session.setFrameLength((int) length);
+                        session.setFraming(BTSession.FRAMING_FIXED_LENGTH);
+                        sessionChanged(session);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        if (mBTConnection != null) {
-            int state = mBTConnection.getState();
+        if (mService == null) return super.onPrepareOptionsMenu(menu);
+
+        if (mActiveSession != null) {
+            BTConnection connection = mActiveSession.getConnection();
+            boolean listenSession = (mActiveSession == mConnectionManager.getListenSession());
 
-            switch (state) {
+            switch (connection.getState()) {
                 case BTConnection.STATE_CONNECTING:
                 case BTConnection.STATE_CONNECTED:
-                    menu.findItem(R.id.action_connect).setVisible(false);
+                case BTConnection.STATE_RECONNECTING:
                     menu.findItem(R.id.action_disconnect).setVisible(true);
-                    menu.findItem(R.id.action_listen).setVisible(false);
+                    menu.findItem(R.id.action_replay).setVisible(false);
                     break;
 
                 case BTConnection.STATE_NONE:
                 case BTConnection.STATE_LISTEN:
-                    menu.findItem(R.id.action_connect).setVisible(true);
                     menu.findItem(R.id.action_disconnect).setVisible(false);
-                    menu.findItem(R.id.action_listen).setVisible(true);
+                    menu.findItem(R.id.action_replay).setVisible(true);
                     break;
             }
+
+            // A send keeps going while reconnecting, it can be stopped but not started then. Sends and
+            // transfers exclude each other.
+            boolean connected = (connection.getState() == BTConnection.STATE_CONNECTED);
+            menu.findItem(R.id.action_send_file).setVisible(
+                    (connected && !connection.isTransferring()) || connection.isSending());
+            menu.findItem(R.id.action_transfer).setVisible(
+                    (connected && !connection.isSending()) || connection.isTransferring());
+
+            // Outgoing sessions only, incoming devices are not connected from here
+            String address = connection.getAddress();
+            boolean favorite = (address != null) && !listenSession;
+            menu.findItem(R.id.action_favorite).setVisible(favorite);
+            menu.findItem(R.id.action_favorite).setChecked(favorite &&
+                    mConnectionManager.getDeviceStore().isFavorite(address));
+
+            menu.findItem(R.id.action_sessions).setVisible(mConnectionManager.getSessions().size() > 1);
+            menu.findItem(R.id.action_close_session).setVisible(!listenSession);
+
+            menu.findItem(R.id.action_hex_view).setChecked(mActiveSession.isHexView());
+            menu.findItem(R.id.action_capture).setChecked(connection.isCapturing());
+            menu.findItem(R.id.action_replay).setChecked(connection.isReplaying());
+            menu.findItem(R.id.action_send_file).setChecked(connection.isSending());
+            menu.findItem(R.id.action_transfer).setChecked(connection.isTransferring());
+
+            String charsetName = mActiveSession.getCharset();
+            menu.findItem(R.id.action_charset_ascii).setChecked(BTStreamDecoder.CHARSET_ASCII.equals(charsetName));
+            menu.findItem(R.id.action_charset_iso_8859_1).setChecked(BTStreamDecoder.CHARSET_ISO_8859_1.equals(charsetName));
+            menu.findItem(R.id.action_charset_utf_8).setChecked(BTStreamDecoder.CHARSET_UTF_8.equals(charsetName));
+
+            menu.findItem(getFramingItem(mActiveSession.getFraming())).setChecked(true);
         }
 
-        menu.findItem(R.id.action_echo).setChecked(mLocalEcho);
-        menu.findItem(R.id.action_listen).setChecked(mListen);
+        menu.findItem(R.id.action_echo).setChecked(mService.isLocalEcho());
+        menu.findItem(R.id.action_listen).setChecked(mService.isListen());
+        menu.findItem(R.id.action_hex_input).setChecked(mHexInput);
+        menu.findItem(R.id.action_tile).setChecked(mTiled);
+        menu.findItem(R.id.action_stats).setChecked(mShowStats);
+        menu.findItem(R.id.action_search).setChecked(mSearchBar.getVisibility() == View.VISIBLE);
+        menu.findItem(R.id.action_reconnect).setChecked(mConnectionManager.getReconnectPolicy() != null);
+        menu.findItem(R.id.action_auto_connect).setChecked(mConnectionManager.getDeviceStore().isAutoConnect());
 
         return super.onPrepareOptionsMenu(menu);
     }
 
+    private int getFramingItem(int framing) {
+        switch (framing) {
+            case BTSession.FRAMING_LF:
+                return R.id.action_framing_lf;
+
+            case BTSession.FRAMING_CRLF:
+                return R.id.action_framing_crlf;
+
+            case BTSession.FRAMING_LENGTH_PREFIX:
+                return R.id.action_framing_length_prefix;
+
+            case BTSession.FRAMING_SLIP:
+                return R.id.action_framing_slip;
+
+            case BTSession.FRAMING_COBS:
+                return R.id.action_framing_cobs;
+
+            case BTSession.FRAMING_FIXED_LENGTH:
+                return R.id.action_framing_fixed_length;
+
+            case BTSession.FRAMING_NONE:
+            default:
+                return R.id.action_framing_none;
+        }
+    }
+
 }
@@ -0,0 +1,290 @@
+package com.example.konstantin.btterminal;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.nio.CharBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Terminal output backed by a BTScrollback.
+// Appending only invalidates, so any number of appends between two frames cost one redraw,
+// and onDraw() touches only the rows that are actually visible. Lines wider than the view wrap
+// onto further rows when drawn, the scrollback keeps them whole.
+public class BTTerminalView extends View {
+
+    // Scrollback Dimensions, the history kept and searched per session
+    public static final int SCROLLBACK_LINES = 20000;
+    public static final int SCROLLBACK_COLUMNS = 256;
+
+    // Lines of the placeholder a view shows until it gets its session scrollback
+    private static final int PLACEHOLDER_LINES = 64;
+
+    private static final int TEXT_COLOR = 0xFF00CC00;
+    private static final int HIGHLIGHT_COLOR = 0xFF505000;
+    private static final int MATCH_COLOR = 0xFFA0A000;
+
+    // Member Variables
+    private BTScrollback mScrollback;
+    private final Paint mTextPaint;
+    private final Paint mHighlightPaint;
+    private final Paint mMatchPaint;
+    private final Paint mLinePaint;
+    private final GestureDetector mGestureDetector;
+
+    private float mLineHeight;
+    private float mAscent;
+    private float mCharWidth;
+
+    // Search highlighting, all matches on visible rows and the current match
+    private Matcher mHighlightMatcher;
+    private long mMatchSeq = -1;
+    private int mMatchStart;
+    private int mMatchEnd;
+
+    // Lines scrolled back from the bottom, 0 follows new output
+    private int mScrollOffset;
+    private float mScrollRemainder;
+    private long mLastSeq;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTTerminalView(Context context) {
+        this(context, (AttributeSet) null);
+    }
+
+    public BTTerminalView(Context context, BTScrollback scrollback) {
+        this(context, (AttributeSet) null);
+        setScrollback(scrollback);
+    }
+
+    public BTTerminalView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        mScrollback = new BTScrollback(PLACEHOLDER_LINES, SCROLLBACK_COLUMNS);
+
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setColor(TEXT_COLOR);
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setTextSize(getResources().getDimension(R.dimen.terminal_text_size));
+
+        Paint.FontMetrics metrics = mTextPaint.getFontMetrics();
+        mLineHeight = metrics.descent - metrics.ascent + metrics.leading;
+        mAscent = -metrics.ascent;
+        mCharWidth = mTextPaint.measureText("M");
+
+        mHighlightPaint = new Paint();
+        mHighlightPaint.setColor(HIGHLIGHT_COLOR);
+        mMatchPaint = new Paint();
+        mMatchPaint.setColor(MATCH_COLOR);
+        mLinePaint = new Paint();
+
+        mGestureDetector = new GestureDetector(context, mGestureListener);
+    }
+
+    public void append(CharSequence text) {
+        mScrollback.append(text);
+        contentChanged();
+    }
+
+    public void append(char[] text, int offset, int count) {
+        mScrollback.append(text, offset, count);
+        contentChanged();
+    }
+
+    public void clear() {
+        mScrollback.clear();
+        mScrollOffset = 0;
+        mLastSeq = mScrollback.getLastSeq();
+        invalidate();
+    }
+
+    // To be called after the scrollback was written to directly
+    public void contentChanged() {
+        long lastSeq = mScrollback.getLastSeq();
+
+        // Keep a scrolled back view anchored to its lines
+        if (mScrollOffset > 0) {
+            mScrollOffset = Math.min(mScrollOffset + (int) (lastSeq - mLastSeq), getMaxScrollOffset());
+        }
+        mLastSeq = lastSeq;
+
+        // Coalesced by the framework into one draw per frame
+        invalidate();
+    }
+
+    private int getVisibleRows() {
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        return Math.max(1, (int) (height / mLineHeight));
+    }
+
+    private int getVisibleColumns() {
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        return Math.max(1, (int) (width / mCharWidth));
+    }
+
+    // Rows line takes when wrapped to columns, hidden lines take none
+    private int getLineRows(int line, int columns) {
+        if ((mScrollback.getLineAttributes(line) & BTScrollback.ATTR_HIDDEN) != 0) return 0;
+
+        return Math.max(1, (mScrollback.getLineLength(line) + columns - 1) / columns);
+    }
+
+    // Scrolled back this far the oldest line is at the top
+    private int getMaxScrollOffset() {
+        int rows = getVisibleRows();
+        int columns = getVisibleColumns();
+        int count = mScrollback.getLineCount();
+
+        for (int line = 0, filled = 0; line < count; line++) {
+            filled += getLineRows(line, columns);
+            if (filled >= rows) return count - 1 - line;
+        }
+        return 0;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        int rows = getVisibleRows();
+        int columns = getVisibleColumns();
+        int last = mScrollback.getLineCount() - 1 - mScrollOffset;
+
+        // Go back until the rows are filled, the first line may start above the top
+        int first = last + 1;
+        int shown = 0;
+        while (first > 0 && shown < rows) {
+            first--;
+            shown += getLineRows(first, columns);
+        }
+
+        float x = getPaddingLeft();
+        float y = getPaddingTop() + mAscent - Math.max(0, shown - rows) * mLineHeight;
+        long firstSeq = mScrollback.getFirstSeq();
+
+        for (int line = first; line <= last; line++) {
+            int lineRows = getLineRows(line, columns);
+            if (lineRows == 0) continue;
+
+            int attributes = mScrollback.getLineAttributes(line);
+
+            if ((attributes & BTScrollback.ATTR_HIGHLIGHT) != 0) {
+                float top = y - mAscent;
+                mLinePaint.setColor(0xFF000000 | (attributes & BTScrollback.ATTR_COLOR_MASK));
+                canvas.drawRect(x, top, getWidth() - getPaddingRight(), top + lineRows * mLineHeight, mLinePaint);
+            }
+
+            int length = mScrollback.getLineLength(line);
+
+            if (length > 0) {
+                char[] chars = mScrollback.getLineChars(line);
+
+                if (mHighlightMatcher != null) drawHighlights(canvas, chars, length, columns, x, y);
+                if (firstSeq + line == mMatchSeq) {
+                    drawHighlight(canvas, mMatchStart, mMatchEnd, columns, x, y, mMatchPaint);
+                }
+
+                for (int start = 0; start < length; start += columns) {
+                    canvas.drawText(chars, start, Math.min(columns, length - start), x, y, mTextPaint);
+                    y += mLineHeight;
+                }
+            } else {
+                y += mLineHeight;
+            }
+        }
+    }
+
+    private void drawHighlights(Canvas canvas, char[] chars, int length, int columns, float x, float y) {
+        Matcher matcher = mHighlightMatcher.reset(CharBuffer.wrap(chars, 0, length));
+
+        while (matcher.find()) {
+            if (matcher.end() == matcher.start()) break;
+            drawHighlight(canvas, matcher.start(), matcher.end(), columns, x, y, mHighlightPaint);
+        }
+    }
+
+    // Marks start to end of a line whose first row has baseline y, one rectangle per wrapped row
+    private void drawHighlight(Canvas canvas, int start, int end, int columns, float x, float y, Paint paint) {
+        while (start < end) {
+            int row = start / columns;
+            int rowEnd = Math.min(end, (row + 1) * columns);
+            float top = y - mAscent + row * mLineHeight;
+            float left = x + (start - row * columns) * mCharWidth;
+
+            canvas.drawRect(left, top, left + (rowEnd - start) * mCharWidth, top + mLineHeight, paint);
+            start = rowEnd;
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return mGestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+    private final GestureDetector.SimpleOnGestureListener mGestureListener = new GestureDetector.SimpleOnGestureListener() {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            mScrollRemainder = 0;
+            return true;
+        }
+
+        @Override
+        public boolean onSingleTapUp(MotionEvent e) {
+            return performClick();
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            mScrollRemainder -= distanceY;
+
+            int lines = (int) (mScrollRemainder / mLineHeight);
+            if (lines != 0) {
+                mScrollRemainder -= lines * mLineHeight;
+                mScrollOffset = Math.max(0, Math.min(mScrollOffset + lines, getMaxScrollOffset()));
+                invalidate();
+            }
+            return true;
+        }
+    };
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public void setScrollback(BTScrollback scrollback) {
+        mScrollback = scrollback;
+        mScrollOffset = 0;
+        mMatchSeq = -1;
+        mLastSeq = scrollback.getLastSeq();
+        invalidate();
+    }
+
+    public BTScrollback getScrollback() {
+        return mScrollback;
+    }
+
+    // Highlights every match of pattern on the visible rows, null turns highlighting off
+    public void setHighlight(Pattern pattern) {
+        mHighlightMatcher = (pattern != null) ? pattern.matcher("") : null;
+        invalidate();
+    }
+
+    // Marks the current match and scrolls its line into the middle of the view, -1 clears it
+    public void setMatch(long seq, int start, int end) {
+        mMatchSeq = seq;
+        mMatchStart = start;
+        mMatchEnd = end;
+
+        if (seq >= 0) {
+            int line = (int) (seq - mScrollback.getFirstSeq());
+            int offset = mScrollback.getLineCount() - 1 - line - getVisibleRows() / 2;
+
+            mScrollOffset = Math.max(0, Math.min(offset, getMaxScrollOffset()));
+            mLastSeq = mScrollback.getLastSeq();
+        }
+        invalidate();
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.konstantin.btterminal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Stream transport used by BTConnection, RFCOMM on devices.
+// Pipe and TCP implementations carry the same streams without radios, e.g. in tests.
+public interface BTTransport {
+
+    // Unconnected outgoing endpoint, connect() blocks until established or failed.
+    // Called on the thread that starts the connect, so it must not block itself.
+    Endpoint createEndpoint(String address) throws IOException;
+
+    // Incoming connections
+    Acceptor listen() throws IOException;
+
+    interface Endpoint extends Closeable {
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getName();
+
+        String getAddress();
+    }
+
+    interface Acceptor extends Closeable {
+        // Returns a connected endpoint, fails once the Acceptor is closed
+        Endpoint accept() throws IOException;
+    }
+}
@@ -0,0 +1,370 @@
+package com.example.konstantin.btterminal;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Evaluates trigger rules against received lines and frames.
+// Text and byte patterns, and the literal every match of a regex must contain, are compiled into
+// one Aho-Corasick automaton, so each received byte costs a single table lookup however many rules
+// there are. A regex only runs on lines its literal occurred in, regexes without one run on every
+// line.
+//
+// The automaton folds ASCII case, case sensitive patterns are verified on a hit. Bytes are fed one
+// line (or frame) at a time, endLine() then reports the rules that fired. Lines longer than
+// MAX_LINE are scanned in full, but regexes and case checks only see their first MAX_LINE bytes.
+// To be used from one thread only, each session has its own engine.
+public class BTTriggerEngine {
+
+    public static final int MAX_LINE = 4096;
+
+    private static final int ROOT = 0;
+
+    // Called for each rule that fired, line is only valid during the call
+    public interface Listener {
+        void onTrigger(BTTriggerRule rule, byte[] line, int length);
+    }
+
+    // Member Variables
+    private final BTTriggerRule[] mRules;
+    private final Charset mCharset;
+
+    // Automaton, mNext[state * mClassCount + class] is the next state for every input
+    private final int[] mClasses = new int[256];
+    private final int mClassCount;
+    private final int[] mNext;
+    private final int[][] mOutputs;
+
+    // Per pattern: its rule, the bytes to verify a hit against (null if case cannot differ)
+    // and whether it only preselects a regex
+    private final int[] mPatternRules;
+    private final byte[][] mPatternBytes;
+    private final boolean[] mPatternPrefilter;
+
+    // Regex rules without a required literal
+    private final int[] mUnfiltered;
+    private final Matcher[] mMatchers;
+
+    // Current line
+    private final byte[] mLine = new byte[MAX_LINE];
+    private int mLineLength;
+    private int mState = ROOT;
+    private final boolean[] mCandidates;
+    private final int[] mCandidateList;
+    private int mCandidateCount;
+    private int mColor;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTTriggerEngine(List<BTTriggerRule> rules, Charset charset) {
+        mRules = rules.toArray(new BTTriggerRule[rules.size()]);
+        mCharset = charset;
+
+        mCandidates = new boolean[mRules.length];
+        mCandidateList = new int[mRules.length];
+        mMatchers = new Matcher[mRules.length];
+
+        // Collect one pattern per rule, regexes without a literal are run on every line
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        List<Integer> patternRules = new ArrayList<Integer>();
+        List<Boolean> prefilters = new ArrayList<Boolean>();
+        List<Integer> unfiltered = new ArrayList<Integer>();
+
+        for (int i = 0; i < mRules.length; i++) {
+            BTTriggerRule rule = mRules[i];
+
+            switch (rule.getType()) {
+                case BTTriggerRule.TYPE_TEXT:
+                    patterns.add(rule.getText().getBytes(charset));
+                    patternRules.add(i);
+                    prefilters.add(false);
+                    break;
+
+                case BTTriggerRule.TYPE_BYTES:
+                    patterns.add(rule.getBytes());
+                    patternRules.add(i);
+                    prefilters.add(false);
+                    break;
+
+                case BTTriggerRule.TYPE_REGEX:
+                    mMatchers[i] = rule.getPattern().matcher("");
+                    String literal = regexLiteral(rule.getPattern());
+
+                    if (literal != null) {
+                        patterns.add(literal.getBytes(charset));
+                        patternRules.add(i);
+                        prefilters.add(true);
+                    } else {
+                        unfiltered.add(i);
+                    }
+                    break;
+            }
+        }
+
+        int count = patterns.size();
+        mPatternRules = new int[count];
+        mPatternBytes = new byte[count][];
+        mPatternPrefilter = new boolean[count];
+
+        for (int p = 0; p < count; p++) {
+            mPatternRules[p] = patternRules.get(p);
+            mPatternPrefilter[p] = prefilters.get(p);
+
+            // Prefilters are not verified, the regex decides
+            if (!mPatternPrefilter[p] && hasLetters(patterns.get(p))) mPatternBytes[p] = patterns.get(p);
+        }
+
+        mUnfiltered = new int[unfiltered.size()];
+        for (int i = 0; i < mUnfiltered.length; i++) {
+            mUnfiltered[i] = unfiltered.get(i);
+        }
+
+        // Bytes not in any pattern share class 0, a few dozen classes keep the table small
+        int classes = 1;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                int folded = fold(b & 0xFF);
+                if (mClasses[folded] == 0) mClasses[folded] = classes++;
+            }
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            mClasses[c] = mClasses[c | 0x20];
+        }
+        mClassCount = classes;
+
+        // Trie of folded patterns, -1 for missing edges
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+
+        int[] next = new int[maxStates * mClassCount];
+        Arrays.fill(next, -1);
+        List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+        outputs.add(null);
+        int states = 1;
+
+        for (int p = 0; p < count; p++) {
+            int state = ROOT;
+
+            for (byte b : patterns.get(p)) {
+                int edge = state * mClassCount + mClasses[b & 0xFF];
+
+                if (next[edge] < 0) {
+                    next[edge] = states++;
+                    outputs.add(null);
+                }
+                state = next[edge];
+            }
+
+            if (outputs.get(state) == null) outputs.set(state, new ArrayList<Integer>());
+            outputs.get(state).add(p);
+        }
+
+        // Breadth first, fill in missing edges from the failure state and inherit its outputs
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+
+        for (int c = 0; c < mClassCount; c++) {
+            int target = next[ROOT * mClassCount + c];
+
+            if (target < 0) {
+                next[ROOT * mClassCount + c] = ROOT;
+            } else {
+                fail[target] = ROOT;
+                queue[tail++] = target;
+            }
+        }
+
+        while (head < tail) {
+            int state = queue[head++];
+
+            List<Integer> inherited = outputs.get(fail[state]);
+            if (inherited != null) {
+                if (outputs.get(state) == null) outputs.set(state, new ArrayList<Integer>());
+                outputs.get(state).addAll(inherited);
+            }
+
+            for (int c = 0; c < mClassCount; c++) {
+                int edge = state * mClassCount + c;
+                int fallback = next[fail[state] * mClassCount + c];
+
+                if (next[edge] < 0) {
+                    next[edge] = fallback;
+                } else {
+                    fail[next[edge]] = fallback;
+                    queue[tail++] = next[edge];
+                }
+            }
+        }
+
+        mNext = Arrays.copyOf(next, states * mClassCount);
+        mOutputs = new int[states][];
+
+        for (int s = 0; s < states; s++) {
+            List<Integer> output = outputs.get(s);
+            if (output == null) continue;
+
+            mOutputs[s] = new int[output.size()];
+            for (int i = 0; i < output.size(); i++) {
+                mOutputs[s][i] = output.get(i);
+            }
+        }
+    }
+
+    // Scans part of the current line
+    public void feed(byte[] data, int offset, int count) {
+        int[] next = mNext;
+        int[] classes = mClasses;
+        int classCount = mClassCount;
+        int state = mState;
+        int end = offset + count;
+
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (mLineLength < MAX_LINE) mLine[mLineLength] = b;
+            mLineLength++;
+
+            state = next[state * classCount + classes[b & 0xFF]];
+            if (mOutputs[state] != null) hit(mOutputs[state]);
+        }
+
+        mState = state;
+    }
+
+    private void hit(int[] patterns) {
+        for (int p : patterns) {
+            int rule = mPatternRules[p];
+            if (mCandidates[rule]) continue;
+
+            byte[] bytes = mPatternBytes[p];
+            if (bytes != null && mLineLength <= MAX_LINE && !matchesAt(bytes, mLineLength - bytes.length)) continue;
+
+            mCandidates[rule] = true;
+            mCandidateList[mCandidateCount++] = rule;
+        }
+    }
+
+    private boolean matchesAt(byte[] bytes, int offset) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (mLine[offset + i] != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    // Ends the line or frame fed since the last call. Returns the actions of all rules that fired,
+    // getColor() is then the highlight color of the first highlighting one.
+    public int endLine(Listener listener) {
+        int actions = 0;
+        int length = Math.min(mLineLength, MAX_LINE);
+        String text = null;
+
+        mColor = BTTriggerRule.DEFAULT_HIGHLIGHT_COLOR;
+        boolean colored = false;
+
+        for (int rule : mUnfiltered) {
+            if (!mCandidates[rule]) {
+                mCandidates[rule] = true;
+                mCandidateList[mCandidateCount++] = rule;
+            }
+        }
+
+        // Rules fire in the order they were written
+        Arrays.sort(mCandidateList, 0, mCandidateCount);
+
+        for (int i = 0; i < mCandidateCount; i++) {
+            BTTriggerRule rule = mRules[mCandidateList[i]];
+            mCandidates[mCandidateList[i]] = false;
+
+            // Regexes see the line without its line break
+            if (rule.getType() == BTTriggerRule.TYPE_REGEX) {
+                if (text == null) text = new String(mLine, 0, trimLineBreak(length), mCharset);
+                if (!mMatchers[mCandidateList[i]].reset(text).find()) continue;
+            }
+
+            rule.hit();
+            actions |= rule.getActions();
+
+            if (!colored && rule.hasAction(BTTriggerRule.ACTION_HIGHLIGHT)) {
+                mColor = rule.getColor();
+                colored = true;
+            }
+
+            if (listener != null) listener.onTrigger(rule, mLine, length);
+        }
+
+        mCandidateCount = 0;
+        mLineLength = 0;
+        mState = ROOT;
+        return actions;
+    }
+
+    // Discards the line fed so far
+    public void reset() {
+        for (int i = 0; i < mCandidateCount; i++) {
+            mCandidates[mCandidateList[i]] = false;
+        }
+
+        mCandidateCount = 0;
+        mLineLength = 0;
+        mState = ROOT;
+    }
+
+    private int trimLineBreak(int length) {
+        while (length > 0 && (mLine[length - 1] == '\n' || mLine[length - 1] == '\r')) {
+            length--;
+        }
+        return length;
+    }
+
+    // Required literal of a regex, if the automaton can find it as bytes
+    private static String regexLiteral(Pattern pattern) {
+        if ((pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS)) != 0) return null;
+
+        String literal = BTSearchIndex.requiredLiteral(pattern.pattern());
+        if (literal == null) return null;
+
+        // The automaton folds ASCII only, unicode case folding could miss a hit
+        boolean caseless = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0 || pattern.pattern().contains("(?");
+        if (caseless) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (literal.charAt(i) >= 0x80) return null;
+            }
+        }
+        return literal;
+    }
+
+    private static int fold(int b) {
+        return (b >= 'A' && b <= 'Z') ? b | 0x20 : b;
+    }
+
+    private static boolean hasLetters(byte[] pattern) {
+        for (byte b : pattern) {
+            if (fold(b & 0xFF) >= 'a' && fold(b & 0xFF) <= 'z') return true;
+        }
+        return false;
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Valid after endLine()
+    public int getColor() {
+        return mColor;
+    }
+
+    public List<BTTriggerRule> getRules() {
+        return Arrays.asList(mRules);
+    }
+
+    public Charset getCharset() {
+        return mCharset;
+    }
+
+    // States of the compiled automaton, for diagnostics
+    public int getStateCount() {
+        return mOutputs.length;
+    }
+}
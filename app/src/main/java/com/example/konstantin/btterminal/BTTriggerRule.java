@@ -0,0 +1,237 @@
+package com.example.konstantin.btterminal;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// One trigger: a pattern matched against each received line or frame, and what to do on a match.
+// Rules are immutable apart from their hit counter and are shared by all sessions.
+//
+// Rules are written one per line:
+//
+//   <action>[,<action>...] <type> <pattern>[ => <reply>]
+//
+//   actions: highlight[=#RRGGBB], suppress, count, notify, reply
+//   types:   text  - literal text, case sensitive
+//            bytes - hex bytes, e.g. 7E FF 01
+//            regex - java.util.regex pattern, matched against the line without its line break
+//
+// The reply is text with \r, \n, \t, \\ and \xHH escapes. Empty lines and lines starting
+// with # are skipped by the caller.
+public class BTTriggerRule {
+
+    // Actions
+    public static final int ACTION_HIGHLIGHT = 1;
+    public static final int ACTION_SUPPRESS = 2;
+    public static final int ACTION_COUNT = 4;
+    public static final int ACTION_NOTIFY = 8;
+    public static final int ACTION_REPLY = 16;
+
+    // Pattern Types
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_BYTES = 1;
+    public static final int TYPE_REGEX = 2;
+
+    public static final int DEFAULT_HIGHLIGHT_COLOR = 0x505000;
+
+    private static final String REPLY_SEPARATOR = " => ";
+    private static final int MAX_PATTERN_BYTES = 256;
+    private static final Charset UTF_8 = Charset.forName(BTStreamDecoder.CHARSET_UTF_8);
+
+    // Member Variables
+    private final String mSource;
+    private final int mActions;
+    private final int mType;
+    private final String mText;
+    private final byte[] mBytes;
+    private final Pattern mPattern;
+    private final int mColor;
+    private final byte[] mReply;
+    private final AtomicLong mHits = new AtomicLong();
+
+//-- Service Functions -----------------------------------------------------------------------------
+    private BTTriggerRule(String source, int actions, int type, String text, byte[] bytes,
+                          Pattern pattern, int color, byte[] reply) {
+        mSource = source;
+        mActions = actions;
+        mType = type;
+        mText = text;
+        mBytes = bytes;
+        mPattern = pattern;
+        mColor = color;
+        mReply = reply;
+    }
+
+    // Throws IllegalArgumentException, with a message fit for the user, for malformed rules
+    public static BTTriggerRule parse(String line) {
+        String source = line.trim();
+        String[] fields = source.split("\\s+", 3);
+        if (fields.length < 3) throw new IllegalArgumentException("expected <actions> <type> <pattern>");
+
+        int actions = 0;
+        int color = DEFAULT_HIGHLIGHT_COLOR;
+
+        for (String action : fields[0].toLowerCase(Locale.US).split(",")) {
+            if (action.startsWith("highlight=#")) {
+                color = parseColor(action.substring("highlight=#".length()));
+                actions |= ACTION_HIGHLIGHT;
+            } else if (action.equals("highlight")) {
+                actions |= ACTION_HIGHLIGHT;
+            } else if (action.equals("suppress")) {
+                actions |= ACTION_SUPPRESS;
+            } else if (action.equals("count")) {
+                actions |= ACTION_COUNT;
+            } else if (action.equals("notify")) {
+                actions |= ACTION_NOTIFY;
+            } else if (action.equals("reply")) {
+                actions |= ACTION_REPLY;
+            } else {
+                throw new IllegalArgumentException("unknown action " + action);
+            }
+        }
+
+        String pattern = fields[2];
+        byte[] reply = null;
+
+        int separator = pattern.lastIndexOf(REPLY_SEPARATOR);
+        if ((actions & ACTION_REPLY) != 0) {
+            if (separator < 0) throw new IllegalArgumentException("reply without \"" + REPLY_SEPARATOR.trim() + "\"");
+
+            reply = unescape(pattern.substring(separator + REPLY_SEPARATOR.length()));
+            pattern = pattern.substring(0, separator);
+        }
+        if (pattern.isEmpty()) throw new IllegalArgumentException("empty pattern");
+
+        String type = fields[1].toLowerCase(Locale.US);
+
+        if (type.equals("text")) {
+            return new BTTriggerRule(source, actions, TYPE_TEXT, pattern, null, null, color, reply);
+        } else if (type.equals("bytes")) {
+            byte[] bytes = new byte[MAX_PATTERN_BYTES];
+            int count = BTHexFormatter.parse(pattern, bytes);
+            if (count <= 0) throw new IllegalArgumentException("invalid hex bytes " + pattern);
+
+            byte[] trimmed = new byte[count];
+            System.arraycopy(bytes, 0, trimmed, 0, count);
+            return new BTTriggerRule(source, actions, TYPE_BYTES, null, trimmed, null, color, reply);
+        } else if (type.equals("regex")) {
+            // PatternSyntaxException is an IllegalArgumentException
+            return new BTTriggerRule(source, actions, TYPE_REGEX, null, null, Pattern.compile(pattern), color, reply);
+        }
+
+        throw new IllegalArgumentException("unknown type " + fields[1]);
+    }
+
+    private static int parseColor(String hex) {
+        if (hex.length() != 6) throw new IllegalArgumentException("invalid color #" + hex);
+
+        try {
+            return Integer.parseInt(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid color #" + hex);
+        }
+    }
+
+    // Text is sent as UTF-8, \xHH as the raw byte
+    private static byte[] unescape(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length());
+        StringBuilder pending = new StringBuilder();
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c != '\\' || i + 1 == text.length()) {
+                pending.append(c);
+                continue;
+            }
+
+            char e = text.charAt(++i);
+            switch (e) {
+                case 'r': pending.append('\r'); break;
+                case 'n': pending.append('\n'); break;
+                case 't': pending.append('\t'); break;
+
+                case 'x':
+                    String hex = text.substring(i + 1, Math.min(i + 3, text.length()));
+                    if (hex.length() != 2 || Character.digit(hex.charAt(0), 16) < 0
+                            || Character.digit(hex.charAt(1), 16) < 0) {
+                        throw new IllegalArgumentException("invalid escape \\x" + hex);
+                    }
+
+                    encode(pending, bytes);
+                    bytes.write(Integer.parseInt(hex, 16));
+                    i += 2;
+                    break;
+
+                default:
+                    pending.append(e);
+                    break;
+            }
+        }
+
+        encode(pending, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static void encode(StringBuilder text, ByteArrayOutputStream bytes) {
+        byte[] encoded = text.toString().getBytes(UTF_8);
+        bytes.write(encoded, 0, encoded.length);
+        text.setLength(0);
+    }
+
+    public long hit() {
+        return mHits.incrementAndGet();
+    }
+
+    public void resetHits() {
+        mHits.set(0);
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // The rule as written
+    public String getSource() {
+        return mSource;
+    }
+
+    public int getActions() {
+        return mActions;
+    }
+
+    public boolean hasAction(int action) {
+        return (mActions & action) != 0;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    // TYPE_TEXT only, encoded with the session charset when compiled
+    public String getText() {
+        return mText;
+    }
+
+    // TYPE_BYTES only
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    // TYPE_REGEX only
+    public Pattern getPattern() {
+        return mPattern;
+    }
+
+    // RGB without alpha
+    public int getColor() {
+        return mColor;
+    }
+
+    public byte[] getReply() {
+        return mReply;
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+// Bounded outbound queue drained by a writer task, which occupies one executor thread from
+// attach() until detach() or shutdown(). Pending payloads are coalesced into writes of up to
+// maxWriteSize bytes.
+// Callbacks run on the writer thread once their payload was written or failed.
+public class BTWriteQueue {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final int DEFAULT_MAX_WRITE_SIZE = 4096;
+
+    public interface Callback {
+        void onWriteComplete(byte[] data, int offset, int count, boolean success);
+    }
+
+    // Member Variables
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+    private int mQueuedBytes;
+
+    private int mCapacity;
+    private int mMaxWriteSize;
+
+    private final Executor mExecutor;
+    private OutputStream mOutStream;
+    private Writer mWriter;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTWriteQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_WRITE_SIZE, null);
+    }
+
+    // Without executor the writer gets a thread of its own
+    public BTWriteQueue(int capacity, int maxWriteSize, Executor executor) {
+        setLimits(capacity, maxWriteSize);
+
+        if (executor == null) {
+            executor = new Executor() {
+                public void execute(Runnable runnable) {
+                    new Thread(runnable, "WriterThread").start();
+                }
+            };
+        }
+        mExecutor = executor;
+    }
+
+    // Returns false if the payload does not fit into the queue. A payload larger than the
+    // capacity is accepted into an empty queue only.
+    // data is queued by reference, not copied. Once accepted the caller must not modify it until
+    // callback reported it written or failed, without callback not at all.
+    public synchronized boolean write(byte[] data, int offset, int count, Callback callback) {
+        if (mQueuedBytes > 0 && mQueuedBytes + count > mCapacity) return false;
+
+        mQueue.add(new Entry(data, offset, count, callback));
+        mQueuedBytes += count;
+
+        notifyAll();
+        return true;
+    }
+
+    // Starts a writer draining into the stream.
+    // Throws RejectedExecutionException if the executor has no thread left for it.
+    public synchronized void attach(OutputStream outStream) {
+        if (mWriter == null) {
+            Writer writer = new Writer();
+            mExecutor.execute(writer);
+            mWriter = writer;
+        }
+
+        mOutStream = outStream;
+        notifyAll();
+    }
+
+    // Stops draining and ends the writer, which frees its thread once a write in progress
+    // returned. Queued payloads are kept for the next attach().
+    public synchronized void detach() {
+        mOutStream = null;
+        stopWriter();
+    }
+
+    // Fails all queued payloads
+    public void clear() {
+        ArrayList<Entry> failed;
+
+        synchronized (this) {
+            failed = new ArrayList<Entry>(mQueue);
+            mQueue.clear();
+            mQueuedBytes = 0;
+        }
+
+        complete(failed, false);
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            mOutStream = null;
+            stopWriter();
+        }
+
+        clear();
+    }
+
+    private void stopWriter() {
+        if (mWriter != null) {
+            mWriter.mmRunning = false;
+            mWriter = null;
+        }
+
+        notifyAll();
+    }
+
+    private void complete(ArrayList<Entry> entries, boolean success) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+
+            if (entry.mmCallback != null) {
+                entry.mmCallback.onWriteComplete(entry.mmData, entry.mmOffset, entry.mmCount, success);
+            }
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    public synchronized void setLimits(int capacity, int maxWriteSize) {
+        mCapacity = capacity;
+        mMaxWriteSize = maxWriteSize;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public synchronized int getQueuedWrites() {
+        return mQueue.size();
+    }
+
+//##################################################################################################
+
+    private static class Entry {
+        private final byte[] mmData;
+        private final int mmOffset;
+        private final int mmCount;
+        private final Callback mmCallback;
+
+        public Entry(byte[] data, int offset, int count, Callback callback) {
+            mmData = data;
+            mmOffset = offset;
+            mmCount = count;
+            mmCallback = callback;
+        }
+    }
+
+//##################################################################################################
+
+    private class Writer implements Runnable {
+        private volatile boolean mmRunning = true;
+        private final ArrayList<Entry> mmBatch = new ArrayList<Entry>();
+
+        // Own buffer, a detached writer may still be finishing a write when the next one starts
+        private byte[] mmWriteBuffer = new byte[0];
+
+        public void run() {
+            while (true) {
+                OutputStream outStream;
+                byte[] writeBuffer;
+                int size = 0;
+
+                synchronized (BTWriteQueue.this) {
+                    while (mmRunning && (mQueue.isEmpty() || mOutStream == null)) {
+                        try {
+                            BTWriteQueue.this.wait();
+                        } catch (InterruptedException e) {
+                            mmRunning = false;
+                        }
+                    }
+
+                    if (!mmRunning) break;
+
+                    outStream = mOutStream;
+                    if (mmWriteBuffer.length != mMaxWriteSize) mmWriteBuffer = new byte[mMaxWriteSize];
+                    writeBuffer = mmWriteBuffer;
+
+                    // Take as many payloads as fit into one write, at least one
+                    while (!mQueue.isEmpty()) {
+                        Entry entry = mQueue.peek();
+                        if (size > 0 && size + entry.mmCount > writeBuffer.length) break;
+
+                        mQueue.poll();
+                        mmBatch.add(entry);
+                        size += entry.mmCount;
+                        mQueuedBytes -= entry.mmCount;
+                    }
+                }
+
+                boolean success = true;
+
+                try {
+                    if (mmBatch.size() == 1) {
+                        Entry entry = mmBatch.get(0);
+                        outStream.write(entry.mmData, entry.mmOffset, entry.mmCount);
+                    } else {
+                        int position = 0;
+                        for (int i = 0; i < mmBatch.size(); i++) {
+                            Entry entry = mmBatch.get(i);
+                            System.arraycopy(entry.mmData, entry.mmOffset, writeBuffer, position, entry.mmCount);
+                            position += entry.mmCount;
+                        }
+                        outStream.write(writeBuffer, 0, position);
+                    }
+                    outStream.flush();
+                } catch (IOException e) {
+                    success = false;
+                }
+
+                complete(mmBatch, success);
+                mmBatch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+// XMODEM-CRC, XMODEM-1K, YMODEM batch and YMODEM-G.
+// Every block waits for its acknowledge, so the rate is bound by one round trip per block; 1K
+// blocks amortize it eight times better than 128 byte ones. YMODEM-G, requested by a receiver
+// sending 'G', streams all blocks back to back and relies on the link being error free: a bad
+// block cancels the transfer.
+//
+// The sender falls back to the 8 bit checksum if the receiver asks with NAK, the receiver asks
+// for CRC first and falls back to the checksum for plain XMODEM.
+public class BTXModem extends BTModem {
+
+    // Control Characters
+    private static final int SOH = 0x01;
+    private static final int STX = 0x02;
+    private static final int EOT = 0x04;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int SUB = 0x1A;
+    private static final int START_CRC = 'C';
+    private static final int START_STREAMING = 'G';
+
+    // Timeouts (ms) and Retries
+    private static final long START_TIMEOUT = 60000;
+    private static final long RESPONSE_TIMEOUT = 10000;
+    private static final long HANDSHAKE_TIMEOUT = 3000;
+    private static final long BYTE_TIMEOUT = 1000;
+    private static final int MAX_RETRIES = 10;
+    private static final int CRC_TRIES = 3;
+
+    // readPacket() results besides a block number
+    private static final int PACKET_TIMEOUT = -1;
+    private static final int PACKET_BAD = -2;
+    private static final int PACKET_EOT = -3;
+
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    // Member Variables
+    private final boolean mBatch;
+    private final boolean mStreamingReceiver;
+    private final int mBlockSize;
+
+    // Negotiated per file
+    private boolean mCrc = true;
+    private boolean mStreaming;
+
+    // Header, block number, ~number, up to 1024 bytes of data and the CRC
+    private final byte[] mPacket = new byte[3 + 1024 + 2];
+    private int mPacketSize;
+    private final byte[] mTxPacket = new byte[3 + 1024 + 2];
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTXModem(int protocol, BTRingBuffer in, OutputStream out) {
+        super(protocol, in, out);
+
+        mBatch = (protocol == PROTOCOL_YMODEM || protocol == PROTOCOL_YMODEM_G);
+        mStreamingReceiver = (protocol == PROTOCOL_YMODEM_G);
+        mBlockSize = (protocol == PROTOCOL_XMODEM) ? 128 : 1024;
+    }
+
+    //-- Sender ------------------------------------------------------------------------------------
+    protected void doSend(List<Source> files) throws IOException {
+        if (!mBatch) {
+            sendFile(files.get(0));
+            return;
+        }
+
+        for (Source file : files) {
+            sendFile(file);
+        }
+
+        // An empty header ends the batch
+        waitStart();
+        byte[] header = new byte[128];
+        sendBlock(0, header, 0, 128, true);
+    }
+
+    private void sendFile(Source file) throws IOException {
+        startFile(file.getName(), file.getLength());
+
+        if (mBatch) {
+            waitStart();
+            sendHeader(file.getName(), file.getLength());
+        }
+
+        waitStart();
+
+        byte[] data = new byte[mBlockSize];
+        InputStream in = file.open();
+        long position = 0;
+        int number = 1;
+
+        try {
+            while (true) {
+                int count = read(in, data);
+                if (count == 0) break;
+
+                // A short tail goes into a short block
+                int size = (count <= 128) ? 128 : mBlockSize;
+                sendBlock(number, data, count, size, false);
+
+                number = (number + 1) & 0xFF;
+                position += count;
+                fileProgress(position);
+
+                if (count < mBlockSize) break;
+            }
+        } finally {
+            in.close();
+        }
+
+        sendEot();
+    }
+
+    // Fills data unless the end of the file came first
+    private static int read(InputStream in, byte[] data) throws IOException {
+        int count = 0;
+
+        while (count < data.length) {
+            int bytes = in.read(data, count, data.length - count);
+            if (bytes < 0) break;
+            count += bytes;
+        }
+        return count;
+    }
+
+    // Block 0, the file name and its size in decimal
+    private void sendHeader(String name, long length) throws IOException {
+        byte[] nameBytes = name.getBytes(NAME_CHARSET);
+        byte[] lengthBytes = (length >= 0) ? Long.toString(length).getBytes(NAME_CHARSET) : new byte[0];
+
+        int size = (nameBytes.length + lengthBytes.length + 2 <= 128) ? 128 : 1024;
+        byte[] header = new byte[size];
+        int count = Math.min(nameBytes.length, size - lengthBytes.length - 2);
+
+        System.arraycopy(nameBytes, 0, header, 0, count);
+        System.arraycopy(lengthBytes, 0, header, count + 1, lengthBytes.length);
+
+        sendBlock(0, header, size, size, true);
+    }
+
+    // Waits for the receiver to ask for the next file, which also tells the error check
+    private void waitStart() throws IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+
+        while (System.currentTimeMillis() < deadline) {
+            int c = readByte(deadline - System.currentTimeMillis());
+
+            switch (c) {
+                case START_CRC:
+                    mCrc = true;
+                    mStreaming = false;
+                    return;
+
+                case START_STREAMING:
+                    mCrc = true;
+                    mStreaming = true;
+                    return;
+
+                case NAK:
+                    mCrc = false;
+                    mStreaming = false;
+                    return;
+
+                case CAN:
+                    if (readByte(BYTE_TIMEOUT) == CAN) throw peerCancelled();
+                    break;
+            }
+        }
+
+        throw new IOException("Receiver did not start");
+    }
+
+    // Sends count bytes of data padded to size, and waits for the acknowledge unless streaming
+    private void sendBlock(int number, byte[] data, int count, int size, boolean header) throws IOException {
+        byte[] packet = mTxPacket;
+        int length = 3 + size;
+
+        packet[0] = (byte) ((size == 128) ? SOH : STX);
+        packet[1] = (byte) number;
+        packet[2] = (byte) ~number;
+        System.arraycopy(data, 0, packet, 3, count);
+
+        // Header blocks are padded with zeros
+        for (int i = 3 + count; i < length; i++) {
+            packet[i] = (byte) (header ? 0 : SUB);
+        }
+
+        if (mCrc) {
+            int crc = crc16(0, packet, 3, size);
+            packet[length++] = (byte) (crc >> 8);
+            packet[length++] = (byte) crc;
+        } else {
+            int sum = 0;
+            for (int i = 3; i < length; i++) {
+                sum += packet[i];
+            }
+            packet[length++] = (byte) sum;
+        }
+
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            mOut.write(packet, 0, length);
+            flush();
+
+            if (mStreaming) {
+                // Only a cancel can come back
+                if (available() > 0 && readByte(0) == CAN && readByte(BYTE_TIMEOUT) == CAN) throw peerCancelled();
+                return;
+            }
+
+            if (waitAck(header || number == 1)) return;
+        }
+
+        throw new IOException("Block " + number + " not acknowledged");
+    }
+
+    // True for ACK, false if the block has to be repeated. The receiver repeating its start
+    // character means the first block was lost.
+    private boolean waitAck(boolean first) throws IOException {
+        while (true) {
+            int c = readByte(RESPONSE_TIMEOUT);
+
+            switch (c) {
+                case ACK:
+                    return true;
+
+                case NAK:
+                case TIMEOUT:
+                    return false;
+
+                case START_CRC:
+                case START_STREAMING:
+                    if (first) return false;
+                    break;
+
+                case CAN:
+                    if (readByte(BYTE_TIMEOUT) == CAN) throw peerCancelled();
+                    break;
+            }
+        }
+    }
+
+    // Repeated until acknowledged, YMODEM receivers refuse the first one
+    private void sendEot() throws IOException {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            mOut.write(EOT);
+            flush();
+
+            if (waitAck(false)) return;
+        }
+
+        throw new IOException("End of file not acknowledged");
+    }
+
+    //-- Receiver ----------------------------------------------------------------------------------
+    protected void doReceive(Sink sink) throws IOException {
+        if (!mBatch) {
+            receiveFile(sink, null, -1);
+            return;
+        }
+
+        while (receiveHeader(sink)) {
+            // Next file
+        }
+    }
+
+    // False for the empty header ending the batch
+    private boolean receiveHeader(Sink sink) throws IOException {
+        int number = handshake();
+
+        // The sender missed our acknowledge of the last end of file
+        for (int retry = 0; number == PACKET_EOT && retry < MAX_RETRIES; retry++) {
+            mOut.write(ACK);
+            number = handshake();
+        }
+
+        if (number != 0) throw new IOException("Expected file header");
+
+        // Name, NUL, size in decimal followed by optional fields
+        int end = 3;
+        while (end < 3 + mPacketSize && mPacket[end] != 0) {
+            end++;
+        }
+
+        String name = new String(mPacket, 3, end - 3, NAME_CHARSET);
+
+        mOut.write(ACK);
+        flush();
+
+        if (name.length() == 0) return false;
+
+        long length = -1;
+        int start = end + 1;
+        end = start;
+        while (end < 3 + mPacketSize && mPacket[end] >= '0' && mPacket[end] <= '9') {
+            end++;
+        }
+        if (end > start) length = Long.parseLong(new String(mPacket, start, end - start, NAME_CHARSET));
+
+        receiveFile(sink, name, length);
+        return true;
+    }
+
+    // Sends the start character until the first block, or the EOT of an empty file, arrives.
+    // Returns its number or PACKET_EOT.
+    private int handshake() throws IOException {
+        mCrc = true;
+        int timeouts = 0;
+
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            // Plain XMODEM senders may only know the checksum, a sender that answered does not
+            if (!mBatch && timeouts == CRC_TRIES) mCrc = false;
+
+            mOut.write(mCrc ? (mStreamingReceiver ? START_STREAMING : START_CRC) : NAK);
+            flush();
+
+            int number = readPacket(HANDSHAKE_TIMEOUT);
+
+            if (number >= 0 || number == PACKET_EOT) return number;
+            if (number == PACKET_BAD) purge(BYTE_TIMEOUT);
+            if (number == PACKET_TIMEOUT) timeouts++;
+        }
+
+        throw new IOException("Sender did not start");
+    }
+
+    private void receiveFile(Sink sink, String name, long length) throws IOException {
+        startFile(name, length);
+
+        OutputStream out = sink.create(name, length);
+        long position = 0;
+        int expected = 1;
+        int errors = 0;
+        boolean eot = false;
+
+        try {
+            int number = handshake();
+
+            while (true) {
+                if (number == expected) {
+                    // The last block is padded up to the size from the header
+                    int count = mPacketSize;
+                    if (length >= 0) count = (int) Math.max(0, Math.min(count, length - position));
+
+                    out.write(mPacket, 3, count);
+                    position += count;
+                    fileProgress(position);
+
+                    expected = (expected + 1) & 0xFF;
+                    errors = 0;
+                    eot = false;
+
+                    if (!mStreamingReceiver) mOut.write(ACK);
+                } else if (number == ((expected - 1) & 0xFF)) {
+                    // Repeated because our acknowledge was lost
+                    if (!mStreamingReceiver) mOut.write(ACK);
+                } else if (number == PACKET_EOT) {
+                    // YMODEM asks for the end of file twice, against line noise looking like EOT
+                    if (mBatch && !eot) {
+                        eot = true;
+                        mOut.write(NAK);
+                    } else {
+                        mOut.write(ACK);
+                        flush();
+                        return;
+                    }
+                } else if (number >= 0) {
+                    throw new IOException("Lost block sequence");
+                } else {
+                    if (mStreamingReceiver) throw new IOException("Bad block while streaming");
+                    if (++errors > MAX_RETRIES) throw new IOException("Too many errors");
+
+                    if (number == PACKET_BAD) purge(BYTE_TIMEOUT);
+                    mOut.write(NAK);
+                }
+
+                flush();
+                number = readPacket(RESPONSE_TIMEOUT);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Reads the next block into mPacket. Returns its number, PACKET_EOT, PACKET_TIMEOUT or
+    // PACKET_BAD for a damaged one.
+    private int readPacket(long timeout) throws IOException {
+        int size;
+
+        switch (readByte(timeout)) {
+            case TIMEOUT:
+                return PACKET_TIMEOUT;
+
+            case EOT:
+                return PACKET_EOT;
+
+            case SOH:
+                size = 128;
+                break;
+
+            case STX:
+                size = 1024;
+                break;
+
+            case CAN:
+                if (readByte(BYTE_TIMEOUT) == CAN) throw peerCancelled();
+                return PACKET_BAD;
+
+            default:
+                // A damaged header, scanning on could mistake data for an EOT
+                return PACKET_BAD;
+        }
+
+        if (!readFully(mPacket, 1, 2 + size + (mCrc ? 2 : 1), BYTE_TIMEOUT)) return PACKET_BAD;
+
+        int number = mPacket[1] & 0xFF;
+        if (number != (~mPacket[2] & 0xFF)) return PACKET_BAD;
+
+        if (mCrc) {
+            int crc = ((mPacket[3 + size] & 0xFF) << 8) | (mPacket[4 + size] & 0xFF);
+            if (crc16(0, mPacket, 3, size) != crc) return PACKET_BAD;
+        } else {
+            int sum = 0;
+            for (int i = 3; i < 3 + size; i++) {
+                sum += mPacket[i];
+            }
+            if ((byte) sum != mPacket[3 + size]) return PACKET_BAD;
+        }
+
+        mPacketSize = size;
+        return number;
+    }
+}
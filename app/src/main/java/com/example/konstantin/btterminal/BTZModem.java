@@ -0,0 +1,844 @@
+package com.example.konstantin.btterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// ZMODEM sender and receiver.
+// File data streams as one ZDATA frame of ZCRCG subpackets the receiver never answers, so the
+// rate does not depend on the round trip time at all. A damaged subpacket makes the receiver
+// answer ZRPOS with the last good position, the sender then restarts from there.
+//
+// A window limits the unacknowledged data: the sender asks for a ZACK with ZCRCQ every quarter
+// window and waits once a full window is outstanding. Receivers announcing a buffer size get
+// ZCRCW, ending the frame, whenever it is full. Subpackets use CRC-32 if the receiver can.
+public class BTZModem extends BTModem {
+
+    // Frame Characters
+    private static final int ZPAD = '*';
+    private static final int ZDLE = 0x18;
+    private static final int ZBIN = 'A';
+    private static final int ZHEX = 'B';
+    private static final int ZBIN32 = 'C';
+    private static final int XON = 0x11;
+    private static final int XOFF = 0x13;
+
+    // Frame Types
+    private static final int ZRQINIT = 0;
+    private static final int ZRINIT = 1;
+    private static final int ZSINIT = 2;
+    private static final int ZACK = 3;
+    private static final int ZFILE = 4;
+    private static final int ZSKIP = 5;
+    private static final int ZNAK = 6;
+    private static final int ZABORT = 7;
+    private static final int ZFIN = 8;
+    private static final int ZRPOS = 9;
+    private static final int ZDATA = 10;
+    private static final int ZEOF = 11;
+    private static final int ZCHALLENGE = 14;
+    private static final int ZCAN = 16;
+
+    // Subpacket Ends, following a ZDLE
+    private static final int ZCRCE = 'h';      // Frame ends, header follows
+    private static final int ZCRCG = 'i';      // Frame continues
+    private static final int ZCRCQ = 'j';      // Frame continues, ZACK expected
+    private static final int ZCRCW = 'k';      // Frame ends, ZACK expected
+    private static final int ZRUB0 = 'l';
+    private static final int ZRUB1 = 'm';
+
+    // ZRINIT Flags (ZF0)
+    private static final int CANFDX = 0x01;
+    private static final int CANOVIO = 0x02;
+    private static final int CANFC32 = 0x20;
+
+    // Results besides a frame type or data byte
+    private static final int BAD = -2;
+    private static final int NONE = -3;
+    private static final int GOT_END = 0x100;
+
+    // Timeouts (ms) and Limits
+    private static final long RESPONSE_TIMEOUT = 10000;
+    private static final long BYTE_TIMEOUT = 1000;
+    private static final int MAX_RETRIES = 10;
+    private static final int SUBPACKET_SIZE = 1024;
+    private static final int MAX_SUBPACKET_SIZE = 8192;
+
+    // Unacknowledged bytes while sending, so errors are noticed within one window instead of at
+    // the end of a file streamed into a slow link. As much as a BTTerminal receiver buffers.
+    public static final int DEFAULT_WINDOW = 16 * 1024;
+
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    private static final boolean[] ESCAPED = new boolean[256];
+
+    static {
+        int[] escaped = { ZDLE, 0x10, XON, XOFF, ZDLE | 0x80, 0x90, XON | 0x80, XOFF | 0x80 };
+        for (int c : escaped) {
+            ESCAPED[c] = true;
+        }
+    }
+
+    // Member Variables
+    private int mWindow = DEFAULT_WINDOW;
+
+    // Header received last, ZP0..ZP3 or ZF3..ZF0
+    private final byte[] mRxHeader = new byte[4];
+    private boolean mRxCrc32;
+
+    // Header and subpacket being sent
+    private final byte[] mTxHeader = new byte[4];
+    private final byte[] mTx = new byte[2 * SUBPACKET_SIZE + 16];
+    private int mTxCount;
+    private boolean mTxCrc32;
+    private int mRxBufferSize;
+    private final CRC32 mCrc32 = new CRC32();
+
+    // Subpacket received last
+    private final byte[] mData = new byte[MAX_SUBPACKET_SIZE];
+    private int mDataLength;
+
+//-- Service Functions -----------------------------------------------------------------------------
+    public BTZModem(BTRingBuffer in, OutputStream out) {
+        super(PROTOCOL_ZMODEM, in, out);
+    }
+
+    //-- Sender ------------------------------------------------------------------------------------
+    protected void doSend(List<Source> files) throws IOException {
+        // Starts rz on a remote shell, harmless otherwise
+        mOut.write(new byte[] { 'r', 'z', '\r' });
+
+        waitReceiverInit();
+
+        for (Source file : files) {
+            sendFile(file);
+        }
+
+        // Session end, "OO" over and out
+        for (int retry = 0; retry < 3; retry++) {
+            sendHexHeader(ZFIN, position(0));
+            flush();
+
+            int type = readHeader(RESPONSE_TIMEOUT);
+            if (type == ZFIN) break;
+            if (type == ZCAN || type == ZABORT) throw peerCancelled();
+        }
+
+        mOut.write(new byte[] { 'O', 'O' });
+        flush();
+    }
+
+    private void waitReceiverInit() throws IOException {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            sendHexHeader(ZRQINIT, position(0));
+            flush();
+
+            int type = readHeader(RESPONSE_TIMEOUT);
+
+            // Receivers may ask the sender to echo a number first
+            while (type == ZCHALLENGE) {
+                sendHexHeader(ZACK, mRxHeader);
+                flush();
+                type = readHeader(RESPONSE_TIMEOUT);
+            }
+
+            switch (type) {
+                case ZRINIT:
+                    mTxCrc32 = (mRxHeader[3] & CANFC32) != 0;
+                    mRxBufferSize = (mRxHeader[0] & 0xFF) | ((mRxHeader[1] & 0xFF) << 8);
+                    return;
+
+                case ZCAN:
+                case ZABORT:
+                    throw peerCancelled();
+            }
+        }
+
+        throw new IOException("Receiver did not start");
+    }
+
+    private void sendFile(Source file) throws IOException {
+        startFile(file.getName(), file.getLength());
+
+        // Name, NUL, size in decimal
+        byte[] name = file.getName().getBytes(NAME_CHARSET);
+        String length = (file.getLength() >= 0) ? Long.toString(file.getLength()) : "";
+        byte[] info = new byte[name.length + length.length() + 2];
+
+        System.arraycopy(name, 0, info, 0, name.length);
+        System.arraycopy(length.getBytes(NAME_CHARSET), 0, info, name.length + 1, length.length());
+
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            sendBinaryHeader(ZFILE, position(0));
+            sendSubpacket(info, 0, info.length, ZCRCW);
+            flush();
+
+            // Further ZRINITs answer our ZRQINITs
+            int type;
+            do {
+                type = readHeader(RESPONSE_TIMEOUT);
+            } while (type == ZRINIT);
+
+            switch (type) {
+                case ZRPOS:
+                    // The receiver may resume a partial file
+                    sendFileData(file, rxPosition());
+                    return;
+
+                case ZSKIP:
+                    return;
+
+                case ZCAN:
+                case ZABORT:
+                case ZFIN:
+                    throw peerCancelled();
+            }
+        }
+
+        throw new IOException("File header not accepted");
+    }
+
+    private void sendFileData(Source file, long start) throws IOException {
+        byte[] data = new byte[SUBPACKET_SIZE];
+        InputStream in = open(file, start);
+
+        long position = start;
+        long acked = start;
+        long queried = start;
+        long lastRestart = start;
+        boolean frameOpen = false;
+        boolean waitAck = false;
+        boolean eof = false;
+        boolean eofSent = false;
+        int errors = 0;
+
+        try {
+            while (true) {
+                boolean windowFull = (mWindow > 0 && position - acked >= mWindow);
+                int type = NONE;
+                long restart = -1;
+
+                // Block for an answer only when there is nothing else to do
+                if (eof && !eofSent) {
+                    sendBinaryHeader(ZEOF, position(position));
+                    flush();
+                    eofSent = true;
+                } else if (eof || waitAck || windowFull) {
+                    flush();
+                    type = readHeader(RESPONSE_TIMEOUT);
+
+                    if (type == TIMEOUT || type == BAD) {
+                        if (++errors > MAX_RETRIES) throw new IOException("Receiver stopped responding");
+
+                        // Resend the end of file, or restart from the last position the receiver confirmed
+                        if (eof) {
+                            eofSent = false;
+                        } else {
+                            restart = acked;
+                        }
+                    }
+                } else if (available() > 0) {
+                    type = pollHeader();
+                }
+
+                switch (type) {
+                    case ZRPOS:
+                        restart = rxPosition();
+                        break;
+
+                    case ZACK:
+                        acked = Math.max(acked, rxPosition());
+                        if (acked >= position) waitAck = false;
+                        errors = 0;
+                        break;
+
+                    case ZRINIT:
+                        // File complete
+                        if (eof) return;
+                        break;
+
+                    case ZSKIP:
+                        return;
+
+                    case ZCAN:
+                    case ZABORT:
+                    case ZFIN:
+                        throw peerCancelled();
+                }
+
+                if (restart >= 0) {
+                    // Repeated failures at the same place give up
+                    if (restart > lastRestart) errors = 0;
+                    if (++errors > MAX_RETRIES) throw new IOException("Too many errors");
+                    lastRestart = restart;
+
+                    // A frame still open is ended before the new one
+                    if (frameOpen) sendSubpacket(data, 0, 0, ZCRCE);
+
+                    in.close();
+                    in = open(file, restart);
+                    position = restart;
+
+                    acked = position;
+                    queried = position;
+                    frameOpen = false;
+                    waitAck = false;
+                    eof = false;
+                    eofSent = false;
+                }
+
+                if (eof || waitAck || (mWindow > 0 && position - acked >= mWindow)) continue;
+
+                if (!frameOpen) {
+                    sendBinaryHeader(ZDATA, position(position));
+                    frameOpen = true;
+                }
+
+                int count = read(in, data);
+                eof = (count < data.length);
+
+                int end = ZCRCG;
+                if (eof) {
+                    end = ZCRCE;
+                } else if (mRxBufferSize > 0 && position + count - acked >= mRxBufferSize) {
+                    end = ZCRCW;
+                } else if (mWindow > 0 && position + count - queried >= mWindow / 4) {
+                    end = ZCRCQ;
+                    queried = position + count;
+                }
+
+                sendSubpacket(data, 0, count, end);
+                position += count;
+                fileProgress(position);
+
+                if (end == ZCRCE || end == ZCRCW) frameOpen = false;
+                if (end == ZCRCW) waitAck = true;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Opens file at position, by skipping up to it
+    private static InputStream open(Source file, long position) throws IOException {
+        InputStream in = file.open();
+        byte[] skip = null;
+
+        while (position > 0) {
+            long skipped = in.skip(position);
+
+            if (skipped <= 0) {
+                if (skip == null) skip = new byte[SUBPACKET_SIZE];
+                skipped = in.read(skip, 0, (int) Math.min(skip.length, position));
+                if (skipped < 0) break;
+            }
+            position -= skipped;
+        }
+        return in;
+    }
+
+    private static int read(InputStream in, byte[] data) throws IOException {
+        int count = 0;
+
+        while (count < data.length) {
+            int bytes = in.read(data, count, data.length - count);
+            if (bytes < 0) break;
+            count += bytes;
+        }
+        return count;
+    }
+
+    // A header the receiver sent while we were streaming, NONE if there was only line noise
+    private int pollHeader() throws IOException {
+        int cans = 0;
+
+        while (available() > 0) {
+            int c = readByte(0);
+
+            if (c == ZPAD || c == (ZPAD | 0x80)) return readHeaderAfterPad();
+
+            if (c == CAN) {
+                if (++cans >= 5) throw peerCancelled();
+            } else {
+                cans = 0;
+            }
+        }
+        return NONE;
+    }
+
+    //-- Receiver ----------------------------------------------------------------------------------
+    protected void doReceive(Sink sink) throws IOException {
+        OutputStream out = null;
+        long position = 0;
+        int errors = 0;
+
+        try {
+            sendReceiverInit();
+
+            while (true) {
+                int type = readHeader(RESPONSE_TIMEOUT);
+
+                switch (type) {
+                    case TIMEOUT:
+                    case BAD:
+                        if (++errors > MAX_RETRIES) throw new IOException("Sender stopped responding");
+
+                        if (out != null) {
+                            sendHexHeader(ZRPOS, position(position));
+                        } else {
+                            sendReceiverInit();
+                        }
+                        break;
+
+                    case ZRQINIT:
+                        sendReceiverInit();
+                        break;
+
+                    case ZSINIT:
+                        // Attention string, not needed without a remote shell
+                        readSubpacket();
+                        sendHexHeader(ZACK, position(0));
+                        break;
+
+                    case ZFILE:
+                        if (readSubpacket() < 0) {
+                            sendHexHeader(ZNAK, position(0));
+                            break;
+                        }
+
+                        if (out != null) out.close();
+                        out = null;
+
+                        out = createFile(sink);
+                        position = 0;
+                        sendHexHeader(ZRPOS, position(0));
+                        break;
+
+                    case ZDATA:
+                        if (out == null) {
+                            sendReceiverInit();
+                        } else if (rxPosition() != position) {
+                            // Data after a damaged subpacket, still in flight
+                            sendHexHeader(ZRPOS, position(position));
+                        } else {
+                            long received = receiveData(out, position);
+
+                            // No progress, the same part failed again
+                            if (received == position && ++errors > MAX_RETRIES) throw new IOException("Too many errors");
+                            if (received > position) errors = 0;
+
+                            position = received;
+                        }
+                        break;
+
+                    case ZEOF:
+                        // An early one passed data lost on the way
+                        if (out == null || rxPosition() == position) {
+                            if (out != null) out.close();
+                            out = null;
+
+                            sendReceiverInit();
+                        }
+                        break;
+
+                    case ZFIN:
+                        sendHexHeader(ZFIN, position(0));
+                        flush();
+
+                        // "OO", if it comes at all
+                        readByte(BYTE_TIMEOUT);
+                        readByte(BYTE_TIMEOUT);
+                        return;
+
+                    case ZCAN:
+                    case ZABORT:
+                        throw peerCancelled();
+                }
+
+                flush();
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    private void sendReceiverInit() throws IOException {
+        // Full duplex streaming with CRC-32, no buffer size limit
+        mTxHeader[0] = 0;
+        mTxHeader[1] = 0;
+        mTxHeader[2] = 0;
+        mTxHeader[3] = (byte) (CANFDX | CANOVIO | CANFC32);
+
+        sendHexHeader(ZRINIT, mTxHeader);
+    }
+
+    private OutputStream createFile(Sink sink) throws IOException {
+        int end = 0;
+        while (end < mDataLength && mData[end] != 0) {
+            end++;
+        }
+        String name = new String(mData, 0, end, NAME_CHARSET);
+
+        long length = -1;
+        int start = end + 1;
+        end = start;
+        while (end < mDataLength && mData[end] >= '0' && mData[end] <= '9') {
+            end++;
+        }
+        if (end > start) length = Long.parseLong(new String(mData, start, end - start, NAME_CHARSET));
+
+        startFile(name, length);
+        return sink.create(name, length);
+    }
+
+    // Subpackets of one ZDATA frame, returns the position after the last good one
+    private long receiveData(OutputStream out, long position) throws IOException {
+        while (true) {
+            int end = readSubpacket();
+
+            if (end < 0) {
+                // Everything up to the next header is discarded, the sender restarts at position
+                sendHexHeader(ZRPOS, position(position));
+                return position;
+            }
+
+            out.write(mData, 0, mDataLength);
+            position += mDataLength;
+            fileProgress(position);
+
+            switch (end) {
+                case ZCRCQ:
+                    sendHexHeader(ZACK, position(position));
+                    flush();
+                    break;
+
+                case ZCRCW:
+                    sendHexHeader(ZACK, position(position));
+                    return position;
+
+                case ZCRCE:
+                    return position;
+            }
+        }
+    }
+
+    //-- Frames ------------------------------------------------------------------------------------
+    private byte[] position(long position) {
+        mTxHeader[0] = (byte) position;
+        mTxHeader[1] = (byte) (position >> 8);
+        mTxHeader[2] = (byte) (position >> 16);
+        mTxHeader[3] = (byte) (position >> 24);
+        return mTxHeader;
+    }
+
+    private long rxPosition() {
+        return (mRxHeader[0] & 0xFF) | ((mRxHeader[1] & 0xFF) << 8) | ((mRxHeader[2] & 0xFF) << 16) |
+               ((long) (mRxHeader[3] & 0xFF) << 24);
+    }
+
+    private void sendHexHeader(int type, byte[] header) throws IOException {
+        mTxCount = 0;
+        mTx[mTxCount++] = ZPAD;
+        mTx[mTxCount++] = ZPAD;
+        mTx[mTxCount++] = ZDLE;
+        mTx[mTxCount++] = ZHEX;
+
+        putHex(type);
+        int crc = crc16(0, type);
+
+        for (int i = 0; i < 4; i++) {
+            putHex(header[i] & 0xFF);
+            crc = crc16(crc, header[i] & 0xFF);
+        }
+        putHex(crc >> 8);
+        putHex(crc & 0xFF);
+
+        // Readable on a terminal, XON in case a stray XOFF stopped the sender
+        mTx[mTxCount++] = '\r';
+        mTx[mTxCount++] = (byte) ('\n' | 0x80);
+        if (type != ZFIN && type != ZACK) mTx[mTxCount++] = XON;
+
+        mOut.write(mTx, 0, mTxCount);
+    }
+
+    private void putHex(int b) {
+        mTx[mTxCount++] = (byte) Character.forDigit(b >> 4, 16);
+        mTx[mTxCount++] = (byte) Character.forDigit(b & 0x0F, 16);
+    }
+
+    private void sendBinaryHeader(int type, byte[] header) throws IOException {
+        mTxCount = 0;
+        mTx[mTxCount++] = ZPAD;
+        mTx[mTxCount++] = ZDLE;
+        mTx[mTxCount++] = (byte) (mTxCrc32 ? ZBIN32 : ZBIN);
+
+        putEscaped(type);
+        for (int i = 0; i < 4; i++) {
+            putEscaped(header[i] & 0xFF);
+        }
+
+        if (mTxCrc32) {
+            mCrc32.reset();
+            mCrc32.update(type);
+            mCrc32.update(header, 0, 4);
+            putCrc32((int) mCrc32.getValue());
+        } else {
+            int crc = crc16(crc16(0, type), header, 0, 4);
+            putEscaped(crc >> 8);
+            putEscaped(crc & 0xFF);
+        }
+
+        mOut.write(mTx, 0, mTxCount);
+    }
+
+    private void sendSubpacket(byte[] data, int offset, int count, int end) throws IOException {
+        mTxCount = 0;
+
+        for (int i = offset; i < offset + count; i++) {
+            putEscaped(data[i] & 0xFF);
+        }
+        mTx[mTxCount++] = ZDLE;
+        mTx[mTxCount++] = (byte) end;
+
+        if (mTxCrc32) {
+            mCrc32.reset();
+            mCrc32.update(data, offset, count);
+            mCrc32.update(end);
+            putCrc32((int) mCrc32.getValue());
+        } else {
+            int crc = crc16(crc16(0, data, offset, count), end);
+            putEscaped(crc >> 8);
+            putEscaped(crc & 0xFF);
+        }
+
+        if (end == ZCRCW) mTx[mTxCount++] = XON;
+
+        mOut.write(mTx, 0, mTxCount);
+    }
+
+    private void putCrc32(int crc) {
+        for (int i = 0; i < 4; i++) {
+            putEscaped((crc >> (8 * i)) & 0xFF);
+        }
+    }
+
+    private void putEscaped(int c) {
+        if (ESCAPED[c]) {
+            mTx[mTxCount++] = ZDLE;
+            mTx[mTxCount++] = (byte) (c ^ 0x40);
+        } else {
+            mTx[mTxCount++] = (byte) c;
+        }
+    }
+
+    // Next header within timeout ms, skipping line noise. Returns its type, TIMEOUT or BAD.
+    private int readHeader(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        int cans = 0;
+
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return TIMEOUT;
+
+            int c = readByte(remaining);
+            if (c == TIMEOUT) return TIMEOUT;
+
+            if (c == ZPAD || c == (ZPAD | 0x80)) {
+                int type = readHeaderAfterPad();
+                if (type != NONE) return type;
+                cans = 0;
+            } else if (c == CAN) {
+                if (++cans >= 5) throw peerCancelled();
+            } else {
+                cans = 0;
+            }
+        }
+    }
+
+    // Rest of a header after its first ZPAD, NONE if it was not one
+    private int readHeaderAfterPad() throws IOException {
+        int c;
+        do {
+            c = readByte(BYTE_TIMEOUT);
+        } while (c == ZPAD || c == (ZPAD | 0x80));
+
+        if (c != ZDLE) return (c == TIMEOUT) ? TIMEOUT : NONE;
+
+        switch (readByte(BYTE_TIMEOUT)) {
+            case ZBIN:
+                return readBinaryHeader(false);
+
+            case ZBIN32:
+                return readBinaryHeader(true);
+
+            case ZHEX:
+                return readHexHeader();
+
+            case TIMEOUT:
+                return TIMEOUT;
+
+            default:
+                return NONE;
+        }
+    }
+
+    private int readBinaryHeader(boolean crc32) throws IOException {
+        int type = readEscaped(BYTE_TIMEOUT);
+        if (type < 0 || type >= GOT_END) return BAD;
+
+        for (int i = 0; i < 4; i++) {
+            int c = readEscaped(BYTE_TIMEOUT);
+            if (c < 0 || c >= GOT_END) return BAD;
+            mRxHeader[i] = (byte) c;
+        }
+
+        if (crc32) {
+            mCrc32.reset();
+            mCrc32.update(type);
+            mCrc32.update(mRxHeader, 0, 4);
+            if (!checkCrc32((int) mCrc32.getValue())) return BAD;
+        } else {
+            int crc = crc16(crc16(0, type), mRxHeader, 0, 4);
+            if (!checkCrc16(crc)) return BAD;
+        }
+
+        // Subpackets of the frame use the same check
+        mRxCrc32 = crc32;
+        return type;
+    }
+
+    private int readHexHeader() throws IOException {
+        int type = readHex();
+        if (type < 0) return BAD;
+
+        int crc = crc16(0, type);
+        for (int i = 0; i < 4; i++) {
+            int c = readHex();
+            if (c < 0) return BAD;
+
+            mRxHeader[i] = (byte) c;
+            crc = crc16(crc, c);
+        }
+
+        int high = readHex();
+        int low = readHex();
+        if (high < 0 || low < 0 || ((high << 8) | low) != crc) return BAD;
+
+        mRxCrc32 = false;
+        return type;
+    }
+
+    private int readHex() throws IOException {
+        int high = readByte(BYTE_TIMEOUT);
+        int low = readByte(BYTE_TIMEOUT);
+        if (high == TIMEOUT || low == TIMEOUT) return BAD;
+
+        high = Character.digit(high & 0x7F, 16);
+        low = Character.digit(low & 0x7F, 16);
+        return (high < 0 || low < 0) ? BAD : (high << 4) | low;
+    }
+
+    // Reads one subpacket into mData. Returns how it ended (ZCRCE, ZCRCG, ZCRCQ or ZCRCW), TIMEOUT
+    // or BAD.
+    private int readSubpacket() throws IOException {
+        mDataLength = 0;
+
+        while (true) {
+            int c = readEscaped(RESPONSE_TIMEOUT);
+            if (c < 0) return c;
+
+            if (c >= GOT_END) {
+                int end = c & 0xFF;
+
+                if (mRxCrc32) {
+                    mCrc32.reset();
+                    mCrc32.update(mData, 0, mDataLength);
+                    mCrc32.update(end);
+                    if (!checkCrc32((int) mCrc32.getValue())) return BAD;
+                } else {
+                    if (!checkCrc16(crc16(crc16(0, mData, 0, mDataLength), end))) return BAD;
+                }
+                return end;
+            }
+
+            if (mDataLength == mData.length) return BAD;
+            mData[mDataLength++] = (byte) c;
+        }
+    }
+
+    private boolean checkCrc16(int crc) throws IOException {
+        int high = readEscaped(BYTE_TIMEOUT);
+        int low = readEscaped(BYTE_TIMEOUT);
+
+        return high >= 0 && high < GOT_END && low >= 0 && low < GOT_END && ((high << 8) | low) == crc;
+    }
+
+    private boolean checkCrc32(int crc) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            int c = readEscaped(BYTE_TIMEOUT);
+            if (c < 0 || c >= GOT_END || c != ((crc >> (8 * i)) & 0xFF)) return false;
+        }
+        return true;
+    }
+
+    // Next byte of ZDLE encoded data, GOT_END | end for the end of a subpacket, TIMEOUT or BAD.
+    // Five CAN in a row cancel, ZDLE being CAN as well.
+    private int readEscaped(long timeout) throws IOException {
+        int c;
+
+        do {
+            c = readByte(timeout);
+            if (c == TIMEOUT) return TIMEOUT;
+        } while (c == XON || c == XOFF || c == (XON | 0x80) || c == (XOFF | 0x80));
+
+        if (c != ZDLE) return c;
+
+        int cans = 1;
+        while (true) {
+            c = readByte(timeout);
+
+            switch (c) {
+                case TIMEOUT:
+                    return TIMEOUT;
+
+                case CAN:
+                    if (++cans >= 5) throw peerCancelled();
+                    break;
+
+                case ZCRCE:
+                case ZCRCG:
+                case ZCRCQ:
+                case ZCRCW:
+                    return GOT_END | c;
+
+                case ZRUB0:
+                    return 0x7F;
+
+                case ZRUB1:
+                    return 0xFF;
+
+                case XON:
+                case XOFF:
+                case XON | 0x80:
+                case XOFF | 0x80:
+                    break;
+
+                default:
+                    return ((c & 0x60) == 0x40) ? c ^ 0x40 : BAD;
+            }
+        }
+    }
+
+//-- Setter/Getter Functions -----------------------------------------------------------------------
+    // Max. unacknowledged bytes while sending, 0 streams without waiting
+    public void setWindow(int window) {
+        mWindow = window;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+}
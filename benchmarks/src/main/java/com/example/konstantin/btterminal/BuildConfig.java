@@ -0,0 +1,9 @@
+package com.example.konstantin.btterminal;
+
+// Stands in for the BuildConfig the Android build generates, for BTLog on a plain JVM.
+// Warnings and errors are printed, nothing is traced.
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+    public static final int LOG_LEVEL = BTLog.LEVEL_WARN;
+    public static final int TRACE_LEVEL = BTLog.LEVEL_ERROR + 1;
+}
@@ -0,0 +1,121 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTConnection;
+import com.example.konstantin.btterminal.BTRingBuffer;
+import com.example.konstantin.btterminal.BTTcpTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Whole BTConnection receive path over loopback TCP: connect, reader, receive buffer and
+// MSG_DATA_READ draining on the message thread, until PAYLOAD_SIZE bytes arrived, then stop.
+// The peer writes in chunkSize pieces. Score is in milliseconds per payload.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+
+    private static final int PAYLOAD_SIZE = 4 * 1024 * 1024;
+
+    @Param({"64", "4096"})
+    public int chunkSize;
+
+    @Param({"65536", "1048576"})
+    public int rxCapacity;
+
+    private ServerSocket mServerSocket;
+    private Thread mPeer;
+    private JvmHost mHost;
+    private BTTcpTransport mTransport;
+    private byte[] mPayload;
+
+    private final byte[] mReadBuffer = new byte[8192];
+    private volatile BTConnection mConnection;
+    private volatile CountDownLatch mDone;
+    private long mReceived;
+
+    @Setup
+    public void setup() throws IOException {
+        mPayload = Payloads.binary(PAYLOAD_SIZE, 42);
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName(null));
+        mTransport = new BTTcpTransport(0);
+
+        // Sends the payload to every connection, one at a time
+        mPeer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        OutputStream out = socket.getOutputStream();
+                        for (int offset = 0; offset < mPayload.length; offset += chunkSize) {
+                            out.write(mPayload, offset, Math.min(chunkSize, mPayload.length - offset));
+                        }
+                        out.flush();
+                        // Closed by the connection, so nothing is lost in between
+                        while (socket.getInputStream().read() >= 0);
+                        socket.close();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "ConnectionBenchmark-Peer");
+        mPeer.setDaemon(true);
+        mPeer.start();
+
+        mHost = new JvmHost(new JvmHost.Receiver() {
+            public void handleMessage(int what, int arg1, int arg2, Object obj) {
+                if (what != BTConnection.MSG_DATA_READ) return;
+
+                int bytes;
+                while ((bytes = mConnection.read(mReadBuffer, 0, mReadBuffer.length)) > 0) {
+                    mReceived += bytes;
+                }
+                if (mReceived >= PAYLOAD_SIZE) mDone.countDown();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+        mHost.shutdown();
+    }
+
+    @Benchmark
+    public long receive() throws InterruptedException {
+        BTConnection connection = new BTConnection(mHost, mTransport, 1);
+        connection.setReceiveBuffer(rxCapacity, BTRingBuffer.POLICY_BLOCK);
+
+        mReceived = 0;
+        mDone = new CountDownLatch(1);
+        mConnection = connection;
+
+        connection.connect("localhost:" + mServerSocket.getLocalPort());
+        if (!mDone.await(60, TimeUnit.SECONDS)) throw new IllegalStateException("stalled at " + mReceived);
+        connection.stop();
+
+        return mReceived;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTStreamDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Byte to text decoding of received chunks, streaming decoder against new String().
+// Score is in payloads per second, one payload is PAYLOAD_SIZE bytes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    @Param({"16", "128", "1024"})
+    public int chunkSize;
+
+    @Param({BTStreamDecoder.CHARSET_ISO_8859_1, BTStreamDecoder.CHARSET_UTF_8})
+    public String charset;
+
+    private BTStreamDecoder mDecoder;
+    private byte[] mPayload;
+
+    @Setup
+    public void setup() {
+        boolean utf8 = BTStreamDecoder.CHARSET_UTF_8.equals(charset);
+
+        mDecoder = new BTStreamDecoder(charset, 4096);
+        mPayload = Payloads.bytes(Payloads.text(PAYLOAD_SIZE, 60, utf8, 42), charset);
+    }
+
+    @Benchmark
+    public void streamDecoder(Blackhole blackhole) {
+        for (int offset = 0; offset < mPayload.length; offset += chunkSize) {
+            int count = Math.min(chunkSize, mPayload.length - offset);
+            CharBuffer chars = mDecoder.decode(mPayload, offset, count);
+            blackhole.consume(chars.remaining());
+        }
+    }
+
+    // Previous per chunk decoding, for reference
+    @Benchmark
+    public void newString(Blackhole blackhole) throws Exception {
+        for (int offset = 0; offset < mPayload.length; offset += chunkSize) {
+            int count = Math.min(chunkSize, mPayload.length - offset);
+            blackhole.consume(new String(mPayload, offset, count, charset));
+        }
+    }
+}
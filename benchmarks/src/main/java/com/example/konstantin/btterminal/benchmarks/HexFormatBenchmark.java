@@ -0,0 +1,83 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTHexFormatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Hex dump of received chunks, lookup table formatter against per byte String.format().
+// Score is in payloads per second, one payload is PAYLOAD_SIZE bytes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexFormatBenchmark {
+
+    private static final int PAYLOAD_SIZE = 16 * 1024;
+
+    @Param({"16", "128", "1024"})
+    public int chunkSize;
+
+    private BTHexFormatter mFormatter;
+    private byte[] mPayload;
+    private Blackhole mBlackhole;
+
+    private final BTHexFormatter.Output mOutput = new BTHexFormatter.Output() {
+        public void onLine(char[] line, int count, boolean complete) {
+            mBlackhole.consume(line[count - 1]);
+        }
+    };
+
+    @Setup
+    public void setup() {
+        mFormatter = new BTHexFormatter();
+        mPayload = Payloads.binary(PAYLOAD_SIZE, 42);
+    }
+
+    @Benchmark
+    public void formatter(Blackhole blackhole) {
+        mBlackhole = blackhole;
+
+        for (int offset = 0; offset < mPayload.length; offset += chunkSize) {
+            int count = Math.min(chunkSize, mPayload.length - offset);
+            mFormatter.format(mPayload, offset, count, mOutput);
+        }
+    }
+
+    // Naive formatting, for reference
+    @Benchmark
+    public void stringFormat(Blackhole blackhole) {
+        StringBuilder line = new StringBuilder();
+
+        for (int offset = 0; offset < mPayload.length; offset += 16) {
+            line.setLength(0);
+            line.append(String.format("%08x:", offset));
+
+            for (int i = 0; i < 16; i++) {
+                if ((i & 1) == 0) line.append(' ');
+                line.append(String.format("%02x", mPayload[offset + i] & 0xFF));
+            }
+            line.append("  ");
+
+            for (int i = 0; i < 16; i++) {
+                int value = mPayload[offset + i] & 0xFF;
+                line.append((value >= 0x20 && value < 0x7F) ? (char) value : '.');
+            }
+            blackhole.consume(line.toString());
+        }
+    }
+}
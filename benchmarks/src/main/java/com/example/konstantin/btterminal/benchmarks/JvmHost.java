@@ -0,0 +1,87 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTConnection;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Runs BTConnection on a plain JVM. Messages reach the Receiver on a thread of their own, in
+// order, the way a Handler delivers them in the app. All threads are daemons.
+public class JvmHost implements BTConnection.Host {
+
+    public interface Receiver {
+        void handleMessage(int what, int arg1, int arg2, Object obj);
+    }
+
+    // Member Variables
+    private final Receiver mReceiver;
+    private final ScheduledExecutorService mLoop = Executors.newSingleThreadScheduledExecutor(new Daemons("JvmHost"));
+    private final ExecutorService mIoExecutor = Executors.newCachedThreadPool(new Daemons("JvmHost-IO"));
+    private final ExecutorService mConnectExecutor = Executors.newCachedThreadPool(new Daemons("JvmHost-Connect"));
+    private final HashMap<Runnable, ScheduledFuture<?>> mCallbacks = new HashMap<Runnable, ScheduledFuture<?>>();
+
+    public JvmHost(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    public void sendMessage(final int what, final int arg1, final int arg2, final Object obj, long delayMs) {
+        mLoop.schedule(new Runnable() {
+            public void run() {
+                mReceiver.handleMessage(what, arg1, arg2, obj);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void postDelayed(Runnable task, long delayMs) {
+        ScheduledFuture<?> future = mLoop.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+
+        synchronized (mCallbacks) {
+            mCallbacks.put(task, future);
+        }
+    }
+
+    public void removeCallbacks(Runnable task) {
+        ScheduledFuture<?> future;
+
+        synchronized (mCallbacks) {
+            future = mCallbacks.remove(task);
+        }
+        if (future != null) future.cancel(false);
+    }
+
+    public ExecutorService getIoExecutor() {
+        return mIoExecutor;
+    }
+
+    public ExecutorService getConnectExecutor() {
+        return mConnectExecutor;
+    }
+
+    public void shutdown() {
+        mLoop.shutdownNow();
+        mIoExecutor.shutdownNow();
+        mConnectExecutor.shutdownNow();
+    }
+
+//##################################################################################################
+
+    private static final class Daemons implements ThreadFactory {
+        private final String mName;
+        private int mCount;
+
+        Daemons(String name) {
+            mName = name;
+        }
+
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + ++mCount);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost BTConnection pays per received chunk for its metrics, uncontended and with
+// the reader, writer and Handler threads recording at the same time.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final BTMetrics mMetrics = new BTMetrics();
+
+    @Benchmark
+    public void recordRead() {
+        mMetrics.recordRead(128);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void recordReadContended() {
+        mMetrics.recordRead(128);
+    }
+
+    @Benchmark
+    public BTMetrics.Snapshot snapshot() {
+        return mMetrics.snapshot(0);
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTModem;
+import com.example.konstantin.btterminal.BTRingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// One file sent between two modems over a loopback link that delivers every write latencyMs
+// later, both directions like a Bluetooth link. Shows what the acknowledge round trips of
+// XMODEM-1K cost against streaming YMODEM-G and ZMODEM.
+// Score is in ms per file of FILE_SIZE bytes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ModemBenchmark {
+
+    private static final int FILE_SIZE = 64 * 1024;
+    private static final int RING_CAPACITY = 16 * 1024;
+
+    // BTModem.PROTOCOL_XMODEM_1K, PROTOCOL_YMODEM_G, PROTOCOL_ZMODEM
+    @Param({"2", "4", "5"})
+    public int protocol;
+
+    @Param({"0", "20"})
+    public int latencyMs;
+
+    private byte[] mPayload;
+    private ExecutorService mReceiver;
+
+    @Setup
+    public void setup() {
+        mPayload = Payloads.binary(FILE_SIZE, 42);
+        mReceiver = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mReceiver.shutdownNow();
+    }
+
+    @Benchmark
+    public long transfer() throws Exception {
+        BTRingBuffer senderIn = new BTRingBuffer(RING_CAPACITY, BTRingBuffer.POLICY_BLOCK);
+        BTRingBuffer receiverIn = new BTRingBuffer(RING_CAPACITY, BTRingBuffer.POLICY_BLOCK);
+        Link toReceiver = new Link(receiverIn, latencyMs);
+        Link toSender = new Link(senderIn, latencyMs);
+
+        final BTModem sender = BTModem.create(protocol, senderIn, toReceiver);
+        final BTModem receiver = BTModem.create(protocol, receiverIn, toSender);
+        final CountingSink sink = new CountingSink();
+
+        try {
+            Future<Boolean> received = mReceiver.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return receiver.receive(sink);
+                }
+            });
+
+            List<BTModem.Source> files = Collections.<BTModem.Source>singletonList(new BTModem.Source() {
+                public String getName() {
+                    return "payload.bin";
+                }
+
+                public long getLength() {
+                    return mPayload.length;
+                }
+
+                public InputStream open() {
+                    return new ByteArrayInputStream(mPayload);
+                }
+            });
+
+            if (!sender.send(files) || !received.get()) throw new IllegalStateException("Transfer cancelled");
+            if (sink.mBytes < FILE_SIZE) throw new IllegalStateException("Received " + sink.mBytes + " bytes");
+
+            return sink.mBytes;
+        } finally {
+            toReceiver.close();
+            toSender.close();
+        }
+    }
+
+    // Writes reach peer after latencyMs, in order, on a thread of their own
+    private static final class Link extends OutputStream implements Runnable {
+        private final BTRingBuffer mPeer;
+        private final long mLatencyNs;
+        private final LinkedBlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<byte[]>();
+        private final LinkedBlockingQueue<Long> mDue = new LinkedBlockingQueue<Long>();
+        private final Thread mThread;
+
+        Link(BTRingBuffer peer, long latencyMs) {
+            mPeer = peer;
+            mLatencyNs = latencyMs * 1000000L;
+
+            if (mLatencyNs > 0) {
+                mThread = new Thread(this, "ModemBenchmark.Link");
+                mThread.setDaemon(true);
+                mThread.start();
+            } else {
+                mThread = null;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int count) {
+            byte[] copy = Arrays.copyOfRange(buffer, offset, offset + count);
+
+            if (mThread == null) {
+                mPeer.write(copy, 0, count);
+            } else {
+                mDue.add(System.nanoTime() + mLatencyNs);
+                mQueue.add(copy);
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    long delay = mDue.take() - System.nanoTime();
+                    if (delay > 0) Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+
+                    byte[] data = mQueue.take();
+                    mPeer.write(data, 0, data.length);
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mThread != null) mThread.interrupt();
+            mPeer.close();
+        }
+    }
+
+    private static final class CountingSink implements BTModem.Sink {
+        private long mBytes;
+
+        public OutputStream create(String name, long length) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    mBytes++;
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) {
+                    mBytes += count;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import java.util.Random;
+
+// Synthetic receive data resembling sensor output
+final class Payloads {
+
+    private static final String ASCII_CHARS = "0123456789abcdefghijklmnopqrstuvwxyz ,.:;=-+";
+    private static final String UTF_8_CHARS = "0123456789 äöüß°µ€→✓";
+
+    private Payloads() {
+    }
+
+    // Printable text with a line break roughly every lineLength chars
+    static String text(int size, int lineLength, boolean utf8, long seed) {
+        Random random = new Random(seed);
+        String chars = utf8 ? UTF_8_CHARS : ASCII_CHARS;
+        StringBuilder text = new StringBuilder(size);
+        int column = 0;
+
+        while (text.length() < size) {
+            if (column >= lineLength) {
+                text.append(random.nextBoolean() ? "\r\n" : "\n");
+                column = 0;
+            } else {
+                text.append(chars.charAt(random.nextInt(chars.length())));
+                column++;
+            }
+        }
+
+        return text.toString();
+    }
+
+    static byte[] bytes(String text, String charsetName) {
+        try {
+            return text.getBytes(charsetName);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    static byte[] binary(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTBufferPool;
+import com.example.konstantin.btterminal.BTRingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Reader side of BTConnection: chunks read into a pooled buffer, copied into the
+// receive ring buffer and drained by the UI in frame sized batches.
+// Score is in chunks per second, multiply by chunkSize for bytes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+
+    private static final int CHUNKS_PER_FRAME = 16;
+
+    @Param({"16", "128", "1024"})
+    public int chunkSize;
+
+    private BTBufferPool mPool;
+    private BTRingBuffer mRingBuffer;
+    private byte[] mPayload;
+    private byte[] mDrainBuffer;
+
+    @Setup
+    public void setup() {
+        mPool = new BTBufferPool(32, 1024);
+        mRingBuffer = new BTRingBuffer(64 * 1024, BTRingBuffer.POLICY_DROP_OLDEST);
+        mPayload = Payloads.binary(chunkSize, 42);
+        mDrainBuffer = new byte[4096];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNKS_PER_FRAME)
+    public void readAndDrain(Blackhole blackhole) {
+        byte[] chunk = mPool.acquire();
+
+        for (int i = 0; i < CHUNKS_PER_FRAME; i++) {
+            System.arraycopy(mPayload, 0, chunk, 0, chunkSize);
+            mRingBuffer.write(chunk, 0, chunkSize);
+        }
+
+        mPool.release(chunk);
+
+        int bytes;
+        while ((bytes = mRingBuffer.read(mDrainBuffer, 0, mDrainBuffer.length)) > 0) {
+            blackhole.consume(mDrainBuffer[bytes - 1]);
+        }
+    }
+}
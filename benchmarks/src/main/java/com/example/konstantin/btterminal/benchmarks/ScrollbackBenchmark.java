@@ -0,0 +1,61 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTScrollback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Line splitting and insertion of decoded text into a full scrollback.
+// Score is in payloads per second, one payload is PAYLOAD_SIZE chars.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScrollbackBenchmark {
+
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    @Param({"16", "128", "1024"})
+    public int chunkSize;
+
+    // 400 exceeds the column limit and exercises hard wrapping
+    @Param({"20", "80", "400"})
+    public int lineLength;
+
+    private BTScrollback mScrollback;
+    private char[] mPayload;
+
+    @Setup
+    public void setup() {
+        mScrollback = new BTScrollback(2000, 256);
+        mPayload = Payloads.text(PAYLOAD_SIZE, lineLength, false, 42).toCharArray();
+
+        // Start from a full scrollback, the steady state while streaming
+        while (mScrollback.getLineCount() < mScrollback.getCapacity()) {
+            mScrollback.append(mPayload, 0, mPayload.length);
+        }
+    }
+
+    @Benchmark
+    public void append(Blackhole blackhole) {
+        for (int offset = 0; offset < mPayload.length; offset += chunkSize) {
+            mScrollback.append(mPayload, offset, Math.min(chunkSize, mPayload.length - offset));
+        }
+
+        blackhole.consume(mScrollback.getLastSeq());
+    }
+}
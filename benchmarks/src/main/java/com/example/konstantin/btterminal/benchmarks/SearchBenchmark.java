@@ -0,0 +1,96 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTScrollback;
+import com.example.konstantin.btterminal.BTSearchIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Finding the last error line in a long log, through the trigram index and by scanning every
+// line the way a search without index would. The large history needs about 1 GB of heap.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class SearchBenchmark {
+
+    private static final int COLUMNS = 80;
+
+    @Param({"2000", "1000000"})
+    public int lines;
+
+    private BTScrollback mScrollback;
+    private BTSearchIndex mIndex;
+    private Pattern mPattern;
+    private long mFirstError;
+
+    @Setup
+    public void setup() {
+        mScrollback = new BTScrollback(lines, COLUMNS);
+        mIndex = new BTSearchIndex(mScrollback);
+        mPattern = Pattern.compile("ERR \\d+ timeout");
+
+        Random random = new Random(42);
+        StringBuilder line = new StringBuilder();
+
+        for (int i = 0; i < lines; i++) {
+            line.setLength(0);
+
+            // Two errors near the start, everything after is noise
+            if (i == 10 || i == 20) {
+                line.append("ERR ").append(random.nextInt(1000)).append(" timeout");
+            } else {
+                line.append("INFO seq=").append(i).append(" rssi=-").append(random.nextInt(100));
+            }
+            mScrollback.append(line.append('\n'));
+        }
+
+        mFirstError = mScrollback.getFirstSeq() + 10;
+
+        // Index built once, as after the first search
+        mIndex.update();
+    }
+
+    @Benchmark
+    public long findPreviousLiteral() {
+        return mIndex.findPrevious("err", mScrollback.getLastSeq());
+    }
+
+    @Benchmark
+    public long findPreviousRegex() {
+        return mIndex.findPrevious(mPattern, mScrollback.getLastSeq());
+    }
+
+    @Benchmark
+    public long findNextRegex() {
+        return mIndex.findNext(mPattern, mFirstError + 1);
+    }
+
+    @Benchmark
+    public long scanRegex() {
+        Matcher matcher = mPattern.matcher("");
+
+        for (long seq = mScrollback.getLastSeq(); seq >= mScrollback.getFirstSeq(); seq--) {
+            matcher.reset(CharBuffer.wrap(mScrollback.getSeqChars(seq), 0, mScrollback.getSeqLength(seq)));
+            if (matcher.find()) return seq;
+        }
+        return -1;
+    }
+}
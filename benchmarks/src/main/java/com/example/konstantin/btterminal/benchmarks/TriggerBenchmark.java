@@ -0,0 +1,109 @@
+package com.example.konstantin.btterminal.benchmarks;
+
+import com.example.konstantin.btterminal.BTTriggerEngine;
+import com.example.konstantin.btterminal.BTTriggerRule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+// 64 kB of received lines against a set of text, byte and regex rules, through the compiled
+// engine and by trying every rule on every line.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TriggerBenchmark {
+
+    private static final int SIZE = 64 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Param({"10", "500"})
+    public int rules;
+
+    private byte[] mData;
+    private String[] mLines;
+    private List<BTTriggerRule> mRules;
+    private BTTriggerEngine mEngine;
+    private Matcher[] mMatchers;
+    private String[] mLiterals;
+
+    @Setup
+    public void setup() {
+        mData = Payloads.bytes(Payloads.text(SIZE, 80, false, 42), "US-ASCII");
+        mLines = new String(mData, ASCII).split("\n");
+
+        // Mostly literals, every fourth rule a regex, every tenth raw bytes
+        mRules = new ArrayList<BTTriggerRule>();
+        for (int i = 0; i < rules; i++) {
+            if (i % 10 == 9) {
+                mRules.add(BTTriggerRule.parse(String.format("count bytes 7E %02X 01", i & 0xFF)));
+            } else if (i % 4 == 3) {
+                mRules.add(BTTriggerRule.parse("highlight regex err\\d+ code" + i + "\\b"));
+            } else {
+                mRules.add(BTTriggerRule.parse("count text alarm" + i));
+            }
+        }
+
+        mEngine = new BTTriggerEngine(mRules, ASCII);
+
+        mMatchers = new Matcher[rules];
+        mLiterals = new String[rules];
+
+        for (int i = 0; i < rules; i++) {
+            BTTriggerRule rule = mRules.get(i);
+
+            if (rule.getType() == BTTriggerRule.TYPE_REGEX) {
+                mMatchers[i] = rule.getPattern().matcher("");
+            } else if (rule.getType() == BTTriggerRule.TYPE_TEXT) {
+                mLiterals[i] = rule.getText();
+            } else {
+                mLiterals[i] = new String(rule.getBytes(), ASCII);
+            }
+        }
+    }
+
+    @Benchmark
+    public int engine() {
+        int actions = 0;
+        int start = 0;
+
+        for (int i = 0; i < mData.length; i++) {
+            if (mData[i] == '\n') {
+                mEngine.feed(mData, start, i + 1 - start);
+                actions |= mEngine.endLine(null);
+                start = i + 1;
+            }
+        }
+        return actions;
+    }
+
+    @Benchmark
+    public int perRule() {
+        int actions = 0;
+
+        for (String line : mLines) {
+            for (int i = 0; i < rules; i++) {
+                boolean hit = (mMatchers[i] != null) ? mMatchers[i].reset(line).find() : line.contains(mLiterals[i]);
+                if (hit) actions |= mRules.get(i).getActions();
+            }
+        }
+        return actions;
+    }
+}
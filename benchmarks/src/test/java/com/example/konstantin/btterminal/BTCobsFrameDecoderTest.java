@@ -0,0 +1,108 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.example.konstantin.btterminal.FrameCollector.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BTCobsFrameDecoderTest {
+
+    @Test
+    public void decodesZeros() {
+        List<byte[]> frames = FrameCollector.decode(new BTCobsFrameDecoder(),
+                bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x01, 0x00), 64);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes(0x11, 0x22, 0x00, 0x33, 0x00), frames.get(0));
+    }
+
+    @Test
+    public void decodesFullBlock() {
+        byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (1 + i % 255);
+        }
+
+        List<byte[]> frames = FrameCollector.decode(new BTCobsFrameDecoder(), encode(payload), 64);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(payload, frames.get(0));
+    }
+
+    @Test
+    public void dropsTruncatedBlock() {
+        BTCobsFrameDecoder decoder = new BTCobsFrameDecoder();
+        List<byte[]> frames = FrameCollector.decode(decoder, bytes(0x05, 0x11, 0x00, 0x02, 0x22, 0x00), 64);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes(0x22), frames.get(0));
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void roundTripsAcrossChunks() {
+        Random random = new Random(2);
+        byte[][] payloads = new byte[20][];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = new byte[random.nextInt(i == 7 ? 600 : 30)];
+            for (int j = 0; j < payloads[i].length; j++) {
+                payloads[i][j] = (byte) (random.nextInt(4) == 0 ? 0 : random.nextInt());
+            }
+
+            byte[] encoded = encode(payloads[i]);
+            stream.write(encoded, 0, encoded.length);
+        }
+
+        byte[] data = stream.toByteArray();
+
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize += (chunkSize < 40) ? 1 : 37) {
+            List<byte[]> frames = FrameCollector.decode(new BTCobsFrameDecoder(), data, chunkSize);
+
+            assertEquals("chunk size " + chunkSize, payloads.length, frames.size());
+            for (int i = 0; i < payloads.length; i++) {
+                assertArrayEquals("chunk size " + chunkSize, payloads[i], frames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void encoderMatchesSpec() {
+        byte[] full = new byte[254];
+        Arrays.fill(full, (byte) 1);
+
+        assertArrayEquals(bytes(0x01, 0x01, 0x00), encode(bytes(0x00)));
+        assertArrayEquals(bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00), encode(bytes(0x11, 0x22, 0x00, 0x33)));
+        assertEquals(0xFF, encode(full)[0] & 0xFF);
+    }
+
+    // COBS with a trailing zero delimiter
+    private static byte[] encode(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[255];
+        int fill = 1;
+
+        for (byte value : payload) {
+            if (value != 0) block[fill++] = value;
+
+            if (value == 0 || fill == 255) {
+                block[0] = (byte) fill;
+                out.write(block, 0, fill);
+                fill = 1;
+            }
+        }
+
+        block[0] = (byte) fill;
+        out.write(block, 0, fill);
+        out.write(0);
+
+        return out.toByteArray();
+    }
+}
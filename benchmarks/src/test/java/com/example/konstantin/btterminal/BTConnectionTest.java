@@ -0,0 +1,245 @@
+package com.example.konstantin.btterminal;
+
+import com.example.konstantin.btterminal.benchmarks.JvmHost;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// BTConnection on a plain JVM over BTTcpTransport, against a peer scripted by each test
+public class BTConnectionTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private final BlockingQueue<Integer> mStates = new LinkedBlockingQueue<Integer>();
+    private final BlockingQueue<Integer> mToasts = new LinkedBlockingQueue<Integer>();
+    private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+    private final byte[] mReadBuffer = new byte[1000];
+
+    private JvmHost mHost;
+    private BTConnection mConnection;
+    private ServerSocket mPeer;
+
+    @Before
+    public void setUp() throws IOException {
+        mHost = new JvmHost(new JvmHost.Receiver() {
+            public void handleMessage(int what, int arg1, int arg2, Object obj) {
+                switch (what) {
+                    case BTConnection.MSG_STATE_CHANGE:
+                        mStates.add(arg1);
+                        break;
+
+                    case BTConnection.MSG_DATA_READ:
+                        int bytes;
+                        while ((bytes = mConnection.read(mReadBuffer, 0, mReadBuffer.length)) > 0) {
+                            synchronized (mReceived) {
+                                mReceived.write(mReadBuffer, 0, bytes);
+                                mReceived.notifyAll();
+                            }
+                        }
+                        break;
+
+                    case BTConnection.MSG_TOAST:
+                        mToasts.add(arg1);
+                        break;
+                }
+            }
+        });
+
+        mPeer = new ServerSocket(0, 1, InetAddress.getByName(null));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mConnection != null) mConnection.stop();
+        mPeer.close();
+        mHost.shutdown();
+    }
+
+    @Test
+    public void streamsBothWays() throws Exception {
+        mConnection = new BTConnection(mHost, new BTTcpTransport(0), 7);
+        // The burst is larger than the default buffer fills within one drain interval
+        mConnection.setReceiveBuffer(BTConnection.DEFAULT_RX_CAPACITY, BTRingBuffer.POLICY_BLOCK);
+        String address = "localhost:" + mPeer.getLocalPort();
+
+        mConnection.connect(address);
+        Socket peer = mPeer.accept();
+
+        awaitState(BTConnection.STATE_CONNECTING);
+        awaitState(BTConnection.STATE_CONNECTED);
+        assertEquals(address, mConnection.getAddress());
+
+        // Device to app, in many small writes
+        byte[] payload = payload(100000, 1);
+        OutputStream out = peer.getOutputStream();
+        for (int offset = 0; offset < payload.length; offset += 100) {
+            out.write(payload, offset, 100);
+        }
+        assertArrayEquals(payload, awaitReceived(payload.length));
+
+        // App to device, coalesced by the write queue
+        byte[] command = payload(5000, 2);
+        for (int offset = 0; offset < command.length; offset += 50) {
+            assertTrue(mConnection.write(Arrays.copyOfRange(command, offset, offset + 50)));
+        }
+        byte[] sent = new byte[command.length];
+        new DataInputStream(peer.getInputStream()).readFully(sent);
+        assertArrayEquals(command, sent);
+
+        assertEquals(payload.length, mConnection.getMetricsSnapshot().getBytesIn());
+        assertTrue(mConnection.getMetricsSnapshot().getFramesIn() > 0);
+        assertEquals(0, mConnection.getDroppedBytes());
+
+        // Without a reconnect policy a lost connection is final
+        peer.close();
+        awaitState(BTConnection.STATE_NONE);
+        assertEquals(BTConnection.TOAST_LOST_CONNECTION, (int) mToasts.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void resumesWithQueuedWrites() throws Exception {
+        mConnection = new BTConnection(mHost, new BTTcpTransport(0), 1);
+        mConnection.setReconnectPolicy(new BTReconnectPolicy(10, 100, 0, 5));
+
+        mConnection.connect("localhost:" + mPeer.getLocalPort());
+        Socket peer = mPeer.accept();
+        awaitState(BTConnection.STATE_CONNECTING);
+        awaitState(BTConnection.STATE_CONNECTED);
+
+        peer.close();
+        awaitState(BTConnection.STATE_RECONNECTING);
+
+        // Kept for the resumed connection
+        byte[] command = "AT+RESUME\r\n".getBytes("US-ASCII");
+        assertTrue(mConnection.write(command));
+
+        peer = mPeer.accept();
+        awaitState(BTConnection.STATE_CONNECTED);
+
+        byte[] sent = new byte[command.length];
+        new DataInputStream(peer.getInputStream()).readFully(sent);
+        assertArrayEquals(command, sent);
+        peer.close();
+    }
+
+    // BTService drops the foreground on close() of the last session, without waiting for its message
+    @Test
+    public void stopEndsActivityAtOnce() throws Exception {
+        mConnection = new BTConnection(mHost, new BTTcpTransport(0), 3);
+        assertFalse(BTConnection.isActive(mConnection.getState()));
+
+        mConnection.connect("localhost:" + mPeer.getLocalPort());
+        Socket peer = mPeer.accept();
+        awaitState(BTConnection.STATE_CONNECTED);
+        assertTrue(BTConnection.isActive(mConnection.getState()));
+
+        mConnection.stop();
+        assertFalse(BTConnection.isActive(mConnection.getState()));
+        awaitState(BTConnection.STATE_NONE);
+        peer.close();
+    }
+
+    @Test
+    public void notifiesListenersInOrderOutsideMonitor() throws Exception {
+        final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+        final BTConnection connection = new BTConnection(mHost, new BTTcpTransport(0), 4);
+        mConnection = connection;
+
+        connection.addStateListener(new BTConnection.StateListener() {
+            public void onStateChanged(BTConnection c, int oldState, int newState) {
+                changes.add(oldState + ">" + newState + (Thread.holdsLock(c) ? " locked" : ""));
+            }
+        });
+
+        connection.connect("localhost:" + mPeer.getLocalPort());
+        Socket peer = mPeer.accept();
+        awaitState(BTConnection.STATE_CONNECTED);
+        connection.stop();
+        peer.close();
+
+        assertEquals("0>2", changes.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("2>3", changes.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("3>0", changes.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void acceptsIncomingPeer() throws Exception {
+        int port = mPeer.getLocalPort();
+        mPeer.close();
+
+        mConnection = new BTConnection(mHost, new BTTcpTransport(port), 0);
+        mConnection.listen(true);
+        awaitState(BTConnection.STATE_LISTEN);
+
+        Socket peer = connect(port);
+        awaitState(BTConnection.STATE_CONNECTED);
+        assertEquals("127.0.0.1:" + peer.getLocalPort(), mConnection.getAddress());
+
+        byte[] line = "ready\n".getBytes("US-ASCII");
+        peer.getOutputStream().write(line);
+        assertArrayEquals(line, awaitReceived(line.length));
+        peer.close();
+    }
+
+    private void awaitState(int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (true) {
+            Integer next = mStates.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (next == null) throw new AssertionError("state " + state + " not reached");
+            if (next == state) return;
+        }
+    }
+
+    private byte[] awaitReceived(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        synchronized (mReceived) {
+            while (mReceived.size() < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) throw new AssertionError("received " + mReceived.size() + " of " + count);
+                mReceived.wait(wait);
+            }
+            return mReceived.toByteArray();
+        }
+    }
+
+    // The listening side may take a moment to bind
+    private static Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (true) {
+            try {
+                return new Socket(InetAddress.getByName(null), port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static byte[] payload(int size, long seed) {
+        byte[] payload = new byte[size];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BTDelimiterFrameDecoderTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void splitsOnLf() {
+        List<byte[]> frames = FrameCollector.decode(new BTDelimiterFrameDecoder(BTDelimiterFrameDecoder.DELIMITER_LF),
+                "one\ntwo\n\nthree".getBytes(ASCII), 64);
+
+        assertEquals(3, frames.size());
+        assertEquals("one", text(frames.get(0)));
+        assertEquals("two", text(frames.get(1)));
+        assertEquals("", text(frames.get(2)));
+    }
+
+    @Test
+    public void keepsLoneCrInFrame() {
+        List<byte[]> frames = FrameCollector.decode(new BTDelimiterFrameDecoder(BTDelimiterFrameDecoder.DELIMITER_CRLF),
+                "a\rb\r\r\nc\r\n".getBytes(ASCII), 64);
+
+        assertEquals(2, frames.size());
+        assertEquals("a\rb\r", text(frames.get(0)));
+        assertEquals("c", text(frames.get(1)));
+    }
+
+    @Test
+    public void dropsOversizedFrames() {
+        BTDelimiterFrameDecoder decoder = new BTDelimiterFrameDecoder(BTDelimiterFrameDecoder.DELIMITER_LF, 4);
+        List<byte[]> frames = FrameCollector.decode(decoder, "toolong\nok\n".getBytes(ASCII), 3);
+
+        assertEquals(1, frames.size());
+        assertEquals("ok", text(frames.get(0)));
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void splitsCrLfAcrossChunks() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            text.append("line ").append(i).append((i % 3 == 0) ? "\r" : "").append("\r\n");
+        }
+        byte[] data = text.toString().getBytes(ASCII);
+
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+            List<byte[]> frames = FrameCollector.decode(
+                    new BTDelimiterFrameDecoder(BTDelimiterFrameDecoder.DELIMITER_CRLF), data, chunkSize);
+
+            assertEquals("chunk size " + chunkSize, 30, frames.size());
+            for (int i = 0; i < 30; i++) {
+                assertEquals("chunk size " + chunkSize, "line " + i + ((i % 3 == 0) ? "\r" : ""), text(frames.get(i)));
+            }
+        }
+    }
+
+    private static String text(byte[] frame) {
+        return new String(frame, ASCII);
+    }
+}
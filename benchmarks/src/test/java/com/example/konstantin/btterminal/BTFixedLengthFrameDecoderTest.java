@@ -0,0 +1,43 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BTFixedLengthFrameDecoderTest {
+
+    @Test
+    public void splitsAcrossChunks() {
+        byte[] data = new byte[7 * 40 + 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+            List<byte[]> frames = FrameCollector.decode(new BTFixedLengthFrameDecoder(7), data, chunkSize);
+
+            // The incomplete tail is kept for the next chunk
+            assertEquals("chunk size " + chunkSize, 40, frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                assertArrayEquals("chunk size " + chunkSize, Arrays.copyOfRange(data, i * 7, i * 7 + 7), frames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void resetDiscardsPartialFrame() {
+        BTFixedLengthFrameDecoder decoder = new BTFixedLengthFrameDecoder(4);
+        FrameCollector collector = new FrameCollector();
+
+        decoder.decode(FrameCollector.bytes(1, 2), 0, 2, collector);
+        decoder.reset();
+        decoder.decode(FrameCollector.bytes(3, 4, 5, 6), 0, 4, collector);
+
+        assertEquals(1, collector.mFrames.size());
+        assertArrayEquals(FrameCollector.bytes(3, 4, 5, 6), collector.mFrames.get(0));
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BTHexFormatterTest {
+
+    @Test
+    public void formatsXxdLines() {
+        byte[] data = "Hello, world\r\n\0\0ab".getBytes();
+        List<String> lines = new ArrayList<String>();
+
+        format(new BTHexFormatter(), data, data.length, lines);
+
+        assertEquals(Arrays.asList(
+                "00000000: 4865 6c6c 6f2c 2077 6f72 6c64 0d0a 0000  Hello, world....",
+                "00000010: 6162                                     ab"), lines);
+    }
+
+    @Test
+    public void replacesIncompleteLine() {
+        BTHexFormatter formatter = new BTHexFormatter();
+        final List<String> complete = new ArrayList<String>();
+        final String[] pending = new String[1];
+
+        BTHexFormatter.Output output = new BTHexFormatter.Output() {
+            public void onLine(char[] line, int count, boolean done) {
+                if (done) {
+                    complete.add(new String(line, 0, count));
+                    pending[0] = null;
+                } else {
+                    pending[0] = new String(line, 0, count);
+                }
+            }
+        };
+
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('A' + i % 26);
+        }
+
+        // Byte by byte gives the same lines as one chunk
+        for (int i = 0; i < data.length; i++) {
+            formatter.format(data, i, 1, output);
+        }
+
+        List<String> whole = new ArrayList<String>();
+        format(new BTHexFormatter(), data, data.length, whole);
+
+        assertEquals(whole.subList(0, 2), complete);
+        assertEquals(whole.get(2), pending[0]);
+        assertEquals("00000020: 4748 494a 4b4c 4d4e                      GHIJKLMN", pending[0]);
+    }
+
+    @Test
+    public void parsesHex() {
+        byte[] dst = new byte[8];
+
+        assertEquals(4, BTHexFormatter.parse("0x01 ff,A0\t7e", dst));
+        assertArrayEquals(new byte[] { 0x01, (byte) 0xFF, (byte) 0xA0, 0x7E }, Arrays.copyOf(dst, 4));
+
+        assertEquals(3, BTHexFormatter.parse("deadbe", dst));
+        assertArrayEquals(new byte[] { (byte) 0xDE, (byte) 0xAD, (byte) 0xBE }, Arrays.copyOf(dst, 3));
+
+        assertEquals(0, BTHexFormatter.parse("  ", dst));
+    }
+
+    @Test
+    public void rejectsInvalidHex() {
+        byte[] dst = new byte[2];
+
+        assertEquals(-1, BTHexFormatter.parse("abc", dst));
+        assertEquals(-1, BTHexFormatter.parse("a b", dst));
+        assertEquals(-1, BTHexFormatter.parse("zz", dst));
+        assertEquals(-1, BTHexFormatter.parse("0102 03", dst));
+        assertEquals(-1, BTHexFormatter.parse("é", dst));
+    }
+
+    // Collects complete lines and the final incomplete one
+    private static void format(BTHexFormatter formatter, byte[] data, int count, final List<String> lines) {
+        final String[] pending = new String[1];
+
+        formatter.format(data, 0, count, new BTHexFormatter.Output() {
+            public void onLine(char[] line, int length, boolean complete) {
+                if (complete) {
+                    lines.add(new String(line, 0, length));
+                } else {
+                    pending[0] = new String(line, 0, length);
+                }
+            }
+        });
+
+        if (pending[0] != null) lines.add(pending[0]);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static com.example.konstantin.btterminal.FrameCollector.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BTLengthPrefixFrameDecoderTest {
+
+    @Test
+    public void readsBothByteOrders() {
+        List<byte[]> big = FrameCollector.decode(new BTLengthPrefixFrameDecoder(2, true),
+                bytes(0x00, 0x02, 'a', 'b'), 64);
+        List<byte[]> little = FrameCollector.decode(new BTLengthPrefixFrameDecoder(2, false),
+                bytes(0x02, 0x00, 'a', 'b'), 64);
+
+        assertEquals(1, big.size());
+        assertArrayEquals(bytes('a', 'b'), big.get(0));
+        assertEquals(1, little.size());
+        assertArrayEquals(bytes('a', 'b'), little.get(0));
+    }
+
+    @Test
+    public void emitsEmptyFrames() {
+        List<byte[]> frames = FrameCollector.decode(new BTLengthPrefixFrameDecoder(1, true),
+                bytes(0x00, 0x01, 'x', 0x00), 64);
+
+        assertEquals(3, frames.size());
+        assertEquals(0, frames.get(0).length);
+        assertArrayEquals(bytes('x'), frames.get(1));
+        assertEquals(0, frames.get(2).length);
+    }
+
+    @Test
+    public void skipsOversizedFramesAndStaysInSync() {
+        BTLengthPrefixFrameDecoder decoder = new BTLengthPrefixFrameDecoder(2, true, 4);
+        List<byte[]> frames = FrameCollector.decode(decoder,
+                bytes(0x00, 0x06, 1, 2, 3, 4, 5, 6, 0x00, 0x01, 7), 3);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes(7), frames.get(0));
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void roundTripsAcrossChunks() {
+        int[] prefixSizes = { 1, 2, 4 };
+
+        for (int prefixSize : prefixSizes) {
+            for (int order = 0; order < 2; order++) {
+                boolean bigEndian = (order == 0);
+                Random random = new Random(prefixSize * 2 + order);
+                byte[][] payloads = new byte[12][];
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+                for (int i = 0; i < payloads.length; i++) {
+                    payloads[i] = new byte[random.nextInt(prefixSize == 1 ? 256 : 700)];
+                    random.nextBytes(payloads[i]);
+
+                    writeLength(stream, payloads[i].length, prefixSize, bigEndian);
+                    stream.write(payloads[i], 0, payloads[i].length);
+                }
+
+                byte[] data = stream.toByteArray();
+
+                for (int chunkSize = 1; chunkSize <= data.length; chunkSize += (chunkSize < 16) ? 1 : 97) {
+                    String message = prefixSize + (bigEndian ? " BE" : " LE") + ", chunk size " + chunkSize;
+                    List<byte[]> frames = FrameCollector.decode(new BTLengthPrefixFrameDecoder(prefixSize, bigEndian),
+                            data, chunkSize);
+
+                    assertEquals(message, payloads.length, frames.size());
+                    for (int i = 0; i < payloads.length; i++) {
+                        assertArrayEquals(message, payloads[i], frames.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length, int prefixSize, boolean bigEndian) {
+        for (int i = 0; i < prefixSize; i++) {
+            int shift = 8 * (bigEndian ? prefixSize - 1 - i : i);
+            out.write(length >>> shift);
+        }
+    }
+}
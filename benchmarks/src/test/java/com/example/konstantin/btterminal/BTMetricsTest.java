@@ -0,0 +1,78 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BTMetricsTest {
+
+    @Test
+    public void bucketsByPowerOfTwo() {
+        assertEquals(0, BTMetrics.bucket(0));
+        assertEquals(0, BTMetrics.bucket(-5));
+        assertEquals(1, BTMetrics.bucket(1));
+        assertEquals(2, BTMetrics.bucket(2));
+        assertEquals(2, BTMetrics.bucket(3));
+        assertEquals(3, BTMetrics.bucket(4));
+        assertEquals(11, BTMetrics.bucket(1024));
+        assertEquals(BTMetrics.HISTOGRAM_BUCKETS - 1, BTMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentileIsBucketUpperBound() {
+        long[] histogram = new long[BTMetrics.HISTOGRAM_BUCKETS];
+        histogram[0] = 10;
+        histogram[3] = 80;
+        histogram[10] = 10;
+
+        assertEquals(0, BTMetrics.Snapshot.percentile(histogram, 0.1));
+        assertEquals(7, BTMetrics.Snapshot.percentile(histogram, 0.5));
+        assertEquals(7, BTMetrics.Snapshot.percentile(histogram, 0.9));
+        assertEquals(1023, BTMetrics.Snapshot.percentile(histogram, 0.91));
+        assertEquals(1023, BTMetrics.Snapshot.percentile(histogram, 1.0));
+        assertEquals(0, BTMetrics.Snapshot.percentile(new long[BTMetrics.HISTOGRAM_BUCKETS], 0.5));
+    }
+
+    @Test
+    public void recordsIntoSnapshot() {
+        BTMetrics metrics = new BTMetrics();
+
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordRead(i);
+            metrics.recordDispatchLatency(i * 10);
+        }
+        metrics.recordWrite(7);
+        metrics.recordFrameOut(5);
+
+        BTMetrics.Snapshot snapshot = metrics.snapshot(3);
+
+        assertEquals(5050, snapshot.getBytesIn());
+        assertEquals(100, snapshot.getReadsIn());
+        assertEquals(7, snapshot.getBytesOut());
+        assertEquals(1, snapshot.getWritesOut());
+        assertEquals(1, snapshot.getFramesOut());
+        assertEquals(3, snapshot.getQueuedBytes());
+
+        // Median read of 50 bytes lies in [32, 64)
+        assertEquals(63, BTMetrics.Snapshot.percentile(snapshot.getReadSizes(), 0.5));
+        // p99 latency of 990 us lies in [512, 1024)
+        assertEquals(1023, BTMetrics.Snapshot.percentile(snapshot.getDispatchLatency(), 0.99));
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot(0).getBytesIn());
+    }
+
+    @Test
+    public void ratesBetweenSnapshots() throws Exception {
+        BTMetrics metrics = new BTMetrics();
+        BTMetrics.Snapshot first = metrics.snapshot(0);
+
+        Thread.sleep(20);
+        metrics.recordRead(1000);
+        BTMetrics.Snapshot second = metrics.snapshot(0);
+
+        double elapsed = (second.getTime() - first.getTime()) / 1e9;
+        assertEquals(1000 / elapsed, second.getBytesInPerSecond(first), 1e-6);
+        assertEquals(0, first.getBytesInPerSecond(second), 0);
+    }
+}
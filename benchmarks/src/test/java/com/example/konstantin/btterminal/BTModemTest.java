@@ -0,0 +1,242 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Transfers between two modems over a loopback link, checking what arrived byte for byte
+public class BTModemTest {
+
+    private static final int RING_CAPACITY = 16 * 1024;
+    private static final int SUB = 0x1A;
+
+    private static final int[] FILE_SIZES = { 1, 1000, 1024, 5000, 40000 };
+
+    // Sender to receiver stream offsets that get a bit flipped, in data and in headers
+    private static final long[] BIT_ERRORS = { 0, 700, 3000, 20011, 45000 };
+
+    // Same for the single XMODEM file, which ends before the later offsets
+    private static final long[] SINGLE_FILE_BIT_ERRORS = { 0, 700, 3000 };
+
+    @Test
+    public void xmodemSendsFirstFile() throws Exception {
+        checkSingleFile(BTModem.PROTOCOL_XMODEM, 128, new long[0]);
+    }
+
+    @Test
+    public void xmodemRecoversFromBitErrors() throws Exception {
+        checkSingleFile(BTModem.PROTOCOL_XMODEM, 128, SINGLE_FILE_BIT_ERRORS);
+    }
+
+    @Test
+    public void xmodem1kSendsFirstFile() throws Exception {
+        checkSingleFile(BTModem.PROTOCOL_XMODEM_1K, 1024, new long[0]);
+    }
+
+    @Test
+    public void xmodem1kRecoversFromBitErrors() throws Exception {
+        checkSingleFile(BTModem.PROTOCOL_XMODEM_1K, 1024, SINGLE_FILE_BIT_ERRORS);
+    }
+
+    @Test
+    public void ymodemSendsBatch() throws Exception {
+        checkBatch(BTModem.PROTOCOL_YMODEM, new long[0]);
+    }
+
+    @Test
+    public void ymodemRecoversFromBitErrors() throws Exception {
+        checkBatch(BTModem.PROTOCOL_YMODEM, BIT_ERRORS);
+    }
+
+    // No bit errors for YMODEM-G, which has no retransmission and cancels on a corrupted block
+    @Test
+    public void ymodemGSendsBatch() throws Exception {
+        checkBatch(BTModem.PROTOCOL_YMODEM_G, new long[0]);
+    }
+
+    @Test
+    public void zmodemSendsBatch() throws Exception {
+        checkBatch(BTModem.PROTOCOL_ZMODEM, new long[0]);
+    }
+
+    @Test
+    public void zmodemRecoversFromBitErrors() throws Exception {
+        checkBatch(BTModem.PROTOCOL_ZMODEM, BIT_ERRORS);
+    }
+
+    // Window 0 streams whole files without waiting for acknowledges
+    @Test
+    public void zmodemStreamsWithoutWindow() throws Exception {
+        checkBatch(BTModem.PROTOCOL_ZMODEM, BIT_ERRORS, 0);
+    }
+
+    // XMODEM carries neither name nor length, the last block is padded with SUB
+    private static void checkSingleFile(int protocol, int blockSize, long[] bitErrors) throws Exception {
+        byte[] payload = payload(5000, 7);
+        Map<String, ByteArrayOutputStream> received = transfer(protocol,
+                new byte[][] { payload, payload(300, 8) }, bitErrors, 0);
+
+        assertEquals(1, received.size());
+        byte[] data = received.values().iterator().next().toByteArray();
+        int padded = (payload.length + blockSize - 1) / blockSize * blockSize;
+
+        assertEquals(padded, data.length);
+        assertArrayEquals(payload, Arrays.copyOf(data, payload.length));
+        for (int i = payload.length; i < data.length; i++) {
+            assertEquals(SUB, data[i]);
+        }
+    }
+
+    private static void checkBatch(int protocol, long[] bitErrors) throws Exception {
+        checkBatch(protocol, bitErrors, BTZModem.DEFAULT_WINDOW);
+    }
+
+    private static void checkBatch(int protocol, long[] bitErrors, int window) throws Exception {
+        byte[][] payloads = new byte[FILE_SIZES.length][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = payload(FILE_SIZES[i], i);
+        }
+
+        Map<String, ByteArrayOutputStream> received = transfer(protocol, payloads, bitErrors, window);
+
+        assertEquals(payloads.length, received.size());
+        for (int i = 0; i < payloads.length; i++) {
+            ByteArrayOutputStream data = received.get(name(i));
+            assertTrue(name(i) + " missing", data != null);
+            assertArrayEquals(name(i), payloads[i], data.toByteArray());
+        }
+    }
+
+    // Runs one transfer, returns the received files by name in arrival order. window only applies
+    // to ZMODEM.
+    private static Map<String, ByteArrayOutputStream> transfer(int protocol, byte[][] payloads, long[] bitErrors,
+            int window) throws Exception {
+        BTRingBuffer senderIn = new BTRingBuffer(RING_CAPACITY, BTRingBuffer.POLICY_BLOCK);
+        BTRingBuffer receiverIn = new BTRingBuffer(RING_CAPACITY, BTRingBuffer.POLICY_BLOCK);
+        Link toReceiver = new Link(receiverIn, bitErrors);
+        Link toSender = new Link(senderIn, new long[0]);
+
+        final BTModem sender = BTModem.create(protocol, senderIn, toReceiver);
+        final BTModem receiver = BTModem.create(protocol, receiverIn, toSender);
+        if (sender instanceof BTZModem) ((BTZModem) sender).setWindow(window);
+        final Map<String, ByteArrayOutputStream> files = new LinkedHashMap<String, ByteArrayOutputStream>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<Boolean> received = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return receiver.receive(new BTModem.Sink() {
+                        public OutputStream create(String name, long length) {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            files.put(name != null ? name : "file" + files.size(), out);
+                            return out;
+                        }
+                    });
+                }
+            });
+
+            List<BTModem.Source> sources = new ArrayList<BTModem.Source>();
+            for (int i = 0; i < payloads.length; i++) {
+                sources.add(new Source(name(i), payloads[i]));
+            }
+
+            assertTrue(sender.send(sources));
+            assertTrue(received.get(60, TimeUnit.SECONDS));
+            assertEquals(bitErrors.length, toReceiver.mFlipped);
+        } finally {
+            toReceiver.close();
+            toSender.close();
+            executor.shutdownNow();
+        }
+
+        return files;
+    }
+
+    private static String name(int index) {
+        return "file" + index + ".bin";
+    }
+
+    private static byte[] payload(int size, long seed) {
+        byte[] payload = new byte[size];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    // Hands every write to peer, with one bit flipped at each of the given stream offsets
+    private static final class Link extends OutputStream {
+        private final BTRingBuffer mPeer;
+        private final long[] mBitErrors;
+        private long mPosition;
+        private int mFlipped;
+
+        Link(BTRingBuffer peer, long[] bitErrors) {
+            mPeer = peer;
+            mBitErrors = bitErrors;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int count) {
+            byte[] copy = Arrays.copyOfRange(buffer, offset, offset + count);
+
+            for (long position : mBitErrors) {
+                if (position >= mPosition && position < mPosition + count) {
+                    copy[(int) (position - mPosition)] ^= 1 << (position % 8);
+                    mFlipped++;
+                }
+            }
+
+            mPosition += count;
+            mPeer.write(copy, 0, count);
+        }
+
+        @Override
+        public void close() {
+            mPeer.close();
+        }
+    }
+
+    private static final class Source implements BTModem.Source {
+        private final String mName;
+        private final byte[] mData;
+
+        Source(String name, byte[] data) {
+            mName = name;
+            mData = data;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getLength() {
+            return mData.length;
+        }
+
+        public InputStream open() {
+            return new ByteArrayInputStream(mData);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BTRingBufferTest {
+
+    @Test
+    public void roundsCapacityUp() {
+        assertEquals(16, new BTRingBuffer(9, BTRingBuffer.POLICY_BLOCK).getCapacity());
+        assertEquals(16, new BTRingBuffer(16, BTRingBuffer.POLICY_BLOCK).getCapacity());
+    }
+
+    @Test
+    public void wrapsAround() {
+        BTRingBuffer buffer = new BTRingBuffer(8, BTRingBuffer.POLICY_BLOCK);
+        byte[] out = new byte[8];
+
+        assertEquals(6, buffer.write(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6));
+        assertEquals(4, buffer.read(out, 0, 4));
+        assertEquals(5, buffer.write(new byte[] { 7, 8, 9, 10, 11 }, 0, 5));
+
+        assertEquals(7, buffer.read(out, 0, 8));
+        assertArrayEquals(new byte[] { 5, 6, 7, 8, 9, 10, 11 }, Arrays.copyOf(out, 7));
+        assertEquals(0, buffer.available());
+    }
+
+    @Test
+    public void dropsNewest() {
+        BTRingBuffer buffer = new BTRingBuffer(4, BTRingBuffer.POLICY_DROP_NEWEST);
+        byte[] out = new byte[4];
+
+        assertEquals(4, buffer.write(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6));
+        assertEquals(2, buffer.getDroppedBytes());
+        assertEquals(4, buffer.read(out, 0, 4));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, out);
+    }
+
+    @Test
+    public void dropsOldest() {
+        BTRingBuffer buffer = new BTRingBuffer(4, BTRingBuffer.POLICY_DROP_OLDEST);
+        byte[] out = new byte[4];
+
+        buffer.write(new byte[] { 1, 2, 3 }, 0, 3);
+        buffer.write(new byte[] { 4, 5, 6 }, 0, 3);
+        assertEquals(2, buffer.getDroppedBytes());
+        assertEquals(4, buffer.read(out, 0, 4));
+        assertArrayEquals(new byte[] { 3, 4, 5, 6 }, out);
+
+        // More than the capacity in one write keeps the newest bytes
+        buffer.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 }, 0, 7);
+        assertEquals(4, buffer.read(out, 0, 4));
+        assertArrayEquals(new byte[] { 4, 5, 6, 7 }, out);
+    }
+
+    @Test
+    public void readTimesOutAndDrainsAfterClose() {
+        BTRingBuffer buffer = new BTRingBuffer(8, BTRingBuffer.POLICY_BLOCK);
+        byte[] out = new byte[8];
+
+        assertEquals(0, buffer.read(out, 0, 8, 5));
+
+        buffer.write(new byte[] { 1, 2 }, 0, 2);
+        buffer.close();
+
+        assertEquals(0, buffer.write(new byte[] { 3 }, 0, 1));
+        assertEquals(2, buffer.read(out, 0, 8, -1));
+        assertEquals(-1, buffer.read(out, 0, 8, -1));
+    }
+
+    @Test
+    public void blockingTransferKeepsOrder() throws Exception {
+        final BTRingBuffer buffer = new BTRingBuffer(64, BTRingBuffer.POLICY_BLOCK);
+        final byte[] data = new byte[256 * 1024];
+        new Random(3).nextBytes(data);
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                Random random = new Random(4);
+                int offset = 0;
+
+                while (offset < data.length) {
+                    int count = Math.min(1 + random.nextInt(100), data.length - offset);
+                    offset += buffer.write(data, offset, count);
+                }
+                buffer.close();
+            }
+        });
+        producer.start();
+
+        byte[] received = new byte[data.length];
+        int position = 0;
+        int bytes;
+
+        while ((bytes = buffer.read(received, position, Math.min(37, received.length - position), 1000)) > 0) {
+            position += bytes;
+            if (position == received.length) break;
+        }
+
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertEquals(data.length, position);
+        assertArrayEquals(data, received);
+    }
+}
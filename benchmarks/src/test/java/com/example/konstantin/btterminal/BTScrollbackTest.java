@@ -0,0 +1,59 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BTScrollbackTest {
+
+    @Test
+    public void breaksLinesOnLfCrAndCrLf() {
+        BTScrollback scrollback = new BTScrollback(16, 80);
+        scrollback.append("a\nb\r\nc\rd");
+
+        assertEquals(4, scrollback.getLineCount());
+        assertEquals("a", line(scrollback, 0));
+        assertEquals("b", line(scrollback, 1));
+        assertEquals("c", line(scrollback, 2));
+        assertEquals("d", line(scrollback, 3));
+    }
+
+    @Test
+    public void growsLinesUpToColumns() {
+        BTScrollback scrollback = new BTScrollback(16, 300);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 700; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+
+        scrollback.append(text);
+
+        // Hard wrapped at the column count
+        assertEquals(3, scrollback.getLineCount());
+        assertEquals(text.substring(0, 300), line(scrollback, 0));
+        assertEquals(text.substring(300, 600), line(scrollback, 1));
+        assertEquals(text.substring(600), line(scrollback, 2));
+
+        scrollback.finishLine();
+        scrollback.setLine(text.toString().toCharArray(), 0, 200);
+        assertEquals(text.substring(0, 200), line(scrollback, 3));
+    }
+
+    @Test
+    public void evictsOldestLines() {
+        BTScrollback scrollback = new BTScrollback(8, 80);
+
+        for (int i = 0; i < 20; i++) {
+            scrollback.append("line " + i + "\n");
+        }
+
+        assertEquals(8, scrollback.getLineCount());
+        assertEquals("line 13", line(scrollback, 0));
+        assertEquals("line 19", line(scrollback, 6));
+        assertEquals("", line(scrollback, 7));
+    }
+
+    private static String line(BTScrollback scrollback, int line) {
+        return new String(scrollback.getLineChars(line), 0, scrollback.getLineLength(line));
+    }
+}
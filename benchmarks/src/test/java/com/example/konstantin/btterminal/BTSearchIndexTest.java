@@ -0,0 +1,121 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BTSearchIndexTest {
+
+    private static final String[] LINES = {
+            "boot ok",
+            "ABC ready",
+            "ERR: sensor 4 timeout",
+            "value=0101 A=65",
+            "temp 21.5 C\tok",
+            "ERR\u0000 raw",
+            "été café",
+            "name=foo bar=foo",
+            "x{41}y [a] ]c",
+            "line ending with ERR:",
+    };
+
+    @Test
+    public void keepsPlainLiterals() {
+        assertEquals("ERR: sensor", BTSearchIndex.requiredLiteral("ERR: sensor"));
+        assertEquals("sensor", BTSearchIndex.requiredLiteral("ERR.*sensor"));
+        assertEquals("temp 21", BTSearchIndex.requiredLiteral("temp 21\\.?5"));
+        assertEquals("a.b", BTSearchIndex.requiredLiteral("\\Qa.b\\E"));
+        assertNull(BTSearchIndex.requiredLiteral("ERR|WARN"));
+        assertNull(BTSearchIndex.requiredLiteral("ab"));
+    }
+
+    @Test
+    public void skipsEscapeArguments() {
+        // Only the chars after an escape with argument are literal
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\x41BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\x{41}BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\u0041BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\0101BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\cMBCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("(?<n>x)\\k<n>BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\p{Lu}BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\P{Lu}BCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("\\pLBCD"));
+        assertEquals("BCD", BTSearchIndex.requiredLiteral("(a)\\1BCD"));
+        assertEquals("ERR", BTSearchIndex.requiredLiteral("ERR\\x3A"));
+
+        // Too short once the escapes are skipped
+        assertNull(BTSearchIndex.requiredLiteral("\\x41BC"));
+        assertNull(BTSearchIndex.requiredLiteral("\\u0041BC"));
+        assertNull(BTSearchIndex.requiredLiteral("\\0101"));
+        assertNull(BTSearchIndex.requiredLiteral("\\cM"));
+    }
+
+    @Test
+    public void givesUpOnUncertainSyntax() {
+        assertNull(BTSearchIndex.requiredLiteral("[a[b]]cde"));
+        assertNull(BTSearchIndex.requiredLiteral("[\\Q]\\E]cde"));
+        assertNull(BTSearchIndex.requiredLiteral("\\x{41BCDEF"));
+        assertNull(BTSearchIndex.requiredLiteral("\\k<nameBCDEF"));
+    }
+
+    @Test
+    public void findsWhatScanningFinds() {
+        String[] regexes = {
+                "\\x41BC", "\\x{41}BC", "\\u0041BC", "\\0101BC", "\\x41=65", "ERR\\x3A", "ERR\\u0000",
+                "\\0101=65", "\\cI", "C\\cIok", "caf\\u00e9", "\\p{L}t\\p{L} caf", "\\P{L}sensor",
+                "(?<k>foo) bar=\\k<k>", "name=(foo) bar=\\1", "x\\{41\\}y", "\\[a\\] \\]c", "[\\]]c",
+                "temp 21\\.5", "ERR:$", "^boot", "sensor \\d+ timeout", "\\Qvalue=0\\E", "\\t",
+        };
+
+        for (String regex : regexes) {
+            Pattern pattern = Pattern.compile(regex);
+            BTScrollback scrollback = fill();
+            BTSearchIndex index = new BTSearchIndex(scrollback);
+
+            long expected = scan(scrollback, pattern);
+            assertTrue(regex + " matches nothing", expected >= 0);
+            assertEquals(regex, expected, index.findNext(pattern, scrollback.getFirstSeq()));
+            assertEquals(regex, expected, index.findPrevious(pattern, expected));
+        }
+    }
+
+    @Test
+    public void findsLiteralsIgnoringCase() {
+        BTScrollback scrollback = fill();
+        BTSearchIndex index = new BTSearchIndex(scrollback);
+        long first = scrollback.getFirstSeq();
+
+        assertEquals(first + 102, index.findNext("err: SENSOR", first));
+        assertEquals(first + 109, index.findPrevious("err:", scrollback.getLastSeq()));
+        assertEquals(-1, index.findNext("missing", first));
+    }
+
+    // First line a plain regex scan matches, -1 if none
+    private static long scan(BTScrollback scrollback, Pattern pattern) {
+        for (long seq = scrollback.getFirstSeq(); seq <= scrollback.getLastSeq(); seq++) {
+            Matcher matcher = pattern.matcher(new String(scrollback.getSeqChars(seq), 0, scrollback.getSeqLength(seq)));
+            if (matcher.find()) return seq;
+        }
+        return -1;
+    }
+
+    // Filler lines first, so the index and the scan have history to skip
+    private static BTScrollback fill() {
+        BTScrollback scrollback = new BTScrollback(256, 80);
+
+        for (int i = 0; i < 100; i++) {
+            scrollback.append("filler line " + i + "\n");
+        }
+        for (String line : LINES) {
+            scrollback.append(line);
+            scrollback.finishLine();
+        }
+        return scrollback;
+    }
+}
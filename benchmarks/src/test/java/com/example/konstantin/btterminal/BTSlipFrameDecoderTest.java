@@ -0,0 +1,105 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static com.example.konstantin.btterminal.FrameCollector.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BTSlipFrameDecoderTest {
+
+    private static final int END = 0xC0;
+    private static final int ESC = 0xDB;
+    private static final int ESC_END = 0xDC;
+    private static final int ESC_ESC = 0xDD;
+
+    @Test
+    public void decodesEscapes() {
+        List<byte[]> frames = FrameCollector.decode(new BTSlipFrameDecoder(),
+                bytes(END, 1, ESC, ESC_END, 2, ESC, ESC_ESC, 3, END), 64);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes(1, END, 2, ESC, 3), frames.get(0));
+    }
+
+    @Test
+    public void skipsEmptyFrames() {
+        List<byte[]> frames = FrameCollector.decode(new BTSlipFrameDecoder(), bytes(END, END, 'a', END, END), 64);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes('a'), frames.get(0));
+    }
+
+    @Test
+    public void dropsAbortedEscape() {
+        BTSlipFrameDecoder decoder = new BTSlipFrameDecoder();
+        List<byte[]> frames = FrameCollector.decode(decoder, bytes('a', ESC, END, 'b', END), 64);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes('b'), frames.get(0));
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void dropsOversizedFrames() {
+        BTSlipFrameDecoder decoder = new BTSlipFrameDecoder(4);
+        List<byte[]> frames = FrameCollector.decode(decoder, bytes(1, 2, 3, 4, 5, END, 6, END), 2);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes(6), frames.get(0));
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void roundTripsAcrossChunks() {
+        byte[][] payloads = payloads(new Random(1), 20);
+        byte[] stream = encode(payloads);
+
+        for (int chunkSize = 1; chunkSize <= stream.length; chunkSize++) {
+            List<byte[]> frames = FrameCollector.decode(new BTSlipFrameDecoder(), stream, chunkSize);
+
+            assertEquals("chunk size " + chunkSize, payloads.length, frames.size());
+            for (int i = 0; i < payloads.length; i++) {
+                assertArrayEquals("chunk size " + chunkSize, payloads[i], frames.get(i));
+            }
+        }
+    }
+
+    // Non empty payloads rich in bytes that need escaping
+    static byte[][] payloads(Random random, int count) {
+        byte[][] payloads = new byte[count][];
+        int[] special = { 0x00, END, ESC, ESC_END, ESC_ESC };
+
+        for (int i = 0; i < count; i++) {
+            payloads[i] = new byte[1 + random.nextInt(24)];
+            for (int j = 0; j < payloads[i].length; j++) {
+                payloads[i][j] = (byte) (random.nextBoolean() ? special[random.nextInt(special.length)] : random.nextInt());
+            }
+        }
+        return payloads;
+    }
+
+    private static byte[] encode(byte[][] payloads) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (byte[] payload : payloads) {
+            for (byte value : payload) {
+                if ((value & 0xFF) == END) {
+                    out.write(ESC);
+                    out.write(ESC_END);
+                } else if ((value & 0xFF) == ESC) {
+                    out.write(ESC);
+                    out.write(ESC_ESC);
+                } else {
+                    out.write(value);
+                }
+            }
+            out.write(END);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class BTStreamDecoderTest {
+
+    private static final String TEXT = "Temp 21.5°C, µ=3, 10€ → ✓ 𝄞 done\r\n";
+
+    @Test
+    public void keepsSequencesSplitAcrossChunks() {
+        byte[] data = TEXT.getBytes(Charset.forName("UTF-8"));
+
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+            assertEquals("chunk size " + chunkSize, TEXT, decode(BTStreamDecoder.CHARSET_UTF_8, data, chunkSize, 4));
+        }
+    }
+
+    @Test
+    public void growsForLargeChunks() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append(TEXT);
+        }
+        byte[] data = text.toString().getBytes(Charset.forName("UTF-8"));
+
+        assertEquals(text.toString(), decode(BTStreamDecoder.CHARSET_UTF_8, data, data.length, 16));
+    }
+
+    @Test
+    public void replacesMalformedInput() {
+        byte[] data = { 'a', (byte) 0xFF, 'b' };
+
+        assertEquals("a�b", decode(BTStreamDecoder.CHARSET_UTF_8, data, 3, 16));
+    }
+
+    @Test
+    public void decodesLatin1() {
+        byte[] data = { 'a', (byte) 0xB0, (byte) 0xE9 };
+
+        assertEquals("a°é", decode(BTStreamDecoder.CHARSET_ISO_8859_1, data, 1, 16));
+    }
+
+    @Test
+    public void resetDropsPendingBytes() {
+        BTStreamDecoder decoder = new BTStreamDecoder(BTStreamDecoder.CHARSET_UTF_8, 16);
+
+        assertEquals("", decoder.decode(new byte[] { (byte) 0xE2, (byte) 0x82 }, 0, 2).toString());
+        decoder.reset();
+        assertEquals("x", decoder.decode(new byte[] { 'x' }, 0, 1).toString());
+    }
+
+    private static String decode(String charset, byte[] data, int chunkSize, int bufferSize) {
+        BTStreamDecoder decoder = new BTStreamDecoder(charset, bufferSize);
+        StringBuilder text = new StringBuilder();
+
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            text.append(decoder.decode(data, offset, Math.min(chunkSize, data.length - offset)));
+        }
+        return text.toString();
+    }
+}
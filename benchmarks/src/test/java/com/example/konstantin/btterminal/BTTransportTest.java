@@ -0,0 +1,140 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Both ends of the pipe and TCP transports, as BTConnection would use them
+public class BTTransportTest {
+
+    private static final int PAYLOAD_SIZE = 256 * 1024;
+
+    @Test
+    public void pipeEchoes() throws Exception {
+        echo(new BTPipeTransport(4096), "device");
+    }
+
+    @Test
+    public void pipeRefusesWithoutListener() throws Exception {
+        BTTransport.Endpoint endpoint = new BTPipeTransport().createEndpoint("device");
+
+        try {
+            endpoint.connect();
+            fail("connected without listener");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void tcpEchoes() throws Exception {
+        echo(new BTTcpTransport(freePort()), "localhost");
+    }
+
+    @Test
+    public void tcpResolvesOnConnect() throws Exception {
+        int port = freePort();
+
+        // An unresolvable host fails in connect(), not while the endpoint is created
+        BTTransport.Endpoint endpoint = new BTTcpTransport(port).createEndpoint("no-such-host.invalid:" + port);
+
+        try {
+            endpoint.connect();
+            fail("connected to an invalid host");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    // Sends a payload from a connected endpoint to an accepted one, which echoes it back
+    private static void echo(BTTransport transport, String address) throws Exception {
+        final BTTransport.Acceptor acceptor = transport.listen();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<Integer> echoed = executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    BTTransport.Endpoint endpoint = acceptor.accept();
+                    InputStream in = endpoint.getInputStream();
+                    OutputStream out = endpoint.getOutputStream();
+                    byte[] buffer = new byte[1000];
+                    int total = 0;
+                    int bytes;
+
+                    while (total < PAYLOAD_SIZE && (bytes = in.read(buffer, 0, buffer.length)) > 0) {
+                        out.write(buffer, 0, bytes);
+                        total += bytes;
+                    }
+
+                    out.flush();
+                    return total;
+                }
+            });
+
+            BTTransport.Endpoint endpoint = transport.createEndpoint(address);
+            endpoint.connect();
+
+            final byte[] payload = new byte[PAYLOAD_SIZE];
+            new Random(5).nextBytes(payload);
+
+            final OutputStream out = endpoint.getOutputStream();
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int offset = 0; offset < payload.length; offset += 777) {
+                            out.write(payload, offset, Math.min(777, payload.length - offset));
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        // Shows up as a short echo
+                    }
+                }
+            });
+            writer.start();
+
+            byte[] received = new byte[PAYLOAD_SIZE];
+            InputStream in = endpoint.getInputStream();
+            int position = 0;
+            int bytes;
+
+            while (position < received.length && (bytes = in.read(received, position, received.length - position)) > 0) {
+                position += bytes;
+            }
+
+            writer.join(10000);
+            endpoint.close();
+
+            assertEquals(PAYLOAD_SIZE, (int) echoed.get(10, TimeUnit.SECONDS));
+            assertEquals(PAYLOAD_SIZE, position);
+            assertArrayEquals(payload, Arrays.copyOf(received, position));
+        } finally {
+            acceptor.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
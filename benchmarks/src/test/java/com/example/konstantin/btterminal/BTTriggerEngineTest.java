@@ -0,0 +1,121 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class BTTriggerEngineTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] LINES = {
+            "boot ok",
+            "ABC ready",
+            "ERR: sensor 4 timeout",
+            "err: lower case",
+            "value=0101 A=65",
+            "temp 21.5 C\tok",
+            "ERR\u0000 raw",
+            "été café",
+            "name=foo bar=foo",
+            "name=foo bar=baz",
+            "x{41}y [a] ]c",
+            "line ending with ERR:",
+            "",
+    };
+
+    private static final String[] REGEXES = {
+            "ERR\\x3A", "ERR\\x{3A} sensor", "\\x41BC", "\\u0041BC", "\\0101BC", "\\x41=65", "ERR\\u0000",
+            "\\cI", "C\\cIok", "caf\\u00e9", "\\p{L}t\\p{L} caf", "\\P{L}sensor", "(?<k>foo) bar=\\k<k>",
+            "name=(foo) bar=\\1", "x\\{41\\}y", "\\[a\\] \\]c", "[\\]]c", "temp 21\\.5", "ERR:$", "^boot",
+            "sensor \\d+ timeout", "\\Qvalue=0\\E", "(?i)err: LOWER", "ERR: lower", "^$", "ok$", ".",
+    };
+
+    @Test
+    public void regexFiresExactlyWhenFindMatches() {
+        for (String regex : REGEXES) {
+            Pattern pattern = Pattern.compile(regex);
+            List<BTTriggerRule> rules = Collections.singletonList(BTTriggerRule.parse("count regex " + regex));
+            BTTriggerEngine engine = new BTTriggerEngine(rules, UTF_8);
+
+            for (String line : LINES) {
+                boolean expected = pattern.matcher(line).find();
+                int actions = feedLine(engine, line + "\r\n", 1 + line.length() / 3);
+
+                assertEquals(regex + " on \"" + line + "\"", expected, actions != 0);
+            }
+        }
+    }
+
+    @Test
+    public void regexesShareOneEngine() {
+        List<BTTriggerRule> rules = new ArrayList<BTTriggerRule>();
+        for (String regex : REGEXES) {
+            rules.add(BTTriggerRule.parse("count regex " + regex));
+        }
+        BTTriggerEngine engine = new BTTriggerEngine(rules, UTF_8);
+
+        for (String line : LINES) {
+            final List<String> fired = new ArrayList<String>();
+            List<String> expected = new ArrayList<String>();
+
+            for (String regex : REGEXES) {
+                if (Pattern.compile(regex).matcher(line).find()) expected.add(regex);
+            }
+
+            byte[] bytes = (line + "\n").getBytes(UTF_8);
+            engine.feed(bytes, 0, bytes.length);
+            engine.endLine(new BTTriggerEngine.Listener() {
+                public void onTrigger(BTTriggerRule rule, byte[] data, int length) {
+                    fired.add(rule.getPattern().pattern());
+                }
+            });
+
+            assertEquals(line, expected, fired);
+        }
+    }
+
+    @Test
+    public void textRulesAreCaseSensitive() {
+        BTTriggerEngine engine = new BTTriggerEngine(Arrays.asList(
+                BTTriggerRule.parse("highlight=#ff0000 text ERR"),
+                BTTriggerRule.parse("suppress text debug")), UTF_8);
+
+        assertEquals(BTTriggerRule.ACTION_HIGHLIGHT, feedLine(engine, "ERR: x\n", 2));
+        assertEquals(0xFF0000, engine.getColor());
+        assertEquals(0, feedLine(engine, "err: x\n", 2));
+        assertEquals(BTTriggerRule.ACTION_SUPPRESS, feedLine(engine, "a debug line\n", 1));
+        assertEquals(0, feedLine(engine, "DEBUG\n", 1));
+    }
+
+    @Test
+    public void byteRulesMatchAcrossFeeds() {
+        BTTriggerEngine engine = new BTTriggerEngine(Collections.singletonList(
+                BTTriggerRule.parse("notify bytes 7E FF 01")), UTF_8);
+        byte[] frame = { 0x10, 0x7E, (byte) 0xFF, 0x01, 0x20 };
+
+        engine.feed(frame, 0, 2);
+        engine.feed(frame, 2, 3);
+        assertEquals(BTTriggerRule.ACTION_NOTIFY, engine.endLine(null));
+
+        engine.feed(frame, 0, 3);
+        assertEquals(0, engine.endLine(null));
+    }
+
+    // Feeds line in pieces of chunkSize bytes, returns the actions that fired
+    private static int feedLine(BTTriggerEngine engine, String line, int chunkSize) {
+        byte[] bytes = line.getBytes(UTF_8);
+
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            engine.feed(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+        }
+        return engine.endLine(null);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.konstantin.btterminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BTWriteQueueTest {
+
+    @Test
+    public void coalescesQueuedPayloads() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        BTWriteQueue queue = new BTWriteQueue(1024, 8, executor);
+        CountingStream stream = new CountingStream();
+        CountDownLatch written = new CountDownLatch(4);
+        Callback callback = new Callback(written);
+
+        // Queued while detached, drained in writes of up to 8 bytes
+        queue.write(new byte[] { 1, 2, 3 }, 0, 3, callback);
+        queue.write(new byte[] { 4, 5, 6 }, 0, 3, callback);
+        queue.write(new byte[] { 7, 8, 9 }, 0, 3, callback);
+        queue.write(new byte[] { 0, 10, 11, 0 }, 1, 2, callback);
+        queue.attach(stream);
+
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 }, stream.toByteArray());
+        assertEquals(2, stream.mWrites);
+        assertTrue(callback.mSuccess);
+
+        queue.shutdown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void rejectsBeyondCapacity() {
+        BTWriteQueue queue = new BTWriteQueue(8, 8, null);
+
+        assertTrue(queue.write(new byte[6], 0, 6, null));
+        assertFalse(queue.write(new byte[3], 0, 3, null));
+        assertEquals(6, queue.getQueuedBytes());
+
+        // Oversized payloads only fit into an empty queue
+        queue.clear();
+        assertTrue(queue.write(new byte[20], 0, 20, null));
+    }
+
+    @Test
+    public void detachEndsWriterAndKeepsPayloads() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 4, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        BTWriteQueue queue = new BTWriteQueue(1024, 64, executor);
+
+        queue.attach(new CountingStream());
+        waitForActive(executor, 1);
+
+        queue.detach();
+        waitForActive(executor, 0);
+
+        CountDownLatch written = new CountDownLatch(1);
+        queue.write(new byte[] { 42 }, 0, 1, new Callback(written));
+        assertEquals(1, queue.getQueuedWrites());
+
+        CountingStream stream = new CountingStream();
+        queue.attach(stream);
+
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 42 }, stream.toByteArray());
+
+        queue.shutdown();
+        waitForActive(executor, 0);
+        executor.shutdown();
+    }
+
+    private static void waitForActive(ThreadPoolExecutor executor, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (executor.getActiveCount() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("active threads " + executor.getActiveCount() + ", expected " + count);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static final class CountingStream extends ByteArrayOutputStream {
+        private int mWrites;
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int count) {
+            super.write(buffer, offset, count);
+            mWrites++;
+        }
+    }
+
+    private static final class Callback implements BTWriteQueue.Callback {
+        private final CountDownLatch mLatch;
+        private volatile boolean mSuccess = true;
+
+        Callback(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        public void onWriteComplete(byte[] data, int offset, int count, boolean success) {
+            mSuccess &= success;
+            mLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.konstantin.btterminal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Copies the frames of a BTFrameDecoder, whose data is only valid during onFrame()
+class FrameCollector implements BTFrameDecoder.Listener {
+
+    final List<byte[]> mFrames = new ArrayList<byte[]>();
+
+    public void onFrame(byte[] frame, int offset, int count) {
+        mFrames.add(Arrays.copyOfRange(frame, offset, offset + count));
+    }
+
+    // Feeds stream in chunks of chunkSize bytes, each copied into a fresh array behind some
+    // padding, since decoders work in place and must honour the offset
+    static List<byte[]> decode(BTFrameDecoder decoder, byte[] stream, int chunkSize) {
+        FrameCollector collector = new FrameCollector();
+
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            int count = Math.min(chunkSize, stream.length - offset);
+            byte[] chunk = new byte[count + 7];
+
+            Arrays.fill(chunk, (byte) 0x5A);
+            System.arraycopy(stream, offset, chunk, 3, count);
+            decoder.decode(chunk, 3, count, collector);
+        }
+
+        return collector.mFrames;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}